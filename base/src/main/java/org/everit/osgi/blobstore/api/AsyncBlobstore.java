@@ -0,0 +1,109 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.api;
+
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of the {@link Blobstore} operations. Each method returns immediately and the operation is
+ * executed in the background. The number of operations that run at the same time is limited, so the asynchronous
+ * calls do not exhaust the connection pool of the storage; the operations over the limit wait in a queue without
+ * occupying a thread.
+ *
+ * Each operation has a variant that takes a {@link BlobstoreCallback}, which is notified when the operation completes,
+ * so the caller does not have to block a thread on {@link Future#get()}. If an operation fails, {@link Future#get()}
+ * throws an {@link ExecutionException} and {@link BlobstoreCallback#onFailure(Throwable)} is called with the exception
+ * thrown by the {@link Blobstore} method as the cause. An operation that cannot be started, because the component is
+ * deactivated, is cancelled.
+ */
+public interface AsyncBlobstore {
+
+    /**
+     * Deletes a blob asynchronously, see {@link Blobstore#deleteBlob(long)}.
+     */
+    Future<Void> deleteBlob(long blobId);
+
+    /**
+     * Deletes a blob asynchronously and notifies the callback, see {@link #deleteBlob(long)}.
+     */
+    Future<Void> deleteBlob(long blobId, BlobstoreCallback<Void> callback);
+
+    /**
+     * Gets the size of a blob asynchronously, see {@link Blobstore#getBlobSizeByBlobId(long)}.
+     */
+    Future<Long> getBlobSizeByBlobId(long blobId);
+
+    /**
+     * Gets the size of a blob asynchronously and notifies the callback, see {@link #getBlobSizeByBlobId(long)}.
+     */
+    Future<Long> getBlobSizeByBlobId(long blobId, BlobstoreCallback<Long> callback);
+
+    /**
+     * Gets the description of a blob asynchronously, see {@link Blobstore#getDescriptionByBlobId(long)}.
+     */
+    Future<String> getDescriptionByBlobId(long blobId);
+
+    /**
+     * Gets the description of a blob asynchronously and notifies the callback, see
+     * {@link #getDescriptionByBlobId(long)}.
+     */
+    Future<String> getDescriptionByBlobId(long blobId, BlobstoreCallback<String> callback);
+
+    /**
+     * Reads a blob asynchronously, see {@link Blobstore#readBlob(long, long, BlobReader)}. The
+     * {@link BlobReader#readBlob(InputStream)} callback is called on a background thread and the returned future
+     * completes after the callback returned.
+     */
+    Future<Void> readBlob(long blobId, long startPosition, BlobReader blobReader);
+
+    /**
+     * Reads a blob asynchronously and notifies the callback after the {@link BlobReader} returned, see
+     * {@link #readBlob(long, long, BlobReader)}.
+     */
+    Future<Void> readBlob(long blobId, long startPosition, BlobReader blobReader,
+            BlobstoreCallback<Void> callback);
+
+    /**
+     * Stores a blob asynchronously, see {@link Blobstore#storeBlob(InputStream, Long, String)}. The stream is read on
+     * a background thread, so it must not be used by the caller until the returned future completes.
+     */
+    Future<Long> storeBlob(InputStream blobStream, Long length, String description);
+
+    /**
+     * Stores a blob asynchronously and notifies the callback with the id of the blob, see
+     * {@link #storeBlob(InputStream, Long, String)}.
+     */
+    Future<Long> storeBlob(InputStream blobStream, Long length, String description,
+            BlobstoreCallback<Long> callback);
+
+    /**
+     * Uploads a part of a multipart upload asynchronously, see
+     * {@link Blobstore#uploadPart(long, int, InputStream, Long)}. The parts submitted one after the other are uploaded
+     * in parallel up to the concurrency limit.
+     */
+    Future<Void> uploadPart(long uploadId, int partNumber, InputStream partStream, Long length);
+
+    /**
+     * Uploads a part of a multipart upload asynchronously and notifies the callback, see
+     * {@link #uploadPart(long, int, InputStream, Long)}.
+     */
+    Future<Void> uploadPart(long uploadId, int partNumber, InputStream partStream, Long length,
+            BlobstoreCallback<Void> callback);
+
+}
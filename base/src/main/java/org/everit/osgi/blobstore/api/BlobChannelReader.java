@@ -14,14 +14,23 @@
  * You should have received a copy of the GNU Lesser General Public License
  * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
  */
-package org.everit.osgi.blobstore.internal.cache;
+package org.everit.osgi.blobstore.api;
 
-public class RangeException extends RuntimeException {
+import java.nio.channels.SeekableByteChannel;
 
-    private static final long serialVersionUID = -7760852011187692162L;
-
-    public RangeException(final String message) {
-        super(message);
-    }
+/**
+ * Interface for reading a blob through a {@link SeekableByteChannel}.
+ */
+public interface BlobChannelReader {
+    /**
+     * A callback interface which can be used to read a blob through a channel.
+     *
+     * @param blobChannel
+     *            The read-only channel of the blob. Its position starts at zero and it can be moved to any position of
+     *            the blob.
+     * @throws BlobstoreException
+     *             If the reading of the blob cannot be executed.
+     */
+    void readBlob(SeekableByteChannel blobChannel);
 
 }
@@ -0,0 +1,74 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.api;
+
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * The content and the description of a blob to be stored by {@link Blobstore#storeBlobs(java.util.List)}.
+ */
+public final class BlobInput {
+
+    private final InputStream blobStream;
+
+    private final Long length;
+
+    private final String description;
+
+    /**
+     * Constructor.
+     *
+     * @param blobStream
+     *            The stream of the content of the blob.
+     * @param length
+     *            The number of bytes to be read from the stream or <code>null</code> if the stream is read till its
+     *            end.
+     * @param description
+     *            The description of the blob, see {@link Blobstore#storeBlob(InputStream, Long, String)}.
+     * @throws NullPointerException
+     *             if <code>blobStream</code> is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             if <code>length</code> is negative.
+     */
+    public BlobInput(final InputStream blobStream, final Long length, final String description) {
+        this.blobStream = Objects.requireNonNull(blobStream, "blobStream cannot be null");
+        if ((length != null) && (length < 0)) {
+            throw new IllegalArgumentException("length cannot be negative, actual value: " + length);
+        }
+        this.length = length;
+        this.description = description;
+    }
+
+    public InputStream getBlobStream() {
+        return blobStream;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Long getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "BlobInput [length=" + length + ", description=" + description + "]";
+    }
+
+}
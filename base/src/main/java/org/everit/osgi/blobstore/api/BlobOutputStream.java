@@ -0,0 +1,47 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream that writes the content of a new blob, see {@link Blobstore#openBlobOutputStream(String)}. The blob becomes
+ * visible when the stream is closed. If the content cannot be produced, {@link #abort()} discards the written bytes
+ * instead of storing a partial blob.
+ */
+public abstract class BlobOutputStream extends OutputStream {
+
+    /**
+     * Discards the written bytes and releases the resources of the stream. The blob is not stored. Calling
+     * {@link #close()} after this method has no effect.
+     *
+     * @throws IOException
+     *             if the resources cannot be released.
+     */
+    public abstract void abort() throws IOException;
+
+    /**
+     * Returns the id of the blob.
+     *
+     * @return The unique id of the blob.
+     * @throws IllegalStateException
+     *             if the id is not known yet. The id is known after {@link #close()} returned.
+     */
+    public abstract long getBlobId();
+
+}
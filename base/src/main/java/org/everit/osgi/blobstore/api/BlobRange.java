@@ -0,0 +1,71 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.api;
+
+/**
+ * A range of the content of a blob.
+ */
+public final class BlobRange {
+
+    private final long startPosition;
+
+    private final int length;
+
+    /**
+     * Constructor.
+     *
+     * @param startPosition
+     *            The position of the first byte of the range.
+     * @param length
+     *            The number of bytes in the range.
+     * @throws IllegalArgumentException
+     *             if <code>startPosition</code> or <code>length</code> is negative.
+     */
+    public BlobRange(final long startPosition, final int length) {
+        if (startPosition < 0) {
+            throw new IllegalArgumentException("startPosition cannot be negative, actual value: " + startPosition);
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("length cannot be negative, actual value: " + length);
+        }
+        this.startPosition = startPosition;
+        this.length = length;
+    }
+
+    /**
+     * Returns the position after the last byte of the range.
+     *
+     * @return The end position.
+     */
+    public long getEndPosition() {
+        return startPosition + length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+    @Override
+    public String toString() {
+        return "BlobRange [startPosition=" + startPosition + ", length=" + length + "]";
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.api;
+
+import java.io.InputStream;
+
+/**
+ * Interface for reading the ranges of a blob that were requested by
+ * {@link Blobstore#readRanges(long, java.util.List, BlobRangeReader)}.
+ */
+public interface BlobRangeReader {
+    /**
+     * A callback interface which is called for each requested range.
+     *
+     * @param range
+     *            The range that was requested.
+     * @param rangeStream
+     *            The content of the range. The stream is backed by memory, so it can be read after the callback
+     *            returns too.
+     * @throws BlobstoreException
+     *             If the reading of the range cannot be executed.
+     */
+    void readRange(BlobRange range, InputStream rangeStream);
+
+}
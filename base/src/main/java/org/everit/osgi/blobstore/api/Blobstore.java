@@ -17,12 +17,37 @@
 package org.everit.osgi.blobstore.api;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.sql.SQLException;
+import java.util.List;
 
 public interface Blobstore {
 
     final int BLOB_DESCRIPTION_MAX_LENGTH = 255;
 
+    /**
+     * Aborting a multipart upload. The uploaded parts are deleted and the upload id cannot be used anymore.
+     *
+     * @param uploadId
+     *            The id of the upload returned by {@link #initiateMultipartUpload(String)}.
+     * @throws BlobstoreException
+     *             if the upload does not exist.
+     */
+    void abortMultipartUpload(long uploadId);
+
+    /**
+     * Completing a multipart upload. The uploaded parts are concatenated in the order of their part numbers into a
+     * new blob and the upload is deleted. The method must not be called while parts of the upload are being uploaded.
+     *
+     * @param uploadId
+     *            The id of the upload returned by {@link #initiateMultipartUpload(String)}.
+     * @return The unique id of the new blob.
+     * @throws BlobstoreException
+     *             if the upload does not exist or the blob cannot be assembled.
+     */
+    long completeMultipartUpload(long uploadId);
+
     void deleteBlob(long blobId);
 
     /**
@@ -38,6 +63,82 @@ public interface Blobstore {
 
     String getDescriptionByBlobId(long blobId);
 
+    /**
+     * Getting the part numbers of the parts that are already stored for a multipart upload. A client that failed
+     * during the upload may call this method to find out which parts have to be uploaded again.
+     *
+     * @param uploadId
+     *            The id of the upload returned by {@link #initiateMultipartUpload(String)}.
+     * @return The part numbers in ascending order.
+     * @throws BlobstoreException
+     *             if the upload does not exist.
+     */
+    List<Integer> getUploadedPartNumbers(long uploadId);
+
+    /**
+     * Starting a multipart upload. The content of the blob may be uploaded in parts by
+     * {@link #uploadPart(long, int, InputStream, Long)}, in any order and from multiple threads at the same time. Each
+     * part is stored in its own transaction, so the stored parts survive if the upload of another part fails. The blob
+     * is created by {@link #completeMultipartUpload(long)}.
+     *
+     * @param description
+     *            The description of the blob, see {@link #storeBlob(InputStream, Long, String)}.
+     * @return The id of the upload.
+     * @throws BlobstoreException
+     *             if the upload cannot be started or the description is too long.
+     */
+    long initiateMultipartUpload(String description);
+
+    /**
+     * Opening a stream that writes the content of a new blob. The caller writes the content as it is produced, so no
+     * {@link InputStream} has to be provided. The blob becomes visible when the stream is closed, after that its id
+     * is returned by {@link BlobOutputStream#getBlobId()}. The stream must be closed or
+     * {@link BlobOutputStream#abort() aborted}, as it holds a database connection.
+     *
+     * @param description
+     *            The description of the blob, see {@link #storeBlob(InputStream, Long, String)}.
+     * @return The stream of the new blob.
+     * @throws BlobstoreException
+     *             if the stream cannot be opened or the description is too long.
+     */
+    BlobOutputStream openBlobOutputStream(String description);
+
+    /**
+     * Reading bytes of a blob from the given position into a buffer, like
+     * {@link java.nio.channels.FileChannel#read(ByteBuffer, long)}. Cached bytes are copied straight into the buffer,
+     * a direct buffer is filled without an intermediate array.
+     *
+     * @param blobId
+     *            The unique id of the blob.
+     * @param position
+     *            The position of the first byte to be read.
+     * @param destination
+     *            The buffer that is filled till it is full or the end of the blob is reached. Its position is advanced
+     *            by the number of read bytes.
+     * @return The number of read bytes or <code>-1</code> if <code>position</code> is not lower than the size of the
+     *         blob.
+     * @throws BlobstoreException
+     *             if the blob cannot be read.
+     * @throws IllegalArgumentException
+     *             if <code>position</code> is negative.
+     */
+    int read(long blobId, long position, ByteBuffer destination);
+
+    /**
+     * Reading the content of a blob through a {@link SeekableByteChannel}. Changing the position of the channel does
+     * not read the skipped bytes, the bytes at the new position are served from the cache or read from the storage.
+     *
+     * @param blobId
+     *            The unique id of the blob.
+     * @param blobChannelReader
+     *            The {@link BlobChannelReader#readBlob(SeekableByteChannel)} function will be called with a read-only
+     *            channel of the blob. The channel should not be closed as it is handled automatically, the same rules
+     *            apply as in case of {@link #readBlob(long, long, BlobReader)}.
+     * @throws BlobstoreException
+     *             if a blob cannot be read.
+     */
+    void readBlob(long blobId, BlobChannelReader blobChannelReader);
+
     /**
      * Reading the content of a blob from the given position.
      *
@@ -55,6 +156,42 @@ public interface Blobstore {
      */
     void readBlob(long blobId, long startPosition, BlobReader blobReader);
 
+    /**
+     * Reading a range of the content of a blob. The storage fetches only the bytes of the range and the stream
+     * passed to the {@link BlobReader} ends at <code>startPosition + length</code>.
+     * @param blobId
+     *            The unique id of the blob.
+     * @param startPosition
+     *            The position where the blob reading will be started from.
+     * @param length
+     *            The number of bytes to be read.
+     * @param blobReader
+     *            The {@link BlobReader#readBlob(InputStream)} function will be called to let the programmer read the
+     *            content of the range. The same rules apply as in case of {@link #readBlob(long, long, BlobReader)}.
+     * @throws BlobstoreException
+     *             if the blob cannot be read or the range exceeds the size of the blob
+     * @throws IllegalArgumentException
+     *             if <code>length</code> is negative.
+     */
+    void readBlob(long blobId, long startPosition, long length, BlobReader blobReader);
+
+    /**
+     * Reading multiple ranges of a blob at once. One storage reader serves all the ranges: the ranges are sorted, the
+     * overlapping and adjacent ranges are merged and only the bytes that are not in the cache are read from the
+     * storage.
+     *
+     * @param blobId
+     *            The unique id of the blob.
+     * @param ranges
+     *            The ranges to be read in any order. They may overlap.
+     * @param rangeReader
+     *            The {@link BlobRangeReader#readRange(BlobRange, InputStream)} function is called once for each
+     *            element of <code>ranges</code>, in the order of the start positions of the ranges.
+     * @throws BlobstoreException
+     *             if the blob cannot be read or a range exceeds the size of the blob
+     */
+    void readRanges(long blobId, List<BlobRange> ranges, BlobRangeReader rangeReader);
+
     /**
      * Storing a blob with the data coming from the given inputStream.
      *
@@ -76,4 +213,37 @@ public interface Blobstore {
      */
     long storeBlob(InputStream blobStream, Long length, String description);
 
+    /**
+     * Storing multiple blobs in one transaction. The blobs are stored by one database connection, so storing many
+     * small blobs costs much less than calling {@link #storeBlob(InputStream, Long, String)} for each of them. Either
+     * all or none of the blobs are stored.
+     *
+     * @param blobs
+     *            The blobs to be stored.
+     * @return The unique ids of the blobs in the order of <code>blobs</code>.
+     * @throws BlobstoreException
+     *             if any of the blobs cannot be stored
+     */
+    List<Long> storeBlobs(List<BlobInput> blobs);
+
+    /**
+     * Uploading a part of a multipart upload. The part is stored by its own connection in its own transaction. If a
+     * part with the same number has already been uploaded, it is replaced.
+     *
+     * @param uploadId
+     *            The id of the upload returned by {@link #initiateMultipartUpload(String)}.
+     * @param partNumber
+     *            The position of the part in the blob. The parts are concatenated in the order of their numbers, the
+     *            numbers do not have to be contiguous.
+     * @param partStream
+     *            The stream where the content of the part is read from.
+     * @param length
+     *            The length of the part or <code>null</code> if the stream is read until its end.
+     * @throws BlobstoreException
+     *             if the upload does not exist or the part cannot be stored.
+     * @throws IllegalArgumentException
+     *             if <code>partNumber</code> is not positive.
+     */
+    void uploadPart(long uploadId, int partNumber, InputStream partStream, Long length);
+
 }
@@ -0,0 +1,47 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.api;
+
+/**
+ * Callback that is notified when an operation of the {@link AsyncBlobstore} completes, so the caller does not have to
+ * block a thread on the returned future. The callback is called on the thread that completes the operation, so it
+ * should return quickly and it must not throw an exception.
+ *
+ * @param <T>
+ *            The type of the result of the operation.
+ */
+public interface BlobstoreCallback<T> {
+
+    /**
+     * Called if the operation failed or it was cancelled.
+     *
+     * @param cause
+     *            The exception thrown by the {@link Blobstore} method or a
+     *            {@link java.util.concurrent.CancellationException} if the operation was cancelled or it could not be
+     *            started.
+     */
+    void onFailure(Throwable cause);
+
+    /**
+     * Called if the operation completed successfully.
+     *
+     * @param result
+     *            The result of the operation, <code>null</code> if the operation has no result.
+     */
+    void onSuccess(T result);
+
+}
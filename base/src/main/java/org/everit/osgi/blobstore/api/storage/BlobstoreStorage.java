@@ -18,7 +18,10 @@ package org.everit.osgi.blobstore.api.storage;
 
 import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.List;
 
+import org.everit.osgi.blobstore.api.BlobInput;
+import org.everit.osgi.blobstore.api.BlobOutputStream;
 import org.everit.osgi.blobstore.api.BlobstoreException;
 import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheService;
 
@@ -36,9 +39,38 @@ public interface BlobstoreStorage {
 
     public static final int DEFAULT_BUFFER_SIZE = 2048;
 
+    /**
+     * Aborting a multipart upload, see {@link org.everit.osgi.blobstore.api.Blobstore#abortMultipartUpload(long)}.
+     */
+    void abortMultipartUpload(long uploadId);
+
+    /**
+     * Assembling the parts of a multipart upload into a new blob, see
+     * {@link org.everit.osgi.blobstore.api.Blobstore#completeMultipartUpload(long)}. The blob is created and the parts
+     * are deleted in one transaction.
+     */
+    long completeMultipartUpload(long uploadId);
+
     BlobstoreStorageReader createReader(long blobId, long startPosition)
             throws SQLException;
 
+    /**
+     * Creating a reader that reads only a range of a blob. The reader may fetch the range in advance or in one piece
+     * as it will not be asked for bytes outside of the range.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param startPosition
+     *            The position of the first byte of the range.
+     * @param length
+     *            The number of bytes in the range.
+     * @return The reader of the range.
+     * @throws SQLException
+     *             if a database error occurs.
+     */
+    BlobstoreStorageReader createReader(long blobId, long startPosition, long length)
+            throws SQLException;
+
     /**
      * Deleting a blob from the store.
      *
@@ -59,5 +91,44 @@ public interface BlobstoreStorage {
      */
     String getDescriptionByBlobId(long blobId);
 
+    /**
+     * Getting the numbers of the stored parts of a multipart upload in ascending order.
+     */
+    List<Integer> getUploadedPartNumbers(long uploadId);
+
+    /**
+     * Starting a multipart upload, see {@link org.everit.osgi.blobstore.api.Blobstore#initiateMultipartUpload(String)}.
+     */
+    long initiateMultipartUpload(String description);
+
+    /**
+     * Opening a stream that writes a new blob. The stream holds a connection and a transaction that is committed when
+     * the stream is closed.
+     *
+     * @param description
+     *            The description of the blob.
+     * @return The stream of the new blob.
+     * @throws BlobstoreException
+     *             if the stream cannot be opened.
+     */
+    BlobOutputStream openBlobOutputStream(String description);
+
     long storeBlob(InputStream blobStream, Long length, String description);
+
+    /**
+     * Storing multiple blobs by one connection in one transaction.
+     *
+     * @param blobs
+     *            The blobs to be stored.
+     * @return The ids of the blobs in the order of <code>blobs</code>.
+     * @throws BlobstoreException
+     *             if any of the blobs cannot be stored, in that case none of them is stored.
+     */
+    List<Long> storeBlobs(List<BlobInput> blobs);
+
+    /**
+     * Storing a part of a multipart upload by its own connection in its own transaction, see
+     * {@link org.everit.osgi.blobstore.api.Blobstore#uploadPart(long, int, InputStream, Long)}.
+     */
+    void uploadPart(long uploadId, int partNumber, InputStream partStream, Long length);
 }
@@ -18,6 +18,9 @@ package org.everit.osgi.blobstore.api.storage;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.List;
+
+import org.everit.osgi.blobstore.api.BlobRange;
 
 public interface BlobstoreStorageReader {
 
@@ -45,4 +48,33 @@ public interface BlobstoreStorageReader {
      */
     byte[] readDataFromStorage(long startPosition, int amount) throws SQLException;
 
+    /**
+     * Read bytes from the database from the given offset into an array of the caller. Unlike
+     * {@link #readDataFromStorage(long, int)} this method does not allocate a new array for every call.
+     *
+     * @param startPosition
+     *            The offset from which the data is to be read.
+     * @param dest
+     *            The array into which the bytes are read.
+     * @param offset
+     *            The position in <code>dest</code> where the first read byte is written.
+     * @param amount
+     *            The number of bytes to be read.
+     * @throws SQLException
+     *             If a db error occurred.
+     */
+    void readInto(long startPosition, byte[] dest, int offset, int amount) throws SQLException;
+
+    /**
+     * Read multiple ranges of the blob with the connection of this reader, so the ranges are served by one storage
+     * round trip instead of opening the blob once per range.
+     *
+     * @param ranges
+     *            The ranges to be read. They are sorted by their start position and they do not overlap.
+     * @return The read byte arrays in the order of <code>ranges</code>.
+     * @throws SQLException
+     *             If a db error occurred.
+     */
+    List<byte[]> readDataFromStorage(List<BlobRange> ranges) throws SQLException;
+
 }
@@ -0,0 +1,41 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.chunking;
+
+import java.io.IOException;
+
+/**
+ * Receives the chunks of a stream that is split by a {@link ContentDefinedChunker}.
+ */
+public interface ChunkHandler {
+
+    /**
+     * Called once for each chunk in the order of the chunks in the stream.
+     *
+     * @param buffer
+     *            The array that holds the chunk. It is reused after the method returns, so the bytes must be copied if
+     *            they are needed later.
+     * @param offset
+     *            The position of the first byte of the chunk in <code>buffer</code>.
+     * @param length
+     *            The length of the chunk.
+     * @throws IOException
+     *             if the chunk cannot be stored.
+     */
+    void handleChunk(byte[] buffer, int offset, int length) throws IOException;
+
+}
@@ -0,0 +1,109 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.chunking;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The ordered list of the chunks of a blob that is stored by content-defined chunks. The chunk that holds a position
+ * of the blob is found by binary search on the start positions of the chunks.
+ */
+public final class ChunkManifest {
+
+    private final long[] chunkIds;
+
+    private final long[] chunkOffsets;
+
+    private final long size;
+
+    /**
+     * Constructor.
+     *
+     * @param chunkIds
+     *            The ids of the chunks in the order of the chunks in the blob. An id may occur multiple times.
+     * @param chunkOffsets
+     *            The position of the first byte of each chunk in the blob. The first offset is zero and the offsets
+     *            are strictly increasing.
+     * @param size
+     *            The size of the blob.
+     * @throws IllegalArgumentException
+     *             if the arrays have different lengths or the offsets are invalid.
+     */
+    public ChunkManifest(final long[] chunkIds, final long[] chunkOffsets, final long size) {
+        this.chunkIds = Objects.requireNonNull(chunkIds, "chunkIds cannot be null");
+        this.chunkOffsets = Objects.requireNonNull(chunkOffsets, "chunkOffsets cannot be null");
+        if (chunkIds.length != chunkOffsets.length) {
+            throw new IllegalArgumentException("the number of chunk ids and chunk offsets differ: " + chunkIds.length
+                    + ", " + chunkOffsets.length);
+        }
+        if ((chunkOffsets.length == 0) ? (size != 0) : (chunkOffsets[0] != 0)) {
+            throw new IllegalArgumentException("the first chunk must start at zero");
+        }
+        for (int i = 1; i < chunkOffsets.length; i++) {
+            if (chunkOffsets[i] <= chunkOffsets[i - 1]) {
+                throw new IllegalArgumentException("the chunk offsets must be strictly increasing at index " + i);
+            }
+        }
+        if ((chunkOffsets.length > 0) && (size <= chunkOffsets[chunkOffsets.length - 1])) {
+            throw new IllegalArgumentException("the last chunk must not be empty");
+        }
+        this.size = size;
+    }
+
+    public int getChunkCount() {
+        return chunkIds.length;
+    }
+
+    public long getChunkId(final int index) {
+        return chunkIds[index];
+    }
+
+    public int getChunkLength(final int index) {
+        long chunkEnd = (index == (chunkOffsets.length - 1)) ? size : chunkOffsets[index + 1];
+        return (int) (chunkEnd - chunkOffsets[index]);
+    }
+
+    public long getChunkOffset(final int index) {
+        return chunkOffsets[index];
+    }
+
+    /**
+     * Returns the size of the blob, the sum of the lengths of the chunks.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Finds the chunk that holds a position of the blob.
+     *
+     * @param position
+     *            The position in the blob.
+     * @return The index of the chunk.
+     * @throws IndexOutOfBoundsException
+     *             if the position is negative or not lower than the size of the blob.
+     */
+    public int indexOf(final long position) {
+        if ((position < 0) || (position >= size)) {
+            throw new IndexOutOfBoundsException("position " + position + " is outside of the blob of size " + size);
+        }
+        int index = Arrays.binarySearch(chunkOffsets, position);
+        return (index >= 0) ? index : (-index - 2);
+    }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.chunking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * Splits the written bytes into content-defined chunks and passes them to a {@link ChunkHandler}. A chunk is passed
+ * as soon as its end is known, the last chunk is passed when the stream is closed. At most two times the maximum
+ * chunk size is buffered.
+ */
+public class ChunkingOutputStream extends OutputStream {
+
+    private final ContentDefinedChunker chunker;
+
+    private final ChunkHandler handler;
+
+    private final byte[] buffer;
+
+    /**
+     * The position of the first byte in {@link #buffer} that has not been passed to the handler.
+     */
+    private int start = 0;
+
+    /**
+     * The position after the last written byte in {@link #buffer}.
+     */
+    private int end = 0;
+
+    /**
+     * The number of bytes that have been passed to the handler.
+     */
+    private long chunkedLength = 0;
+
+    private boolean closed = false;
+
+    public ChunkingOutputStream(final ContentDefinedChunker chunker, final ChunkHandler handler) {
+        this.chunker = Objects.requireNonNull(chunker, "chunker cannot be null");
+        this.handler = Objects.requireNonNull(handler, "handler cannot be null");
+        buffer = new byte[2 * chunker.getMaxSize()];
+    }
+
+    /**
+     * Passes the remaining bytes to the handler as the last chunks.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (start < end) {
+            passChunk();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("the stream is closed");
+        }
+    }
+
+    /**
+     * Returns the number of bytes that have been passed to the handler in chunks.
+     */
+    public long getChunkedLength() {
+        return chunkedLength;
+    }
+
+    /**
+     * Passes the next chunk of the buffered bytes to the handler.
+     */
+    private void passChunk() throws IOException {
+        int chunkLength = chunker.cut(buffer, start, end - start);
+        handler.handleChunk(buffer, start, chunkLength);
+        start += chunkLength;
+        chunkedLength += chunkLength;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureOpen();
+        if ((off < 0) || (len < 0) || (len > (b.length - off))) {
+            throw new IndexOutOfBoundsException();
+        }
+        int maxSize = chunker.getMaxSize();
+        int written = 0;
+        while (written < len) {
+            if (end == buffer.length) {
+                // the end of the next chunk is known only if the maximum size of a chunk is buffered
+                while ((end - start) >= maxSize) {
+                    passChunk();
+                }
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int n = Math.min(len - written, buffer.length - end);
+            System.arraycopy(b, off + written, buffer, end, n);
+            end += n;
+            written += n;
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.chunking;
+
+/**
+ * Finds content-defined chunk boundaries by the FastCDC algorithm. A boundary is placed where the gear hash of the
+ * preceding bytes matches a mask, so the boundaries depend only on the nearby content: inserting or deleting bytes in
+ * a stream moves the boundaries around the edit only, and the chunks of the unchanged content stay the same.
+ *
+ * The sizes of the chunks are normalized: before the average size a boundary is accepted only if more bits of the
+ * hash match, after the average size fewer bits have to match. No boundary is placed before the minimum size and
+ * there is always a boundary at the maximum size.
+ *
+ * The hash table is generated from a fixed seed, so the same content is split the same way by every instance and
+ * every version of this class. Instances are immutable and thread safe.
+ */
+public class ContentDefinedChunker {
+
+    /**
+     * The smallest average chunk size that is accepted.
+     */
+    public static final int MIN_AVERAGE_SIZE = 256;
+
+    /**
+     * The largest average chunk size that is accepted.
+     */
+    public static final int MAX_AVERAGE_SIZE = 1 << 24;
+
+    private static final long GEAR_SEED = 0x5DEECE66DL;
+
+    /**
+     * Random values of the bytes, the hash is shifted left by one and the value of the next byte is added.
+     */
+    private static final long[] GEAR = createGear();
+
+    private static long[] createGear() {
+        long[] gear = new long[256];
+        long state = GEAR_SEED;
+        for (int i = 0; i < gear.length; i++) {
+            // SplitMix64
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            gear[i] = z ^ (z >>> 31);
+        }
+        return gear;
+    }
+
+    /**
+     * Creates a mask of the given number of the highest bits. The highest bits of the gear hash depend on the last 64
+     * bytes, the lowest ones only on the last few bytes.
+     */
+    private static long highBitsMask(final int bits) {
+        return -1L << (Long.SIZE - bits);
+    }
+
+    private final int minSize;
+
+    private final int averageSize;
+
+    private final int maxSize;
+
+    /**
+     * The mask that is used before the average size.
+     */
+    private final long hardMask;
+
+    /**
+     * The mask that is used after the average size.
+     */
+    private final long easyMask;
+
+    /**
+     * Creates a chunker with the minimum size of a quarter and the maximum size of four times the average size.
+     *
+     * @param averageSize
+     *            The average size of the chunks, a power of two.
+     */
+    public ContentDefinedChunker(final int averageSize) {
+        this(averageSize / 4, averageSize, averageSize * 4);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param minSize
+     *            The minimum size of the chunks, except the last chunk of a stream.
+     * @param averageSize
+     *            The average size of the chunks, a power of two between {@link #MIN_AVERAGE_SIZE} and
+     *            {@link #MAX_AVERAGE_SIZE}.
+     * @param maxSize
+     *            The maximum size of the chunks.
+     * @throws IllegalArgumentException
+     *             if the sizes are out of range or <code>minSize &lt;= averageSize &lt;= maxSize</code> does not
+     *             hold.
+     */
+    public ContentDefinedChunker(final int minSize, final int averageSize, final int maxSize) {
+        if ((averageSize < MIN_AVERAGE_SIZE) || (averageSize > MAX_AVERAGE_SIZE)
+                || (Integer.bitCount(averageSize) != 1)) {
+            throw new IllegalArgumentException("averageSize must be a power of two between " + MIN_AVERAGE_SIZE
+                    + " and " + MAX_AVERAGE_SIZE + ": " + averageSize);
+        }
+        if ((minSize <= 0) || (minSize > averageSize) || (maxSize < averageSize)) {
+            throw new IllegalArgumentException("minSize <= averageSize <= maxSize must hold: " + minSize + ", "
+                    + averageSize + ", " + maxSize);
+        }
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        hardMask = highBitsMask(bits + 1);
+        easyMask = highBitsMask(bits - 1);
+    }
+
+    /**
+     * Finds the end of the chunk that starts at <code>offset</code>.
+     *
+     * @param data
+     *            The array that holds the bytes.
+     * @param offset
+     *            The position of the first byte of the chunk.
+     * @param length
+     *            The number of available bytes. If it is less than {@link #getMaxSize()}, the available bytes are
+     *            supposed to be the end of the stream.
+     * @return The length of the chunk, at most <code>length</code>.
+     */
+    public int cut(final byte[] data, final int offset, final int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = Math.min(length, maxSize);
+        int normalEnd = Math.min(end, averageSize);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normalEnd; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & hardMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & easyMask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    public int getAverageSize() {
+        return averageSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+}
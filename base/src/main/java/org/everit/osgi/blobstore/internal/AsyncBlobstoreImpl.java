@@ -0,0 +1,240 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.blobstore.api.AsyncBlobstore;
+import org.everit.osgi.blobstore.api.BlobReader;
+import org.everit.osgi.blobstore.api.Blobstore;
+import org.everit.osgi.blobstore.api.BlobstoreCallback;
+import org.everit.osgi.blobstore.api.BlobstoreException;
+
+/**
+ * {@link AsyncBlobstore} that runs the operations of a {@link Blobstore} on an executor. If no executor is bound
+ * through <code>executor.target</code>, the operations run on daemon threads that are created on demand and released
+ * after a minute of idleness. At most {@link #PROP_MAX_CONCURRENCY} operations run at the same time, it should not be
+ * higher than the size of the connection pool of the storage.
+ *
+ * The variants of the operations without a callback pass <code>null</code> as the callback, so no callback is
+ * notified.
+ */
+@Component(name = "org.everit.blobstore.AsyncBlobstore",
+        metatype = true, configurationFactory = true,
+        policy = ConfigurationPolicy.REQUIRE)
+@Properties({
+    @Property(name = "blobstore.target"),
+    @Property(name = "executor.target"),
+    @Property(name = AsyncBlobstoreImpl.PROP_MAX_CONCURRENCY, intValue = AsyncBlobstoreImpl.DEFAULT_MAX_CONCURRENCY)
+})
+@Service
+public class AsyncBlobstoreImpl implements AsyncBlobstore {
+
+    /**
+     * The maximum number of operations that run at the same time.
+     */
+    public static final String PROP_MAX_CONCURRENCY = "maxConcurrency";
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 10;
+
+    @Reference
+    private Blobstore blobstore;
+
+    /**
+     * The executor that runs the operations, <code>null</code> if the built-in thread pool is used.
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY)
+    private Executor executor;
+
+    /**
+     * The built-in thread pool, <code>null</code> if an executor is bound.
+     */
+    private ExecutorService defaultExecutor;
+
+    /**
+     * The executor that limits the number of operations that run at the same time.
+     */
+    private BoundedExecutor boundedExecutor;
+
+    @Activate
+    public void activate(final Map<String, Object> componentProperties) {
+        Object maxConcurrencyValue = componentProperties.get(PROP_MAX_CONCURRENCY);
+        int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+        if (maxConcurrencyValue != null) {
+            try {
+                maxConcurrency = Integer.parseInt(String.valueOf(maxConcurrencyValue).trim());
+            } catch (NumberFormatException e) {
+                throw new BlobstoreException("invalid value of property " + PROP_MAX_CONCURRENCY + ": "
+                        + maxConcurrencyValue, e);
+            }
+        }
+        if (maxConcurrency <= 0) {
+            throw new BlobstoreException("invalid value of property " + PROP_MAX_CONCURRENCY + ": " + maxConcurrency);
+        }
+        Executor lExecutor = executor;
+        if (lExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("blobstore-async-"));
+            lExecutor = defaultExecutor;
+        }
+        boundedExecutor = new BoundedExecutor(lExecutor, maxConcurrency);
+    }
+
+    public void bindBlobstore(final Blobstore blobstore) {
+        this.blobstore = blobstore;
+    }
+
+    public void bindExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    @Deactivate
+    public void deactivate() {
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+        }
+    }
+
+    @Override
+    public Future<Void> deleteBlob(final long blobId) {
+        return deleteBlob(blobId, null);
+    }
+
+    @Override
+    public Future<Void> deleteBlob(final long blobId, final BlobstoreCallback<Void> callback) {
+        return submit(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                blobstore.deleteBlob(blobId);
+                return null;
+            }
+        }, callback);
+    }
+
+    @Override
+    public Future<Long> getBlobSizeByBlobId(final long blobId) {
+        return getBlobSizeByBlobId(blobId, null);
+    }
+
+    @Override
+    public Future<Long> getBlobSizeByBlobId(final long blobId, final BlobstoreCallback<Long> callback) {
+        return submit(new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                return blobstore.getBlobSizeByBlobId(blobId);
+            }
+        }, callback);
+    }
+
+    @Override
+    public Future<String> getDescriptionByBlobId(final long blobId) {
+        return getDescriptionByBlobId(blobId, null);
+    }
+
+    @Override
+    public Future<String> getDescriptionByBlobId(final long blobId, final BlobstoreCallback<String> callback) {
+        return submit(new Callable<String>() {
+
+            @Override
+            public String call() {
+                return blobstore.getDescriptionByBlobId(blobId);
+            }
+        }, callback);
+    }
+
+    @Override
+    public Future<Void> readBlob(final long blobId, final long startPosition, final BlobReader blobReader) {
+        return readBlob(blobId, startPosition, blobReader, null);
+    }
+
+    @Override
+    public Future<Void> readBlob(final long blobId, final long startPosition, final BlobReader blobReader,
+            final BlobstoreCallback<Void> callback) {
+        Objects.requireNonNull(blobReader, "blobReader cannot be null");
+        return submit(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                blobstore.readBlob(blobId, startPosition, blobReader);
+                return null;
+            }
+        }, callback);
+    }
+
+    @Override
+    public Future<Long> storeBlob(final InputStream blobStream, final Long length, final String description) {
+        return storeBlob(blobStream, length, description, null);
+    }
+
+    @Override
+    public Future<Long> storeBlob(final InputStream blobStream, final Long length, final String description,
+            final BlobstoreCallback<Long> callback) {
+        Objects.requireNonNull(blobStream, "blobStream cannot be null");
+        return submit(new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                return blobstore.storeBlob(blobStream, length, description);
+            }
+        }, callback);
+    }
+
+    @Override
+    public Future<Void> uploadPart(final long uploadId, final int partNumber, final InputStream partStream,
+            final Long length) {
+        return uploadPart(uploadId, partNumber, partStream, length, null);
+    }
+
+    @Override
+    public Future<Void> uploadPart(final long uploadId, final int partNumber, final InputStream partStream,
+            final Long length, final BlobstoreCallback<Void> callback) {
+        Objects.requireNonNull(partStream, "partStream cannot be null");
+        return submit(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                blobstore.uploadPart(uploadId, partNumber, partStream, length);
+                return null;
+            }
+        }, callback);
+    }
+
+    private <T> Future<T> submit(final Callable<T> operation, final BlobstoreCallback<? super T> callback) {
+        CallbackFutureTask<T> task = new CallbackFutureTask<T>(operation, callback);
+        boundedExecutor.execute(task);
+        return task;
+    }
+
+}
@@ -0,0 +1,203 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import org.everit.osgi.blobstore.api.BlobRange;
+import org.everit.osgi.blobstore.api.BlobRangeReader;
+import org.everit.osgi.blobstore.api.BlobstoreException;
+import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
+import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheService;
+
+/**
+ * Reads multiple ranges of a blob with one storage reader. The ranges are sorted and the overlapping or adjacent
+ * ranges are merged into spans. The cached bytes of the spans are copied from the cache and all the uncached bytes
+ * are fetched by one {@link BlobstoreStorageReader#readDataFromStorage(List)} call.
+ */
+public class BlobRangesReader {
+
+    /**
+     * Continuous bytes of the blob that cover one or more requested ranges.
+     */
+    private static class Span {
+
+        private final long startPosition;
+
+        private byte[] data;
+
+        private long endPosition;
+
+        Span(final BlobRange range) {
+            startPosition = range.getStartPosition();
+            endPosition = range.getEndPosition();
+        }
+
+    }
+
+    private static final Comparator<BlobRange> START_POSITION_ORDER = new Comparator<BlobRange>() {
+
+        @Override
+        public int compare(final BlobRange o1, final BlobRange o2) {
+            return Long.compare(o1.getStartPosition(), o2.getStartPosition());
+        }
+    };
+
+    private final long blobId;
+
+    private final BlobstoreStorageReader storageReader;
+
+    /**
+     * The cache service implementation, <code>null</code> if the ranges are read from the storage.
+     */
+    private BlobstoreCacheService cacheService;
+
+    public BlobRangesReader(final long blobId, final BlobstoreStorageReader storageReader) {
+        this.blobId = blobId;
+        this.storageReader = Objects.requireNonNull(storageReader, "storageReader cannot be null");
+    }
+
+    /**
+     * Copies the cached bytes of the spans and collects the uncached parts.
+     *
+     * @return The uncached parts, sorted by their start position.
+     */
+    private List<BlobRange> copyCachedBytes(final List<Span> spans) {
+        List<BlobRange> uncachedParts = new ArrayList<BlobRange>();
+        for (Span span : spans) {
+            int spanLength = span.data.length;
+            int copied = 0;
+            while (copied < spanLength) {
+                long position = span.startPosition + copied;
+                int remaining = spanLength - copied;
+                int cachedBytes = 0;
+                if (cacheService != null) {
+                    cachedBytes = cacheService.copyTo(blobId, position, ByteBuffer.wrap(span.data, copied, remaining));
+                }
+                if (cachedBytes > 0) {
+                    copied += cachedBytes;
+                } else {
+                    int uncachedLength = remaining;
+                    if (cacheService != null) {
+                        uncachedLength = cacheService.getUncachedLength(blobId, position, remaining);
+                        if (uncachedLength == 0) {
+                            // the cached bytes have been evicted since they were looked up
+                            uncachedLength = remaining;
+                        }
+                    }
+                    uncachedParts.add(new BlobRange(position, uncachedLength));
+                    copied += uncachedLength;
+                }
+            }
+        }
+        return uncachedParts;
+    }
+
+    /**
+     * Merges the overlapping and adjacent ranges of a sorted range list into spans.
+     */
+    private List<Span> mergeRanges(final List<BlobRange> sortedRanges) {
+        List<Span> spans = new ArrayList<Span>();
+        Span current = null;
+        for (BlobRange range : sortedRanges) {
+            if ((current != null) && (range.getStartPosition() <= current.endPosition)) {
+                current.endPosition = Math.max(current.endPosition, range.getEndPosition());
+            } else {
+                current = new Span(range);
+                spans.add(current);
+            }
+        }
+        for (Span span : spans) {
+            long spanLength = span.endPosition - span.startPosition;
+            if (spanLength > Integer.MAX_VALUE) {
+                throw new BlobstoreException("merged ranges of blob #" + blobId + " cannot be longer than "
+                        + Integer.MAX_VALUE + " bytes, actual value: " + spanLength);
+            }
+            span.data = new byte[(int) spanLength];
+        }
+        return spans;
+    }
+
+    /**
+     * Reads the ranges and passes them to the range reader in the order of their start positions.
+     *
+     * @param ranges
+     *            The ranges to be read in any order. They may overlap.
+     * @param rangeReader
+     *            The callback that gets the content of the ranges.
+     * @throws SQLException
+     *             if a range cannot be read from the storage.
+     * @throws BlobstoreException
+     *             if a range exceeds the size of the blob.
+     */
+    public void readRanges(final List<BlobRange> ranges, final BlobRangeReader rangeReader) throws SQLException {
+        if (ranges.isEmpty()) {
+            return;
+        }
+        List<BlobRange> sortedRanges = new ArrayList<BlobRange>(ranges);
+        Collections.sort(sortedRanges, START_POSITION_ORDER);
+        long totalSize = storageReader.getTotalSize();
+        for (BlobRange range : sortedRanges) {
+            if (range.getEndPosition() > totalSize) {
+                throw new BlobstoreException("the range [startPosition=" + range.getStartPosition() + ", length="
+                        + range.getLength() + "] exceeds totalSize(=" + totalSize + ") of blob #" + blobId);
+            }
+        }
+
+        List<Span> spans = mergeRanges(sortedRanges);
+        List<BlobRange> uncachedParts = copyCachedBytes(spans);
+        if (!uncachedParts.isEmpty()) {
+            List<byte[]> uncachedBytes = storageReader.readDataFromStorage(uncachedParts);
+            int spanIndex = 0;
+            for (int i = 0, n = uncachedParts.size(); i < n; i++) {
+                BlobRange part = uncachedParts.get(i);
+                byte[] bytes = uncachedBytes.get(i);
+                while (spans.get(spanIndex).endPosition <= part.getStartPosition()) {
+                    spanIndex++;
+                }
+                Span span = spans.get(spanIndex);
+                System.arraycopy(bytes, 0, span.data, (int) (part.getStartPosition() - span.startPosition),
+                        part.getLength());
+                if (cacheService != null) {
+                    cacheService.storeBlobPart(blobId, part.getStartPosition(), bytes, totalSize);
+                }
+            }
+        }
+
+        int spanIndex = 0;
+        for (BlobRange range : sortedRanges) {
+            while (spans.get(spanIndex).endPosition < range.getEndPosition()) {
+                spanIndex++;
+            }
+            Span span = spans.get(spanIndex);
+            rangeReader.readRange(range, new ByteArrayInputStream(span.data,
+                    (int) (range.getStartPosition() - span.startPosition), range.getLength()));
+        }
+    }
+
+    public void setCacheService(final BlobstoreCacheService cacheService) {
+        this.cacheService = cacheService;
+    }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.sql.SQLException;
+import java.util.Objects;
+
+/**
+ * Read-only {@link SeekableByteChannel} of a blob. The channel reads through a {@link BlobReaderInputStream}, so the
+ * cache and the read-ahead window of the stream are used. Changing the position does not read the skipped bytes.
+ * Closing the channel does not close the underlying stream, the stream is closed by the one who opened it.
+ */
+public class BlobReaderChannel implements SeekableByteChannel {
+
+    private final BlobReaderInputStream stream;
+
+    private boolean open = true;
+
+    public BlobReaderChannel(final BlobReaderInputStream stream) {
+        this.stream = Objects.requireNonNull(stream, "stream cannot be null");
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public long position() throws IOException {
+        checkOpen();
+        return stream.getPosition();
+    }
+
+    @Override
+    public SeekableByteChannel position(final long newPosition) throws IOException {
+        checkOpen();
+        stream.seek(newPosition);
+        return this;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        checkOpen();
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        return stream.read(dst);
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        try {
+            return stream.getTotalSize();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+}
@@ -18,23 +18,150 @@ package org.everit.osgi.blobstore.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
-import java.util.Collections;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
 import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheService;
-import org.everit.osgi.blobstore.internal.cache.CachedBlobPart;
 
 /**
- * Abstract class that is the skeleton of the database-specific input streams that are used to retrieve blobs from the
- * database.
+ * Input stream of a blob that reads the blob through the cache and the {@link BlobstoreStorageReader} of a storage.
+ *
+ * The stream reads ahead into a window. The window grows (up to {@link #setMaxReadAhead(int) a configured cap}) while
+ * the blob is read sequentially and shrinks when the reader jumps to another position by {@link #skip(long)} or
+ * {@link #seek(long)}. The uncached bytes of a window are fetched by one
+ * {@link BlobstoreStorageReader#readInto(long, byte[], int, int)} call straight into the window, so small reads do not
+ * result in many small storage calls. A stream of a blob range does not read ahead beyond the end of the range.
+ *
+ * Bytes can be read into a {@link ByteBuffer} too. The cached bytes and the bytes of the window are copied into a
+ * direct buffer without an intermediate array. The uncached bytes of a read that bypasses the window are fetched by
+ * {@link BlobstoreStorageReader#readDataFromStorage(long, int)} if the destination is a direct buffer, which allocates
+ * an array for every uncached range.
+ *
+ * If {@link #setPrefetch(Executor, int) prefetching} is enabled, the windows that follow the current one are read by
+ * background tasks while the consumer reads the current window, so a sequential read is not slowed down by the storage
+ * latency of every window. At most <code>depth</code> windows are prefetched, hence the stream holds at most
+ * <code>depth + 1</code> windows of {@link #setMaxReadAhead(int) maxReadAhead} bytes. The prefetched windows are
+ * dropped if the stream is read from another position. The storage reader is never used by two threads at the same
+ * time.
  */
 public class BlobReaderInputStream extends InputStream {
+
+    /**
+     * The default size of the first read-ahead window in bytes.
+     */
+    public static final int DEFAULT_MIN_READ_AHEAD = 8192;
+
+    /**
+     * The default maximum size of the read-ahead window in bytes.
+     */
+    public static final int DEFAULT_MAX_READ_AHEAD = 262144;
+
     /**
      * Integer that contains only bits with value one.
      */
     private static final int ALL_BIT_ONE_INT = 0xFF;
+
+    private static final int PREFETCH_PENDING = 0;
+
+    private static final int PREFETCH_RUNNING = 1;
+
+    private static final int PREFETCH_DONE = 2;
+
+    private static final int PREFETCH_CANCELLED = 3;
+
+    /**
+     * A window that is read by a background task.
+     */
+    private final class Prefetch implements Runnable {
+
+        private final long start;
+
+        private final int length;
+
+        private final byte[] buffer;
+
+        private final AtomicInteger state = new AtomicInteger(PREFETCH_PENDING);
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * The error of the read, it is visible after {@link #done} is counted down.
+         */
+        private IOException failure;
+
+        Prefetch(final long start, final int length, final byte[] buffer) {
+            this.start = start;
+            this.length = length;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Waits until the window is read.
+         *
+         * @throws IOException
+         *             if the window could not be read or the thread is interrupted.
+         */
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for blob #" + blobId);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * Cancels the read if it has not started yet, otherwise waits until it completes. The buffer of the prefetch
+         * can be reused after this method returns.
+         */
+        void cancel() {
+            if (state.compareAndSet(PREFETCH_PENDING, PREFETCH_CANCELLED)) {
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(PREFETCH_PENDING, PREFETCH_RUNNING)) {
+                return;
+            }
+            try {
+                readThrough(start, ByteBuffer.wrap(buffer, 0, length));
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            } finally {
+                state.set(PREFETCH_DONE);
+                done.countDown();
+            }
+        }
+
+    }
+
     /**
      * The current position of the reader.
      */
@@ -42,6 +169,16 @@ public class BlobReaderInputStream extends InputStream {
 
     private final BlobstoreStorageReader storageReader;
 
+    /**
+     * The lock that is held while the storage reader is used, because it may be used by the prefetch tasks too.
+     */
+    private final Object storageLock = new Object();
+
+    /**
+     * The size of the blob, <code>-1</code> if it has not been queried yet.
+     */
+    private volatile long totalSize = -1;
+
     /**
      * The id of the blob.
      */
@@ -52,6 +189,62 @@ public class BlobReaderInputStream extends InputStream {
      */
     private BlobstoreCacheService cacheService;
 
+    /**
+     * The maximum size of the read-ahead window, zero if the stream does not read ahead.
+     */
+    private int maxReadAhead = DEFAULT_MAX_READ_AHEAD;
+
+    /**
+     * The size of the next read-ahead window.
+     */
+    private int readAheadSize = DEFAULT_MIN_READ_AHEAD;
+
+    /**
+     * The bytes that were read ahead.
+     */
+    private byte[] window = new byte[0];
+
+    /**
+     * The position of the first byte of the window in the blob.
+     */
+    private long windowStart = 0;
+
+    /**
+     * The number of the valid bytes in the window, zero if nothing has been read ahead yet.
+     */
+    private int windowLength = 0;
+
+    /**
+     * The position after the last byte that was fetched by a window or by a direct read, <code>-1</code> if nothing
+     * has been fetched yet.
+     */
+    private long fetchEnd = -1;
+
+    /**
+     * The position where the stream ends, {@link Long#MAX_VALUE} if the stream ends at the end of the blob.
+     */
+    private final long endPosition;
+
+    /**
+     * The executor that runs the prefetch tasks, <code>null</code> if the stream does not prefetch.
+     */
+    private Executor prefetchExecutor;
+
+    /**
+     * The maximum number of windows that are prefetched.
+     */
+    private int prefetchDepth = 0;
+
+    /**
+     * The windows that are being prefetched in the order of their positions.
+     */
+    private final Deque<Prefetch> prefetches = new ArrayDeque<Prefetch>();
+
+    /**
+     * The buffers of the consumed windows that can be reused by the next prefetches.
+     */
+    private final Deque<byte[]> spareBuffers = new ArrayDeque<byte[]>();
+
     /**
      * The required constructor for the abstract class.
      *
@@ -61,37 +254,156 @@ public class BlobReaderInputStream extends InputStream {
      *            the position where this stream should start.
      */
     public BlobReaderInputStream(final Long blobId, final long startPosition, final BlobstoreStorageReader storageReader) {
+        this(blobId, startPosition, Long.MAX_VALUE - startPosition, storageReader);
+    }
+
+    /**
+     * Constructor of a stream that ends before the end of the blob.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param startPosition
+     *            the position where this stream should start.
+     * @param length
+     *            The maximum number of bytes that can be read from the stream.
+     */
+    public BlobReaderInputStream(final Long blobId, final long startPosition, final long length,
+            final BlobstoreStorageReader storageReader) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length cannot be negative, actual value: " + length);
+        }
         this.blobId = blobId;
         currentPosition = startPosition;
+        endPosition = startPosition + length;
         this.storageReader = storageReader;
     }
 
     @Override
     public int available() throws IOException {
-        try {
-            return (int) (storageReader.getTotalSize() - currentPosition);
-        } catch (SQLException e) {
-            throw new IOException(e);
+        return (int) Math.min(Integer.MAX_VALUE, getRemainingSize());
+    }
+
+    /**
+     * Cancels the prefetches and keeps their buffers for reuse.
+     */
+    private void cancelPrefetches() {
+        Prefetch prefetch = prefetches.pollFirst();
+        while (prefetch != null) {
+            prefetch.cancel();
+            spareBuffers.add(prefetch.buffer);
+            prefetch = prefetches.pollFirst();
         }
     }
 
     @Override
     public void close() throws IOException {
-        storageReader.close();
+        try {
+            cancelPrefetches();
+        } finally {
+            synchronized (storageLock) {
+                storageReader.close();
+            }
+        }
     }
 
+    /**
+     * Reads the next window at the given position. The window is doubled if it continues the previously fetched bytes
+     * and halved otherwise. If the window has been prefetched, the prefetched buffer becomes the window, otherwise the
+     * prefetches are dropped and the window is read from the storage. The following windows are prefetched
+     * afterwards.
+     */
+    private void fillWindow(final long position) throws IOException {
+        if (fetchEnd >= 0) {
+            if (position == fetchEnd) {
+                readAheadSize = (int) Math.min(maxReadAhead, readAheadSize * 2L);
+            } else {
+                readAheadSize = Math.max(Math.min(DEFAULT_MIN_READ_AHEAD, maxReadAhead), readAheadSize / 2);
+            }
+        }
+        Prefetch prefetch = prefetches.peekFirst();
+        if ((prefetch != null) && (prefetch.start == position)) {
+            prefetches.pollFirst();
+            try {
+                prefetch.await();
+            } catch (IOException e) {
+                spareBuffers.add(prefetch.buffer);
+                cancelPrefetches();
+                throw e;
+            }
+            spareBuffers.add(window);
+            window = prefetch.buffer;
+            windowStart = position;
+            windowLength = prefetch.length;
+        } else {
+            cancelPrefetches();
+            int size = (int) Math.max(1, Math.min(readAheadSize, getRemainingSize(position)));
+            if (window.length < size) {
+                window = new byte[Math.max(size, Math.min(maxReadAhead, window.length * 2))];
+            }
+            windowLength = 0;
+            readThrough(position, ByteBuffer.wrap(window, 0, size));
+            windowStart = position;
+            windowLength = size;
+        }
+        fetchEnd = windowStart + windowLength;
+        schedulePrefetches();
+    }
+
+    /**
+     * Returns the position of the next byte to be read.
+     *
+     * @return The position in the blob.
+     */
+    public long getPosition() {
+        return currentPosition;
+    }
+
+    private long getRemainingSize() throws IOException {
+        return getRemainingSize(currentPosition);
+    }
+
+    private long getRemainingSize(final long position) throws IOException {
+        try {
+            return Math.max(0, Math.min(getTotalSize(), endPosition) - position);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the size of the blob. The size is queried from the storage reader only once.
+     */
     public long getTotalSize() throws SQLException {
-        return storageReader.getTotalSize();
+        long size = totalSize;
+        if (size < 0) {
+            synchronized (storageLock) {
+                size = storageReader.getTotalSize();
+            }
+            totalSize = size;
+        }
+        return size;
+    }
+
+    private boolean isPrefetched(final long position) {
+        Prefetch prefetch = prefetches.peekFirst();
+        return (prefetch != null) && (prefetch.start == position);
+    }
+
+    private boolean isInWindow(final long position) {
+        return (position >= windowStart) && (position < (windowStart + windowLength));
     }
 
     @Override
     public final int read() throws IOException {
-        byte[] b = new byte[1];
-        int read = read(b);
-        if (read == -1) {
-            throw new IOException("End of stream reached.");
+        if (!isInWindow(currentPosition)) {
+            if (getRemainingSize() == 0) {
+                return -1;
+            }
+            fillWindow(currentPosition);
         }
-        return b[0] & ALL_BIT_ONE_INT;
+        int rval = window[(int) (currentPosition - windowStart)] & ALL_BIT_ONE_INT;
+        currentPosition++;
+        return rval;
     }
 
     @Override
@@ -102,60 +414,222 @@ public class BlobReaderInputStream extends InputStream {
                     "Byte array length without the offset is smaller"
                             + " than the length that should be read from the stream");
         }
-        int available = available();
-        if (available == 0) {
+        return read(ByteBuffer.wrap(buffer, off, len));
+    }
+
+    /**
+     * Reads bytes from the current position of the stream into a byte buffer. The method blocks until
+     * <code>dest</code> is full or the end of the stream is reached.
+     *
+     * @param dest
+     *            The destination buffer, its position is advanced by the number of read bytes.
+     * @return The number of read bytes or <code>-1</code> if the end of the stream is reached.
+     * @throws IOException
+     *             if the blob cannot be read from the storage.
+     */
+    public final int read(final ByteBuffer dest) throws IOException {
+        long remainingSize = getRemainingSize();
+        if (remainingSize == 0) {
             return -1;
         }
 
-        int bytesToRead = len;
-        if (available < len) {
-            bytesToRead = available;
+        int bytesToRead = (int) Math.min(dest.remaining(), remainingSize);
+
+        int readBytes = 0;
+        while (readBytes < bytesToRead) {
+            int remaining = bytesToRead - readBytes;
+            if (isInWindow(currentPosition)) {
+                int windowOffset = (int) (currentPosition - windowStart);
+                int copied = Math.min(remaining, windowLength - windowOffset);
+                dest.put(window, windowOffset, copied);
+                readBytes += copied;
+                currentPosition += copied;
+            } else if ((remaining >= readAheadSize) && !isPrefetched(currentPosition)) {
+                // the window would not save any storage call, so the bytes are read directly
+                cancelPrefetches();
+                int limit = dest.limit();
+                dest.limit(dest.position() + remaining);
+                try {
+                    readThrough(currentPosition, dest);
+                } finally {
+                    dest.limit(limit);
+                }
+                fetchEnd = currentPosition + remaining;
+                readBytes += remaining;
+                currentPosition += remaining;
+            } else {
+                fillWindow(currentPosition);
+            }
         }
+        return readBytes;
+    }
 
-        List<CachedBlobPart> cachedBlobParts = null;
+    /**
+     * Reads bytes from the storage straight into the backing array of the destination buffer and caches them from
+     * there, so no intermediate array is allocated.
+     */
+    private void readInto(final long position, final ByteBuffer dest, final int amount) throws SQLException {
+        int destPos = dest.arrayOffset() + dest.position();
+        synchronized (storageLock) {
+            storageReader.readInto(position, dest.array(), destPos, amount);
+        }
         if (cacheService != null) {
-            cachedBlobParts = cacheService.getBlobParts(blobId, currentPosition, bytesToRead);
-        } else {
-            cachedBlobParts = Collections.emptyList();
+            cacheService.storeBlobPart(blobId, position, dest.array(), destPos, amount, getTotalSize());
         }
-        CachedBlobPart[] cachedBlobPartsArray = cachedBlobParts.toArray(new CachedBlobPart[0]);
-
-        int currentBlobPartIndex = 0;
+        dest.position(dest.position() + amount);
+    }
 
+    /**
+     * Reads a range of the blob from the cache and reads the uncached parts from the storage. The range starts at the
+     * given position and it is as long as the remaining bytes of <code>dest</code>. This method is called by the
+     * prefetch tasks too, so it must not change the state of the stream.
+     */
+    private void readThrough(final long position, final ByteBuffer dest) throws IOException {
+        int length = dest.remaining();
         int readBytes = 0;
-        while (readBytes < bytesToRead) {
-
-            if ((currentBlobPartIndex < cachedBlobPartsArray.length)
-                    && ((currentPosition + readBytes)
-                            == cachedBlobPartsArray[currentBlobPartIndex].getStartPosition())) {
-                CachedBlobPart cachedBlobPart = cachedBlobPartsArray[currentBlobPartIndex];
-                byte[] blobPartData = cachedBlobPart.getBlobPartData();
-                System.arraycopy(cachedBlobPart.getBlobPartData(), 0, buffer, off + readBytes, blobPartData.length);
-                readBytes = readBytes + blobPartData.length;
-                currentBlobPartIndex++;
+        while (readBytes < length) {
+            long readPosition = position + readBytes;
+            int remaining = length - readBytes;
+            int cachedBytes = 0;
+            if (cacheService != null) {
+                cachedBytes = cacheService.copyTo(blobId, readPosition, dest);
+            }
+            if (cachedBytes > 0) {
+                readBytes = readBytes + cachedBytes;
             } else {
-                int amountToRead = bytesToRead - readBytes;
-                if (currentBlobPartIndex < cachedBlobPartsArray.length) {
-                    amountToRead = (int) (cachedBlobPartsArray[currentBlobPartIndex].getStartPosition() - readBytes
-                            - currentPosition);
+                int amountToRead = remaining;
+                if (cacheService != null) {
+                    amountToRead = cacheService.getUncachedLength(blobId, readPosition, remaining);
+                    if (amountToRead == 0) {
+                        // the cached bytes have been evicted since they were looked up
+                        amountToRead = remaining;
+                    }
                 }
-                long dbReadStartPosition = currentPosition + readBytes;
-                byte[] bytesFromDB;
                 try {
-                    bytesFromDB = storageReader.readDataFromStorage(dbReadStartPosition, amountToRead);
+                    if (dest.hasArray()) {
+                        readInto(readPosition, dest, amountToRead);
+                    } else {
+                        byte[] bytesFromDB;
+                        synchronized (storageLock) {
+                            bytesFromDB = storageReader.readDataFromStorage(readPosition, amountToRead);
+                        }
+                        if (cacheService != null) {
+                            cacheService.storeBlobPart(blobId, readPosition, bytesFromDB, getTotalSize());
+                        }
+                        dest.put(bytesFromDB, 0, amountToRead);
+                    }
                 } catch (SQLException e) {
                     throw new IOException(e);
                 }
-                System.arraycopy(bytesFromDB, 0, buffer, off + readBytes, bytesFromDB.length);
                 readBytes = readBytes + amountToRead;
             }
         }
-        currentPosition = currentPosition + readBytes;
-        return readBytes;
+    }
+
+    /**
+     * Moves the stream to the given position of the blob. The bytes that were read ahead are kept, so seeking inside
+     * the window does not cause a storage call. Nothing is read until the next read call, and a cached range is
+     * served from the cache even if the storage reader is far from it.
+     *
+     * @param position
+     *            The new position, it may be beyond the end of the stream, in that case the next read returns
+     *            <code>-1</code>.
+     * @throws IllegalArgumentException
+     *             if <code>position</code> is negative.
+     */
+    public void seek(final long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position cannot be negative, actual value: " + position);
+        }
+        currentPosition = position;
+    }
+
+    /**
+     * Schedules prefetches after the current window and the previous prefetches until <code>prefetchDepth</code>
+     * windows are being prefetched or the end of the stream is reached.
+     */
+    private void schedulePrefetches() throws IOException {
+        if ((prefetchExecutor == null) || (maxReadAhead == 0)) {
+            return;
+        }
+        Prefetch last = prefetches.peekLast();
+        long next = (last == null) ? (windowStart + windowLength) : (last.start + last.length);
+        while (prefetches.size() < prefetchDepth) {
+            long remaining = getRemainingSize(next);
+            if (remaining == 0) {
+                return;
+            }
+            int size = (int) Math.min(readAheadSize, remaining);
+            byte[] buffer = spareBuffers.pollFirst();
+            if ((buffer == null) || (buffer.length < size)) {
+                buffer = new byte[readAheadSize];
+            }
+            Prefetch prefetch = new Prefetch(next, size, buffer);
+            prefetches.addLast(prefetch);
+            try {
+                prefetchExecutor.execute(prefetch);
+            } catch (RejectedExecutionException e) {
+                // the window will be read when it is needed
+                prefetches.pollLast();
+                spareBuffers.add(buffer);
+                return;
+            }
+            next += size;
+        }
     }
 
     public void setCacheService(final BlobstoreCacheService cacheService) {
         this.cacheService = cacheService;
     }
 
+    /**
+     * Sets the maximum size of the read-ahead window.
+     *
+     * @param maxReadAhead
+     *            The maximum number of bytes that are read ahead, zero if the stream should not read ahead.
+     * @throws IllegalArgumentException
+     *             if <code>maxReadAhead</code> is negative.
+     */
+    public void setMaxReadAhead(final int maxReadAhead) {
+        if (maxReadAhead < 0) {
+            throw new IllegalArgumentException("maxReadAhead cannot be negative, actual value: " + maxReadAhead);
+        }
+        this.maxReadAhead = maxReadAhead;
+        readAheadSize = Math.min(readAheadSize, maxReadAhead);
+    }
+
+    /**
+     * Enables reading the next windows in the background while the current window is consumed. The prefetching starts
+     * when the next window is read.
+     *
+     * @param executor
+     *            The executor that runs the prefetch tasks, <code>null</code> if the stream should not prefetch.
+     * @param depth
+     *            The maximum number of windows that are prefetched.
+     * @throws IllegalArgumentException
+     *             if <code>executor</code> is not <code>null</code> and <code>depth</code> is not positive.
+     */
+    public void setPrefetch(final Executor executor, final int depth) {
+        if ((executor != null) && (depth <= 0)) {
+            throw new IllegalArgumentException("depth must be positive, actual value: " + depth);
+        }
+        cancelPrefetches();
+        prefetchExecutor = executor;
+        prefetchDepth = (executor == null) ? 0 : depth;
+    }
+
+    /**
+     * Moves the position of the stream forward without reading the skipped bytes. The bytes that were read ahead are
+     * kept, so a short skip inside the window does not cause a storage call.
+     */
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, getRemainingSize());
+        currentPosition += skipped;
+        return skipped;
+    }
+
 }
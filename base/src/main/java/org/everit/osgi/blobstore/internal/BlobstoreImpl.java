@@ -16,53 +16,226 @@
  */
 package org.everit.osgi.blobstore.internal;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.blobstore.api.BlobChannelReader;
+import org.everit.osgi.blobstore.api.BlobInput;
+import org.everit.osgi.blobstore.api.BlobOutputStream;
+import org.everit.osgi.blobstore.api.BlobRange;
+import org.everit.osgi.blobstore.api.BlobRangeReader;
 import org.everit.osgi.blobstore.api.BlobReader;
 import org.everit.osgi.blobstore.api.Blobstore;
 import org.everit.osgi.blobstore.api.BlobstoreException;
 import org.everit.osgi.blobstore.api.storage.BlobstoreStorage;
 import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
+import org.everit.osgi.blobstore.internal.cache.BlobMetadata;
+import org.everit.osgi.blobstore.internal.cache.BlobMetadataCache;
 import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheService;
+import org.everit.osgi.blobstore.internal.cache.BoundedFragmentCache;
+import org.everit.osgi.blobstore.internal.cache.CacheKey;
+import org.everit.osgi.blobstore.internal.cache.Fragment;
+import org.everit.osgi.blobstore.internal.cache.FragmentIndexMap;
+import org.everit.osgi.blobstore.internal.cache.SlabAllocator;
 
 @Component(name = "org.everit.blobstore.Blobstore",
         metatype = true, configurationFactory = true,
         policy = ConfigurationPolicy.REQUIRE)
 @Properties({
     @Property(name = "storage.target"),
-    @Property(name = "cache.target")
+    @Property(name = "cache.target"),
+    @Property(name = BlobstoreImpl.PROP_CACHE_MAX_BYTES, longValue = BlobstoreImpl.DEFAULT_CACHE_MAX_BYTES),
+    @Property(name = BlobstoreImpl.PROP_CACHE_OFF_HEAP, boolValue = BlobstoreImpl.DEFAULT_CACHE_OFF_HEAP),
+    @Property(name = BlobstoreImpl.PROP_CACHE_EXPIRE_AFTER_ACCESS,
+            longValue = BlobstoreImpl.DEFAULT_CACHE_EXPIRE_AFTER_ACCESS),
+    @Property(name = BlobstoreImpl.PROP_READ_AHEAD_MAX_BYTES, intValue = BlobstoreImpl.DEFAULT_READ_AHEAD_MAX_BYTES),
+    @Property(name = BlobstoreImpl.PROP_METADATA_CACHE_MAX_ENTRIES,
+            intValue = BlobstoreImpl.DEFAULT_METADATA_CACHE_MAX_ENTRIES),
+    @Property(name = BlobstoreImpl.PROP_PREFETCH_DEPTH, intValue = BlobstoreImpl.DEFAULT_PREFETCH_DEPTH)
 })
 @Service
 public class BlobstoreImpl implements Blobstore {
 
-    // @Reference
-    private ConcurrentMap<Long, Boolean> cache = new ConcurrentHashMap<Long, Boolean>();
+    /**
+     * The maximum number of bytes held by the built-in fragment cache. The built-in cache is used only if no cache is
+     * bound through <code>cache.target</code>. Zero means that the blobs are not cached.
+     */
+    public static final String PROP_CACHE_MAX_BYTES = "cache.maxBytes";
+
+    public static final long DEFAULT_CACHE_MAX_BYTES = 0;
+
+    /**
+     * Whether the built-in fragment cache holds the cached bytes in direct memory instead of the heap.
+     */
+    public static final String PROP_CACHE_OFF_HEAP = "cache.offHeap";
+
+    public static final boolean DEFAULT_CACHE_OFF_HEAP = false;
+
+    /**
+     * The number of milliseconds after the last access when a fragment of the built-in cache expires. Zero means that
+     * the fragments do not expire.
+     */
+    public static final String PROP_CACHE_EXPIRE_AFTER_ACCESS = "cache.expireAfterAccess";
+
+    public static final long DEFAULT_CACHE_EXPIRE_AFTER_ACCESS = 0;
+
+    /**
+     * The maximum number of bytes the blob streams read ahead. The read-ahead window grows up to this size while a
+     * blob is read sequentially. Zero means that the streams do not read ahead.
+     */
+    public static final String PROP_READ_AHEAD_MAX_BYTES = "readAhead.maxBytes";
+
+    public static final int DEFAULT_READ_AHEAD_MAX_BYTES = BlobReaderInputStream.DEFAULT_MAX_READ_AHEAD;
+
+    /**
+     * The maximum number of blobs whose size and description are cached. Zero means that the metadata is always
+     * queried from the storage.
+     */
+    public static final String PROP_METADATA_CACHE_MAX_ENTRIES = "metadataCache.maxEntries";
+
+    public static final int DEFAULT_METADATA_CACHE_MAX_ENTRIES = 10000;
+
+    /**
+     * The number of read-ahead windows the blob streams read in the background while the current window is consumed.
+     * A stream holds at most this number plus one windows of {@link #PROP_READ_AHEAD_MAX_BYTES} bytes. Zero means
+     * that the windows are read only when they are needed.
+     */
+    public static final String PROP_PREFETCH_DEPTH = "prefetch.depth";
+
+    public static final int DEFAULT_PREFETCH_DEPTH = 0;
+
+    private static boolean getBooleanProperty(final Map<String, Object> componentProperties, final String name,
+            final boolean defaultValue) {
+        Object value = componentProperties.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return Boolean.parseBoolean(String.valueOf(value).trim());
+    }
+
+    private static long getLongProperty(final Map<String, Object> componentProperties, final String name,
+            final long defaultValue) {
+        Object value = componentProperties.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            throw new BlobstoreException("invalid value of property " + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * The map that holds the cached fragments of the blobs. If it is not available the built-in
+     * {@link BoundedFragmentCache} is used if {@link #PROP_CACHE_MAX_BYTES} is set, otherwise the blobs are read
+     * directly from the storage.
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY)
+    private ConcurrentMap<CacheKey, Fragment> cache;
 
     @Reference
     private BlobstoreStorage storage;
 
+    /**
+     * The read-through cache of the blob fragments, <code>null</code> if caching is disabled.
+     */
     private BlobstoreCacheService cacheService;
 
+    /**
+     * The maximum size of the read-ahead window of the blob streams.
+     */
+    private int maxReadAhead = DEFAULT_READ_AHEAD_MAX_BYTES;
+
+    /**
+     * The cache of the sizes and descriptions of the blobs, <code>null</code> if the metadata is not cached.
+     */
+    private BlobMetadataCache metadataCache;
+
+    /**
+     * The number of windows the blob streams prefetch.
+     */
+    private int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+
+    /**
+     * The threads that prefetch the windows of the blob streams, <code>null</code> if the streams do not prefetch.
+     */
+    private ExecutorService prefetchExecutor;
+
     @Activate
-    public void activate() {
-        // TODO
-        cacheService = new BlobstoreCacheService(null, null);
+    public void activate(final Map<String, Object> componentProperties) {
+        long readAheadMaxBytes = getLongProperty(componentProperties, PROP_READ_AHEAD_MAX_BYTES,
+                DEFAULT_READ_AHEAD_MAX_BYTES);
+        if ((readAheadMaxBytes < 0) || (readAheadMaxBytes > Integer.MAX_VALUE)) {
+            throw new BlobstoreException("invalid value of property " + PROP_READ_AHEAD_MAX_BYTES + ": "
+                    + readAheadMaxBytes);
+        }
+        maxReadAhead = (int) readAheadMaxBytes;
+        long metadataCacheMaxEntries = getLongProperty(componentProperties, PROP_METADATA_CACHE_MAX_ENTRIES,
+                DEFAULT_METADATA_CACHE_MAX_ENTRIES);
+        if ((metadataCacheMaxEntries < 0) || (metadataCacheMaxEntries > Integer.MAX_VALUE)) {
+            throw new BlobstoreException("invalid value of property " + PROP_METADATA_CACHE_MAX_ENTRIES + ": "
+                    + metadataCacheMaxEntries);
+        }
+        if (metadataCacheMaxEntries > 0) {
+            metadataCache = new BlobMetadataCache((int) metadataCacheMaxEntries);
+        }
+        long lPrefetchDepth = getLongProperty(componentProperties, PROP_PREFETCH_DEPTH, DEFAULT_PREFETCH_DEPTH);
+        if ((lPrefetchDepth < 0) || (lPrefetchDepth > Integer.MAX_VALUE)) {
+            throw new BlobstoreException("invalid value of property " + PROP_PREFETCH_DEPTH + ": " + lPrefetchDepth);
+        }
+        prefetchDepth = (int) lPrefetchDepth;
+        if ((prefetchDepth > 0) && (maxReadAhead > 0)) {
+            prefetchExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("blobstore-prefetch-"));
+        }
+        ConcurrentMap<CacheKey, Fragment> fragmentCache = cache;
+        SlabAllocator allocator = null;
+        if (fragmentCache == null) {
+            long cacheMaxBytes = getLongProperty(componentProperties, PROP_CACHE_MAX_BYTES, DEFAULT_CACHE_MAX_BYTES);
+            if (cacheMaxBytes > 0) {
+                long expireAfterAccess = getLongProperty(componentProperties, PROP_CACHE_EXPIRE_AFTER_ACCESS,
+                        DEFAULT_CACHE_EXPIRE_AFTER_ACCESS);
+                fragmentCache = new BoundedFragmentCache(cacheMaxBytes,
+                        cacheMaxBytes / BlobstoreCacheService.DEFAULT_FRAGMENT_SIZE, expireAfterAccess,
+                        TimeUnit.MILLISECONDS);
+                if (getBooleanProperty(componentProperties, PROP_CACHE_OFF_HEAP, DEFAULT_CACHE_OFF_HEAP)) {
+                    allocator = new SlabAllocator();
+                }
+            }
+        }
+        if (fragmentCache != null) {
+            // the fragment index of the blobs is derived from the fragment cache, hence it is kept locally
+            cacheService = new BlobstoreCacheService(fragmentCache, new FragmentIndexMap(),
+                    allocator);
+        }
     }
 
-    public void bindCache(final ConcurrentMap<Long, Boolean> cache) {
+    public void bindCache(final ConcurrentMap<CacheKey, Fragment> cache) {
         this.cache = cache;
     }
 
@@ -70,40 +243,266 @@ public class BlobstoreImpl implements Blobstore {
         this.storage = storage;
     }
 
+    @Deactivate
+    public void deactivate() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+            prefetchExecutor = null;
+        }
+    }
+
+    /**
+     * Closes the stream of a blob and the storage reader behind it.
+     */
+    private void closeStream(final BlobReaderInputStream stream) {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        }
+    }
+
+    /**
+     * Creates a storage reader that gets the size of the blob from the metadata cache if it is cached.
+     */
+    private BlobstoreStorageReader createReader(final long blobId, final long startPosition) throws SQLException {
+        return wrapReader(blobId, storage.createReader(blobId, startPosition));
+    }
+
+    /**
+     * Creates a storage reader of a range that gets the size of the blob from the metadata cache if it is cached.
+     */
+    private BlobstoreStorageReader createReader(final long blobId, final long startPosition, final long length)
+            throws SQLException {
+        return wrapReader(blobId, storage.createReader(blobId, startPosition, length));
+    }
+
+    @Override
+    public void abortMultipartUpload(final long uploadId) {
+        storage.abortMultipartUpload(uploadId);
+    }
+
+    @Override
+    public long completeMultipartUpload(final long uploadId) {
+        return storage.completeMultipartUpload(uploadId);
+    }
+
     @Override
     public void deleteBlob(final long blobId) {
         storage.deleteBlob(blobId);
+        if (metadataCache != null) {
+            metadataCache.remove(blobId);
+        }
+        if (cacheService != null) {
+            cacheService.removePartsByBlobId(blobId);
+        }
     }
 
     @Override
     public long getBlobSizeByBlobId(final long blobId) {
+        BlobstoreStorageReader storageReader = null;
         try {
-            return storage.createReader(blobId, 0).getTotalSize();
+            storageReader = createReader(blobId, 0);
+            return storageReader.getTotalSize();
         } catch (SQLException e) {
             throw new BlobstoreException(e);
+        } finally {
+            try {
+                if (storageReader != null) {
+                    storageReader.close();
+                }
+            } catch (IOException e) {
+                throw new BlobstoreException(e);
+            }
         }
     }
 
     @Override
     public String getDescriptionByBlobId(final long blobId) {
-        return storage.getDescriptionByBlobId(blobId);
+        if (metadataCache == null) {
+            return storage.getDescriptionByBlobId(blobId);
+        }
+        BlobMetadata metadata = metadataCache.get(blobId);
+        if ((metadata != null) && metadata.isDescriptionKnown()) {
+            return metadata.getDescription();
+        }
+        String description = storage.getDescriptionByBlobId(blobId);
+        metadataCache.putDescription(blobId, description);
+        return description;
+    }
+
+    @Override
+    public List<Integer> getUploadedPartNumbers(final long uploadId) {
+        return storage.getUploadedPartNumbers(uploadId);
+    }
+
+    @Override
+    public long initiateMultipartUpload(final String description) {
+        return storage.initiateMultipartUpload(description);
     }
 
     @Override
     public void readBlob(final long blobId, final long startPosition, final BlobReader blobReader) {
-        Objects.requireNonNull(blobReader, "blobReader cannot be null");
+        readBlob(blobId, startPosition, null, blobReader);
+    }
+
+    @Override
+    public void readBlob(final long blobId, final long startPosition, final long length, final BlobReader blobReader) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length cannot be negative, actual value: " + length);
+        }
+        readBlob(blobId, startPosition, Long.valueOf(length), blobReader);
+    }
+
+    @Override
+    public BlobOutputStream openBlobOutputStream(final String description) {
+        BlobOutputStream out = storage.openBlobOutputStream(description);
+        if (metadataCache == null) {
+            return out;
+        }
+        return new MetadataCachingOutputStream(out, description, metadataCache);
+    }
+
+    /**
+     * Opens a stream of a blob from the given position till the end of the blob or till the end of the range. The
+     * storage reader is closed if the stream cannot be opened, otherwise it is closed together with the stream.
+     *
+     * @param length
+     *            The length of the range or <code>null</code> if the blob is read till its end.
+     */
+    private BlobReaderInputStream openStream(final long blobId, final long startPosition, final Long length)
+            throws SQLException, IOException {
         BlobstoreStorageReader storageReader = null;
-        InputStream stream = null;
+        BlobReaderInputStream stream;
+        boolean opened = false;
         try {
-            storageReader = storage.createReader(blobId, startPosition);
-            stream = new BlobReaderInputStream(blobId, startPosition, storageReader);
+            if (length == null) {
+                storageReader = createReader(blobId, startPosition);
+                stream = new BlobReaderInputStream(blobId, startPosition, storageReader);
+            } else {
+                storageReader = createReader(blobId, startPosition, length);
+                stream = new BlobReaderInputStream(blobId, startPosition, length, storageReader);
+            }
+            stream.setCacheService(cacheService);
+            stream.setMaxReadAhead(maxReadAhead);
+            if (prefetchExecutor != null) {
+                stream.setPrefetch(prefetchExecutor, prefetchDepth);
+            }
             long totalSize = storageReader.getTotalSize();
             if (totalSize < startPosition) {
                 throw new BlobstoreException("startPosition(=" + startPosition
                         + ") cannot be higher than totalSize(=" + totalSize + ") of blob #" + blobId);
             }
-            BufferedInputStream bis = new BufferedInputStream(stream);
-            blobReader.readBlob(bis);
+            if ((length != null) && ((totalSize - startPosition) < length)) {
+                throw new BlobstoreException("the range [startPosition=" + startPosition + ", length=" + length
+                        + "] exceeds totalSize(=" + totalSize + ") of blob #" + blobId);
+            }
+            opened = true;
+            return stream;
+        } finally {
+            if (!opened && (storageReader != null)) {
+                storageReader.close();
+            }
+        }
+    }
+
+    @Override
+    public int read(final long blobId, final long position, final ByteBuffer destination) {
+        Objects.requireNonNull(destination, "destination cannot be null");
+        if (position < 0) {
+            throw new IllegalArgumentException("position cannot be negative, actual value: " + position);
+        }
+        BlobstoreStorageReader storageReader = null;
+        try {
+            storageReader = createReader(blobId, position);
+            long totalSize = storageReader.getTotalSize();
+            if (position >= totalSize) {
+                return -1;
+            }
+            // the stream ends where the buffer is full, so it does not read ahead beyond the requested bytes
+            BlobReaderInputStream stream = new BlobReaderInputStream(blobId, position, destination.remaining(),
+                    storageReader);
+            stream.setCacheService(cacheService);
+            stream.setMaxReadAhead(maxReadAhead);
+            int readBytes = 0;
+            while (destination.hasRemaining()) {
+                int readCount = stream.read(destination);
+                if (readCount < 0) {
+                    break;
+                }
+                readBytes += readCount;
+            }
+            return readBytes;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            try {
+                if (storageReader != null) {
+                    storageReader.close();
+                }
+            } catch (IOException e) {
+                throw new BlobstoreException(e);
+            }
+        }
+    }
+
+    @Override
+    public void readBlob(final long blobId, final BlobChannelReader blobChannelReader) {
+        Objects.requireNonNull(blobChannelReader, "blobChannelReader cannot be null");
+        BlobReaderInputStream stream = null;
+        try {
+            stream = openStream(blobId, 0, null);
+            BlobReaderChannel channel = new BlobReaderChannel(stream);
+            blobChannelReader.readBlob(channel);
+            channel.close();
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            closeStream(stream);
+        }
+    }
+
+    /**
+     * Reads a blob from the given position till the end of the blob or till the end of the range.
+     *
+     * @param length
+     *            The length of the range or <code>null</code> if the blob is read till its end.
+     */
+    private void readBlob(final long blobId, final long startPosition, final Long length,
+            final BlobReader blobReader) {
+        Objects.requireNonNull(blobReader, "blobReader cannot be null");
+        BlobReaderInputStream stream = null;
+        try {
+            stream = openStream(blobId, startPosition, length);
+            blobReader.readBlob(stream);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            closeStream(stream);
+        }
+    }
+
+    @Override
+    public void readRanges(final long blobId, final List<BlobRange> ranges, final BlobRangeReader rangeReader) {
+        Objects.requireNonNull(ranges, "ranges cannot be null");
+        Objects.requireNonNull(rangeReader, "rangeReader cannot be null");
+        if (ranges.isEmpty()) {
+            return;
+        }
+        BlobstoreStorageReader storageReader = null;
+        try {
+            storageReader = createReader(blobId, 0);
+            BlobRangesReader rangesReader = new BlobRangesReader(blobId, storageReader);
+            rangesReader.setCacheService(cacheService);
+            rangesReader.readRanges(ranges, rangeReader);
         } catch (SQLException e) {
             throw new BlobstoreException(e);
         } finally {
@@ -119,7 +518,52 @@ public class BlobstoreImpl implements Blobstore {
 
     @Override
     public long storeBlob(final InputStream blobStream, final Long length, final String description) {
-        return storage.storeBlob(blobStream, length, description);
+        if (metadataCache == null) {
+            return storage.storeBlob(blobStream, length, description);
+        }
+        Objects.requireNonNull(blobStream, "blobStream cannot be null");
+        CountingInputStream countingStream = new CountingInputStream(blobStream);
+        long blobId = storage.storeBlob(countingStream, length, description);
+        metadataCache.putSize(blobId, (length == null) ? countingStream.getCount() : length);
+        metadataCache.putDescription(blobId, description);
+        return blobId;
+    }
+
+    @Override
+    public List<Long> storeBlobs(final List<BlobInput> blobs) {
+        Objects.requireNonNull(blobs, "blobs cannot be null");
+        if (metadataCache == null) {
+            return storage.storeBlobs(blobs);
+        }
+        List<BlobInput> countedBlobs = new ArrayList<BlobInput>(blobs.size());
+        List<CountingInputStream> countingStreams = new ArrayList<CountingInputStream>(blobs.size());
+        for (BlobInput blob : blobs) {
+            CountingInputStream countingStream = new CountingInputStream(blob.getBlobStream());
+            countingStreams.add(countingStream);
+            countedBlobs.add(new BlobInput(countingStream, blob.getLength(), blob.getDescription()));
+        }
+        List<Long> blobIds = storage.storeBlobs(countedBlobs);
+        for (int i = 0; i < blobIds.size(); i++) {
+            BlobInput blob = blobs.get(i);
+            long blobId = blobIds.get(i);
+            Long length = blob.getLength();
+            metadataCache.putSize(blobId, (length == null) ? countingStreams.get(i).getCount() : length);
+            metadataCache.putDescription(blobId, blob.getDescription());
+        }
+        return blobIds;
+    }
+
+    @Override
+    public void uploadPart(final long uploadId, final int partNumber, final InputStream partStream,
+            final Long length) {
+        storage.uploadPart(uploadId, partNumber, partStream, length);
+    }
+
+    private BlobstoreStorageReader wrapReader(final long blobId, final BlobstoreStorageReader storageReader) {
+        if (metadataCache == null) {
+            return storageReader;
+        }
+        return new SizeCachingStorageReader(blobId, storageReader, metadataCache);
     }
 
 }
@@ -0,0 +1,136 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs at most a given number of tasks at the same time on an underlying executor. The tasks over the
+ * limit are queued and they are passed to the underlying executor when a running task completes, so no thread is
+ * blocked while waiting for a slot.
+ *
+ * A task that the underlying executor rejects, for example because it has been shut down, is cancelled if it is a
+ * {@link Future}, so the callers waiting for it are not blocked forever.
+ */
+public class BoundedExecutor implements Executor {
+
+    private final Executor executor;
+
+    private final int maxConcurrency;
+
+    /**
+     * The tasks that have not been passed to the underlying executor yet.
+     */
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * The number of tasks that are passed to the underlying executor and have not completed yet.
+     */
+    private final AtomicInteger runningTaskCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param executor
+     *            The executor that runs the tasks.
+     * @param maxConcurrency
+     *            The maximum number of tasks that run at the same time.
+     * @throws IllegalArgumentException
+     *             if <code>maxConcurrency</code> is not positive.
+     */
+    public BoundedExecutor(final Executor executor, final int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive, actual value: " + maxConcurrency);
+        }
+        this.executor = Objects.requireNonNull(executor, "executor cannot be null");
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Queues a task and passes it to the underlying executor if there is a free slot.
+     *
+     * @throws RuntimeException
+     *             if the underlying executor rejected a task that is not a {@link Future}.
+     */
+    @Override
+    public void execute(final Runnable command) {
+        pendingTasks.add(Objects.requireNonNull(command, "command cannot be null"));
+        RuntimeException rejection = startPendingTasks();
+        if (rejection != null) {
+            throw rejection;
+        }
+    }
+
+    public int getRunningTaskCount() {
+        return runningTaskCount.get();
+    }
+
+    /**
+     * Passes pending tasks to the underlying executor while there is a free slot. The rejected tasks are cancelled if
+     * they are {@link Future}s.
+     *
+     * @return The exception of the underlying executor if it rejected a task that is not a {@link Future},
+     *         <code>null</code> otherwise.
+     */
+    private RuntimeException startPendingTasks() {
+        RuntimeException rejection = null;
+        while (!pendingTasks.isEmpty()) {
+            int running = runningTaskCount.get();
+            if (running >= maxConcurrency) {
+                return rejection;
+            }
+            if (!runningTaskCount.compareAndSet(running, running + 1)) {
+                continue;
+            }
+            final Runnable task = pendingTasks.poll();
+            if (task == null) {
+                // an other thread took the task after the emptiness check
+                runningTaskCount.decrementAndGet();
+                continue;
+            }
+            try {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            runningTaskCount.decrementAndGet();
+                            // the rejected tasks cannot be reported to their submitters from the completing thread
+                            startPendingTasks();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                runningTaskCount.decrementAndGet();
+                if (task instanceof Future) {
+                    ((Future<?>) task).cancel(false);
+                } else if (rejection == null) {
+                    rejection = e;
+                }
+            }
+        }
+        return rejection;
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.everit.osgi.blobstore.api.BlobstoreCallback;
+
+/**
+ * Task that notifies a {@link BlobstoreCallback} when it completes, fails or is cancelled.
+ *
+ * @param <T>
+ *            The type of the result of the task.
+ */
+class CallbackFutureTask<T> extends FutureTask<T> {
+
+    private final BlobstoreCallback<? super T> callback;
+
+    CallbackFutureTask(final Callable<T> callable, final BlobstoreCallback<? super T> callback) {
+        super(callable);
+        this.callback = callback;
+    }
+
+    @Override
+    protected void done() {
+        if (callback == null) {
+            return;
+        }
+        if (isCancelled()) {
+            callback.onFailure(new CancellationException());
+            return;
+        }
+        T result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            callback.onFailure(e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            // cannot happen as the task is done
+            Thread.currentThread().interrupt();
+            callback.onFailure(e);
+            return;
+        }
+        callback.onSuccess(result);
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.io.IOException;
+
+import org.everit.osgi.blobstore.api.BlobOutputStream;
+import org.everit.osgi.blobstore.internal.cache.BlobMetadataCache;
+
+/**
+ * Blob output stream that counts the written bytes and caches the size and the description of the blob when the
+ * wrapped stream is closed.
+ */
+class MetadataCachingOutputStream extends BlobOutputStream {
+
+    private final BlobOutputStream out;
+
+    private final String description;
+
+    private final BlobMetadataCache metadataCache;
+
+    private long count = 0;
+
+    private boolean closed = false;
+
+    MetadataCachingOutputStream(final BlobOutputStream out, final String description,
+            final BlobMetadataCache metadataCache) {
+        this.out = out;
+        this.description = description;
+        this.metadataCache = metadataCache;
+    }
+
+    @Override
+    public void abort() throws IOException {
+        closed = true;
+        out.abort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        out.close();
+        closed = true;
+        long blobId = out.getBlobId();
+        metadataCache.putSize(blobId, count);
+        metadataCache.putDescription(blobId, description);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public long getBlobId() {
+        return out.getBlobId();
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.everit.osgi.blobstore.api.BlobRange;
+import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
+import org.everit.osgi.blobstore.internal.cache.BlobMetadata;
+import org.everit.osgi.blobstore.internal.cache.BlobMetadataCache;
+
+/**
+ * Storage reader that serves the size of the blob from the {@link BlobMetadataCache}. The size is queried from the
+ * wrapped reader only if it is not cached and then it is cached for the next readers.
+ */
+class SizeCachingStorageReader implements BlobstoreStorageReader {
+
+    private final long blobId;
+
+    private final BlobstoreStorageReader storageReader;
+
+    private final BlobMetadataCache metadataCache;
+
+    private long totalSize = BlobMetadata.UNKNOWN_SIZE;
+
+    SizeCachingStorageReader(final long blobId, final BlobstoreStorageReader storageReader,
+            final BlobMetadataCache metadataCache) {
+        this.blobId = blobId;
+        this.storageReader = storageReader;
+        this.metadataCache = metadataCache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        storageReader.close();
+    }
+
+    @Override
+    public long getTotalSize() throws SQLException {
+        if (totalSize == BlobMetadata.UNKNOWN_SIZE) {
+            BlobMetadata metadata = metadataCache.get(blobId);
+            if ((metadata != null) && (metadata.getSize() != BlobMetadata.UNKNOWN_SIZE)) {
+                totalSize = metadata.getSize();
+            } else {
+                totalSize = storageReader.getTotalSize();
+                metadataCache.putSize(blobId, totalSize);
+            }
+        }
+        return totalSize;
+    }
+
+    @Override
+    public byte[] readDataFromStorage(final long startPosition, final int amount) throws SQLException {
+        return storageReader.readDataFromStorage(startPosition, amount);
+    }
+
+    @Override
+    public void readInto(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        storageReader.readInto(startPosition, dest, offset, amount);
+    }
+
+    @Override
+    public List<byte[]> readDataFromStorage(final List<BlobRange> ranges) throws SQLException {
+        return storageReader.readDataFromStorage(ranges);
+    }
+
+}
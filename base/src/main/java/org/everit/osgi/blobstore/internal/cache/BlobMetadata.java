@@ -0,0 +1,80 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+/**
+ * The cached metadata of a blob. An instance is immutable, the known properties are added by creating a new instance.
+ */
+public final class BlobMetadata {
+
+    /**
+     * The size of a blob whose size is not known.
+     */
+    public static final long UNKNOWN_SIZE = -1;
+
+    static final BlobMetadata EMPTY = new BlobMetadata(UNKNOWN_SIZE, false, null);
+
+    private final long size;
+
+    private final boolean descriptionKnown;
+
+    private final String description;
+
+    private BlobMetadata(final long size, final boolean descriptionKnown, final String description) {
+        this.size = size;
+        this.descriptionKnown = descriptionKnown;
+        this.description = description;
+    }
+
+    /**
+     * Returns the description of the blob.
+     *
+     * @return The description, it may be <code>null</code> if the blob has no description or the description is not
+     *         known. The two cases can be told apart by {@link #isDescriptionKnown()}.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Returns the size of the blob.
+     *
+     * @return The size in bytes or {@link #UNKNOWN_SIZE} if the size is not known.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isDescriptionKnown() {
+        return descriptionKnown;
+    }
+
+    BlobMetadata withDescription(final String newDescription) {
+        return new BlobMetadata(size, true, newDescription);
+    }
+
+    BlobMetadata withSize(final long newSize) {
+        return new BlobMetadata(newSize, descriptionKnown, description);
+    }
+
+    @Override
+    public String toString() {
+        return "BlobMetadata [size=" + size + ", descriptionKnown=" + descriptionKnown + ", description="
+                + description + "]";
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the metadata of the blobs, so the size and the description of a blob do not have to be queried
+ * from the storage every time they are needed. The least recently used entry is dropped if the cache is full.
+ */
+public class BlobMetadataCache {
+
+    /**
+     * The cached metadata in access order. Guarded by <code>this</code>.
+     */
+    private final LinkedHashMap<Long, BlobMetadata> entries;
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries
+     *            The maximum number of blobs whose metadata is cached.
+     * @throws IllegalArgumentException
+     *             if <code>maxEntries</code> is not positive.
+     */
+    public BlobMetadataCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive, actual value: " + maxEntries);
+        }
+        entries = new LinkedHashMap<Long, BlobMetadata>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, BlobMetadata> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached metadata of a blob.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @return The metadata, <code>null</code> if nothing is cached about the blob.
+     */
+    public synchronized BlobMetadata get(final long blobId) {
+        return entries.get(blobId);
+    }
+
+    private BlobMetadata getOrEmpty(final long blobId) {
+        BlobMetadata metadata = entries.get(blobId);
+        if (metadata == null) {
+            return BlobMetadata.EMPTY;
+        }
+        return metadata;
+    }
+
+    public synchronized void putDescription(final long blobId, final String description) {
+        entries.put(blobId, getOrEmpty(blobId).withDescription(description));
+    }
+
+    /**
+     * Caches the size of a blob.
+     *
+     * @throws IllegalArgumentException
+     *             if <code>size</code> is negative.
+     */
+    public synchronized void putSize(final long blobId, final long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size cannot be negative, actual value: " + size);
+        }
+        entries.put(blobId, getOrEmpty(blobId).withSize(size));
+    }
+
+    /**
+     * Drops the cached metadata of a blob.
+     */
+    public synchronized void remove(final long blobId) {
+        entries.remove(blobId);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+}
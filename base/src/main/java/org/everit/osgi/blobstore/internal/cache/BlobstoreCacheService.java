@@ -16,392 +16,501 @@
  */
 package org.everit.osgi.blobstore.internal.cache;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentMap;
 
-import org.apache.felix.scr.annotations.Reference;
-import org.osgi.service.log.LogService;
 
 public class BlobstoreCacheService {
 
-    // private class KeyCacheMaintiner implements
-    // CacheEntryRemovedListener<CacheKey, Fragment> {
-    // @Override
-    // public void entriesRemoved(
-    // final Iterable<CacheEntryEvent<? extends CacheKey, ? extends Fragment>>
-    // events) {
-    // Map<Long, List<CacheKey>> removedKeys = new HashMap<Long,
-    // List<CacheKey>>();
-    // CacheKey key;
-    // Iterator<CacheEntryEvent<? extends CacheKey, ? extends Fragment>>
-    // iterator = events
-    // .iterator();
-    // while (iterator.hasNext()) {
-    // CacheEntryEvent<? extends CacheKey, ? extends Fragment> next = iterator
-    // .next();
-    // key = next.getKey();
-    // List<CacheKey> removedKeysOfBlob = removedKeys.get(key
-    // .getBlobId());
-    // if (removedKeysOfBlob == null) {
-    // removedKeysOfBlob = new ArrayList<CacheKey>();
-    // removedKeys.put(key.getBlobId(), removedKeysOfBlob);
-    // }
-    // removedKeysOfBlob.add(key);
-    // }
-    // for (Long blobId : removedKeys.keySet()) {
-    // List<CacheKey> keyList = keyCache.get(blobId);
-    // if (keyList != null) {
-    // keyList.removeAll(removedKeys.get(blobId));
-    // storeOrRemove(blobId, keyList);
-    // }
-    // }
-    // }
-    //
-    // @Override
-    // public void entryRemoved(
-    // final CacheEntryEvent<? extends CacheKey, ? extends Fragment> event) {
-    // CacheKey removedKey = event.getKey();
-    // Long blobId = removedKey.getBlobId();
-    // List<CacheKey> keyList = keyCache.get(blobId);
-    // if (keyList != null) {
-    // keyList.remove(removedKey);
-    // storeOrRemove(blobId, keyList);
-    // }
-    // }
-    //
-    // private void storeOrRemove(final Long blobId,
-    // final List<CacheKey> keyList) {
-    // if (keyList.size() == 0) {
-    // keyCache.remove(blobId);
-    // } else {
-    // keyCache.put(blobId, keyList);
-    // }
-    // }
-    // }
+    /**
+     * Keeps the fragment index consistent with the fragment cache by unregistering the evicted fragments. The evicted
+     * fragments are grouped by blob, so the index of each blob is looked up once per batch.
+     */
+    private class KeyCacheMaintainer implements FragmentEvictionListener {
+
+        @Override
+        public void fragmentsEvicted(final List<Fragment> fragments) {
+            Map<Long, List<Long>> removedPositionsByBlobId = new HashMap<Long, List<Long>>();
+            for (Fragment fragment : fragments) {
+                List<Long> removedPositions = removedPositionsByBlobId.get(fragment.getBlobId());
+                if (removedPositions == null) {
+                    removedPositions = new ArrayList<Long>();
+                    removedPositionsByBlobId.put(fragment.getBlobId(), removedPositions);
+                }
+                removedPositions.add(fragment.getStartPosition());
+            }
+            for (Map.Entry<Long, List<Long>> entry : removedPositionsByBlobId.entrySet()) {
+                removeFromFragmentIndex(entry.getKey(), entry.getValue());
+            }
+        }
+
+    }
+
+    /**
+     * The default size of the fragments in bytes. It is the minimum fragment size by default and the size of the
+     * fragments of the blobs of which size is unknown.
+     */
+    public static final long DEFAULT_FRAGMENT_SIZE = 1024l;
+
+    /**
+     * The default maximum size of the fragments in bytes.
+     */
+    public static final long DEFAULT_MAX_FRAGMENT_SIZE = 65536l;
+
+    /**
+     * The number of fragments a blob is cut into if the fragment size is between the minimum and the maximum.
+     */
+    static final int TARGET_FRAGMENT_COUNT = 256;
+
+    /**
+     * The blob size that is passed when the size of the blob is not known.
+     */
+    public static final long UNKNOWN_BLOB_SIZE = -1;
 
     public static ClassLoader getClassLoader() {
         return BlobstoreCacheService.class.getClassLoader();
     }
 
-    @Reference
-    private LogService logger;
+    /**
+     * The cached fragments. They are looked up by primitive keys, so the read path does not allocate key objects if
+     * the cache is a {@link FragmentMap}.
+     */
+    private final FragmentMap cache;
 
-    private final ConcurrentMap<CacheKey, Fragment> cache;
+    /**
+     * The index of the cached fragments by blob id. It is looked up by the primitive blob id, so the cache hits of
+     * {@link #copyTo(long, long, ByteBuffer)} do not allocate.
+     */
+    private final FragmentIndexMap keyCache;
 
-    private final ConcurrentMap<Long, List<CacheKey>> keyCache;
+    /**
+     * The allocator of the off-heap buffers of the fragments, <code>null</code> if the fragments are held on the heap.
+     */
+    private final SlabAllocator allocator;
 
-    private long fragmentSize = 1024l;
+    private volatile int minFragmentSize = (int) DEFAULT_FRAGMENT_SIZE;
+
+    private volatile int maxFragmentSize = (int) DEFAULT_MAX_FRAGMENT_SIZE;
 
     public BlobstoreCacheService(
             final ConcurrentMap<CacheKey, Fragment> cache,
-            final ConcurrentMap<Long, List<CacheKey>> keyCache) {
-        super();
-        this.cache = cache;
-        this.keyCache = keyCache;
-        // cache.registerCacheEntryListener(new KeyCacheMaintiner(),
-        // NotificationScope.REMOTE, true);
+            final FragmentIndexMap keyCache) {
+        this(cache, keyCache, null);
     }
 
-    public List<CachedBlobPart> getBlobParts(final long blobId,
-            final long startPosition, final long maxLength) {
-        List<CacheKey> keyList = keyCache.get(blobId);
-        List<CachedBlobPart> rval = new ArrayList<CachedBlobPart>();
-        if (keyList == null || keyList.size() == 0) {
-            return rval;
+    /**
+     * Constructor.
+     *
+     * @param cache
+     *            The map holding the cached fragments. If it implements {@link FragmentMap} the fragments are looked up
+     *            without allocating {@link CacheKey}s.
+     * @param keyCache
+     *            The index of the cached fragments by blob id.
+     * @param allocator
+     *            The allocator of the off-heap buffers of the fragments or <code>null</code> if the fragments should be
+     *            held on the heap. The off-heap buffers are freed when their fragments are evicted, hence the cache
+     *            must be a {@link BoundedFragmentCache} if an allocator is passed.
+     */
+    public BlobstoreCacheService(
+            final ConcurrentMap<CacheKey, Fragment> cache,
+            final FragmentIndexMap keyCache,
+            final SlabAllocator allocator) {
+        super();
+        if ((allocator != null) && !(cache instanceof BoundedFragmentCache)) {
+            throw new IllegalArgumentException("off-heap fragments can only be stored in a "
+                    + BoundedFragmentCache.class.getSimpleName());
         }
-        long actualLength = 0;
-        CacheKey key;
-        Iterator<CacheKey> iterator = keyList.iterator();
-        // flag marking if the process of collection the required blob parts is
-        // finished
-        boolean collectingFinished = false;
-        while (iterator.hasNext() && !collectingFinished) {
-            key = iterator.next();
-            Fragment fragment = cache.get(key);
-            if (fragment != null && fragment.getStartPosition() + fragmentSize >= startPosition) {
-                long prevFragmentPartAbsEndPos = 0;
-                for (FragmentPart part : fragment.getFragmentParts()) {
-                    long fragmentPartAbsStartPos = fragment.getStartPosition() + part.getStartPositionInFragment();
-                    long fragmentPartAbsEndPos = fragmentPartAbsStartPos + part.getData().length;
-                    if (prevFragmentPartAbsEndPos > 0) {
-                        if (fragmentPartAbsStartPos != prevFragmentPartAbsEndPos) {
-                            // non-continuous fragment parts, the current part
-                            // does not sequentially follow the
-                            // previous part
-                            collectingFinished = true;
-                        }
-                    }
-                    if (!collectingFinished
-                            // otherwise the given fragment part is before the blob part
-                            // we are interested in
-                            && fragmentPartAbsEndPos >= startPosition) {
-                        int copyFrom = 0;
-                        int copyLength = part.getData().length;
-
-                        if (fragmentPartAbsStartPos < startPosition) {
-                            long diff = startPosition - fragmentPartAbsStartPos;
-                            copyFrom += diff;
-                            copyLength -= diff;
-                        }
-
-                        long candidateNewLength = actualLength + copyLength;
-
-                        if (candidateNewLength > maxLength) {
-                            copyLength = (int) (maxLength - actualLength);
-                        }
-                        byte[] partData;
-                        if (copyFrom != 0 || copyLength != part.getData().length) {
-                            partData = new byte[copyLength];
-                            System.arraycopy(part.getData(), copyFrom, partData, 0, copyLength);
-                        } else {
-                            partData = part.getData();
-                        }
-                        rval.add(new CachedBlobPart(blobId, fragmentPartAbsStartPos + copyFrom, partData));
-                        actualLength = candidateNewLength;
-                        if (actualLength >= maxLength) {
-                            collectingFinished = true;
-                        } else {
-                            prevFragmentPartAbsEndPos = fragment.getStartPosition() + part.getEndPositionInFragment();
-                        }
-                    }
-                }
-            }
+        if (cache instanceof FragmentMap) {
+            this.cache = (FragmentMap) cache;
+        } else {
+            this.cache = new ConcurrentMapFragmentMap(cache);
+        }
+        this.keyCache = keyCache;
+        this.allocator = allocator;
+        if (cache instanceof BoundedFragmentCache) {
+            ((BoundedFragmentCache) cache).setEvictionListener(new KeyCacheMaintainer());
         }
-        return rval;
     }
 
-    Fragment getFragment(final long blobId, final long startPosition) {
-        long fragmentStartPosition = getFragmentStartPosition(startPosition);
-        CacheKey key = new CacheKey(blobId, fragmentStartPosition);
-        Fragment result = cache.get(key);
-        if (result == null) {
-            result = new Fragment(blobId, fragmentStartPosition);
-            storeFragment(result);
-        }
-        return result;
+    /**
+     * Copies the cached bytes of a blob that start at the given position to an array. The copy stops at the first
+     * byte that is not cached.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param position
+     *            The position of the first byte to be copied in the blob.
+     * @param dest
+     *            The destination array.
+     * @param destPos
+     *            The position in <code>dest</code> where the first byte is copied to.
+     * @param length
+     *            The maximum number of bytes to be copied.
+     * @return The number of copied bytes, zero if the byte at <code>position</code> is not cached.
+     */
+    public int copyTo(final long blobId, final long position, final byte[] dest, final int destPos,
+            final int length) {
+        return copyTo(blobId, position, ByteBuffer.wrap(dest, destPos, length));
     }
 
-    long getFragmentStartPosition(final long startPosition) {
-        return startPosition / fragmentSize * fragmentSize;
+    /**
+     * Copies the cached bytes of a blob that start at the given position to a byte buffer. The copy stops at the first
+     * byte that is not cached or when <code>dest</code> is full. Direct buffers are filled from off-heap fragments
+     * without an intermediate array.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param position
+     *            The position of the first byte to be copied in the blob.
+     * @param dest
+     *            The destination buffer, its position is advanced by the number of copied bytes.
+     * @return The number of copied bytes, zero if the byte at <code>position</code> is not cached.
+     */
+    public int copyTo(final long blobId, final long position, final ByteBuffer dest) {
+        FragmentIndex fragmentIndex = keyCache.get(blobId);
+        if (fragmentIndex == null) {
+            return 0;
+        }
+        int copied = 0;
+        while (dest.hasRemaining()) {
+            long currentPosition = position + copied;
+            long fragmentStartPosition = fragmentIndex.getFragmentStartPosition(currentPosition);
+            Fragment fragment = cache.getFragment(blobId, fragmentStartPosition);
+            if ((fragment == null) || (fragment.getSize() != fragmentIndex.getFragmentSize())) {
+                break;
+            }
+            int copiedFromFragment = fragment.copyTo((int) (currentPosition - fragmentStartPosition), dest);
+            if (copiedFromFragment == 0) {
+                break;
+            }
+            copied += copiedFromFragment;
+        }
+        return copied;
     }
 
-    void mergeInto(final long relStartPos, final FragmentByteArray blobPart, final FragmentPart part) {
-        long relPosInFragment = relStartPos - part.getStartPositionInFragment();
-        blobPart.copyTo(0, part.getData(), (int) relPosInFragment, blobPart.length());
+    /**
+     * Returns the cached fragment that contains the given position of a blob. An empty fragment is cached and returned
+     * if the fragment is not cached yet.
+     */
+    Fragment getFragment(final long blobId, final long startPosition) {
+        FragmentIndex fragmentIndex = getFragmentIndex(blobId);
+        return getFragment(blobId, fragmentIndex.getFragmentSize(),
+                fragmentIndex.getFragmentStartPosition(startPosition));
     }
 
-    private void partialUpdateBlobFragment(final long relStartPos,
-            final FragmentByteArray fragmentBytes, final Fragment fragment) {
-        long relEndPos = relStartPos + fragmentBytes.length();
-        Range<Long> newRange = new Range<Long>(relStartPos, relEndPos);
-        LinkedList<FragmentPart> fragmentParts = fragment.getFragmentParts();
-        if (fragmentParts.size() > 0) {
-            FragmentPart beforeOverlapping = null;
-            FragmentPart afterOverlapping = null;
-            boolean merged = false;
-            List<FragmentPart> innerParts = new ArrayList<FragmentPart>();
-            FragmentPart part;
-            Iterator<FragmentPart> iterator = fragmentParts.iterator();
-            while (iterator.hasNext() && !merged) {
-                part = iterator.next();
-                Range<Long> existingRange = part.asRange();
-                RangeRelation relation = newRange.getRelationTo(existingRange);
-                // the new range has nothing to do with this existing range
-                if (!relation.isDistinct()) {
-                    if (relation == RangeRelation.CONTAINING || relation == RangeRelation.IDENTICAL) {
-                        mergeInto(relStartPos, fragmentBytes, part);
-                        // the entire blobPart has been copied into the containing FragmentPart nothing else to do
-                        merged = true;
-                    } else if (relation == RangeRelation.BEFORE_OVERLAPPING) {
-                        beforeOverlapping = part;
-                    } else if (relation == RangeRelation.AFTER_OVERLAPPING) {
-                        afterOverlapping = part;
-                    } else {
-                        assert (relation == RangeRelation.CONTAINED);
-                        innerParts.add(part);
-                    }
+    /**
+     * Returns a cached fragment with the given size. An empty fragment is cached and returned if the fragment is not
+     * cached yet. A fragment of an other size is left over from an index that was dropped, so it is replaced.
+     */
+    private Fragment getFragment(final long blobId, final int fragmentSize, final long fragmentStartPosition) {
+        Fragment result = cache.getFragment(blobId, fragmentStartPosition);
+        while ((result == null) || (result.getSize() != fragmentSize)) {
+            if (result != null) {
+                Fragment removedFragment = cache.removeFragment(blobId, fragmentStartPosition);
+                if (removedFragment != null) {
+                    removedFragment.free();
                 }
             }
-            if (!merged) {
-                FragmentPart newPart = processOverlappings(relStartPos,
-                        fragmentBytes, beforeOverlapping, afterOverlapping,
-                        fragment);
-                fragment.getFragmentParts().removeAll(innerParts);
-                fragment.insertFragmentPart(newPart);
-
+            Fragment newFragment;
+            if (allocator == null) {
+                newFragment = new Fragment(blobId, fragmentStartPosition, fragmentSize);
+            } else {
+                newFragment = new Fragment(blobId, fragmentStartPosition, allocator.allocate(fragmentSize));
+            }
+            // indexing first, so the index is cleaned up even if the fragment is evicted right away
+            indexFragment(blobId, fragmentSize, fragmentStartPosition);
+            result = cache.putFragmentIfAbsent(newFragment);
+            if (result == null) {
+                result = newFragment;
+            } else {
+                newFragment.free();
             }
-        } else {
-            FragmentPart newPart = new FragmentPart(relStartPos, fragmentBytes.asRawArray());
-            fragment.insertFragmentPart(newPart);
         }
-        storeFragment(fragment);
+        return result;
     }
 
     /**
-     * Used during the blob part storing process to merge the {@link FragmentPart}s which already exist in the cache and
-     * overlap (but aren't contained by) the new blob part to be stored. The <code>beforeOverlapping</code> fragment
-     * part, the new fragment part and the <code>afterOverlapping</code> fragment part must be in the same
-     * {@link Fragment} specified by <code>ownerFragment</code>, cross-fragment data storing is not taken into account
-     * by this method.
-     *
-     * Merges the before-overlapping {@link FragmentPart}, after-overlapping {@link FragmentPart} (if they exist) and
-     * the new blob data into a new array.
+     * Returns the index of the cached fragments of a blob. The index is created with the
+     * {@link #getFragmentSize(long) fragment size of a blob of unknown size} if it does not exist yet.
      *
-     * If <code>beforeOverlapping</code> and <code>afterOverlapping</code> are both null then the method will return
-     * <code>blobPart</code> otherwise it performs the merge.
-     *
-     * Example: if <code>beforeOverlapping</code> and <code>afterOverlapping</code> look this way (given by the start
-     * and end position relatively in the <code>ownerFragment</code>):
-     * <ul>
-     * <li><code>beforeFragment</code>: [5, 20]</li>
-     * <li><code>afterFragment</code>: [80, 95]</li>
-     * </ul>
-     * and <code>startPosition</code> = 10, and <code>blobPart.length</code> is 80, then the following steps will be
-     * performed by this method:
-     * <ul>
-     * <li>creates a new <code>byte</code> array with size 95 - 5 = 90, this array will be returned</li>
-     * <li>copies the first 5 bytes of {@link FragmentPart#getData() beforeOverlapping.getData()} to the beginning of
-     * the result</li>
-     * <li>copies <code>blobPart</code> to the result array, to position 5 (at this point the first 85 bytes of the
-     * result will be loaded)</li>
-     * <li>copies the last 5 bytes of {@link FragmentPart#getData() afterOverlapping.getData()} to the result</li>
-     * <li>{@link LinkedList#remove() removes} both <code>beforeOverlapping</code> and <code>afterOverlapping</code>
-     * from the {@link Fragment#getFragmentParts() the FragmentParts of ownerFragment}.</li>
-     * <li>returns the new array</li>
-     * </ul>
+     * @param blobId
+     *            The id of the blob.
+     * @return The fragment index of the blob.
+     */
+    FragmentIndex getFragmentIndex(final long blobId) {
+        return getFragmentIndex(blobId, getFragmentSize(UNKNOWN_BLOB_SIZE));
+    }
+
+    /**
+     * Returns the index of the cached fragments of a blob. The index is created if it does not exist yet.
      *
-     * @param startPositionInFragment
-     * @param blobPart
-     * @param beforeOverlapping
-     * @param afterOverlapping
-     * @param ownerFragment
-     * @return
+     * @param blobId
+     *            The id of the blob.
+     * @param fragmentSize
+     *            The size of the fragments if the index is created. An existing index keeps its fragment size.
+     * @return The fragment index of the blob.
      */
-    private FragmentPart processOverlappings(
-            final long startPositionInFragment,
-            final FragmentByteArray blobPart,
-            final FragmentPart beforeOverlapping,
-            final FragmentPart afterOverlapping, final Fragment ownerFragment) {
-        boolean beforeIsNull = beforeOverlapping == null;
-        boolean afterIsNull = afterOverlapping == null;
-        if (beforeIsNull && afterIsNull) {
-            return new FragmentPart(startPositionInFragment, blobPart.asRawArray());
+    private FragmentIndex getFragmentIndex(final long blobId, final int fragmentSize) {
+        FragmentIndex fragmentIndex = keyCache.get(blobId);
+        if (fragmentIndex == null) {
+            fragmentIndex = new FragmentIndex(fragmentSize);
+            FragmentIndex existingIndex = keyCache.putIfAbsent(blobId, fragmentIndex);
+            if (existingIndex != null) {
+                fragmentIndex = existingIndex;
+            }
         }
+        return fragmentIndex;
+    }
 
-        long newStartPos = startPositionInFragment;
-        int newSize = blobPart.length();
-        int beforeRemaining = 0;
-        byte[] beforeFragmentOldData = null;
-
-        int afterCut = 0;
-        int afterRemaining = 0;
-        byte[] afterFragmentOldData = null;
-
-        if (!beforeIsNull) {
-            beforeFragmentOldData = beforeOverlapping.getData();
-            beforeRemaining = (int) (startPositionInFragment - beforeOverlapping.getStartPositionInFragment());
-            newSize += beforeRemaining;
-            newStartPos = beforeOverlapping.getStartPositionInFragment();
+    /**
+     * Returns the size of the fragments of a blob. The size is the smallest power of two that cuts the blob into at
+     * most {@value #TARGET_FRAGMENT_COUNT} fragments, bounded by the configured minimum and maximum fragment size. Small
+     * blobs are cached in small fragments and large blobs do not need millions of cache entries.
+     *
+     * @param blobSize
+     *            The size of the blob in bytes or {@link #UNKNOWN_BLOB_SIZE}.
+     * @return The fragment size, the minimum fragment size if the size of the blob is unknown.
+     */
+    public int getFragmentSize(final long blobSize) {
+        int minSize = minFragmentSize;
+        int maxSize = maxFragmentSize;
+        long bytesPerFragment = (blobSize + TARGET_FRAGMENT_COUNT - 1) / TARGET_FRAGMENT_COUNT;
+        if (bytesPerFragment <= minSize) {
+            return minSize;
         }
-
-        if (!afterIsNull) {
-            afterFragmentOldData = afterOverlapping.getData();
-            long newDataEndPos = startPositionInFragment + blobPart.length();
-            afterRemaining = (int) (afterOverlapping.getEndPositionInFragment() - newDataEndPos);
-            afterCut = afterFragmentOldData.length - afterRemaining;
-            newSize += afterRemaining;
+        if (bytesPerFragment >= maxSize) {
+            return maxSize;
         }
+        return (int) Long.highestOneBit(bytesPerFragment - 1) << 1;
+    }
 
-        byte[] newData = new byte[newSize];
-
-        int loadedUpTo = 0;
-
-        if (!beforeIsNull) {
-            System.arraycopy(beforeFragmentOldData, 0, newData, 0, beforeRemaining);
-            loadedUpTo = beforeRemaining;
-            ownerFragment.getFragmentParts().remove(beforeOverlapping);
+    /**
+     * Returns the number of the bytes of a blob that are not cached starting from the given position.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param position
+     *            The position of the first byte in the blob.
+     * @param maxLength
+     *            The maximum number of bytes to be examined.
+     * @return The distance of the first cached byte from <code>position</code> or <code>maxLength</code> if none of
+     *         the bytes of the <code>[position, position + maxLength)</code> range is cached.
+     */
+    public int getUncachedLength(final long blobId, final long position, final int maxLength) {
+        FragmentIndex fragmentIndex = keyCache.get(blobId);
+        if (fragmentIndex == null) {
+            return maxLength;
+        }
+        long endPosition = position + maxLength;
+        NavigableSet<Long> fragmentStartPositions = fragmentIndex.getFragmentStartPositions();
+        Long fragmentStartPosition = fragmentStartPositions.ceiling(fragmentIndex.getFragmentStartPosition(position));
+        while ((fragmentStartPosition != null) && (fragmentStartPosition < endPosition)) {
+            Fragment fragment = cache.getFragment(blobId, fragmentStartPosition);
+            if ((fragment != null) && (fragment.getSize() == fragmentIndex.getFragmentSize())) {
+                int positionInFragment = (int) Math.max(0, position - fragmentStartPosition);
+                int nextCachedPosition = fragment.getNextCachedPosition(positionInFragment);
+                if (nextCachedPosition >= 0) {
+                    return (int) Math.min(maxLength, fragmentStartPosition + nextCachedPosition - position);
+                }
+            } else if (fragment == null) {
+                // the fragment has been removed by a cache that does not notify about evictions
+                removeFromFragmentIndex(blobId, Collections.singletonList(fragmentStartPosition));
+            }
+            fragmentStartPosition = fragmentStartPositions.higher(fragmentStartPosition);
         }
+        return maxLength;
+    }
 
-        blobPart.copyTo(0, newData, loadedUpTo, blobPart.length());
-        loadedUpTo += blobPart.length();
+    /**
+     * Registers a fragment in the index of its blob. If the index is dropped concurrently by
+     * {@link #removeFromFragmentIndex(long, List)} the fragment is registered in the new index.
+     */
+    private void indexFragment(final long blobId, final int fragmentSize, final long fragmentStartPosition) {
+        FragmentIndex fragmentIndex;
+        do {
+            fragmentIndex = getFragmentIndex(blobId, fragmentSize);
+            fragmentIndex.add(fragmentStartPosition);
+        } while (keyCache.get(blobId) != fragmentIndex);
+    }
 
-        if (!afterIsNull) {
-            System.arraycopy(afterFragmentOldData, afterCut, newData, loadedUpTo, afterRemaining);
-            ownerFragment.getFragmentParts().remove(afterOverlapping);
+    /**
+     * Removes fragments from the index of their blob. The index is dropped if it becomes empty.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param fragmentStartPositions
+     *            The start positions of the fragments that are not cached anymore.
+     */
+    private void removeFromFragmentIndex(final long blobId, final List<Long> fragmentStartPositions) {
+        FragmentIndex fragmentIndex = keyCache.get(blobId);
+        if (fragmentIndex == null) {
+            return;
+        }
+        for (Long fragmentStartPosition : fragmentStartPositions) {
+            fragmentIndex.remove(fragmentStartPosition);
+            if (cache.containsFragment(blobId, fragmentStartPosition)) {
+                // the fragment has been cached again since it was evicted
+                indexFragment(blobId, fragmentIndex.getFragmentSize(), fragmentStartPosition);
+            }
+        }
+        if (fragmentIndex.isEmpty()) {
+            keyCache.remove(blobId, fragmentIndex);
         }
-        return new FragmentPart(newStartPos, newData);
     }
 
     public void removePartsByBlobId(final long blobId) {
-        for (CacheKey key : keyCache.get(blobId)) {
-            if (cache.remove(key) == null) {
-                logger.log(LogService.LOG_WARNING, "inconsistent cache state: " + key
-                        + " exists in keyCache but not found in fragment cache");
+        FragmentIndex fragmentIndex = keyCache.remove(blobId);
+        if (fragmentIndex == null) {
+            return;
+        }
+        for (Long fragmentStartPosition : fragmentIndex.getFragmentStartPositions()) {
+            Fragment fragment = cache.removeFragment(blobId, fragmentStartPosition);
+            // the fragment may have been evicted since the index was removed
+            if (fragment != null) {
+                fragment.free();
             }
         }
-        keyCache.remove(blobId);
     }
 
+    /**
+     * Sets a fixed fragment size that is used for every blob that has no cached fragments yet.
+     *
+     * @param fragmentSize
+     *            The size of the fragments, it must be a power of two.
+     * @throws IllegalArgumentException
+     *             if the fragment size is not a power of two or the allocator cannot allocate buffers of that size.
+     */
     public void setFragmentSize(final long fragmentSize) {
-        this.fragmentSize = fragmentSize;
+        setFragmentSizeRange(fragmentSize, fragmentSize);
     }
 
-    public void storeBlobPart(final long blobId, final long startPosition,
-            final byte[] blobPart) {
-        Objects.requireNonNull(blobPart, "blobPart cannot be null");
-        if (blobPart.length == 0) {
-            return;
+    /**
+     * Sets the range of the {@link #getFragmentSize(long) fragment size} of the blobs. The new range applies to the
+     * blobs that have no cached fragments yet, the blobs that are already cached keep their fragment size.
+     *
+     * @param minFragmentSize
+     *            The minimum size of the fragments, it must be a power of two.
+     * @param maxFragmentSize
+     *            The maximum size of the fragments, it must be a power of two.
+     * @throws IllegalArgumentException
+     *             if one of the sizes is not a power of two, the minimum is higher than the maximum or the allocator
+     *             cannot allocate buffers of the maximum size.
+     */
+    public void setFragmentSizeRange(final long minFragmentSize, final long maxFragmentSize) {
+        checkFragmentSize(minFragmentSize);
+        checkFragmentSize(maxFragmentSize);
+        if (minFragmentSize > maxFragmentSize) {
+            throw new IllegalArgumentException("minFragmentSize(=" + minFragmentSize
+                    + ") cannot be higher than maxFragmentSize(=" + maxFragmentSize + ")");
         }
-        long relStartPos = startPosition % fragmentSize;
-        FragmentByteArray[] bytesByFragment = new FragmentableBlobPart(blobPart, (int) fragmentSize,
-                (int) relStartPos).getFragments();
-
-        long fragmentStartPosition = startPosition;
-        Fragment fragment = getFragment(blobId, fragmentStartPosition);
-        // storing the new bytes of the first fragment
-        partialUpdateBlobFragment(relStartPos, bytesByFragment[0], fragment);
-        fragmentStartPosition += fragmentSize;
-        // replacing the entire content of the inner fragments if such fragments
-        // exist
-        if (bytesByFragment.length > 2) {
-            for (int i = 1; i < bytesByFragment.length - 1; ++i) {
-                fragment = getFragment(blobId, fragmentStartPosition);
-                updateBlobFragment(bytesByFragment[i], fragment);
-                fragmentStartPosition += fragmentSize;
-            }
+        if ((allocator != null) && (maxFragmentSize > allocator.getSlabSize())) {
+            throw new IllegalArgumentException("maxFragmentSize(=" + maxFragmentSize
+                    + ") cannot be higher than the slab size(=" + allocator.getSlabSize() + ")");
         }
-        // storing the new bytes of the last fragment if the first and last
-        // segments are not the same
-        if (bytesByFragment.length > 1) {
-            fragment = getFragment(blobId, fragmentStartPosition);
-            partialUpdateBlobFragment(0, bytesByFragment[bytesByFragment.length - 1], fragment);
+        this.minFragmentSize = (int) minFragmentSize;
+        this.maxFragmentSize = (int) maxFragmentSize;
+    }
+
+    private static void checkFragmentSize(final long fragmentSize) {
+        if ((fragmentSize <= 0) || (fragmentSize > Integer.MAX_VALUE) || (Long.bitCount(fragmentSize) != 1)) {
+            throw new IllegalArgumentException("fragment size must be a power of two, actual value: "
+                    + fragmentSize);
         }
     }
 
-    private void storeFragment(final Fragment fragment) {
-        CacheKey key = fragment.createCacheKey();
-        cache.put(key, fragment);
-        long blobId = fragment.getBlobId();
-        List<CacheKey> keyList = keyCache.get(blobId);
-        if (keyList == null) {
-            keyList = new ArrayList<CacheKey>();
+    /**
+     * Caches a part of a blob of which size is not known. The fragment size of the blob is the minimum fragment size
+     * unless the blob has cached fragments already.
+     *
+     * @see #storeBlobPart(long, long, byte[], long)
+     */
+    public void storeBlobPart(final long blobId, final long startPosition,
+            final byte[] blobPart) {
+        storeBlobPart(blobId, startPosition, blobPart, UNKNOWN_BLOB_SIZE);
+    }
+
+    /**
+     * Caches a part of a blob.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param startPosition
+     *            The position of the first byte of the part in the blob.
+     * @param blobPart
+     *            The bytes of the part.
+     * @param blobSize
+     *            The size of the blob or {@link #UNKNOWN_BLOB_SIZE}. It is used to choose the fragment size if the
+     *            blob has no cached fragments yet.
+     */
+    public void storeBlobPart(final long blobId, final long startPosition, final byte[] blobPart,
+            final long blobSize) {
+        Objects.requireNonNull(blobPart, "blobPart cannot be null");
+        storeBlobPart(blobId, startPosition, blobPart, 0, blobPart.length, blobSize);
+    }
+
+    /**
+     * Caches a part of a blob that is held by a range of an array. The bytes are copied into the fragments, so the
+     * array can be reused after this method returns.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param startPosition
+     *            The position of the first byte of the part in the blob.
+     * @param src
+     *            The array that holds the bytes of the part.
+     * @param srcPos
+     *            The position of the first byte of the part in <code>src</code>.
+     * @param length
+     *            The length of the part.
+     * @param blobSize
+     *            The size of the blob or {@link #UNKNOWN_BLOB_SIZE}. It is used to choose the fragment size if the
+     *            blob has no cached fragments yet.
+     */
+    public void storeBlobPart(final long blobId, final long startPosition, final byte[] src, final int srcPos,
+            final int length, final long blobSize) {
+        Objects.requireNonNull(src, "src cannot be null");
+        if ((srcPos < 0) || (length < 0) || (length > (src.length - srcPos))) {
+            throw new IndexOutOfBoundsException("invalid range [" + srcPos + ", " + length + "] of an array of "
+                    + src.length + " bytes");
+        }
+        if (length == 0) {
+            return;
         }
-        if (!keyList.contains(key)) {
-            keyList.add(key);
+        int fragmentSize = getFragmentIndex(blobId, getFragmentSize(blobSize)).getFragmentSize();
+        long fragmentStartPosition = startPosition & -fragmentSize;
+        int offset = (int) (startPosition - fragmentStartPosition);
+        int storedBytes = 0;
+        while (storedBytes < length) {
+            int fragmentLength = Math.min(fragmentSize - offset, length - storedBytes);
+            storeFragmentBytes(blobId, fragmentSize, fragmentStartPosition,
+                    new FragmentByteArray(src, srcPos + storedBytes, fragmentLength, offset));
+            storedBytes += fragmentLength;
+            fragmentStartPosition += fragmentSize;
+            offset = 0;
         }
-        keyCache.put(blobId, keyList);
     }
 
-    private void updateBlobFragment(final FragmentByteArray fragmentByteArray,
-            final Fragment fragment) {
-        FragmentPart newPart = new FragmentPart(0, fragmentByteArray.asRawArray());
-        LinkedList<FragmentPart> parts = new LinkedList<FragmentPart>();
-        parts.add(newPart);
-        fragment.setFragmentParts(parts);
-        storeFragment(fragment);
+    /**
+     * Stores the bytes of a fragment by installing a new snapshot of the fragment. If an other thread installs a
+     * snapshot concurrently the bytes are stored again in the snapshot of the other thread. Nothing is stored if the
+     * fragment is evicted meanwhile.
+     */
+    private void storeFragmentBytes(final long blobId, final int fragmentSize, final long fragmentStartPosition,
+            final FragmentByteArray fragmentBytes) {
+        boolean stored = false;
+        while (!stored) {
+            Fragment fragment = getFragment(blobId, fragmentSize, fragmentStartPosition);
+            Fragment updatedFragment = fragmentBytes.copyTo(fragment);
+            stored = (updatedFragment == null) || (updatedFragment == fragment)
+                    || cache.replaceFragment(fragment, updatedFragment)
+                    || !cache.containsFragment(blobId, fragmentStartPosition);
+        }
     }
 }
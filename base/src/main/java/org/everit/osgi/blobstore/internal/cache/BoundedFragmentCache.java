@@ -0,0 +1,706 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fragment cache that keeps the sum of the {@link Fragment#getWeight() weight} of the cached fragments under a
+ * configured number of bytes.
+ *
+ * The fragments that are not accessed for the configured time expire. The expired fragments are not returned
+ * anymore and they are removed by the next modification or by {@link #cleanUp()}.
+ *
+ * The eviction follows the W-TinyLFU policy. New fragments are put into a small LRU admission window. The fragments
+ * that fall out of the window compete with the least recently used fragment of the main space and only the one that
+ * was accessed more frequently (according to a {@link FrequencySketch}) is kept. Therefore a large sequential read
+ * that touches every fragment only once cannot flush the frequently read fragments. The main space is a segmented LRU:
+ * the fragments that are accessed again in the probation segment are promoted to the protected segment.
+ *
+ * Reads are lock-free. The accesses are recorded only if the eviction lock is available, so under heavy contention
+ * some accesses are not taken into account. All modifications are done under the eviction lock, except
+ * {@link #replaceFragment(Fragment, Fragment)} with a fragment of the same weight, which is a compare-and-swap of the
+ * value. The {@link FragmentEvictionListener} is notified outside of the lock, then the evicted fragments are freed.
+ *
+ * The entries are held in a {@link ConcurrentLongPairMap}, so the lookups through the {@link FragmentMap} methods do
+ * not allocate any key object. The {@link ConcurrentMap} methods are kept for the callers that work with
+ * {@link CacheKey}s.
+ */
+public class BoundedFragmentCache extends AbstractMap<CacheKey, Fragment> implements
+        ConcurrentMap<CacheKey, Fragment>, FragmentMap {
+
+    /**
+     * A cache entry that is linked into one of the access order queues.
+     */
+    private static final class Node {
+
+        private static final AtomicReferenceFieldUpdater<Node, Fragment> VALUE_UPDATER =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Fragment.class, "value");
+
+        private final long blobId;
+
+        private final long startPosition;
+
+        /**
+         * The hash code of the key that is used by the frequency sketch.
+         */
+        private final int hash;
+
+        private volatile Fragment value;
+
+        /**
+         * The time of the last access in nanoseconds, only maintained if the fragments expire.
+         */
+        private volatile long accessTime;
+
+        private long weight;
+
+        private Queue queue;
+
+        private Node prev;
+
+        private Node next;
+
+        Node(final long blobId, final long startPosition, final Fragment value, final long weight) {
+            this.blobId = blobId;
+            this.startPosition = startPosition;
+            hash = ConcurrentLongPairMap.hash(blobId, startPosition);
+            this.value = value;
+            this.weight = weight;
+        }
+
+        boolean casValue(final Fragment expect, final Fragment update) {
+            return VALUE_UPDATER.compareAndSet(this, expect, update);
+        }
+
+    }
+
+    /**
+     * The queues that hold the nodes in access order.
+     */
+    private enum Queue {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    /**
+     * A doubly linked list of nodes, the least recently used node is the first one.
+     */
+    private static final class AccessOrderQueue {
+
+        private Node first;
+
+        private Node last;
+
+        private long weight;
+
+        void addLast(final Node node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            weight += node.weight;
+        }
+
+        void clear() {
+            first = null;
+            last = null;
+            weight = 0;
+        }
+
+        void moveToLast(final Node node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void remove(final Node node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+    }
+
+    /**
+     * The percentage of the maximum weight that is used by the admission window.
+     */
+    private static final int WINDOW_PERCENTAGE = 1;
+
+    /**
+     * The percentage of the main space that is used by the protected segment.
+     */
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    private static final int PERCENT = 100;
+
+    /**
+     * The nodes by blob id and fragment start position. Modified only under the eviction lock.
+     */
+    private final ConcurrentLongPairMap<Node> data;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final FrequencySketch sketch;
+
+    private final AccessOrderQueue window = new AccessOrderQueue();
+
+    private final AccessOrderQueue probation = new AccessOrderQueue();
+
+    private final AccessOrderQueue protectedSegment = new AccessOrderQueue();
+
+    private final long maximumWeight;
+
+    private final long windowMaximumWeight;
+
+    private final long protectedMaximumWeight;
+
+    /**
+     * The sum of the weight of all cached fragments.
+     */
+    private long weightedSize;
+
+    /**
+     * The time after the last access when a fragment expires in nanoseconds, zero if the fragments do not expire.
+     */
+    private final long expireAfterAccessNanos;
+
+    private volatile FragmentEvictionListener evictionListener;
+
+    /**
+     * Constructor of a cache of which fragments do not expire.
+     *
+     * @param maximumWeight
+     *            The maximum number of bytes that may be held by the cached fragments.
+     * @param expectedEntryCount
+     *            The expected number of fragments when the cache is full. It is used to size the frequency sketch
+     *            and the hash table.
+     */
+    public BoundedFragmentCache(final long maximumWeight, final long expectedEntryCount) {
+        this(maximumWeight, expectedEntryCount, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maximumWeight
+     *            The maximum number of bytes that may be held by the cached fragments.
+     * @param expectedEntryCount
+     *            The expected number of fragments when the cache is full. It is used to size the frequency sketch
+     *            and the hash table.
+     * @param expireAfterAccess
+     *            The time after the last access when a fragment expires, zero if the fragments should not expire.
+     * @param unit
+     *            The unit of <code>expireAfterAccess</code>.
+     */
+    public BoundedFragmentCache(final long maximumWeight, final long expectedEntryCount,
+            final long expireAfterAccess, final TimeUnit unit) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("maximumWeight must be positive, actual value: " + maximumWeight);
+        }
+        if (expireAfterAccess < 0) {
+            throw new IllegalArgumentException("expireAfterAccess cannot be negative, actual value: "
+                    + expireAfterAccess);
+        }
+        this.maximumWeight = maximumWeight;
+        windowMaximumWeight = Math.max(1, maximumWeight * WINDOW_PERCENTAGE / PERCENT);
+        protectedMaximumWeight = (maximumWeight - windowMaximumWeight) * PROTECTED_PERCENTAGE / PERCENT;
+        sketch = new FrequencySketch(expectedEntryCount);
+        data = new ConcurrentLongPairMap<Node>((int) Math.min(expectedEntryCount, Integer.MAX_VALUE / 2));
+        expireAfterAccessNanos = unit.toNanos(expireAfterAccess);
+    }
+
+    /**
+     * Removes the expired fragments and notifies the {@link FragmentEvictionListener} about them.
+     */
+    public void cleanUp() {
+        List<Node> evicted = new ArrayList<Node>();
+        evictionLock.lock();
+        try {
+            expire(evicted);
+        } finally {
+            evictionLock.unlock();
+        }
+        releaseEvicted(evicted);
+    }
+
+    /**
+     * Returns the current time in nanoseconds that is used to determine whether a fragment has expired.
+     */
+    long currentTimeNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Removes the expired nodes from the head of the access order queues. Must be called under the eviction lock.
+     *
+     * @param evicted
+     *            The list that collects the expired nodes.
+     */
+    private void expire(final List<Node> evicted) {
+        if (expireAfterAccessNanos == 0) {
+            return;
+        }
+        long now = currentTimeNanos();
+        for (AccessOrderQueue queue : new AccessOrderQueue[] { window, probation, protectedSegment }) {
+            while ((queue.first != null) && isExpired(queue.first, now)) {
+                Node node = queue.first;
+                unlink(node);
+                data.remove(node.blobId, node.startPosition, node);
+                evicted.add(node);
+            }
+        }
+    }
+
+    private boolean isExpired(final Node node, final long now) {
+        return (expireAfterAccessNanos > 0) && ((now - node.accessTime) >= expireAfterAccessNanos);
+    }
+
+    private boolean isExpired(final Node node) {
+        return (expireAfterAccessNanos > 0) && isExpired(node, currentTimeNanos());
+    }
+
+    /**
+     * Records the access of a node if the eviction lock is free. Accesses are allowed to be lost under contention,
+     * since the eviction policy is an estimation anyway.
+     */
+    private void afterRead(final Node node) {
+        if (expireAfterAccessNanos > 0) {
+            node.accessTime = currentTimeNanos();
+        }
+        if (evictionLock.tryLock()) {
+            try {
+                if (node.queue != null) {
+                    onAccess(node);
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes nodes until the weighted size fits into the maximum weight. Must be called under the eviction lock.
+     *
+     * @param evicted
+     *            The list that collects the evicted nodes.
+     */
+    private void evict(final List<Node> evicted) {
+        // the fragments falling out of the admission window become candidates in the probation segment
+        while ((window.weight > windowMaximumWeight) && (window.first != null)) {
+            Node node = window.first;
+            window.remove(node);
+            node.queue = Queue.PROBATION;
+            probation.addLast(node);
+        }
+        while (weightedSize > maximumWeight) {
+            Node victim = probation.first;
+            Node candidate = probation.last;
+            if (victim == null) {
+                candidate = null;
+                victim = (protectedSegment.first != null) ? protectedSegment.first : window.first;
+            }
+            Node nodeToEvict = victim;
+            if ((candidate != null) && (candidate != victim)
+                    && (sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash))) {
+                nodeToEvict = candidate;
+            }
+            unlink(nodeToEvict);
+            data.remove(nodeToEvict.blobId, nodeToEvict.startPosition);
+            evicted.add(nodeToEvict);
+        }
+    }
+
+    /**
+     * Removes every fragment and releases them like the evicted fragments, so the indexes that are maintained by the
+     * {@link FragmentEvictionListener} are cleared as well.
+     */
+    @Override
+    public void clear() {
+        List<Node> evicted;
+        evictionLock.lock();
+        try {
+            evicted = new ArrayList<Node>(data.values());
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+            weightedSize = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+        releaseEvicted(evicted);
+    }
+
+    @Override
+    public boolean containsFragment(final long blobId, final long fragmentStartPosition) {
+        Node node = data.get(blobId, fragmentStartPosition);
+        return (node != null) && !isExpired(node);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (!(key instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey cacheKey = (CacheKey) key;
+        return containsFragment(cacheKey.getBlobId(), cacheKey.getStartPosition());
+    }
+
+    /**
+     * Returns a snapshot of the cached entries.
+     */
+    @Override
+    public Set<Map.Entry<CacheKey, Fragment>> entrySet() {
+        Map<CacheKey, Fragment> snapshot = new HashMap<CacheKey, Fragment>();
+        for (Node node : data.values()) {
+            if (!isExpired(node)) {
+                snapshot.put(new CacheKey(node.blobId, node.startPosition), node.value);
+            }
+        }
+        return Collections.unmodifiableMap(snapshot).entrySet();
+    }
+
+    @Override
+    public Fragment get(final Object key) {
+        if (!(key instanceof CacheKey)) {
+            return null;
+        }
+        CacheKey cacheKey = (CacheKey) key;
+        return getFragment(cacheKey.getBlobId(), cacheKey.getStartPosition());
+    }
+
+    @Override
+    public Fragment getFragment(final long blobId, final long fragmentStartPosition) {
+        Node node = data.get(blobId, fragmentStartPosition);
+        if ((node == null) || isExpired(node)) {
+            return null;
+        }
+        afterRead(node);
+        return node.value;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Returns the sum of the weight of the cached fragments.
+     *
+     * @return The number of cached bytes.
+     */
+    public long getWeightedSize() {
+        evictionLock.lock();
+        try {
+            return weightedSize;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Notifies the {@link FragmentEvictionListener} about the evicted nodes and frees their fragments afterwards. This
+     * is the only place where the evicted fragments are freed, so the listener sees them before their memory is
+     * reused.
+     */
+    private void releaseEvicted(final List<Node> evicted) {
+        if (evicted.isEmpty()) {
+            return;
+        }
+        FragmentEvictionListener listener = evictionListener;
+        if (listener != null) {
+            List<Fragment> fragments = new ArrayList<Fragment>(evicted.size());
+            for (Node node : evicted) {
+                fragments.add(node.value);
+            }
+            listener.fragmentsEvicted(fragments);
+        }
+        for (Node node : evicted) {
+            node.value.free();
+        }
+    }
+
+    /**
+     * Records the access of a node and reorders it. Must be called under the eviction lock.
+     */
+    private void onAccess(final Node node) {
+        sketch.increment(node.hash);
+        if (node.queue == Queue.WINDOW) {
+            window.moveToLast(node);
+        } else if (node.queue == Queue.PROBATION) {
+            probation.remove(node);
+            node.queue = Queue.PROTECTED;
+            protectedSegment.addLast(node);
+            while (protectedSegment.weight > protectedMaximumWeight) {
+                Node demoted = protectedSegment.first;
+                protectedSegment.remove(demoted);
+                demoted.queue = Queue.PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            protectedSegment.moveToLast(node);
+        }
+    }
+
+    @Override
+    public Fragment put(final CacheKey key, final Fragment value) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        return put(key.getBlobId(), key.getStartPosition(), value, false);
+    }
+
+    private Fragment put(final long blobId, final long fragmentStartPosition, final Fragment value,
+            final boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        List<Node> evicted = new ArrayList<Node>();
+        Fragment oldValue = null;
+        evictionLock.lock();
+        try {
+            expire(evicted);
+            Node node = data.get(blobId, fragmentStartPosition);
+            if ((node != null) && isExpired(node)) {
+                unlink(node);
+                data.remove(blobId, fragmentStartPosition);
+                evicted.add(node);
+                node = null;
+            }
+            if (node == null) {
+                node = new Node(blobId, fragmentStartPosition, value, value.getWeight());
+                node.accessTime = currentTimeNanos();
+                node.queue = Queue.WINDOW;
+                window.addLast(node);
+                weightedSize += node.weight;
+                data.put(blobId, fragmentStartPosition, node);
+                sketch.increment(node.hash);
+            } else {
+                oldValue = node.value;
+                if (!onlyIfAbsent) {
+                    setValue(node, value);
+                    onAccess(node);
+                    node.accessTime = currentTimeNanos();
+                }
+            }
+            evict(evicted);
+        } finally {
+            evictionLock.unlock();
+        }
+        releaseEvicted(evicted);
+        return oldValue;
+    }
+
+    @Override
+    public Fragment putFragmentIfAbsent(final Fragment fragment) {
+        return put(fragment.getBlobId(), fragment.getStartPosition(), fragment, true);
+    }
+
+    @Override
+    public Fragment putIfAbsent(final CacheKey key, final Fragment value) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        return put(key.getBlobId(), key.getStartPosition(), value, true);
+    }
+
+    @Override
+    public Fragment remove(final Object key) {
+        if (!(key instanceof CacheKey)) {
+            return null;
+        }
+        CacheKey cacheKey = (CacheKey) key;
+        return removeFragment(cacheKey.getBlobId(), cacheKey.getStartPosition());
+    }
+
+    @Override
+    public Fragment removeFragment(final long blobId, final long fragmentStartPosition) {
+        evictionLock.lock();
+        try {
+            Node node = data.remove(blobId, fragmentStartPosition);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            return node.value;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+        if (!(key instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey cacheKey = (CacheKey) key;
+        evictionLock.lock();
+        try {
+            Node node = data.get(cacheKey.getBlobId(), cacheKey.getStartPosition());
+            if ((node == null) || !node.value.equals(value)) {
+                return false;
+            }
+            data.remove(cacheKey.getBlobId(), cacheKey.getStartPosition());
+            unlink(node);
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public Fragment replace(final CacheKey key, final Fragment value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        List<Node> evicted = new ArrayList<Node>();
+        Fragment oldValue;
+        evictionLock.lock();
+        try {
+            expire(evicted);
+            Node node = data.get(key.getBlobId(), key.getStartPosition());
+            if ((node == null) || isExpired(node)) {
+                oldValue = null;
+            } else {
+                oldValue = node.value;
+                setValue(node, value);
+                onAccess(node);
+                node.accessTime = currentTimeNanos();
+            }
+            evict(evicted);
+        } finally {
+            evictionLock.unlock();
+        }
+        releaseEvicted(evicted);
+        return oldValue;
+    }
+
+    @Override
+    public boolean replace(final CacheKey key, final Fragment oldValue, final Fragment newValue) {
+        return replace(key.getBlobId(), key.getStartPosition(), oldValue, newValue);
+    }
+
+    private boolean replace(final long blobId, final long fragmentStartPosition, final Fragment oldValue,
+            final Fragment newValue) {
+        if ((oldValue == null) || (newValue == null)) {
+            throw new NullPointerException();
+        }
+        Node existingNode = data.get(blobId, fragmentStartPosition);
+        if ((existingNode == null) || isExpired(existingNode)) {
+            return false;
+        }
+        Fragment currentValue = existingNode.value;
+        if (!currentValue.equals(oldValue)) {
+            return false;
+        }
+        if (newValue.getWeight() == currentValue.getWeight()) {
+            // the snapshots of a fragment have the same weight, so they are swapped without taking the eviction lock
+            if (!existingNode.casValue(currentValue, newValue)) {
+                return false;
+            }
+            afterRead(existingNode);
+            return true;
+        }
+        List<Node> evicted = new ArrayList<Node>();
+        evictionLock.lock();
+        try {
+            Node node = data.get(blobId, fragmentStartPosition);
+            if ((node == null) || !node.value.equals(oldValue)) {
+                return false;
+            }
+            setValue(node, newValue);
+            onAccess(node);
+            node.accessTime = currentTimeNanos();
+            evict(evicted);
+        } finally {
+            evictionLock.unlock();
+        }
+        releaseEvicted(evicted);
+        return true;
+    }
+
+    @Override
+    public boolean replaceFragment(final Fragment oldFragment, final Fragment newFragment) {
+        return replace(oldFragment.getBlobId(), oldFragment.getStartPosition(), oldFragment, newFragment);
+    }
+
+    public void setEvictionListener(final FragmentEvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Sets the value of a node and updates the weights. Must be called under the eviction lock.
+     */
+    private void setValue(final Node node, final Fragment value) {
+        long weightDiff = value.getWeight() - node.weight;
+        node.value = value;
+        node.weight += weightDiff;
+        weightedSize += weightDiff;
+        if (node.queue == Queue.WINDOW) {
+            window.weight += weightDiff;
+        } else if (node.queue == Queue.PROBATION) {
+            probation.weight += weightDiff;
+        } else {
+            protectedSegment.weight += weightDiff;
+        }
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Removes a node from its queue. Must be called under the eviction lock.
+     */
+    private void unlink(final Node node) {
+        if (node.queue == Queue.WINDOW) {
+            window.remove(node);
+        } else if (node.queue == Queue.PROBATION) {
+            probation.remove(node);
+        } else {
+            protectedSegment.remove(node);
+        }
+        node.queue = null;
+        weightedSize -= node.weight;
+    }
+
+}
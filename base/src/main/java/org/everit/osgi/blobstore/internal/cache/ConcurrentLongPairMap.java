@@ -0,0 +1,266 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An open addressing hash map of which keys are pairs of primitive <code>long</code>s, so a lookup does not need to
+ * allocate a key object. The collisions are resolved by linear probing and the removed entries are marked by a
+ * tombstone until the next rehash.
+ *
+ * Reads are lock-free. The map does not synchronize the modifications: the callers must serialize them, for example
+ * by an external lock. The entries are immutable and they are published through a volatile array slot, hence a reader
+ * either sees an entry completely or does not see it at all.
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+class ConcurrentLongPairMap<V> {
+
+    /**
+     * An immutable mapping of a key pair to a value.
+     */
+    private static final class Entry<V> {
+
+        private final long key1;
+
+        private final long key2;
+
+        private final V value;
+
+        Entry(final long key1, final long key2, final V value) {
+            this.key1 = key1;
+            this.key2 = key2;
+            this.value = value;
+        }
+
+    }
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Marks a slot of which entry was removed. The probing continues through the tombstones.
+     */
+    private static final Entry<Object> TOMBSTONE = new Entry<Object>(0, 0, null);
+
+    /**
+     * Returns the hash code of a key pair.
+     *
+     * @param key1
+     *            The first part of the key.
+     * @param key2
+     *            The second part of the key.
+     * @return The well spread hash code of the key.
+     */
+    static int hash(final long key1, final long key2) {
+        long h = (key1 * GOLDEN_RATIO) + key2;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33));
+    }
+
+    private static int tableSizeFor(final int expectedSize) {
+        long capacity = Math.max(MIN_CAPACITY, Long.highestOneBit(Math.max(1, (expectedSize * 4L) / 3)) << 1);
+        return (int) Math.min(capacity, MAX_CAPACITY);
+    }
+
+    private volatile AtomicReferenceArray<Entry<V>> table;
+
+    private volatile int size;
+
+    /**
+     * The number of the slots holding a {@link #TOMBSTONE}.
+     */
+    private int tombstones;
+
+    ConcurrentLongPairMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param expectedSize
+     *            The expected number of entries, the table is sized to hold them without rehashing.
+     */
+    ConcurrentLongPairMap(final int expectedSize) {
+        table = new AtomicReferenceArray<Entry<V>>(tableSizeFor(expectedSize));
+    }
+
+    void clear() {
+        table = new AtomicReferenceArray<Entry<V>>(MIN_CAPACITY);
+        size = 0;
+        tombstones = 0;
+    }
+
+    /**
+     * Returns the slot of the entry of a key pair or <code>-1</code> if the key pair is not mapped.
+     */
+    private int find(final AtomicReferenceArray<Entry<V>> tab, final long key1, final long key2) {
+        int mask = tab.length() - 1;
+        int i = hash(key1, key2) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            Entry<V> entry = tab.get(i);
+            if (entry == null) {
+                return -1;
+            }
+            if ((entry != TOMBSTONE) && (entry.key1 == key1) && (entry.key2 == key2)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value mapped to a key pair.
+     *
+     * @param key1
+     *            The first part of the key.
+     * @param key2
+     *            The second part of the key.
+     * @return The value or <code>null</code> if the key pair is not mapped.
+     */
+    V get(final long key1, final long key2) {
+        AtomicReferenceArray<Entry<V>> tab = table;
+        int i = find(tab, key1, key2);
+        return (i < 0) ? null : tab.get(i).value;
+    }
+
+    /**
+     * Maps a value to a key pair. Must not be called concurrently with other modifications.
+     *
+     * @return The previous value of the key pair or <code>null</code> if the key pair was not mapped.
+     */
+    V put(final long key1, final long key2, final V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        AtomicReferenceArray<Entry<V>> tab = table;
+        int i = find(tab, key1, key2);
+        if (i >= 0) {
+            V oldValue = tab.get(i).value;
+            tab.set(i, new Entry<V>(key1, key2, value));
+            return oldValue;
+        }
+        if (((size + tombstones + 1) * 4L) > (tab.length() * 3L)) {
+            tab = rehash();
+        }
+        int mask = tab.length() - 1;
+        i = hash(key1, key2) & mask;
+        Entry<V> entry = tab.get(i);
+        while ((entry != null) && (entry != TOMBSTONE)) {
+            i = (i + 1) & mask;
+            entry = tab.get(i);
+        }
+        if (entry == TOMBSTONE) {
+            tombstones--;
+        }
+        tab.set(i, new Entry<V>(key1, key2, value));
+        size++;
+        return null;
+    }
+
+    /**
+     * Copies the live entries into a new table that is large enough to hold twice as many entries. Readers working on
+     * the old table still see a consistent state, since the old table is not modified anymore.
+     */
+    private AtomicReferenceArray<Entry<V>> rehash() {
+        AtomicReferenceArray<Entry<V>> oldTable = table;
+        AtomicReferenceArray<Entry<V>> newTable = new AtomicReferenceArray<Entry<V>>(tableSizeFor((size + 1) * 2));
+        int mask = newTable.length() - 1;
+        for (int j = 0; j < oldTable.length(); j++) {
+            Entry<V> entry = oldTable.get(j);
+            if ((entry != null) && (entry != TOMBSTONE)) {
+                int i = hash(entry.key1, entry.key2) & mask;
+                while (newTable.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+                newTable.set(i, entry);
+            }
+        }
+        tombstones = 0;
+        table = newTable;
+        return newTable;
+    }
+
+    /**
+     * Removes the mapping of a key pair. Must not be called concurrently with other modifications.
+     *
+     * @return The removed value or <code>null</code> if the key pair was not mapped.
+     */
+    V remove(final long key1, final long key2) {
+        AtomicReferenceArray<Entry<V>> tab = table;
+        int i = find(tab, key1, key2);
+        if (i < 0) {
+            return null;
+        }
+        V oldValue = tab.get(i).value;
+        markRemoved(tab, i);
+        return oldValue;
+    }
+
+    /**
+     * Removes the mapping of a key pair if it is mapped to the given value instance. Must not be called concurrently
+     * with other modifications.
+     *
+     * @return <code>true</code> if the mapping was removed.
+     */
+    boolean remove(final long key1, final long key2, final V value) {
+        AtomicReferenceArray<Entry<V>> tab = table;
+        int i = find(tab, key1, key2);
+        if ((i < 0) || (tab.get(i).value != value)) {
+            return false;
+        }
+        markRemoved(tab, i);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void markRemoved(final AtomicReferenceArray<Entry<V>> tab, final int i) {
+        tab.set(i, (Entry<V>) (Entry<?>) TOMBSTONE);
+        tombstones++;
+        size--;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a snapshot of the values.
+     */
+    List<V> values() {
+        AtomicReferenceArray<Entry<V>> tab = table;
+        List<V> values = new ArrayList<V>(size);
+        for (int i = 0; i < tab.length(); i++) {
+            Entry<V> entry = tab.get(i);
+            if ((entry != null) && (entry != TOMBSTONE)) {
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,58 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Adapts a {@link ConcurrentMap} keyed by {@link CacheKey}s (for example a cache provided by an other bundle) to the
+ * {@link FragmentMap} interface. Every operation allocates a key object.
+ */
+class ConcurrentMapFragmentMap implements FragmentMap {
+
+    private final ConcurrentMap<CacheKey, Fragment> cache;
+
+    ConcurrentMapFragmentMap(final ConcurrentMap<CacheKey, Fragment> cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean containsFragment(final long blobId, final long fragmentStartPosition) {
+        return cache.containsKey(new CacheKey(blobId, fragmentStartPosition));
+    }
+
+    @Override
+    public Fragment getFragment(final long blobId, final long fragmentStartPosition) {
+        return cache.get(new CacheKey(blobId, fragmentStartPosition));
+    }
+
+    @Override
+    public Fragment putFragmentIfAbsent(final Fragment fragment) {
+        return cache.putIfAbsent(fragment.createCacheKey(), fragment);
+    }
+
+    @Override
+    public Fragment removeFragment(final long blobId, final long fragmentStartPosition) {
+        return cache.remove(new CacheKey(blobId, fragmentStartPosition));
+    }
+
+    @Override
+    public boolean replaceFragment(final Fragment oldFragment, final Fragment newFragment) {
+        return cache.replace(oldFragment.createCacheKey(), oldFragment, newFragment);
+    }
+
+}
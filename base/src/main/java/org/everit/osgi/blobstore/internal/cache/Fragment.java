@@ -17,26 +17,201 @@
 package org.everit.osgi.blobstore.internal.cache;
 
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * A fixed size, aligned range of a blob of which bytes may be partially cached. The bytes are held by one buffer of the
+ * fragment size, either on the heap or off-heap. The cached ranges of the buffer are recorded in an interval set, so
+ * storing a range of the blob is a single copy and an update of the interval set.
+ *
+ * The interval set is an array of <code>[start, end)</code> pairs (<code>{start0, end0, start1, end1, ...}</code>)
+ * ordered by position, the intervals are neither overlapping nor adjacent.
+ *
+ * Fragments are immutable snapshots: {@link #write(int, byte[], int, int)} returns a new fragment that shares the
+ * buffer with the original one and differs only in the interval set. Sharing the buffer is safe because the bytes of
+ * a blob never change, so concurrent writers of the same range write the same bytes, and a snapshot is only read in
+ * the ranges that were written before the snapshot was created. The new snapshot is installed in the cache with
+ * {@link java.util.concurrent.ConcurrentMap#replace(Object, Object, Object)}.
+ */
 public class Fragment implements Serializable {
 
     private static final long serialVersionUID = 4411177167585354588L;
 
-    private long blobId;
+    private static final int[] EMPTY_COVERAGE = new int[0];
+
+    /**
+     * Adds a range to an interval set.
+     *
+     * @param coverage
+     *            The interval set.
+     * @param start
+     *            The start of the range (inclusive).
+     * @param end
+     *            The end of the range (exclusive).
+     * @return The new interval set or <code>coverage</code> itself if it already contains the range.
+     */
+    static int[] addRange(final int[] coverage, final int start, final int end) {
+        int intervalCount = coverage.length / 2;
+        int first = 0;
+        while ((first < intervalCount) && (coverage[(2 * first) + 1] < start)) {
+            ++first;
+        }
+        int newStart = start;
+        int newEnd = end;
+        int last = first;
+        // merging the overlapping and adjacent intervals
+        while ((last < intervalCount) && (coverage[2 * last] <= end)) {
+            newStart = Math.min(newStart, coverage[2 * last]);
+            newEnd = Math.max(newEnd, coverage[(2 * last) + 1]);
+            ++last;
+        }
+        if (((last - first) == 1) && (coverage[2 * first] == newStart) && (coverage[(2 * first) + 1] == newEnd)) {
+            return coverage;
+        }
+        int[] rval = new int[(coverage.length - (2 * (last - first))) + 2];
+        System.arraycopy(coverage, 0, rval, 0, 2 * first);
+        rval[2 * first] = newStart;
+        rval[(2 * first) + 1] = newEnd;
+        System.arraycopy(coverage, 2 * last, rval, (2 * first) + 2, coverage.length - (2 * last));
+        return rval;
+    }
+
+    /**
+     * Returns the index of the first interval of which end is after the given position.
+     *
+     * @return The index of the interval or the number of intervals if there is no such interval.
+     */
+    private static int findInterval(final int[] coverage, final int position) {
+        int low = 0;
+        int high = coverage.length / 2;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (coverage[(2 * mid) + 1] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
 
-    private long startPosition;
+    private final long blobId;
 
-    private LinkedList<FragmentPart> fragmentParts = new LinkedList<FragmentPart>();
+    private final long startPosition;
+
+    /**
+     * The bytes of the fragment if they are held on the heap, otherwise <code>null</code>.
+     */
+    private final byte[] data;
+
+    /**
+     * The off-heap buffer holding the bytes of the fragment, <code>null</code> if the bytes are held on the heap.
+     */
+    private final transient OffHeapBuffer buffer;
 
-    public Fragment() {
+    /**
+     * The cached ranges of the fragment.
+     */
+    private final int[] coverage;
 
+    /**
+     * Creates a fragment of which bytes are held on the heap.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param startPosition
+     *            The start position of the fragment in the blob.
+     * @param fragmentSize
+     *            The size of the fragment in bytes.
+     */
+    public Fragment(final long blobId, final long startPosition, final int fragmentSize) {
+        this.blobId = blobId;
+        this.startPosition = startPosition;
+        data = new byte[fragmentSize];
+        buffer = null;
+        coverage = EMPTY_COVERAGE;
     }
 
-    public Fragment(final long blobId, final long startPosition) {
-        super();
+    /**
+     * Creates a fragment of which bytes are held off-heap.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param startPosition
+     *            The start position of the fragment in the blob.
+     * @param buffer
+     *            The buffer holding the bytes of the fragment, its capacity is the size of the fragment.
+     */
+    public Fragment(final long blobId, final long startPosition, final OffHeapBuffer buffer) {
         this.blobId = blobId;
         this.startPosition = startPosition;
+        data = null;
+        this.buffer = buffer;
+        coverage = EMPTY_COVERAGE;
+    }
+
+    private Fragment(final Fragment original, final int[] coverage) {
+        blobId = original.blobId;
+        startPosition = original.startPosition;
+        data = original.data;
+        buffer = original.buffer;
+        this.coverage = coverage;
+    }
+
+    /**
+     * Copies the cached bytes of the fragment that start at the given position to an array. The copy stops at the end
+     * of the cached range that contains the position.
+     *
+     * @param positionInFragment
+     *            The position of the first byte to be copied relative to the start of the fragment.
+     * @param dest
+     *            The destination array.
+     * @param destPos
+     *            The position in <code>dest</code> where the first byte is copied to.
+     * @param length
+     *            The maximum number of bytes to be copied.
+     * @return The number of copied bytes, zero if the byte at <code>positionInFragment</code> is not cached or the
+     *         off-heap buffer of the fragment has been freed.
+     */
+    public int copyTo(final int positionInFragment, final byte[] dest, final int destPos, final int length) {
+        int interval = findInterval(coverage, positionInFragment);
+        if ((interval == (coverage.length / 2)) || (coverage[2 * interval] > positionInFragment)) {
+            return 0;
+        }
+        int copyLength = Math.min(length, coverage[(2 * interval) + 1] - positionInFragment);
+        if (buffer == null) {
+            System.arraycopy(data, positionInFragment, dest, destPos, copyLength);
+        } else if (!buffer.read(positionInFragment, dest, destPos, copyLength)) {
+            return 0;
+        }
+        return copyLength;
+    }
+
+    /**
+     * Copies the cached bytes of the fragment that start at the given position to a byte buffer. The copy stops at the
+     * first byte that is not cached or when <code>dest</code> is full. A direct buffer is filled from an off-heap
+     * fragment without an intermediate array.
+     *
+     * @param positionInFragment
+     *            The position of the first byte to be copied relative to the start of the fragment.
+     * @param dest
+     *            The destination buffer, its position is advanced by the number of copied bytes.
+     * @return The number of copied bytes, zero if the byte at <code>positionInFragment</code> is not cached or the
+     *         off-heap buffer of the fragment has been freed.
+     */
+    public int copyTo(final int positionInFragment, final ByteBuffer dest) {
+        int interval = findInterval(coverage, positionInFragment);
+        if ((interval == (coverage.length / 2)) || (coverage[2 * interval] > positionInFragment)) {
+            return 0;
+        }
+        int copyLength = Math.min(dest.remaining(), coverage[(2 * interval) + 1] - positionInFragment);
+        if (buffer == null) {
+            dest.put(data, positionInFragment, copyLength);
+        } else if (!buffer.read(positionInFragment, dest, copyLength)) {
+            return 0;
+        }
+        return copyLength;
     }
 
     public CacheKey createCacheKey() {
@@ -58,71 +233,134 @@ public class Fragment implements Serializable {
         if (blobId != other.blobId) {
             return false;
         }
-        if (fragmentParts == null) {
-            if (other.fragmentParts != null) {
-                return false;
-            }
-        } else if (!fragmentParts.equals(other.fragmentParts)) {
+        if (startPosition != other.startPosition) {
             return false;
         }
-        if (startPosition != other.startPosition) {
+        if (!Arrays.equals(coverage, other.coverage)) {
+            return false;
+        }
+        if (buffer != other.buffer) {
             return false;
         }
-        return true;
+        return Arrays.equals(data, other.data);
+    }
+
+    /**
+     * Frees the off-heap buffer of the fragment if it has one. The fragment must not be used after calling this
+     * method.
+     */
+    public void free() {
+        if (buffer != null) {
+            buffer.free();
+        }
     }
 
     public long getBlobId() {
         return blobId;
     }
 
+    public OffHeapBuffer getBuffer() {
+        return buffer;
+    }
+
     /**
-     * Please only use these fragment parts for traversing, do not add items to the list itself. Use {@link
-     * insertFragmentPart(FragmentPart) } instead, since it will maintain list ordering.
-     * 
-     * @return
+     * Returns the number of the cached bytes of the fragment.
+     *
+     * @return The sum of the length of the cached ranges.
      */
-    public LinkedList<FragmentPart> getFragmentParts() {
-        return fragmentParts;
+    public int getCachedByteCount() {
+        int rval = 0;
+        for (int i = 0; i < coverage.length; i += 2) {
+            rval += coverage[i + 1] - coverage[i];
+        }
+        return rval;
+    }
+
+    /**
+     * Returns the cached ranges of the fragment. The returned array must not be modified.
+     *
+     * @return The <code>{start0, end0, start1, end1, ...}</code> pairs of the cached ranges ordered by position.
+     */
+    public int[] getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * Returns the position of the first cached byte of the fragment at or after the given position.
+     *
+     * @param positionInFragment
+     *            The position relative to the start of the fragment.
+     * @return The position of the first cached byte relative to the start of the fragment or <code>-1</code> if no
+     *         byte is cached at or after <code>positionInFragment</code>.
+     */
+    public int getNextCachedPosition(final int positionInFragment) {
+        int interval = findInterval(coverage, positionInFragment);
+        if (interval == (coverage.length / 2)) {
+            return -1;
+        }
+        return Math.max(positionInFragment, coverage[2 * interval]);
+    }
+
+    public int getSize() {
+        return (buffer == null) ? data.length : buffer.capacity();
     }
 
     public long getStartPosition() {
         return startPosition;
     }
 
+    /**
+     * Returns the number of bytes held by this fragment.
+     *
+     * @return The size of the buffer of the fragment.
+     */
+    public long getWeight() {
+        return getSize();
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
         result = prime * result + (int) (blobId ^ (blobId >>> 32));
-        result = prime * result
-                + ((fragmentParts == null) ? 0 : fragmentParts.hashCode());
+        result = prime * result + Arrays.hashCode(coverage);
         result = prime * result
                 + (int) (startPosition ^ (startPosition >>> 32));
         return result;
     }
 
-    public void insertFragmentPart(final FragmentPart newPart) {
-        long newPartPos = newPart.getStartPositionInFragment();
-        int insertIdx = 0;
-        for (FragmentPart part : fragmentParts) {
-            if (part.getStartPositionInFragment() > newPartPos) {
-                break;
-            }
-            ++insertIdx;
-        }
-        fragmentParts.add(insertIdx, newPart);
-    }
-
-    public void setBlobId(final long blobId) {
-        this.blobId = blobId;
-    }
-
-    public void setFragmentParts(final LinkedList<FragmentPart> fragmentParts) {
-        this.fragmentParts = fragmentParts;
+    @Override
+    public String toString() {
+        return "Fragment [blobId=" + blobId + ", startPosition=" + startPosition + ", coverage="
+                + Arrays.toString(coverage) + "]";
     }
 
-    public void setStartPosition(final long startPosition) {
-        this.startPosition = startPosition;
+    /**
+     * Stores bytes of the blob in the buffer of the fragment and creates a snapshot in which the bytes are marked as
+     * cached. This fragment is not modified.
+     *
+     * @param positionInFragment
+     *            The position of the first byte relative to the start of the fragment.
+     * @param src
+     *            The array holding the bytes.
+     * @param srcPos
+     *            The position of the first byte in <code>src</code>.
+     * @param length
+     *            The number of bytes to be stored.
+     * @return The new snapshot, this fragment if all bytes were already cached, or <code>null</code> if the off-heap
+     *         buffer of the fragment has been freed.
+     */
+    public Fragment write(final int positionInFragment, final byte[] src, final int srcPos, final int length) {
+        if (buffer == null) {
+            System.arraycopy(src, srcPos, data, positionInFragment, length);
+        } else if (!buffer.write(positionInFragment, src, srcPos, length)) {
+            return null;
+        }
+        int[] newCoverage = addRange(coverage, positionInFragment, positionInFragment + length);
+        if (newCoverage == coverage) {
+            return this;
+        }
+        return new Fragment(this, newCoverage);
     }
 
 }
@@ -39,27 +39,21 @@ class FragmentByteArray {
         this.offset = offset;
     }
 
-    byte[] asRawArray() {
-        if (startPosition == 0 && origArray.length == length) {
-            return origArray;
-        }
-        byte[] rval = new byte[length];
-        System.arraycopy(origArray, startPosition, rval, 0, length);
-        return rval;
-    }
-
-    public void copyTo(final int srcPos, final byte[] dest, final int destPos,
-            final int length) {
-        System.arraycopy(origArray, startPosition + srcPos, dest, destPos,
-                length);
+    /**
+     * Stores the bytes in a fragment at the {@link #getOffset() offset}.
+     *
+     * @param fragment
+     *            The fragment that holds the bytes.
+     * @return The snapshot of the fragment holding the bytes or <code>null</code> if the off-heap buffer of the
+     *         fragment has already been freed.
+     * @see Fragment#write(int, byte[], int, int)
+     */
+    Fragment copyTo(final Fragment fragment) {
+        return fragment.write(offset, origArray, startPosition, length);
     }
 
     public int getOffset() {
         return offset;
     }
 
-    int length() {
-        return length;
-    }
-
 }
@@ -0,0 +1,37 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.List;
+
+/**
+ * Listener that is notified when a bounded fragment cache evicts {@link Fragment}s to keep its size within the
+ * configured limit or because they have expired. The fragments that are removed explicitly are not reported.
+ */
+public interface FragmentEvictionListener {
+
+    /**
+     * Called after fragments have been evicted from the cache. The fragments evicted by the same cache operation are
+     * reported in one batch. The cache frees the fragments after this method returns, so the listener must not free
+     * them.
+     *
+     * @param fragments
+     *            The evicted fragments, never empty.
+     */
+    void fragmentsEvicted(List<Fragment> fragments);
+
+}
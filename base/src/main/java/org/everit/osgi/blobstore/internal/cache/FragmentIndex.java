@@ -0,0 +1,145 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The index of the cached {@link Fragment}s of a blob. The fragments are kept ordered by their start position so the
+ * fragments of a blob range can be looked up without walking through the fragments before the range. Adding and
+ * removing a fragment takes <code>O(log n)</code> time.
+ *
+ * The index also records the size of the fragments of the blob. The size is a power of two, so the start position of
+ * the fragment of a blob position is computed by masking.
+ */
+public class FragmentIndex {
+
+    /**
+     * The size of the fragments of the blob in bytes.
+     */
+    private final int fragmentSize;
+
+    /**
+     * The start positions of the cached fragments in ascending order.
+     */
+    private final ConcurrentSkipListSet<Long> fragmentStartPositions = new ConcurrentSkipListSet<Long>();
+
+    /**
+     * Constructor of an index of fragments with the {@link BlobstoreCacheService#DEFAULT_FRAGMENT_SIZE default size}.
+     */
+    public FragmentIndex() {
+        this((int) BlobstoreCacheService.DEFAULT_FRAGMENT_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fragmentSize
+     *            The size of the fragments of the blob, it must be a power of two.
+     * @throws IllegalArgumentException
+     *             if <code>fragmentSize</code> is not a positive power of two.
+     */
+    public FragmentIndex(final int fragmentSize) {
+        if ((fragmentSize <= 0) || (Integer.bitCount(fragmentSize) != 1)) {
+            throw new IllegalArgumentException("fragmentSize must be a power of two, actual value: " + fragmentSize);
+        }
+        this.fragmentSize = fragmentSize;
+    }
+
+    /**
+     * Registers a fragment in the index.
+     *
+     * @param fragmentStartPosition
+     *            The start position of the fragment.
+     * @return <code>true</code> if the fragment was not registered yet.
+     */
+    public boolean add(final long fragmentStartPosition) {
+        return fragmentStartPositions.add(fragmentStartPosition);
+    }
+
+    /**
+     * Returns the start position of the fragment that contains a position of the blob.
+     *
+     * @param position
+     *            The position in the blob.
+     * @return The start position of the fragment.
+     */
+    public long getFragmentStartPosition(final long position) {
+        return position & -fragmentSize;
+    }
+
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    /**
+     * Returns the start positions of all registered fragments in ascending order.
+     *
+     * @return A live view of the registered start positions.
+     */
+    public NavigableSet<Long> getFragmentStartPositions() {
+        return fragmentStartPositions;
+    }
+
+    /**
+     * Returns the start positions of the registered fragments that start in the
+     * <code>[fromPosition, toPosition)</code> range in ascending order.
+     *
+     * @param fromPosition
+     *            The lowest start position (inclusive).
+     * @param toPosition
+     *            The highest start position (exclusive).
+     * @return A live view of the matching start positions.
+     */
+    public NavigableSet<Long> getFragmentStartPositions(final long fromPosition, final long toPosition) {
+        if (fromPosition >= toPosition) {
+            return fragmentStartPositions.subSet(fromPosition, true, fromPosition, false);
+        }
+        return fragmentStartPositions.subSet(fromPosition, true, toPosition, false);
+    }
+
+    public boolean isEmpty() {
+        return fragmentStartPositions.isEmpty();
+    }
+
+    /**
+     * Unregisters a fragment from the index.
+     *
+     * @param fragmentStartPosition
+     *            The start position of the fragment.
+     * @return <code>true</code> if the fragment was registered.
+     */
+    public boolean remove(final long fragmentStartPosition) {
+        return fragmentStartPositions.remove(fragmentStartPosition);
+    }
+
+    /**
+     * The number of registered fragments. Please note that this method traverses the index.
+     *
+     * @return The number of registered fragments.
+     */
+    public int size() {
+        return fragmentStartPositions.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FragmentIndex [fragmentSize=" + fragmentSize + "] " + fragmentStartPositions;
+    }
+
+}
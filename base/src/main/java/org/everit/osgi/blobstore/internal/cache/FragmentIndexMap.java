@@ -0,0 +1,97 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.List;
+
+/**
+ * The {@link FragmentIndex}es of the cached blobs by blob id. The indexes are looked up by the primitive blob id
+ * without locking, so a cache hit does not box the blob id. The indexes are created and dropped only when the first
+ * fragment of a blob is cached and the last one is evicted, so the modifications are simply serialized.
+ */
+public class FragmentIndexMap {
+
+    /**
+     * The indexes keyed by the blob id and zero.
+     */
+    private final ConcurrentLongPairMap<FragmentIndex> indexes = new ConcurrentLongPairMap<FragmentIndex>();
+
+    /**
+     * Returns the index of a blob.
+     *
+     * @return The index or <code>null</code> if the blob has no index.
+     */
+    public FragmentIndex get(final long blobId) {
+        return indexes.get(blobId, 0);
+    }
+
+    public boolean isEmpty() {
+        return indexes.size() == 0;
+    }
+
+    /**
+     * Sets the index of a blob.
+     *
+     * @return The previous index of the blob or <code>null</code> if the blob had no index.
+     */
+    public synchronized FragmentIndex put(final long blobId, final FragmentIndex fragmentIndex) {
+        return indexes.put(blobId, 0, fragmentIndex);
+    }
+
+    /**
+     * Sets the index of a blob unless the blob has an index already.
+     *
+     * @return The existing index of the blob or <code>null</code> if the index has been set.
+     */
+    public synchronized FragmentIndex putIfAbsent(final long blobId, final FragmentIndex fragmentIndex) {
+        FragmentIndex existingIndex = indexes.get(blobId, 0);
+        if (existingIndex == null) {
+            indexes.put(blobId, 0, fragmentIndex);
+        }
+        return existingIndex;
+    }
+
+    /**
+     * Removes the index of a blob.
+     *
+     * @return The removed index or <code>null</code> if the blob had no index.
+     */
+    public synchronized FragmentIndex remove(final long blobId) {
+        return indexes.remove(blobId, 0);
+    }
+
+    /**
+     * Removes the index of a blob if it is the given instance.
+     *
+     * @return <code>true</code> if the index has been removed.
+     */
+    public synchronized boolean remove(final long blobId, final FragmentIndex fragmentIndex) {
+        return indexes.remove(blobId, 0, fragmentIndex);
+    }
+
+    public int size() {
+        return indexes.size();
+    }
+
+    /**
+     * Returns a snapshot of the indexes.
+     */
+    public List<FragmentIndex> values() {
+        return indexes.values();
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+/**
+ * The storage of the cached {@link Fragment}s as seen by the {@link BlobstoreCacheService}. The fragments are
+ * addressed by the id of their blob and their start position as primitive values, so an implementation can look them
+ * up without allocating a {@link CacheKey}.
+ *
+ * The implementations must be thread-safe.
+ */
+public interface FragmentMap {
+
+    /**
+     * Checks whether a fragment is cached.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param fragmentStartPosition
+     *            The start position of the fragment in the blob.
+     * @return <code>true</code> if the fragment is cached.
+     */
+    boolean containsFragment(long blobId, long fragmentStartPosition);
+
+    /**
+     * Returns a cached fragment.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param fragmentStartPosition
+     *            The start position of the fragment in the blob.
+     * @return The fragment or <code>null</code> if it is not cached.
+     */
+    Fragment getFragment(long blobId, long fragmentStartPosition);
+
+    /**
+     * Caches a fragment unless an other fragment is cached with the same blob id and start position.
+     *
+     * @param fragment
+     *            The fragment to be cached.
+     * @return The fragment that is already cached or <code>null</code> if the passed fragment was cached.
+     */
+    Fragment putFragmentIfAbsent(Fragment fragment);
+
+    /**
+     * Removes a fragment from the cache.
+     *
+     * @param blobId
+     *            The id of the blob.
+     * @param fragmentStartPosition
+     *            The start position of the fragment in the blob.
+     * @return The removed fragment or <code>null</code> if it was not cached.
+     */
+    Fragment removeFragment(long blobId, long fragmentStartPosition);
+
+    /**
+     * Replaces a cached fragment with a new snapshot of it.
+     *
+     * @param oldFragment
+     *            The fragment that is expected to be cached.
+     * @param newFragment
+     *            The new snapshot, it must have the same blob id and start position as <code>oldFragment</code>.
+     * @return <code>true</code> if <code>oldFragment</code> was cached and it has been replaced.
+     */
+    boolean replaceFragment(Fragment oldFragment, Fragment newFragment);
+
+}
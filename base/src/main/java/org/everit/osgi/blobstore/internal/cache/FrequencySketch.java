@@ -0,0 +1,149 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+/**
+ * Estimates the access frequency of the cache entries within a time window (TinyLFU). The estimation is done by a
+ * count-min sketch with four 4-bit counters per entry. When the number of recorded accesses reaches ten times the size
+ * of the sketch all counters are halved, so the estimations are biased towards the recent accesses.
+ *
+ * The class is not thread-safe.
+ */
+class FrequencySketch {
+
+    private static final long[] SEED = new long[] {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /**
+     * Clears the highest bit of each 4-bit counter after a shift.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * Selects the lowest bit of each 4-bit counter.
+     */
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    /**
+     * The maximum value of a counter.
+     */
+    private static final int MAX_FREQUENCY = 15;
+
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+
+    private static int spread(final int hashCode) {
+        int x = ((hashCode >>> 16) ^ hashCode) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    /**
+     * The number of increments after which the counters are halved.
+     */
+    private final int sampleSize;
+
+    /**
+     * The number of increments since the last reset.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param expectedEntryCount
+     *            The expected maximum number of entries of the cache.
+     */
+    FrequencySketch(final long expectedEntryCount) {
+        long tableSize = Long.highestOneBit(Math.max(expectedEntryCount, MIN_TABLE_SIZE) - 1) << 1;
+        tableSize = Math.min(tableSize, MAX_TABLE_SIZE);
+        table = new long[(int) tableSize];
+        tableMask = (int) tableSize - 1;
+        sampleSize = (int) Math.min(10 * tableSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the estimated number of accesses of an entry.
+     *
+     * @param hashCode
+     *            The hash code of the key of the entry.
+     * @return The estimated frequency in the <code>[0, 15]</code> range.
+     */
+    int frequency(final int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of an entry.
+     *
+     * @param hashCode
+     *            The hash code of the key of the entry.
+     */
+    void increment(final int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && (++size == sampleSize)) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(final int i, final int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if ((table[i] & mask) != mask) {
+            table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private int indexOf(final int hash, final int i) {
+        long h = (hash + SEED[i]) * SEED[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    /**
+     * Halves every counter and adjusts the sample size accordingly.
+     */
+    private void reset() {
+        int oddCount = 0;
+        for (int i = 0; i < table.length; i++) {
+            oddCount += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (oddCount >>> 2);
+    }
+
+}
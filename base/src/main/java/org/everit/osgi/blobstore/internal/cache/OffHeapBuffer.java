@@ -0,0 +1,138 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size buffer in direct memory allocated by a {@link SlabAllocator}. The buffer must be {@link #free() freed}
+ * explicitly when it is not needed anymore, after that its memory may be reused by an other buffer.
+ *
+ * Reading is optimistic: the bytes are copied without locking and the read is reported to be successful only if the
+ * buffer was not freed in the meantime. Writes are serialized with {@link #free()}, so a freed buffer is never written.
+ */
+public class OffHeapBuffer {
+
+    private final SlabAllocator allocator;
+
+    private final SlabAllocator.Slab slab;
+
+    private final ByteBuffer slot;
+
+    private volatile boolean freed = false;
+
+    OffHeapBuffer(final SlabAllocator allocator, final SlabAllocator.Slab slab, final ByteBuffer slot) {
+        this.allocator = allocator;
+        this.slab = slab;
+        this.slot = slot;
+    }
+
+    public int capacity() {
+        return slot.capacity();
+    }
+
+    /**
+     * Gives the memory of the buffer back to the allocator. Calling this method on a freed buffer has no effect.
+     */
+    public synchronized void free() {
+        if (!freed) {
+            freed = true;
+            allocator.release(slab, slot);
+        }
+    }
+
+    public boolean isFreed() {
+        return freed;
+    }
+
+    /**
+     * Copies bytes from the buffer to a byte array.
+     *
+     * @param position
+     *            The position in the buffer of the first byte to be copied.
+     * @param dest
+     *            The destination array.
+     * @param destPos
+     *            The position in <code>dest</code> where the first byte is copied to.
+     * @param length
+     *            The number of bytes to be copied.
+     * @return <code>false</code> if the buffer was freed before or during the copy, in that case the content of
+     *         <code>dest</code> must not be used.
+     */
+    public boolean read(final int position, final byte[] dest, final int destPos, final int length) {
+        if (freed) {
+            return false;
+        }
+        ByteBuffer source = slot.duplicate();
+        source.position(position);
+        source.get(dest, destPos, length);
+        return !freed;
+    }
+
+    /**
+     * Copies bytes from the buffer to a byte buffer. The position of <code>dest</code> is advanced by
+     * <code>length</code> if the copy succeeds and it is left unchanged otherwise.
+     *
+     * @param position
+     *            The position in the buffer of the first byte to be copied.
+     * @param dest
+     *            The destination buffer, it must have at least <code>length</code> remaining bytes.
+     * @param length
+     *            The number of bytes to be copied.
+     * @return <code>false</code> if the buffer was freed before or during the copy, in that case the copied bytes of
+     *         <code>dest</code> must not be used.
+     */
+    public boolean read(final int position, final ByteBuffer dest, final int length) {
+        if (freed) {
+            return false;
+        }
+        ByteBuffer source = slot.duplicate();
+        source.position(position);
+        source.limit(position + length);
+        int destPosition = dest.position();
+        dest.put(source);
+        if (freed) {
+            dest.position(destPosition);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies bytes from a byte array to the buffer.
+     *
+     * @param position
+     *            The position in the buffer where the first byte is copied to.
+     * @param src
+     *            The source array.
+     * @param srcPos
+     *            The position of the first byte to be copied in <code>src</code>.
+     * @param length
+     *            The number of bytes to be copied.
+     * @return <code>false</code> if the buffer has already been freed, in that case nothing is written.
+     */
+    public synchronized boolean write(final int position, final byte[] src, final int srcPos, final int length) {
+        if (freed) {
+            return false;
+        }
+        ByteBuffer target = slot.duplicate();
+        target.position(position);
+        target.put(src, srcPos, length);
+        return true;
+    }
+
+}
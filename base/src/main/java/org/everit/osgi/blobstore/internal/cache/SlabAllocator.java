@@ -0,0 +1,212 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates {@link OffHeapBuffer}s from direct memory. The memory is reserved in slabs of {@link #getSlabSize()} bytes
+ * and each slab is cut into slots of the same size class. The size classes are the powers of two between
+ * {@link #MIN_SLOT_SIZE} and the slab size.
+ *
+ * Freed slots are reused by the later allocations of the same size class. The allocations take the slots of the
+ * oldest slabs first, so the newer slabs drain when the usage drops. A slab is given back as soon as all of its slots
+ * are free, except one spare slab per size class that absorbs the allocations that come and go around a slab
+ * boundary. The reserved direct memory therefore follows the current usage instead of the peak usage of each size
+ * class. The memory of a given back slab is reclaimed by the garbage collector of the JVM.
+ */
+public class SlabAllocator {
+
+    /**
+     * The slots of a slab. Guarded by the lock of its {@link SizeClass}.
+     */
+    static final class Slab {
+
+        private final SizeClass sizeClass;
+
+        /**
+         * The order of the slab within its size class, the older slabs have the lower sequence.
+         */
+        private final long sequence;
+
+        private final int slotCount;
+
+        private final ArrayDeque<ByteBuffer> freeSlots;
+
+        private Slab(final SizeClass sizeClass, final long sequence, final ByteBuffer memory, final int slotSize) {
+            this.sizeClass = sizeClass;
+            this.sequence = sequence;
+            slotCount = memory.capacity() / slotSize;
+            freeSlots = new ArrayDeque<ByteBuffer>(slotCount);
+            for (int position = 0; position < memory.capacity(); position += slotSize) {
+                memory.limit(position + slotSize).position(position);
+                freeSlots.add(memory.slice());
+            }
+        }
+
+    }
+
+    /**
+     * The slabs of a size class that have free slots, ordered from the oldest one.
+     */
+    private static final class SizeClass {
+
+        private final int slotSize;
+
+        private final TreeSet<Slab> availableSlabs = new TreeSet<Slab>(new Comparator<Slab>() {
+
+            @Override
+            public int compare(final Slab o1, final Slab o2) {
+                return Long.compare(o1.sequence, o2.sequence);
+            }
+        });
+
+        private long nextSequence = 0;
+
+        /**
+         * Whether one of the available slabs has no used slot.
+         */
+        private boolean hasEmptySlab = false;
+
+        private SizeClass(final int slotSize) {
+            this.slotSize = slotSize;
+        }
+
+    }
+
+    /**
+     * The default size of the slabs in bytes (1 MB).
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    /**
+     * The size of the smallest size class in bytes.
+     */
+    public static final int MIN_SLOT_SIZE = 64;
+
+    private static int sizeClassOf(final int size) {
+        int slotSize = Math.max(MIN_SLOT_SIZE, Integer.highestOneBit(size - 1) << 1);
+        return Integer.numberOfTrailingZeros(slotSize) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+    }
+
+    private final int slabSize;
+
+    private final List<SizeClass> sizeClasses;
+
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param slabSize
+     *            The size of the slabs in bytes, must be a power of two not less than {@link #MIN_SLOT_SIZE}.
+     */
+    public SlabAllocator(final int slabSize) {
+        if ((slabSize < MIN_SLOT_SIZE) || (Integer.bitCount(slabSize) != 1)) {
+            throw new IllegalArgumentException("slabSize must be a power of two not less than " + MIN_SLOT_SIZE
+                    + ", actual value: " + slabSize);
+        }
+        this.slabSize = slabSize;
+        int sizeClassCount = sizeClassOf(slabSize) + 1;
+        sizeClasses = new ArrayList<SizeClass>(sizeClassCount);
+        for (int i = 0; i < sizeClassCount; i++) {
+            sizeClasses.add(new SizeClass(MIN_SLOT_SIZE << i));
+        }
+    }
+
+    /**
+     * Allocates a buffer that can hold at least <code>size</code> bytes.
+     *
+     * @param size
+     *            The required capacity in bytes.
+     * @return The allocated buffer, its capacity is the size of the size class of the requested size.
+     * @throws IllegalArgumentException
+     *             if <code>size</code> is not positive or it is larger than the slab size.
+     */
+    public OffHeapBuffer allocate(final int size) {
+        if ((size <= 0) || (size > slabSize)) {
+            throw new IllegalArgumentException("size must be in the [1, " + slabSize + "] range, actual value: "
+                    + size);
+        }
+        SizeClass sizeClass = sizeClasses.get(sizeClassOf(size));
+        synchronized (sizeClass) {
+            Slab slab;
+            if (sizeClass.availableSlabs.isEmpty()) {
+                slab = new Slab(sizeClass, sizeClass.nextSequence++, ByteBuffer.allocateDirect(slabSize),
+                        sizeClass.slotSize);
+                reservedBytes.addAndGet(slabSize);
+                sizeClass.availableSlabs.add(slab);
+            } else {
+                slab = sizeClass.availableSlabs.first();
+                if (slab.freeSlots.size() == slab.slotCount) {
+                    sizeClass.hasEmptySlab = false;
+                }
+            }
+            ByteBuffer slot = slab.freeSlots.poll();
+            if (slab.freeSlots.isEmpty()) {
+                sizeClass.availableSlabs.remove(slab);
+            }
+            return new OffHeapBuffer(this, slab, slot);
+        }
+    }
+
+    /**
+     * Returns the number of bytes reserved from the direct memory.
+     *
+     * @return The sum of the size of the slabs that have not been given back.
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Puts a freed slot back to its slab. The slab is given back if all of its slots are free and its size class
+     * already has a spare slab.
+     */
+    void release(final Slab slab, final ByteBuffer slot) {
+        SizeClass sizeClass = slab.sizeClass;
+        synchronized (sizeClass) {
+            slab.freeSlots.push(slot);
+            if (slab.freeSlots.size() == 1) {
+                sizeClass.availableSlabs.add(slab);
+            }
+            if (slab.freeSlots.size() == slab.slotCount) {
+                if (sizeClass.hasEmptySlab) {
+                    sizeClass.availableSlabs.remove(slab);
+                    reservedBytes.addAndGet(-slabSize);
+                } else {
+                    sizeClass.hasEmptySlab = true;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.chunking;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChunkManifestTest {
+
+    private static ChunkManifest createManifest() {
+        return new ChunkManifest(new long[] { 7, 3, 7 }, new long[] { 0, 100, 250 }, 300);
+    }
+
+    @Test
+    public void testChunkLengths() {
+        ChunkManifest manifest = createManifest();
+        Assert.assertEquals(3, manifest.getChunkCount());
+        Assert.assertEquals(100, manifest.getChunkLength(0));
+        Assert.assertEquals(150, manifest.getChunkLength(1));
+        Assert.assertEquals(50, manifest.getChunkLength(2));
+        Assert.assertEquals(7, manifest.getChunkId(2));
+        Assert.assertEquals(250, manifest.getChunkOffset(2));
+    }
+
+    @Test
+    public void testEmptyManifest() {
+        Assert.assertEquals(0, new ChunkManifest(new long[0], new long[0], 0).getSize());
+    }
+
+    @Test
+    public void testIndexOf() {
+        ChunkManifest manifest = createManifest();
+        Assert.assertEquals(0, manifest.indexOf(0));
+        Assert.assertEquals(0, manifest.indexOf(99));
+        Assert.assertEquals(1, manifest.indexOf(100));
+        Assert.assertEquals(1, manifest.indexOf(249));
+        Assert.assertEquals(2, manifest.indexOf(250));
+        Assert.assertEquals(2, manifest.indexOf(299));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexOfEnd() {
+        createManifest().indexOf(300);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffsetsMustIncrease() {
+        new ChunkManifest(new long[] { 1, 2 }, new long[] { 0, 0 }, 10);
+    }
+
+}
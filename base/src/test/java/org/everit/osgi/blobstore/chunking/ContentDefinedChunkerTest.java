@@ -0,0 +1,150 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.chunking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ContentDefinedChunkerTest {
+
+    /**
+     * Handler that collects the copies of the chunks.
+     */
+    private static class CollectingHandler implements ChunkHandler {
+
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+        @Override
+        public void handleChunk(final byte[] buffer, final int offset, final int length) {
+            chunks.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+    }
+
+    private static final int AVERAGE_SIZE = 1024;
+
+    private static byte[] randomBytes(final int length, final long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static List<byte[]> split(final ContentDefinedChunker chunker, final byte[] data, final int writeSize)
+            throws IOException {
+        CollectingHandler handler = new CollectingHandler();
+        ChunkingOutputStream out = new ChunkingOutputStream(chunker, handler);
+        for (int position = 0; position < data.length; position += writeSize) {
+            out.write(data, position, Math.min(writeSize, data.length - position));
+        }
+        out.close();
+        Assert.assertEquals(data.length, out.getChunkedLength());
+        return handler.chunks;
+    }
+
+    private static Set<ByteBuffer> toSet(final List<byte[]> chunks) {
+        Set<ByteBuffer> result = new HashSet<ByteBuffer>();
+        for (byte[] chunk : chunks) {
+            result.add(ByteBuffer.wrap(chunk));
+        }
+        return result;
+    }
+
+    @Test
+    public void testBoundariesAreIndependentOfTheWrites() throws IOException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(AVERAGE_SIZE);
+        byte[] data = randomBytes(100000, 1);
+        List<byte[]> byOneWrite = split(chunker, data, data.length);
+        List<byte[]> byByteWrites = split(chunker, data, 1);
+        List<byte[]> byOddWrites = split(chunker, data, 777);
+        Assert.assertEquals(byOneWrite.size(), byByteWrites.size());
+        Assert.assertEquals(byOneWrite.size(), byOddWrites.size());
+        for (int i = 0; i < byOneWrite.size(); i++) {
+            Assert.assertArrayEquals(byOneWrite.get(i), byByteWrites.get(i));
+            Assert.assertArrayEquals(byOneWrite.get(i), byOddWrites.get(i));
+        }
+    }
+
+    @Test
+    public void testBoundariesResynchronizeAfterEdit() throws IOException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(AVERAGE_SIZE);
+        byte[] original = randomBytes(200000, 2);
+        byte[] edited = new byte[original.length + 10];
+        int editPosition = original.length / 2;
+        System.arraycopy(original, 0, edited, 0, editPosition);
+        System.arraycopy(randomBytes(10, 3), 0, edited, editPosition, 10);
+        System.arraycopy(original, editPosition, edited, editPosition + 10, original.length - editPosition);
+
+        Set<ByteBuffer> originalChunks = toSet(split(chunker, original, 4096));
+        List<byte[]> editedChunks = split(chunker, edited, 4096);
+        int newChunks = 0;
+        for (byte[] chunk : editedChunks) {
+            if (!originalChunks.contains(ByteBuffer.wrap(chunk))) {
+                newChunks++;
+            }
+        }
+        Assert.assertTrue("only the chunks around the edit should change: " + newChunks, newChunks <= 3);
+    }
+
+    @Test
+    public void testChunkSizes() throws IOException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(AVERAGE_SIZE);
+        byte[] data = randomBytes(1000000, 4);
+        List<byte[]> chunks = split(chunker, data, 10000);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            Assert.assertTrue(chunk.length <= chunker.getMaxSize());
+            if (i < (chunks.size() - 1)) {
+                Assert.assertTrue(chunk.length >= chunker.getMinSize());
+            }
+            joined.write(chunk);
+        }
+        Assert.assertArrayEquals(data, joined.toByteArray());
+        int averageSize = data.length / chunks.size();
+        Assert.assertTrue("average size " + averageSize,
+                (averageSize > (AVERAGE_SIZE / 2)) && (averageSize < (AVERAGE_SIZE * 2)));
+    }
+
+    @Test
+    public void testEmptyStream() throws IOException {
+        Assert.assertTrue(split(new ContentDefinedChunker(AVERAGE_SIZE), new byte[0], 1).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAverageSize() {
+        new ContentDefinedChunker(1000);
+    }
+
+    @Test
+    public void testMaxSizeOfUniformContent() throws IOException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(AVERAGE_SIZE);
+        List<byte[]> chunks = split(chunker, new byte[chunker.getMaxSize() * 3], 1000);
+        Assert.assertEquals(3, chunks.size());
+        Assert.assertEquals(1, toSet(chunks).size());
+    }
+
+}
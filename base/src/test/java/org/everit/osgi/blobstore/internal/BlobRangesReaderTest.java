@@ -0,0 +1,132 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.everit.osgi.blobstore.api.BlobRange;
+import org.everit.osgi.blobstore.api.BlobRangeReader;
+import org.everit.osgi.blobstore.api.BlobstoreException;
+import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheService;
+import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheTestUtil;
+import org.everit.osgi.blobstore.internal.cache.CacheKey;
+import org.everit.osgi.blobstore.internal.cache.Fragment;
+import org.everit.osgi.blobstore.internal.cache.FragmentIndexMap;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlobRangesReaderTest {
+
+    /**
+     * Collects the ranges and checks their content.
+     */
+    private class CheckingRangeReader implements BlobRangeReader {
+
+        private final List<BlobRange> ranges = new ArrayList<BlobRange>();
+
+        @Override
+        public void readRange(final BlobRange range, final InputStream rangeStream) {
+            ranges.add(range);
+            try {
+                for (int i = 0; i < range.getLength(); ++i) {
+                    int position = (int) range.getStartPosition() + i;
+                    Assert.assertEquals("byte[ " + position + " ]", blob[position] & 0xFF, rangeStream.read());
+                }
+                Assert.assertEquals(-1, rangeStream.read());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
+    private static final long BLOB_ID = 10l;
+
+    private static final int BLOB_SIZE = 5000;
+
+    private byte[] blob;
+
+    private BlobstoreCacheService cacheService;
+
+    @Before
+    public void setUp() {
+        blob = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, BLOB_SIZE);
+        cacheService = new BlobstoreCacheService(new ConcurrentHashMap<CacheKey, Fragment>(),
+                new FragmentIndexMap());
+    }
+
+    @Test
+    public void testCachedRangesAreNotRead() throws SQLException {
+        cacheService.storeBlobPart(BLOB_ID, 1000, Arrays.copyOfRange(blob, 1000, 2000));
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobRangesReader rangesReader = new BlobRangesReader(BLOB_ID, storageReader);
+        rangesReader.setCacheService(cacheService);
+        CheckingRangeReader rangeReader = new CheckingRangeReader();
+        rangesReader.readRanges(Arrays.asList(new BlobRange(1500, 100), new BlobRange(1900, 200)), rangeReader);
+        Assert.assertEquals(2, rangeReader.ranges.size());
+        Assert.assertEquals("only the uncached part is read", Arrays.asList(100), storageReader.readSizes);
+
+        storageReader = new InMemoryStorageReader(blob);
+        rangesReader = new BlobRangesReader(BLOB_ID, storageReader);
+        rangesReader.setCacheService(cacheService);
+        rangesReader.readRanges(Arrays.asList(new BlobRange(1950, 150)), new CheckingRangeReader());
+        Assert.assertEquals("the fetched ranges are cached", 0, storageReader.readByteCount);
+        Assert.assertEquals(0, storageReader.rangeReadCount);
+    }
+
+    @Test
+    public void testRangeExceedsBlob() throws SQLException {
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobRangesReader rangesReader = new BlobRangesReader(BLOB_ID, storageReader);
+        try {
+            rangesReader.readRanges(Arrays.asList(new BlobRange(100, 10), new BlobRange(BLOB_SIZE - 10, 11)),
+                    new CheckingRangeReader());
+            Assert.fail();
+        } catch (BlobstoreException e) {
+            Assert.assertEquals("the range [startPosition=4990, length=11] exceeds totalSize(=5000) of blob #10",
+                    e.getMessage());
+        }
+        Assert.assertEquals(0, storageReader.readByteCount);
+    }
+
+    @Test
+    public void testRangesAreMergedAndReadOnce() throws SQLException {
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobRangesReader rangesReader = new BlobRangesReader(BLOB_ID, storageReader);
+        CheckingRangeReader rangeReader = new CheckingRangeReader();
+        BlobRange last = new BlobRange(4000, 1000);
+        BlobRange overlapping = new BlobRange(150, 100);
+        BlobRange first = new BlobRange(100, 100);
+        BlobRange adjacent = new BlobRange(250, 50);
+        BlobRange empty = new BlobRange(2000, 0);
+        rangesReader.readRanges(Arrays.asList(last, overlapping, first, adjacent, empty), rangeReader);
+
+        Assert.assertEquals("ranges are passed in the order of their start positions",
+                Arrays.asList(first, overlapping, adjacent, empty, last), rangeReader.ranges);
+        Assert.assertEquals("one storage call", 1, storageReader.rangeReadCount);
+        Assert.assertEquals("overlapping and adjacent ranges are merged", Arrays.asList(200, 1000),
+                storageReader.readSizes);
+    }
+
+}
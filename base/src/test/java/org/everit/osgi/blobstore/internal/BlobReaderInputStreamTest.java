@@ -0,0 +1,346 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheService;
+import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheTestUtil;
+import org.everit.osgi.blobstore.internal.cache.BoundedFragmentCache;
+import org.everit.osgi.blobstore.internal.cache.CacheKey;
+import org.everit.osgi.blobstore.internal.cache.Fragment;
+import org.everit.osgi.blobstore.internal.cache.FragmentIndexMap;
+import org.everit.osgi.blobstore.internal.cache.SlabAllocator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlobReaderInputStreamTest {
+
+    private static final long BLOB_ID = 10l;
+
+    private static final int BLOB_SIZE = 5000;
+
+    private byte[] blob;
+
+    private BlobstoreCacheService cacheService;
+
+    private void assertRange(final byte[] buffer, final int blobPosition, final int length) {
+        for (int i = 0; i < length; ++i) {
+            Assert.assertEquals("byte[ " + (blobPosition + i) + " ]", blob[blobPosition + i], buffer[i]);
+        }
+    }
+
+    /**
+     * Reads a range of the blob in chunks of at most 300 bytes without reading ahead, so only the requested bytes are
+     * fetched.
+     */
+    private byte[] readFully(final InMemoryStorageReader storageReader, final int startPosition, final int length)
+            throws IOException {
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, startPosition, storageReader);
+        stream.setCacheService(cacheService);
+        stream.setMaxReadAhead(0);
+        byte[] buffer = new byte[length];
+        int readBytes = 0;
+        while (readBytes < length) {
+            int read = stream.read(buffer, readBytes, Math.min(300, length - readBytes));
+            Assert.assertTrue(read > 0);
+            readBytes += read;
+        }
+        stream.close();
+        return buffer;
+    }
+
+    @Before
+    public void setUp() {
+        blob = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, BLOB_SIZE);
+        cacheService = new BlobstoreCacheService(new ConcurrentHashMap<CacheKey, Fragment>(),
+                new FragmentIndexMap());
+    }
+
+    @Test
+    public void testByteBufferRead() throws IOException {
+        SlabAllocator allocator = new SlabAllocator(4096);
+        BoundedFragmentCache cache = new BoundedFragmentCache(1024 * 1024, 1024);
+        cacheService = new BlobstoreCacheService(cache, new FragmentIndexMap(), allocator);
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 1000, 1000), 1000, 1000);
+
+        storageReader = new InMemoryStorageReader(blob);
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, 500, storageReader);
+        stream.setCacheService(cacheService);
+        stream.setMaxReadAhead(0);
+        ByteBuffer dest = ByteBuffer.allocateDirect(2000);
+        Assert.assertEquals(2000, stream.read(dest));
+        Assert.assertFalse(dest.hasRemaining());
+        Assert.assertEquals(2500, stream.getPosition());
+        for (int i = 0; i < 2000; ++i) {
+            Assert.assertEquals("byte[ " + (500 + i) + " ]", blob[500 + i], dest.get(i));
+        }
+        Assert.assertEquals("the cached range is not read from the storage", 1000, storageReader.readByteCount);
+
+        ByteBuffer heapDest = ByteBuffer.allocate(BLOB_SIZE);
+        heapDest.position(100);
+        Assert.assertEquals(BLOB_SIZE - 2500, stream.read(heapDest));
+        Assert.assertEquals(-1, stream.read(heapDest));
+        Assert.assertEquals(blob[2500], heapDest.get(100));
+        Assert.assertEquals(blob[BLOB_SIZE - 1], heapDest.get((100 + BLOB_SIZE) - 2500 - 1));
+        stream.close();
+    }
+
+    @Test
+    public void testChannel() throws IOException {
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, 0, storageReader);
+        stream.setCacheService(cacheService);
+        BlobReaderChannel channel = new BlobReaderChannel(stream);
+        Assert.assertEquals(BLOB_SIZE, channel.size());
+
+        ByteBuffer dest = ByteBuffer.allocate(100);
+        channel.position(4000);
+        Assert.assertEquals(100, channel.read(dest));
+        Assert.assertEquals(blob[4000], dest.get(0));
+        Assert.assertEquals(4100, channel.position());
+        Assert.assertEquals("the bytes before the position are not read", 1000, storageReader.readByteCount);
+
+        dest.clear();
+        channel.position(4500);
+        Assert.assertEquals("seeking inside the window does not read", 100, channel.read(dest));
+        Assert.assertEquals(blob[4500], dest.get(0));
+        Assert.assertEquals(1000, storageReader.readByteCount);
+
+        dest.clear();
+        channel.position(100);
+        Assert.assertEquals(100, channel.read(dest));
+        Assert.assertEquals(blob[100], dest.get(0));
+
+        dest.clear();
+        channel.position(BLOB_SIZE);
+        Assert.assertEquals(-1, channel.read(dest));
+
+        try {
+            channel.write(dest);
+            Assert.fail();
+        } catch (NonWritableChannelException e) {
+            Assert.assertTrue(channel.isOpen());
+        }
+        channel.close();
+        Assert.assertFalse(channel.isOpen());
+        try {
+            channel.read(dest);
+            Assert.fail();
+        } catch (ClosedChannelException e) {
+            Assert.assertEquals(BLOB_SIZE, stream.getPosition());
+        }
+        stream.close();
+    }
+
+    @Test
+    public void testOffHeapRead() throws IOException {
+        SlabAllocator allocator = new SlabAllocator(4096);
+        BoundedFragmentCache cache = new BoundedFragmentCache(1024 * 1024, 1024);
+        cacheService = new BlobstoreCacheService(cache, new FragmentIndexMap(), allocator);
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 2000, 1000), 2000, 1000);
+        Assert.assertEquals(1000, storageReader.readByteCount);
+
+        storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 1500, 2500), 1500, 2500);
+        Assert.assertEquals("only the uncached ranges are read from the storage", 1500,
+                storageReader.readByteCount);
+
+        storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 1500, 2500), 1500, 2500);
+        Assert.assertEquals(0, storageReader.readByteCount);
+        Assert.assertEquals(3 * 1024, cache.getWeightedSize());
+
+        cacheService.removePartsByBlobId(BLOB_ID);
+        Assert.assertEquals("freed buffers are reused", 4096, allocator.getReservedBytes());
+        storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 0, BLOB_SIZE), 0, BLOB_SIZE);
+        Assert.assertEquals(BLOB_SIZE, storageReader.readByteCount);
+        Assert.assertEquals(2 * 4096, allocator.getReservedBytes());
+    }
+
+    @Test
+    public void testPartiallyCachedRead() throws IOException {
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 2000, 1000), 2000, 1000);
+        Assert.assertEquals(1000, storageReader.readByteCount);
+
+        storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 1500, 2500), 1500, 2500);
+        Assert.assertEquals("only the uncached ranges are read from the storage", 1500,
+                storageReader.readByteCount);
+    }
+
+    @Test
+    public void testPrefetchIsDroppedOnSeek() throws IOException {
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, 0, storageReader);
+        stream.setMaxReadAhead(1000);
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        stream.setPrefetch(new Executor() {
+
+            @Override
+            public void execute(final Runnable command) {
+                tasks.add(command);
+            }
+        }, 2);
+        Assert.assertEquals(blob[0] & 0xFF, stream.read());
+        Assert.assertEquals("the next two windows are prefetched", 2, tasks.size());
+        Assert.assertEquals(Arrays.asList(1000), storageReader.readSizes);
+
+        stream.seek(4500);
+        Assert.assertEquals(blob[4500] & 0xFF, stream.read());
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        stream.close();
+        Assert.assertEquals("the cancelled prefetches do not read", Arrays.asList(1000, 500),
+                storageReader.readSizes);
+    }
+
+    @Test
+    public void testPrefetchedRead() throws IOException {
+        blob = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 100000);
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, 0, storageReader);
+        stream.setCacheService(cacheService);
+        stream.setMaxReadAhead(4096);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            stream.setPrefetch(executor, 3);
+            byte[] buffer = new byte[1500];
+            int position = 0;
+            while (position < 50000) {
+                Assert.assertEquals(buffer.length, stream.read(buffer, 0, buffer.length));
+                assertRange(buffer, position, buffer.length);
+                position += buffer.length;
+            }
+            stream.seek(80000);
+            position = 80000;
+            int read = stream.read(buffer, 0, buffer.length);
+            while (read > 0) {
+                assertRange(buffer, position, read);
+                position += read;
+                read = stream.read(buffer, 0, buffer.length);
+            }
+            Assert.assertEquals(blob.length, position);
+            stream.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadAheadGrowsWhileSequential() throws IOException {
+        blob = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 100000);
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, 0, storageReader);
+        stream.setMaxReadAhead(32768);
+        for (int i = 0; i < blob.length; i++) {
+            Assert.assertEquals("byte[ " + i + " ]", blob[i] & 0xFF, stream.read());
+        }
+        Assert.assertEquals(-1, stream.read());
+        Assert.assertEquals(-1, stream.read(new byte[10], 0, 10));
+        stream.close();
+        Assert.assertEquals(Arrays.asList(8192, 16384, 32768, 32768, 9888), storageReader.readSizes);
+    }
+
+    @Test
+    public void testReadAheadShrinksOnRandomAccess() throws IOException {
+        blob = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 200000);
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, 0, storageReader);
+        byte[] buffer = new byte[100];
+        long position = 0;
+        while (position <= (8192 + 16384)) {
+            Assert.assertEquals(buffer.length, stream.read(buffer, 0, buffer.length));
+            position += buffer.length;
+        }
+        Assert.assertEquals(Arrays.asList(8192, 16384, 32768), storageReader.readSizes);
+
+        Assert.assertEquals("skipping inside the window does not read", 1000, stream.skip(1000));
+        Assert.assertEquals(buffer.length, stream.read(buffer, 0, buffer.length));
+        Assert.assertEquals(3, storageReader.readSizes.size());
+
+        Assert.assertEquals(100000, stream.skip(100000));
+        Assert.assertEquals(buffer.length, stream.read(buffer, 0, buffer.length));
+        Assert.assertEquals(Integer.valueOf(16384), storageReader.readSizes.get(3));
+        position += 1000 + buffer.length + 100000;
+        Assert.assertEquals(blob[(int) position], buffer[0]);
+        stream.close();
+    }
+
+    @Test
+    public void testReadAheadIsCached() throws IOException {
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, 1000, storageReader);
+        stream.setCacheService(cacheService);
+        Assert.assertEquals(blob[1000] & 0xFF, stream.read());
+        stream.close();
+        Assert.assertEquals("one storage call fetches the window", Arrays.asList(BLOB_SIZE - 1000),
+                storageReader.readSizes);
+
+        storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 1000, BLOB_SIZE - 1000), 1000, BLOB_SIZE - 1000);
+        Assert.assertEquals(0, storageReader.readByteCount);
+    }
+
+    @Test
+    public void testRangeRead() throws IOException {
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        BlobReaderInputStream stream = new BlobReaderInputStream(BLOB_ID, 1000, 200, storageReader);
+        Assert.assertEquals(200, stream.available());
+        byte[] buffer = new byte[300];
+        Assert.assertEquals(200, stream.read(buffer, 0, buffer.length));
+        assertRange(buffer, 1000, 200);
+        Assert.assertEquals(-1, stream.read(buffer, 0, buffer.length));
+        Assert.assertEquals(-1, stream.read());
+        Assert.assertEquals(0, stream.skip(10));
+        stream.close();
+        Assert.assertEquals("the window ends at the end of the range", Arrays.asList(200), storageReader.readSizes);
+    }
+
+    @Test
+    public void testReadThrough() throws IOException {
+        InMemoryStorageReader storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 0, BLOB_SIZE), 0, BLOB_SIZE);
+        Assert.assertEquals(BLOB_SIZE, storageReader.readByteCount);
+
+        storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 0, BLOB_SIZE), 0, BLOB_SIZE);
+        Assert.assertEquals("second read is served from the cache", 0, storageReader.readByteCount);
+
+        cacheService.removePartsByBlobId(BLOB_ID);
+        storageReader = new InMemoryStorageReader(blob);
+        assertRange(readFully(storageReader, 100, 200), 100, 200);
+        Assert.assertEquals(200, storageReader.readByteCount);
+    }
+
+}
@@ -0,0 +1,209 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.everit.osgi.blobstore.api.BlobstoreCallback;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedExecutorTest {
+
+    /**
+     * Executor that collects the tasks and runs them when {@link #runNext()} is called.
+     */
+    private static class ManualExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+
+        public void runNext() {
+            tasks.remove(0).run();
+        }
+
+        public int size() {
+            return tasks.size();
+        }
+
+    }
+
+    /**
+     * Callback that records how the task completed.
+     */
+    private static class RecordingCallback implements BlobstoreCallback<Integer> {
+
+        private final AtomicReference<Object> outcome = new AtomicReference<Object>();
+
+        @Override
+        public void onFailure(final Throwable cause) {
+            outcome.set(cause);
+        }
+
+        @Override
+        public void onSuccess(final Integer result) {
+            outcome.set(result);
+        }
+
+    }
+
+    private static CallbackFutureTask<Integer> createTask(final int result, final BlobstoreCallback<Integer> callback) {
+        return new CallbackFutureTask<Integer>(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                return result;
+            }
+        }, callback);
+    }
+
+    @Test
+    public void testCallbackIsNotified() {
+        ManualExecutor underlying = new ManualExecutor();
+        BoundedExecutor executor = new BoundedExecutor(underlying, 1);
+        RecordingCallback callback = new RecordingCallback();
+        executor.execute(createTask(42, callback));
+        Assert.assertNull(callback.outcome.get());
+        underlying.runNext();
+        Assert.assertEquals(42, callback.outcome.get());
+    }
+
+    @Test
+    public void testPendingTasksStartWhenSlotIsFreed() {
+        ManualExecutor underlying = new ManualExecutor();
+        BoundedExecutor executor = new BoundedExecutor(underlying, 2);
+        final AtomicInteger completed = new AtomicInteger();
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                completed.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < 5; i++) {
+            executor.execute(task);
+        }
+        Assert.assertEquals("only two tasks are passed to the underlying executor", 2, underlying.size());
+        Assert.assertEquals(2, executor.getRunningTaskCount());
+
+        underlying.runNext();
+        Assert.assertEquals(1, completed.get());
+        Assert.assertEquals(2, underlying.size());
+        Assert.assertEquals(2, executor.getRunningTaskCount());
+
+        while (underlying.size() > 0) {
+            underlying.runNext();
+        }
+        Assert.assertEquals(5, completed.get());
+        Assert.assertEquals(0, executor.getRunningTaskCount());
+    }
+
+    @Test
+    public void testRejectedTaskIsCancelled() {
+        final ManualExecutor underlying = new ManualExecutor();
+        final AtomicInteger acceptedTaskCount = new AtomicInteger(1);
+        BoundedExecutor executor = new BoundedExecutor(new Executor() {
+
+            @Override
+            public void execute(final Runnable command) {
+                if (acceptedTaskCount.getAndDecrement() <= 0) {
+                    throw new RejectedExecutionException();
+                }
+                underlying.execute(command);
+            }
+        }, 1);
+        RecordingCallback runningCallback = new RecordingCallback();
+        CallbackFutureTask<Integer> runningTask = createTask(1, runningCallback);
+        executor.execute(runningTask);
+        RecordingCallback pendingCallback = new RecordingCallback();
+        CallbackFutureTask<Integer> pendingTask = createTask(2, pendingCallback);
+        executor.execute(pendingTask);
+
+        // the pending task is rejected on the completing thread, nothing is thrown there
+        underlying.runNext();
+        Assert.assertEquals(1, runningCallback.outcome.get());
+        Assert.assertTrue(pendingTask.isCancelled());
+        Assert.assertTrue(pendingCallback.outcome.get() instanceof CancellationException);
+        Assert.assertEquals(0, executor.getRunningTaskCount());
+
+        RecordingCallback rejectedCallback = new RecordingCallback();
+        CallbackFutureTask<Integer> rejectedTask = createTask(3, rejectedCallback);
+        executor.execute(rejectedTask);
+        Assert.assertTrue(rejectedTask.isCancelled());
+        Assert.assertTrue(rejectedCallback.outcome.get() instanceof CancellationException);
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                }
+            });
+            Assert.fail("the rejection of a task that is not a future should be thrown");
+        } catch (RejectedExecutionException e) {
+            Assert.assertEquals(0, executor.getRunningTaskCount());
+        }
+    }
+
+    @Test
+    public void testSlotIsFreedWhenTaskFails() {
+        ManualExecutor underlying = new ManualExecutor();
+        BoundedExecutor executor = new BoundedExecutor(underlying, 1);
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        });
+        final AtomicInteger completed = new AtomicInteger();
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                completed.incrementAndGet();
+            }
+        });
+        Assert.assertEquals(1, underlying.size());
+        try {
+            underlying.runNext();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(1, underlying.size());
+        }
+        underlying.runNext();
+        Assert.assertEquals(1, completed.get());
+        Assert.assertEquals(0, executor.getRunningTaskCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroMaxConcurrency() {
+        new BoundedExecutor(new ManualExecutor(), 0);
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.everit.osgi.blobstore.api.BlobRange;
+import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
+
+/**
+ * A storage reader that serves the blob from memory and counts the bytes read from it.
+ */
+class InMemoryStorageReader implements BlobstoreStorageReader {
+
+    private final byte[] blob;
+
+    long readByteCount = 0;
+
+    final List<Integer> readSizes = new ArrayList<Integer>();
+
+    /**
+     * The number of {@link #readDataFromStorage(List)} calls.
+     */
+    int rangeReadCount = 0;
+
+    InMemoryStorageReader(final byte[] blob) {
+        this.blob = blob;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public long getTotalSize() throws SQLException {
+        return blob.length;
+    }
+
+    @Override
+    public byte[] readDataFromStorage(final long startPosition, final int amount) throws SQLException {
+        byte[] rval = new byte[amount];
+        System.arraycopy(blob, (int) startPosition, rval, 0, amount);
+        readByteCount += amount;
+        readSizes.add(amount);
+        return rval;
+    }
+
+    @Override
+    public void readInto(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        System.arraycopy(blob, (int) startPosition, dest, offset, amount);
+        readByteCount += amount;
+        readSizes.add(amount);
+    }
+
+    @Override
+    public List<byte[]> readDataFromStorage(final List<BlobRange> ranges) throws SQLException {
+        rangeReadCount++;
+        List<byte[]> result = new ArrayList<byte[]>(ranges.size());
+        for (BlobRange range : ranges) {
+            result.add(readDataFromStorage(range.getStartPosition(), range.getLength()));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlobMetadataCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedIsDropped() {
+        BlobMetadataCache cache = new BlobMetadataCache(2);
+        cache.putSize(1, 100);
+        cache.putSize(2, 200);
+        Assert.assertEquals(100, cache.get(1).getSize());
+        cache.putSize(3, 300);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNull("blob 2 was used least recently", cache.get(2));
+        Assert.assertEquals(100, cache.get(1).getSize());
+        Assert.assertEquals(300, cache.get(3).getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSize() {
+        new BlobMetadataCache(1).putSize(1, -1);
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        BlobMetadataCache cache = new BlobMetadataCache(10);
+        Assert.assertNull(cache.get(1));
+        cache.putDescription(1, null);
+        BlobMetadata metadata = cache.get(1);
+        Assert.assertTrue("null is a known description", metadata.isDescriptionKnown());
+        Assert.assertNull(metadata.getDescription());
+        Assert.assertEquals(BlobMetadata.UNKNOWN_SIZE, metadata.getSize());
+
+        cache.putSize(1, 0);
+        cache.putDescription(1, "description");
+        metadata = cache.get(1);
+        Assert.assertEquals(0, metadata.getSize());
+        Assert.assertEquals("description", metadata.getDescription());
+
+        cache.putSize(2, 10);
+        Assert.assertFalse(cache.get(2).isDescriptionKnown());
+
+        cache.remove(1);
+        Assert.assertNull(cache.get(1));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroMaxEntries() {
+        new BlobMetadataCache(0);
+    }
+
+}
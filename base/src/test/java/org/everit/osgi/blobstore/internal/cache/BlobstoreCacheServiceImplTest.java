@@ -18,18 +18,13 @@ package org.everit.osgi.blobstore.internal.cache;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheService;
 import org.everit.osgi.blobstore.internal.cache.CacheKey;
-import org.everit.osgi.blobstore.internal.cache.CachedBlobPart;
 import org.everit.osgi.blobstore.internal.cache.Fragment;
-import org.everit.osgi.blobstore.internal.cache.FragmentByteArray;
-import org.everit.osgi.blobstore.internal.cache.FragmentPart;
-import org.everit.osgi.blobstore.internal.cache.Range;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -44,120 +39,189 @@ public class BlobstoreCacheServiceImplTest {
 
     private ConcurrentMap<CacheKey, Fragment> cache;
 
-    private ConcurrentMap<Long, List<CacheKey>> keyCache;
+    private FragmentIndexMap keyCache;
 
-    private void createPartsInFragment(final long fragmentStartPosition,
-            final Range<Long>[] ranges) {
+    /**
+     * Stores bytes with value 1 in the given <code>{start0, end0, start1, end1, ...}</code> ranges of a fragment.
+     */
+    private void createPartsInFragment(final long fragmentStartPosition, final int... ranges) {
         CacheKey fragmentCacheKey = new CacheKey(BLOB_ID, fragmentStartPosition);
         Fragment fragment = cache.get(fragmentCacheKey);
         if (fragment == null) {
-            fragment = new Fragment(BLOB_ID, fragmentStartPosition);
+            fragment = new Fragment(BLOB_ID, fragmentStartPosition, (int) FRAGMENT_SIZE);
         }
-        for (Range<Long> range : ranges) {
-            int size = range.getUpperEndpoint().intValue()
-                    - range.getLowerEndpoint().intValue() - 1;
-            if (range.isUpperInclusive()) {
-                ++size;
-            }
-            if (range.isLowerInclusive()) {
-                ++size;
-            }
-            FragmentPart newPart = new FragmentPart(range.getLowerEndpoint(),
-                    BlobstoreCacheTestUtil.createData((byte) 1, size));
-            fragment.insertFragmentPart(newPart);
+        for (int i = 0; i < ranges.length; i += 2) {
+            int size = ranges[i + 1] - ranges[i];
+            fragment = fragment.write(ranges[i], BlobstoreCacheTestUtil.createData((byte) 1, size), 0, size);
         }
         cache.put(fragmentCacheKey, fragment);
-        List<CacheKey> keyList = keyCache.get(BLOB_ID);
-        if (keyList == null) {
-            keyList = new ArrayList<CacheKey>();
+        cacheService.getFragmentIndex(BLOB_ID).add(fragmentStartPosition);
+    }
+
+    /**
+     * Asserts the bytes of the <code>[from, to)</code> range of a fragment.
+     */
+    private void assertFragmentData(final Fragment fragment, final int from, final int to, final byte expectedValue) {
+        byte[] data = new byte[to - from];
+        Assert.assertEquals(data.length, fragment.copyTo(from, data, 0, data.length));
+        assertData(expectedValue, data, data.length);
+    }
+
+    /**
+     * Returns the keys of the indexed fragments of a blob ordered by position or <code>null</code> if the blob has no
+     * fragment index.
+     */
+    private List<CacheKey> getKeyList(final long blobId) {
+        FragmentIndex fragmentIndex = keyCache.get(blobId);
+        if (fragmentIndex == null) {
+            return null;
+        }
+        List<CacheKey> rval = new ArrayList<CacheKey>();
+        for (Long fragmentStartPosition : fragmentIndex.getFragmentStartPositions()) {
+            rval.add(new CacheKey(blobId, fragmentStartPosition));
         }
-        keyList.add(fragmentCacheKey);
-        keyCache.put(BLOB_ID, keyList);
+        return rval;
     }
 
     @Before
     public void setUp() {
         cache = new ConcurrentHashMap<CacheKey, Fragment>();
-        keyCache = new ConcurrentHashMap<Long, List<CacheKey>>();
+        keyCache = new FragmentIndexMap();
         cacheService = new BlobstoreCacheService(cache, keyCache);
         cacheService.setFragmentSize(FRAGMENT_SIZE);
     }
 
-    @Test
-    @SuppressWarnings("unchecked")
-    public void testGetBlobParts() {
-        createPartsInFragment(0, new Range[] {
-                new Range<Long>(200l, 400l, true, false),
-                new Range<Long>(600l, 800l, true, false),
-                new Range<Long>(800l, 1024l, true, false) });
-        createPartsInFragment(FRAGMENT_SIZE, new Range[] {
-                new Range<Long>(0l, 76l, true, false),
-                new Range<Long>(76l, 176l, true, false),
-                new Range<Long>(176l, 276l, true, false) });
-        List<CachedBlobPart> expectedList = Arrays.asList(new CachedBlobPart[] {
-                new CachedBlobPart(BLOB_ID, 700l, BlobstoreCacheTestUtil
-                        .createData((byte) 1, 100)),
-                        new CachedBlobPart(BLOB_ID, 800l, BlobstoreCacheTestUtil
-                                .createData((byte) 1, 224)),
-                                new CachedBlobPart(BLOB_ID, 1024l, BlobstoreCacheTestUtil
-                                        .createData((byte) 1, 76)),
-                                        new CachedBlobPart(BLOB_ID, 1100l, BlobstoreCacheTestUtil
-                                                .createData((byte) 1, 100)),
-                                                new CachedBlobPart(BLOB_ID, 1200l, BlobstoreCacheTestUtil
-                                                        .createData((byte) 1, 50)) });
-        List<CachedBlobPart> result = cacheService.getBlobParts(BLOB_ID, 700l,
-                550l);
-        Assert.assertEquals(expectedList.size(), result.size());
-        int idx = 0;
-        for (CachedBlobPart expected : expectedList) {
-            Assert.assertEquals(expected, result.get(idx));
-            ++idx;
+    private static void assertData(final byte expectedValue, final byte[] data, final int length) {
+        for (int i = 0; i < length; ++i) {
+            Assert.assertEquals("byte[ " + i + " ]", expectedValue, data[i]);
         }
+    }
 
-        expectedList = Arrays.asList(new CachedBlobPart[] {
-                new CachedBlobPart(BLOB_ID, 700l, BlobstoreCacheTestUtil
-                        .createData((byte) 1, 100)),
-                        new CachedBlobPart(BLOB_ID, 800l, BlobstoreCacheTestUtil
-                                .createData((byte) 1, 224)),
-                                new CachedBlobPart(BLOB_ID, 1024l, BlobstoreCacheTestUtil
-                                        .createData((byte) 1, 76)),
-                                        new CachedBlobPart(BLOB_ID, 1100l, BlobstoreCacheTestUtil
-                                                .createData((byte) 1, 100)),
-                                                new CachedBlobPart(BLOB_ID, 1200l, BlobstoreCacheTestUtil
-                                                        .createData((byte) 1, 100)) });
-        result = cacheService.getBlobParts(BLOB_ID, 700l, 640l);
-        Assert.assertEquals(expectedList.size(), result.size());
-        idx = 0;
-        for (CachedBlobPart expected : expectedList) {
-            Assert.assertEquals(expected, result.get(idx));
-            ++idx;
-        }
+    @Test
+    public void testCopyTo() {
+        createPartsInFragment(0, 200, 400, 600, 800, 800, 1024);
+        createPartsInFragment(FRAGMENT_SIZE, 0, 76, 76, 176, 176, 276);
+        byte[] dest = new byte[1000];
+        Assert.assertEquals(550, cacheService.copyTo(BLOB_ID, 700l, dest, 0, 550));
+        assertData((byte) 1, dest, 550);
+
+        dest = new byte[1000];
+        Assert.assertEquals("copy stops at the end of the cached range", 600,
+                cacheService.copyTo(BLOB_ID, 700l, dest, 10, 640));
+        Assert.assertEquals(0, dest[9]);
+        assertData((byte) 1, Arrays.copyOfRange(dest, 10, 610), 600);
+        Assert.assertEquals(0, dest[610]);
+
+        Assert.assertEquals(220, cacheService.copyTo(BLOB_ID, 700l, dest, 0, 220));
+        Assert.assertEquals(0, cacheService.copyTo(BLOB_ID, 100l, dest, 0, 220));
+        Assert.assertEquals(0, cacheService.copyTo(BLOB_ID, 400l, dest, 0, 220));
+    }
+
+    @Test
+    public void testCopyToAcrossFragments() {
+        cacheService.storeBlobPart(BLOB_ID, FRAGMENT_SIZE * 2,
+                BlobstoreCacheTestUtil.createData((byte) 3, (int) FRAGMENT_SIZE));
+        cacheService.storeBlobPart(BLOB_ID, 0, BlobstoreCacheTestUtil.createData((byte) 1, (int) FRAGMENT_SIZE));
+        byte[] dest = new byte[(int) FRAGMENT_SIZE * 3];
+        Assert.assertEquals(FRAGMENT_SIZE - 10, cacheService.copyTo(BLOB_ID, 10l, dest, 0, dest.length));
+        assertData((byte) 1, dest, (int) FRAGMENT_SIZE - 10);
+        Assert.assertEquals(FRAGMENT_SIZE,
+                cacheService.getUncachedLength(BLOB_ID, FRAGMENT_SIZE, (int) FRAGMENT_SIZE * 3));
+        Assert.assertEquals(FRAGMENT_SIZE, cacheService.copyTo(BLOB_ID, FRAGMENT_SIZE * 2, dest, 0, dest.length));
+        assertData((byte) 3, dest, (int) FRAGMENT_SIZE);
+        Assert.assertEquals(0, cacheService.copyTo(BLOB_ID, FRAGMENT_SIZE * 3, dest, 0, dest.length));
+    }
 
-        expectedList = Arrays.asList(new CachedBlobPart[] {
-                new CachedBlobPart(BLOB_ID, 700l, BlobstoreCacheTestUtil
-                        .createData((byte) 1, 100)),
-                        new CachedBlobPart(BLOB_ID, 800l, BlobstoreCacheTestUtil
-                                .createData((byte) 1, 120)) });
-        result = cacheService.getBlobParts(BLOB_ID, 700l, 220l);
-        Assert.assertEquals(expectedList.size(), result.size());
-        idx = 0;
-        for (CachedBlobPart expected : expectedList) {
-            Assert.assertEquals(expected, result.get(idx));
-            ++idx;
+    @Test
+    public void testConcurrentStoreBlobPart() throws InterruptedException {
+        final int blobSize = (int) FRAGMENT_SIZE * 8;
+        final byte[] blob = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, blobSize);
+        final int chunkSize = 100;
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            final int firstChunk = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    // the threads store interleaved, overlapping chunks of the same fragments
+                    for (int position = firstChunk * 10; position < blobSize; position += chunkSize) {
+                        int length = Math.min(chunkSize + 10, blobSize - position);
+                        cacheService.storeBlobPart(BLOB_ID, position, Arrays.copyOfRange(blob, position,
+                                position + length));
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
         }
+        byte[] dest = new byte[blobSize];
+        Assert.assertEquals("no update is lost", blobSize, cacheService.copyTo(BLOB_ID, 0, dest, 0, blobSize));
+        Assert.assertArrayEquals(blob, dest);
+        Assert.assertEquals(8, getKeyList(BLOB_ID).size());
     }
 
     @Test
-    public void testGetBlobPartsEmptyResult() {
-        List<CachedBlobPart> result = cacheService.getBlobParts(BLOB_ID, 10l,
-                20l);
-        Assert.assertNotNull(result);
-        Assert.assertEquals(0, result.size());
+    public void testCopyToEmptyCache() {
+        Assert.assertEquals(0, cacheService.copyTo(BLOB_ID, 10l, new byte[20], 0, 20));
+        Assert.assertEquals(20, cacheService.getUncachedLength(BLOB_ID, 10l, 20));
+    }
+
+    @Test
+    public void testFragmentOfOtherSizeIsNotRead() {
+        createPartsInFragment(0, 0, (int) FRAGMENT_SIZE);
+        cacheService.removePartsByBlobId(BLOB_ID);
+        Fragment leftover = new Fragment(BLOB_ID, 0, (int) FRAGMENT_SIZE);
+        leftover = leftover.write(0, BlobstoreCacheTestUtil.createData((byte) 1, 100), 0, 100);
+        cache.put(new CacheKey(BLOB_ID, 0), leftover);
+
+        cacheService.setFragmentSize(FRAGMENT_SIZE * 2);
+        cacheService.getFragmentIndex(BLOB_ID);
+        Assert.assertEquals(0, cacheService.copyTo(BLOB_ID, 0, new byte[100], 0, 100));
+        Assert.assertEquals(100, cacheService.getUncachedLength(BLOB_ID, 0, 100));
+
+        cacheService.storeBlobPart(BLOB_ID, 0, BlobstoreCacheTestUtil.createData((byte) 2, 10));
+        Fragment fragment = cache.get(new CacheKey(BLOB_ID, 0));
+        Assert.assertEquals("the leftover fragment is replaced", FRAGMENT_SIZE * 2, fragment.getSize());
+        Assert.assertEquals(10, fragment.getCachedByteCount());
+    }
+
+    @Test
+    public void testFragmentSizeKeptWhenRangeChanges() {
+        byte[] data = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 3000);
+        cacheService.storeBlobPart(BLOB_ID, 0, data, 3000);
+        cacheService.setFragmentSize(4096);
+        cacheService.storeBlobPart(BLOB_ID, 3000, BlobstoreCacheTestUtil.createData((byte) 1, 100), 3100);
+        Assert.assertEquals("the cached blob keeps its fragment size", FRAGMENT_SIZE,
+                keyCache.get(BLOB_ID).getFragmentSize());
+        Assert.assertEquals(3100, cacheService.copyTo(BLOB_ID, 0, new byte[3100], 0, 3100));
+    }
+
+    @Test
+    public void testFragmentSizePerBlob() {
+        cacheService.setFragmentSizeRange(1024, 8192);
+        long largeBlobId = BLOB_ID + 1;
+        byte[] data = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 5000);
+        cacheService.storeBlobPart(BLOB_ID, 0, data, 5000);
+        cacheService.storeBlobPart(largeBlobId, 0, data, 1024 * 1024);
+        Assert.assertEquals(1024, keyCache.get(BLOB_ID).getFragmentSize());
+        Assert.assertEquals(5, keyCache.get(BLOB_ID).size());
+        Assert.assertEquals(4096, keyCache.get(largeBlobId).getFragmentSize());
+        Assert.assertEquals(2, keyCache.get(largeBlobId).size());
+
+        byte[] dest = new byte[5000];
+        Assert.assertEquals(4900, cacheService.copyTo(largeBlobId, 100, dest, 0, 4900));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 100, 5000), Arrays.copyOf(dest, 4900));
+        Assert.assertEquals(4900, cacheService.copyTo(BLOB_ID, 100, dest, 0, 4900));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 100, 5000), Arrays.copyOf(dest, 4900));
     }
 
     @Test
     public void testGetFragment() {
-        Fragment fragment = new Fragment(BLOB_ID, FRAGMENT_SIZE);
+        Fragment fragment = new Fragment(BLOB_ID, FRAGMENT_SIZE, (int) FRAGMENT_SIZE);
         cache.put(new CacheKey(BLOB_ID, FRAGMENT_SIZE), fragment);
         Assert.assertEquals(fragment,
                 cacheService.getFragment(BLOB_ID, FRAGMENT_SIZE));
@@ -165,110 +229,94 @@ public class BlobstoreCacheServiceImplTest {
                 cacheService.getFragment(BLOB_ID, FRAGMENT_SIZE + 2));
     }
 
+    @Test
+    public void testGetFragmentSize() {
+        Assert.assertEquals(FRAGMENT_SIZE, cacheService.getFragmentSize(BlobstoreCacheService.UNKNOWN_BLOB_SIZE));
+        cacheService.setFragmentSizeRange(1024, 65536);
+        Assert.assertEquals(1024, cacheService.getFragmentSize(BlobstoreCacheService.UNKNOWN_BLOB_SIZE));
+        Assert.assertEquals(1024, cacheService.getFragmentSize(2048));
+        Assert.assertEquals(1024, cacheService.getFragmentSize(1024 * 256));
+        Assert.assertEquals(2048, cacheService.getFragmentSize(1024 * 256 + 1));
+        Assert.assertEquals(4096, cacheService.getFragmentSize(1024 * 1024));
+        Assert.assertEquals(65536, cacheService.getFragmentSize(1024l * 1024 * 1024));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetFragmentSizeNotPowerOfTwo() {
+        cacheService.setFragmentSize(1000);
+    }
+
     @Test
     public void testGetFragmentStartPosition() {
-        Assert.assertEquals(0, cacheService.getFragmentStartPosition(1l));
+        FragmentIndex fragmentIndex = new FragmentIndex((int) FRAGMENT_SIZE);
+        Assert.assertEquals(0, fragmentIndex.getFragmentStartPosition(1l));
         Assert.assertEquals(0,
-                cacheService.getFragmentStartPosition(FRAGMENT_SIZE - 1));
+                fragmentIndex.getFragmentStartPosition(FRAGMENT_SIZE - 1));
         Assert.assertEquals(FRAGMENT_SIZE,
-                cacheService.getFragmentStartPosition(FRAGMENT_SIZE));
+                fragmentIndex.getFragmentStartPosition(FRAGMENT_SIZE));
         Assert.assertEquals(FRAGMENT_SIZE,
-                cacheService.getFragmentStartPosition(FRAGMENT_SIZE * 2 - 1));
+                fragmentIndex.getFragmentStartPosition(FRAGMENT_SIZE * 2 - 1));
         Assert.assertEquals(FRAGMENT_SIZE * 2,
-                cacheService.getFragmentStartPosition(FRAGMENT_SIZE * 2));
+                fragmentIndex.getFragmentStartPosition(FRAGMENT_SIZE * 2));
     }
 
     @Test
     public void testGetNonexistentFragment() {
         long fragmentSize = FRAGMENT_SIZE * 3;
-        Fragment expectedFragment = new Fragment(BLOB_ID, fragmentSize);
+        Fragment expectedFragment = new Fragment(BLOB_ID, fragmentSize, (int) FRAGMENT_SIZE);
         Assert.assertEquals(expectedFragment,
                 cacheService.getFragment(BLOB_ID, fragmentSize));
 
         CacheKey key = new CacheKey(BLOB_ID, fragmentSize);
         Assert.assertEquals(expectedFragment, cache.get(key));
 
-        List<CacheKey> keyList = keyCache.get(BLOB_ID);
+        List<CacheKey> keyList = getKeyList(BLOB_ID);
         Assert.assertNotNull("key list created in keyCache", keyList);
         Assert.assertEquals(1, keyList.size());
         Assert.assertEquals(new CacheKey(BLOB_ID, fragmentSize), keyList.get(0));
     }
 
     @Test
-    public void testMergeInto() {
-        byte[] partData = BlobstoreCacheTestUtil.createData((byte) 1, 30);
-        FragmentByteArray newData = new FragmentByteArray(
-                BlobstoreCacheTestUtil.createData((byte) 2, 20), 0, 20, 0);
-        FragmentPart part = new FragmentPart(0, partData);
-        cacheService.mergeInto(0, newData, part);
-        int i;
-        byte[] rawNewData = newData.asRawArray();
-        for (i = 0; i < rawNewData.length; ++i) {
-            Assert.assertEquals("byte[" + i + "] copied", rawNewData[i],
-                    part.getData()[i]);
-        }
-        for (; i < partData.length; ++i) {
-            Assert.assertEquals("byte[" + i + "] not affected", (byte) 1,
-                    part.getData()[i]);
-        }
-
-        partData = BlobstoreCacheTestUtil.createData((byte) 1, 30);
-        part = new FragmentPart(0, partData);
-        cacheService.mergeInto(5, newData, part);
-        for (i = 0; i < 5; ++i) {
-            Assert.assertEquals("byte[ " + i + " ] not affected", 1,
-                    part.getData()[i]);
-        }
-        for (; i < 25; ++i) {
-            Assert.assertEquals("byte[ " + i + "] copied", 2, part.getData()[i]);
-        }
-        for (; i < 30; ++i) {
-            Assert.assertEquals("byte[ " + i + " ] not affected", 1,
-                    part.getData()[i]);
-        }
-
-        partData = BlobstoreCacheTestUtil.createData((byte) 1, 30);
-        part = new FragmentPart(10, partData);
-        cacheService.mergeInto(15, newData, part);
-        for (i = 0; i < 5; ++i) {
-            Assert.assertEquals("byte[ " + i + " ] not affected", 1,
-                    part.getData()[i]);
-        }
-        for (; i < 25; ++i) {
-            Assert.assertEquals("byte[ " + i + " ] copied", 2,
-                    part.getData()[i]);
-        }
-        for (; i < 30; ++i) {
-            Assert.assertEquals("byte[ " + i + " ] not affected", 1,
-                    part.getData()[i]);
-        }
-
+    public void testGetUncachedLength() {
+        createPartsInFragment(0, 200, 400, 600, 800);
+        createPartsInFragment(FRAGMENT_SIZE * 2, 100, 200);
+        Assert.assertEquals(200, cacheService.getUncachedLength(BLOB_ID, 0l, 1000));
+        Assert.assertEquals(50, cacheService.getUncachedLength(BLOB_ID, 0l, 50));
+        Assert.assertEquals(0, cacheService.getUncachedLength(BLOB_ID, 300l, 1000));
+        Assert.assertEquals(200, cacheService.getUncachedLength(BLOB_ID, 400l, 1000));
+        Assert.assertEquals(FRAGMENT_SIZE * 2 + 100 - 800,
+                cacheService.getUncachedLength(BLOB_ID, 800l, 5000));
+        Assert.assertEquals(1000, cacheService.getUncachedLength(BLOB_ID, FRAGMENT_SIZE * 2 + 200, 1000));
     }
 
     @Test
     public void testRemovePartsByBlobId() {
         // populating cache with 10 fragments for the blob
         List<CacheKey> keyList = new ArrayList<CacheKey>();
+        FragmentIndex fragmentIndex = new FragmentIndex();
         for (int i = 0; i < 10; ++i) {
             long startPosition = FRAGMENT_SIZE * i;
             CacheKey key = new CacheKey(BLOB_ID, startPosition);
-            Fragment fragment = new Fragment(BLOB_ID, startPosition);
+            Fragment fragment = new Fragment(BLOB_ID, startPosition, (int) FRAGMENT_SIZE);
             cache.put(key, fragment);
             keyList.add(key);
+            fragmentIndex.add(startPosition);
         }
-        keyCache.put(BLOB_ID, keyList);
+        keyCache.put(BLOB_ID, fragmentIndex);
 
         // populating cache with 10 fragments for an other blob too
         List<CacheKey> otherKeyList = new ArrayList<CacheKey>();
+        FragmentIndex otherFragmentIndex = new FragmentIndex();
         long otherBlobId = BLOB_ID + 1;
         for (int i = 0; i < 10; ++i) {
             long startPosition = FRAGMENT_SIZE * i;
             CacheKey key = new CacheKey(otherBlobId, startPosition);
-            Fragment fragment = new Fragment(otherBlobId, startPosition);
+            Fragment fragment = new Fragment(otherBlobId, startPosition, (int) FRAGMENT_SIZE);
             cache.put(key, fragment);
             otherKeyList.add(key);
+            otherFragmentIndex.add(startPosition);
         }
-        keyCache.put(otherBlobId, otherKeyList);
+        keyCache.put(otherBlobId, otherFragmentIndex);
 
         cacheService.removePartsByBlobId(BLOB_ID);
 
@@ -276,193 +324,131 @@ public class BlobstoreCacheServiceImplTest {
         for (CacheKey key : keyList) {
             Assert.assertNull(cache.get(key));
         }
-        List<CacheKey> cachedKeyList = keyCache.get(BLOB_ID);
+        List<CacheKey> cachedKeyList = getKeyList(BLOB_ID);
         Assert.assertNull(cachedKeyList);
 
         // checking if the other fragments are not affected
         for (CacheKey key : otherKeyList) {
             Assert.assertNotNull(cache.get(key));
         }
-        List<CacheKey> otherCachedKeyList = keyCache.get(otherBlobId);
+        List<CacheKey> otherCachedKeyList = getKeyList(otherBlobId);
         Assert.assertNotNull(otherCachedKeyList);
         Assert.assertEquals(10, otherCachedKeyList.size());
 
     }
 
+    @Test
+    public void testStaleIndexEntriesArePruned() {
+        cacheService.storeBlobPart(BLOB_ID, 0, BlobstoreCacheTestUtil.createData((byte) 1, (int) FRAGMENT_SIZE * 3));
+        Assert.assertEquals(3, getKeyList(BLOB_ID).size());
+        // a cache that does not notify about removals
+        cache.remove(new CacheKey(BLOB_ID, FRAGMENT_SIZE));
+        cache.remove(new CacheKey(BLOB_ID, FRAGMENT_SIZE * 2));
+        Assert.assertEquals(FRAGMENT_SIZE * 2,
+                cacheService.getUncachedLength(BLOB_ID, FRAGMENT_SIZE, (int) FRAGMENT_SIZE * 2));
+        Assert.assertEquals(Arrays.asList(new CacheKey(BLOB_ID, 0)), getKeyList(BLOB_ID));
+
+        cache.remove(new CacheKey(BLOB_ID, 0));
+        Assert.assertEquals(10, cacheService.getUncachedLength(BLOB_ID, 0, 10));
+        Assert.assertNull("empty index is dropped", keyCache.get(BLOB_ID));
+        cacheService.removePartsByBlobId(BLOB_ID);
+    }
+
     @Test(expected = NullPointerException.class)
     public void testStoreBlobPartException() {
         cacheService.storeBlobPart(BLOB_ID, FRAGMENT_SIZE, null);
     }
 
+    @Test
+    public void testStoreBlobPartFromArrayRange() {
+        byte[] data = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 3000);
+        cacheService.storeBlobPart(BLOB_ID, FRAGMENT_SIZE - 100, data, 500, 1000,
+                BlobstoreCacheService.UNKNOWN_BLOB_SIZE);
+        Assert.assertEquals(2, getKeyList(BLOB_ID).size());
+        Assert.assertEquals(FRAGMENT_SIZE - 100, cacheService.getUncachedLength(BLOB_ID, 0, (int) FRAGMENT_SIZE));
+        byte[] actualData = new byte[1000];
+        Assert.assertEquals(1000, cacheService.copyTo(BLOB_ID, FRAGMENT_SIZE - 100, actualData, 0, 1000));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 500, 1500), actualData);
+    }
+
     @Test
     public void testStoreBlobPartOneFragment() {
-        byte[] data = BlobstoreCacheTestUtil.createData((byte) 1,
+        byte[] data = BlobstoreCacheTestUtil.createDataRange((byte) 1, 1,
                 (int) FRAGMENT_SIZE / 3);
         cacheService.storeBlobPart(BLOB_ID, FRAGMENT_SIZE + 10, data);
         Fragment createdFragment = cache.get(new CacheKey(BLOB_ID,
                 FRAGMENT_SIZE));
         Assert.assertNotNull(createdFragment);
-        LinkedList<FragmentPart> fragmentParts = createdFragment
-                .getFragmentParts();
-        Assert.assertNotNull(fragmentParts);
-        Assert.assertEquals(1, fragmentParts.size());
-        FragmentPart fragmentPart = fragmentParts.get(0);
-        Assert.assertEquals(data, fragmentPart.getData());
-        Assert.assertEquals(10, fragmentPart.getStartPositionInFragment());
+        Assert.assertArrayEquals(new int[] { 10, 10 + data.length }, createdFragment.getCoverage());
+        byte[] actualData = new byte[data.length];
+        Assert.assertEquals(data.length, createdFragment.copyTo(10, actualData, 0, data.length));
+        Assert.assertArrayEquals(data, actualData);
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     public void testStoreBlobPartOneFragmentContaining() {
         byte[] newData = BlobstoreCacheTestUtil.createData((byte) 2, 800);
         long offset = 100l;
-        createPartsInFragment(FRAGMENT_SIZE,
-                new Range[] { new Range<Long>(50l, 950l, true, false) });
-        List<CacheKey> keyList = keyCache.get(BLOB_ID);
+        createPartsInFragment(FRAGMENT_SIZE, 50, 950);
+        List<CacheKey> keyList = getKeyList(BLOB_ID);
         Assert.assertEquals(1, keyList.size());
         cacheService.storeBlobPart(BLOB_ID, FRAGMENT_SIZE + offset, newData);
-        keyList = keyCache.get(BLOB_ID);
+        keyList = getKeyList(BLOB_ID);
         Assert.assertEquals(1, keyList.size());
         CacheKey key = keyList.get(0);
         Fragment fragment = cache.get(key);
         Assert.assertNotNull(fragment);
-        Assert.assertEquals(1, fragment.getFragmentParts().size());
-        FragmentPart firstPart = fragment.getFragmentParts().get(0);
-        byte[] actualData = firstPart.getData();
-        Assert.assertEquals(900, actualData.length);
-        int i;
-        for (i = 0; i < 50; ++i) {
-            Assert.assertEquals((byte) 1, actualData[i]);
-        }
-        for (; i < 850; ++i) {
-            Assert.assertEquals((byte) 2, actualData[i]);
-        }
-        for (; i < 900; ++i) {
-            Assert.assertEquals((byte) 1, actualData[i]);
-        }
+        Assert.assertArrayEquals(new int[] { 50, 950 }, fragment.getCoverage());
+        assertFragmentData(fragment, 50, 100, (byte) 1);
+        assertFragmentData(fragment, 100, 900, (byte) 2);
+        assertFragmentData(fragment, 900, 950, (byte) 1);
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     public void testStoreBlobPartOneFragmentOverlapping() {
         byte[] newData = BlobstoreCacheTestUtil.createData((byte) 2, 80);
         long offset = 10l;
-        createPartsInFragment(FRAGMENT_SIZE, new Range[] {
-                new Range<Long>(5l, 20l, true, false),
-                new Range<Long>(25l, 40l, true, false),
-                new Range<Long>(50l, 65l, true, false),
-                new Range<Long>(80l, 95l, true, false),
-                new Range<Long>(98l, 102l, true, false) });
+        createPartsInFragment(FRAGMENT_SIZE, 5, 20, 25, 40, 50, 65, 80, 95, 98, 102);
         cacheService.storeBlobPart(BLOB_ID, FRAGMENT_SIZE + offset, newData);
-        List<CacheKey> keyList = keyCache.get(BLOB_ID);
+        List<CacheKey> keyList = getKeyList(BLOB_ID);
         Assert.assertEquals(1, keyList.size());
         CacheKey key = keyList.get(0);
         Fragment fragment = cache.get(key);
         Assert.assertNotNull(fragment);
-        Assert.assertEquals(2, fragment.getFragmentParts().size());
-        FragmentPart firstPart = fragment.getFragmentParts().get(0);
-        Assert.assertEquals(5, firstPart.getStartPositionInFragment());
-        byte[] data = firstPart.getData();
-        Assert.assertNotNull(data);
-        Assert.assertEquals(90, data.length);
-        int i = 0;
-        for (; i < 5; ++i) {
-            Assert.assertEquals("data[ " + i + " ] olddata", (byte) 1, data[i]);
-        }
-        for (; i < 85; ++i) {
-            Assert.assertEquals("data[ " + i + " ] newdata", (byte) 2, data[i]);
-        }
-        for (; i < 90; ++i) {
-            Assert.assertEquals("data[ " + i + " ] olddata", (byte) 1, data[i]);
-        }
-
-        FragmentPart secondPart = fragment.getFragmentParts().get(1);
-        Assert.assertEquals(98, secondPart.getStartPositionInFragment());
-        data = secondPart.getData();
-        Assert.assertNotNull(data);
-        Assert.assertEquals(4, data.length);
-        for (i = 0; i < 4; ++i) {
-            Assert.assertEquals((byte) 1, data[i]);
-        }
+        Assert.assertArrayEquals(new int[] { 5, 95, 98, 102 }, fragment.getCoverage());
+        assertFragmentData(fragment, 5, 10, (byte) 1);
+        assertFragmentData(fragment, 10, 90, (byte) 2);
+        assertFragmentData(fragment, 90, 95, (byte) 1);
+        assertFragmentData(fragment, 98, 102, (byte) 1);
     }
 
-    @SuppressWarnings("unchecked")
     @Test
     public void testStoreBlobPartThreeFragments() {
         byte[] newData = BlobstoreCacheTestUtil.createData((byte) 2,
                 (int) FRAGMENT_SIZE + 200);
-        createPartsInFragment(FRAGMENT_SIZE, new Range[] {
-                new Range<Long>(60l, 90l, true, false),
-                new Range<Long>(600l, 950l, true, false),
-                new Range<Long>(960l, 1000l, true, false) });
-        createPartsInFragment(FRAGMENT_SIZE * 2, new Range[] {
-                new Range<Long>(300l, 500l, true, false),
-                new Range<Long>(600l, 950l, true, false),
-                new Range<Long>(960l, 1000l, true, false) });
-        createPartsInFragment(FRAGMENT_SIZE * 3, new Range[] {
-                new Range<Long>(0l, 40l, true, false),
-                new Range<Long>(50l, 350l, true, false),
-                new Range<Long>(960l, 1000l, true, false) });
+        createPartsInFragment(FRAGMENT_SIZE, 60, 90, 600, 950, 960, 1000);
+        createPartsInFragment(FRAGMENT_SIZE * 2, 300, 500, 600, 950, 960, 1000);
+        createPartsInFragment(FRAGMENT_SIZE * 3, 0, 40, 50, 350, 960, 1000);
         cacheService.storeBlobPart(BLOB_ID, FRAGMENT_SIZE * 2 - 100, newData);
-        List<CacheKey> keyList = keyCache.get(BLOB_ID);
+        List<CacheKey> keyList = getKeyList(BLOB_ID);
         Assert.assertEquals(3, keyList.size());
+
         Fragment firstFragment = cache.get(keyList.get(0));
         Assert.assertNotNull("firstFragment is not null", firstFragment);
-        Assert.assertEquals("firstFragment has 2 FragmentParts", 2,
-                firstFragment.getFragmentParts().size());
-        FragmentPart firstPart = firstFragment.getFragmentParts().get(0);
-        Assert.assertEquals("startPositionInFragment", 60l,
-                firstPart.getStartPositionInFragment());
-        Assert.assertEquals("data.length", 30, firstPart.getData().length);
-
-        FragmentPart secondPart = firstFragment.getFragmentParts().get(1);
-        Assert.assertNotNull("secondPart is not null", secondPart);
-        Assert.assertEquals("startPositionInFragment", 600l,
-                secondPart.getStartPositionInFragment());
-        Assert.assertEquals("data.length", 424, secondPart.getData().length);
-        int i;
-        for (i = 0; i < 324; ++i) {
-            Assert.assertEquals("data[ " + i + " ] olddata", (byte) 1,
-                    secondPart.getData()[i]);
-        }
-        for (; i < 424; ++i) {
-            Assert.assertEquals("data[ " + i + " ] newdata", (byte) 2,
-                    secondPart.getData()[i]);
-        }
+        Assert.assertArrayEquals(new int[] { 60, 90, 600, (int) FRAGMENT_SIZE }, firstFragment.getCoverage());
+        assertFragmentData(firstFragment, 600, 924, (byte) 1);
+        assertFragmentData(firstFragment, 924, (int) FRAGMENT_SIZE, (byte) 2);
 
         Fragment secondFragment = cache.get(keyList.get(1));
         Assert.assertNotNull("secondFragment is not null", secondFragment);
-        Assert.assertEquals("secondFragment has 1 FragmentPart", 1,
-                secondFragment.getFragmentParts().size());
-        firstPart = secondFragment.getFragmentParts().get(0);
-        Assert.assertEquals(0, firstPart.getStartPositionInFragment());
-        Assert.assertEquals(FRAGMENT_SIZE, firstPart.getData().length);
-        for (byte b : firstPart.getData()) {
-            Assert.assertEquals((byte) 2, b);
-        }
+        Assert.assertArrayEquals(new int[] { 0, (int) FRAGMENT_SIZE }, secondFragment.getCoverage());
+        assertFragmentData(secondFragment, 0, (int) FRAGMENT_SIZE, (byte) 2);
 
         Fragment thirdFragment = cache.get(keyList.get(2));
         Assert.assertNotNull("thirdFragment is not null", thirdFragment);
-        Assert.assertEquals("thirdFragment has 2 FragmentParts", 2,
-                thirdFragment.getFragmentParts().size());
-
-        firstPart = thirdFragment.getFragmentParts().get(0);
-        Assert.assertEquals("startPositionInFragment", 0l,
-                firstPart.getStartPositionInFragment());
-        Assert.assertEquals("data.length", 350, firstPart.getData().length);
-        for (i = 0; i < 100; ++i) {
-            Assert.assertEquals("data[ " + i + " ] olddata", (byte) 2,
-                    firstPart.getData()[i]);
-        }
-        for (; i < 350; ++i) {
-            Assert.assertEquals("data[ " + i + " ] newdata", (byte) 1,
-                    firstPart.getData()[i]);
-        }
-
-        secondPart = thirdFragment.getFragmentParts().get(1);
-        Assert.assertNotNull("secondPart is not null", secondPart);
-        Assert.assertEquals("startPositionInFragment", 960l,
-                secondPart.getStartPositionInFragment());
-        Assert.assertEquals("data.length", 40, secondPart.getData().length);
+        Assert.assertArrayEquals(new int[] { 0, 350, 960, 1000 }, thirdFragment.getCoverage());
+        assertFragmentData(thirdFragment, 0, 100, (byte) 2);
+        assertFragmentData(thirdFragment, 100, 350, (byte) 1);
     }
+
 }
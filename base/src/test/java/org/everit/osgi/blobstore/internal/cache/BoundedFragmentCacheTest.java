@@ -0,0 +1,241 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedFragmentCacheTest {
+
+    private static final int FRAGMENT_SIZE = 1024;
+
+    private static final long BLOB_ID = 10l;
+
+    private static Fragment createFragment(final long blobId, final long startPosition) {
+        Fragment fragment = new Fragment(blobId, startPosition, FRAGMENT_SIZE);
+        return fragment.write(0, BlobstoreCacheTestUtil.createData((byte) 1, FRAGMENT_SIZE), 0, FRAGMENT_SIZE);
+    }
+
+    private static CacheKey key(final long blobId, final int fragmentIdx) {
+        return new CacheKey(blobId, (long) fragmentIdx * FRAGMENT_SIZE);
+    }
+
+    private static void put(final BoundedFragmentCache cache, final long blobId, final int fragmentIdx) {
+        CacheKey key = key(blobId, fragmentIdx);
+        cache.put(key, createFragment(blobId, key.getStartPosition()));
+    }
+
+    @Test
+    public void testClearKeepsIndexConsistent() {
+        BoundedFragmentCache cache = new BoundedFragmentCache(10 * FRAGMENT_SIZE, 10);
+        FragmentIndexMap keyCache = new FragmentIndexMap();
+        BlobstoreCacheService cacheService = new BlobstoreCacheService(cache, keyCache);
+        cacheService.setFragmentSize(FRAGMENT_SIZE);
+        for (int i = 0; i < 5; i++) {
+            cacheService.storeBlobPart(BLOB_ID + i, 0, BlobstoreCacheTestUtil.createData((byte) 1, FRAGMENT_SIZE));
+        }
+        Assert.assertEquals(5, keyCache.size());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getWeightedSize());
+        Assert.assertTrue("the index of the cleared fragments is removed", keyCache.isEmpty());
+    }
+
+    @Test
+    public void testClearFreesOffHeapFragments() {
+        SlabAllocator allocator = new SlabAllocator(4 * FRAGMENT_SIZE);
+        BoundedFragmentCache cache = new BoundedFragmentCache(10 * FRAGMENT_SIZE, 10);
+        List<Fragment> fragments = new ArrayList<Fragment>();
+        for (int i = 0; i < 4; i++) {
+            Fragment fragment = new Fragment(BLOB_ID, (long) i * FRAGMENT_SIZE, allocator.allocate(FRAGMENT_SIZE));
+            cache.put(fragment.createCacheKey(), fragment);
+            fragments.add(fragment);
+        }
+        cache.clear();
+        for (Fragment fragment : fragments) {
+            Assert.assertTrue(fragment.getBuffer().isFreed());
+        }
+        allocator.allocate(FRAGMENT_SIZE);
+        Assert.assertEquals("the freed slots are reused", 4 * FRAGMENT_SIZE, allocator.getReservedBytes());
+    }
+
+    @Test
+    public void testEvictedFragmentsAreFreedAfterListener() {
+        SlabAllocator allocator = new SlabAllocator(4 * FRAGMENT_SIZE);
+        BoundedFragmentCache cache = new BoundedFragmentCache(2 * FRAGMENT_SIZE, 10);
+        final List<Fragment> evictedFragments = new ArrayList<Fragment>();
+        cache.setEvictionListener(new FragmentEvictionListener() {
+
+            @Override
+            public void fragmentsEvicted(final List<Fragment> fragments) {
+                for (Fragment fragment : fragments) {
+                    Assert.assertFalse("the listener sees the fragment before it is freed",
+                            fragment.getBuffer().isFreed());
+                }
+                evictedFragments.addAll(fragments);
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            Fragment fragment = new Fragment(BLOB_ID, (long) i * FRAGMENT_SIZE, allocator.allocate(FRAGMENT_SIZE));
+            cache.put(fragment.createCacheKey(), fragment);
+        }
+        cache.cleanUp();
+        Assert.assertFalse(evictedFragments.isEmpty());
+        cache.clear();
+        Assert.assertEquals(4, evictedFragments.size());
+        for (Fragment fragment : evictedFragments) {
+            Assert.assertTrue(fragment.getBuffer().isFreed());
+        }
+    }
+
+    @Test
+    public void testEvictionListenerKeepsIndexConsistent() {
+        BoundedFragmentCache cache = new BoundedFragmentCache(10 * FRAGMENT_SIZE, 10);
+        FragmentIndexMap keyCache = new FragmentIndexMap();
+        BlobstoreCacheService cacheService = new BlobstoreCacheService(cache, keyCache);
+        cacheService.setFragmentSize(FRAGMENT_SIZE);
+        for (int i = 0; i < 30; i++) {
+            cacheService.storeBlobPart(BLOB_ID + i, 0, BlobstoreCacheTestUtil.createData((byte) 1, FRAGMENT_SIZE));
+        }
+        Assert.assertTrue(cache.getWeightedSize() <= 10 * FRAGMENT_SIZE);
+        for (Fragment fragment : cache.values()) {
+            FragmentIndex fragmentIndex = keyCache.get(fragment.getBlobId());
+            Assert.assertNotNull("cached fragment is indexed", fragmentIndex);
+            Assert.assertTrue("cached fragment is indexed",
+                    fragmentIndex.getFragmentStartPositions().contains(fragment.getStartPosition()));
+        }
+        int indexedFragmentCount = 0;
+        for (FragmentIndex fragmentIndex : keyCache.values()) {
+            indexedFragmentCount += fragmentIndex.size();
+        }
+        Assert.assertEquals(cache.size(), indexedFragmentCount);
+    }
+
+    @Test
+    public void testExpireAfterAccess() {
+        final AtomicLong time = new AtomicLong();
+        BoundedFragmentCache cache = new BoundedFragmentCache(10 * FRAGMENT_SIZE, 10, 100, TimeUnit.NANOSECONDS) {
+            @Override
+            long currentTimeNanos() {
+                return time.get();
+            }
+        };
+        final List<CacheKey> expiredKeys = new ArrayList<CacheKey>();
+        cache.setEvictionListener(new FragmentEvictionListener() {
+            @Override
+            public void fragmentsEvicted(final List<Fragment> fragments) {
+                for (Fragment fragment : fragments) {
+                    expiredKeys.add(fragment.createCacheKey());
+                }
+            }
+        });
+        put(cache, BLOB_ID, 0);
+        put(cache, BLOB_ID, 1);
+        time.set(60);
+        Assert.assertNotNull(cache.get(key(BLOB_ID, 0)));
+        time.set(120);
+        Assert.assertNotNull("accessed 60ns ago", cache.get(key(BLOB_ID, 0)));
+        Assert.assertNull("not accessed for 120ns", cache.get(key(BLOB_ID, 1)));
+        Assert.assertFalse(cache.containsKey(key(BLOB_ID, 1)));
+        Assert.assertTrue(expiredKeys.isEmpty());
+
+        cache.cleanUp();
+        Assert.assertEquals(Arrays.asList(key(BLOB_ID, 1)), expiredKeys);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(FRAGMENT_SIZE, cache.getWeightedSize());
+
+        time.set(500);
+        put(cache, BLOB_ID, 2);
+        Assert.assertEquals("expired fragments are removed on write", 2, expiredKeys.size());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testMaximumWeight() {
+        final List<CacheKey> evictedKeys = new ArrayList<CacheKey>();
+        BoundedFragmentCache cache = new BoundedFragmentCache(10 * FRAGMENT_SIZE, 10);
+        cache.setEvictionListener(new FragmentEvictionListener() {
+            @Override
+            public void fragmentsEvicted(final List<Fragment> fragments) {
+                for (Fragment fragment : fragments) {
+                    evictedKeys.add(fragment.createCacheKey());
+                }
+            }
+        });
+        for (int i = 0; i < 25; i++) {
+            put(cache, BLOB_ID, i);
+            Assert.assertTrue(cache.getWeightedSize() <= cache.getMaximumWeight());
+        }
+        Assert.assertEquals(10, cache.size());
+        Assert.assertEquals(10 * FRAGMENT_SIZE, cache.getWeightedSize());
+        Assert.assertEquals(15, evictedKeys.size());
+        for (CacheKey evictedKey : evictedKeys) {
+            Assert.assertFalse(cache.containsKey(evictedKey));
+        }
+
+        cache.remove(cache.keySet().iterator().next());
+        Assert.assertEquals(9 * FRAGMENT_SIZE, cache.getWeightedSize());
+    }
+
+    @Test
+    public void testScanResistance() {
+        final int hotFragmentCount = 50;
+        BoundedFragmentCache cache = new BoundedFragmentCache(100 * FRAGMENT_SIZE, 100);
+        for (int i = 0; i < hotFragmentCount; i++) {
+            put(cache, BLOB_ID, i);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < hotFragmentCount; i++) {
+                Assert.assertNotNull(cache.get(key(BLOB_ID, i)));
+            }
+        }
+        // a long sequential read of an other blob
+        long scannedBlobId = BLOB_ID + 1;
+        for (int i = 0; i < 1000; i++) {
+            put(cache, scannedBlobId, i);
+            cache.get(key(scannedBlobId, i));
+        }
+        int hotFragmentsInCache = 0;
+        for (int i = 0; i < hotFragmentCount; i++) {
+            if (cache.containsKey(key(BLOB_ID, i))) {
+                hotFragmentsInCache++;
+            }
+        }
+        // only the fragment that was still in the admission window may be lost, a plain LRU cache would lose all
+        Assert.assertTrue(hotFragmentsInCache >= hotFragmentCount - 1);
+    }
+
+    @Test
+    public void testWeightUpdatedOnReplace() {
+        BoundedFragmentCache cache = new BoundedFragmentCache(10 * FRAGMENT_SIZE, 10);
+        CacheKey key = key(BLOB_ID, 0);
+        Fragment fragment = new Fragment(BLOB_ID, 0, 100);
+        cache.put(key, fragment);
+        Assert.assertEquals(100, cache.getWeightedSize());
+        Assert.assertTrue(cache.replace(key, fragment, createFragment(BLOB_ID, 0)));
+        Assert.assertEquals(FRAGMENT_SIZE, cache.getWeightedSize());
+        Assert.assertNull(cache.putIfAbsent(key(BLOB_ID, 1), createFragment(BLOB_ID, FRAGMENT_SIZE)));
+        Assert.assertEquals(2 * FRAGMENT_SIZE, cache.getWeightedSize());
+    }
+
+}
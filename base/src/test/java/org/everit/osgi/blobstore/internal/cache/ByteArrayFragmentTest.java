@@ -20,9 +20,8 @@ import static org.everit.osgi.blobstore.internal.cache.BlobstoreCacheTestUtil.cr
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.everit.osgi.blobstore.internal.cache.FragmentByteArray;
-import org.everit.osgi.blobstore.internal.cache.FragmentableBlobPart;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -32,12 +31,14 @@ import org.junit.runners.Parameterized.Parameters;
 @RunWith(Parameterized.class)
 public class ByteArrayFragmentTest {
 
+    private static final long BLOB_ID = 1l;
+
     @Parameters
     public static Collection<Object[]> parameters() {
-        return Arrays.asList(new Object[][] { { 0, 10, 12, 1, 10, 0, 10 },
-                { 2, 3, 10, 1, 3, 0, 3 }, { 0, 30, 10, 3, 10, 10, 10 },
-                { 0, 32, 10, 4, 10, 10, 2 }, { 4, 30, 10, 4, 6, 10, 4 },
-                { 4, 33, 10, 4, 6, 10, 7 }
+        return Arrays.asList(new Object[][] { { 0, 10, 16, 1, 10, 0, 10 },
+                { 2, 3, 16, 1, 3, 0, 3 }, { 0, 48, 16, 3, 16, 16, 16 },
+                { 0, 50, 16, 4, 16, 16, 2 }, { 4, 44, 16, 3, 12, 16, 16 },
+                { 4, 49, 16, 4, 12, 16, 5 }, { 12, 6, 16, 2, 4, 0, 2 }
 
         });
     }
@@ -73,17 +74,19 @@ public class ByteArrayFragmentTest {
         this.expectedLastFragmentLength = expectedLastFragmentLength;
     }
 
-    private byte assertByteArray(final FragmentByteArray fragment,
+    private byte assertFragment(final Fragment fragment,
             final int expectedLength, final byte expectedInitialValue,
             final int fragmentIdx) {
         Assert.assertNotNull(fragment);
         Assert.assertEquals("fragment[ " + fragmentIdx + " ].length",
-                expectedLength, fragment.length());
+                expectedLength, fragment.getCachedByteCount());
+        int positionInFragment = (fragmentIdx == 0) ? offset % fragmentSize : 0;
+        byte[] cachedBytes = new byte[expectedLength];
+        Assert.assertEquals(expectedLength,
+                fragment.copyTo(positionInFragment, cachedBytes, 0, expectedLength));
         byte expectedValue = expectedInitialValue;
-        byte[] rawArray = fragment.asRawArray();
-        Assert.assertEquals(expectedLength, rawArray.length);
         int byteIdx = 0;
-        for (byte b : rawArray) {
+        for (byte b : cachedBytes) {
             Assert.assertEquals("fragment[ " + fragmentIdx + " ][ " + byteIdx
                     + " ]", expectedValue, b);
             expectedValue += increment;
@@ -93,32 +96,29 @@ public class ByteArrayFragmentTest {
     }
 
     @Test
-    public void testGetFragments() {
+    public void testStoreBlobPartSplitsIntoFragments() {
         byte[] data = createDataRange((byte) 0, increment, elemCount);
-        FragmentableBlobPart fragmentable = new FragmentableBlobPart(data,
-                fragmentSize, offset);
-
-        FragmentByteArray[] fragments = fragmentable.getFragments();
-        Assert.assertNotNull(fragments);
-
-        Assert.assertEquals(expectedFragmentCount, fragments.length);
-        if (expectedFragmentCount == 0) {
-            return;
-        }
+        ConcurrentHashMap<CacheKey, Fragment> cache = new ConcurrentHashMap<CacheKey, Fragment>();
+        BlobstoreCacheService cacheService = new BlobstoreCacheService(cache,
+                new FragmentIndexMap());
+        cacheService.setFragmentSize(fragmentSize);
+        cacheService.storeBlobPart(BLOB_ID, offset, data);
+
+        Assert.assertEquals(expectedFragmentCount, cache.size());
+        long firstFragmentStartPosition = offset - (offset % fragmentSize);
         byte expected = 0;
-        FragmentByteArray firstFragment = fragments[0];
-        expected = assertByteArray(firstFragment, expectedFirstFragmentLength,
-                expected, 0);
+        expected = assertFragment(cache.get(new CacheKey(BLOB_ID, firstFragmentStartPosition)),
+                expectedFirstFragmentLength, expected, 0);
         if (expectedFragmentCount == 1) {
             return;
         }
-        int lastFragmentIdx = fragments.length - 1;
+        int lastFragmentIdx = expectedFragmentCount - 1;
         for (int i = 1; i < lastFragmentIdx; ++i) {
-            expected = assertByteArray(fragments[i],
-                    expectedInnerFragmentLength, expected, i);
+            expected = assertFragment(cache.get(new CacheKey(BLOB_ID, firstFragmentStartPosition
+                    + ((long) i * fragmentSize))), expectedInnerFragmentLength, expected, i);
         }
-        assertByteArray(fragments[lastFragmentIdx], expectedLastFragmentLength,
-                expected, lastFragmentIdx);
+        assertFragment(cache.get(new CacheKey(BLOB_ID, firstFragmentStartPosition
+                + ((long) lastFragmentIdx * fragmentSize))), expectedLastFragmentLength, expected, lastFragmentIdx);
     }
 
 }
@@ -0,0 +1,103 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentLongPairMapTest {
+
+    @Test
+    public void testConcurrentReads() throws InterruptedException {
+        final ConcurrentLongPairMap<Long> map = new ConcurrentLongPairMap<Long>();
+        for (long i = 0; i < 100; i++) {
+            map.put(1, i, i);
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    for (long i = 0; i < 100; i++) {
+                        Long value = map.get(1, i);
+                        if ((value == null) || (value != i)) {
+                            failure.set("value of " + i + " is " + value);
+                        }
+                    }
+                }
+            }
+        };
+        reader.start();
+        // the writer keeps removing and adding other keys, so the table is rehashed many times
+        for (long i = 0; i < 100000; i++) {
+            map.put(2, i, i);
+            if (i >= 10) {
+                map.remove(2, i - 10);
+            }
+        }
+        running.set(false);
+        reader.join();
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(110, map.size());
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentLongPairMap<String> map = new ConcurrentLongPairMap<String>();
+        Assert.assertNull(map.put(1, 1024, "a"));
+        Assert.assertNull(map.put(1024, 1, "b"));
+        Assert.assertEquals("a", map.get(1, 1024));
+        Assert.assertEquals("b", map.get(1024, 1));
+        Assert.assertNull(map.get(1, 1));
+        Assert.assertEquals("a", map.put(1, 1024, "c"));
+        Assert.assertEquals("c", map.get(1, 1024));
+        Assert.assertEquals(2, map.size());
+
+        Assert.assertFalse(map.remove(1, 1024, "a"));
+        Assert.assertTrue(map.remove(1, 1024, "c"));
+        Assert.assertNull(map.get(1, 1024));
+        Assert.assertEquals("b", map.remove(1024, 1));
+        Assert.assertNull(map.remove(1024, 1));
+        Assert.assertEquals(0, map.size());
+        Assert.assertTrue(map.values().isEmpty());
+    }
+
+    @Test
+    public void testRehash() {
+        ConcurrentLongPairMap<Long> map = new ConcurrentLongPairMap<Long>();
+        for (long i = 0; i < 10000; i++) {
+            map.put(i % 7, i * 1024, i);
+        }
+        for (long i = 0; i < 10000; i += 2) {
+            map.remove(i % 7, i * 1024);
+        }
+        Assert.assertEquals(5000, map.size());
+        Assert.assertEquals(5000, map.values().size());
+        for (long i = 0; i < 10000; i++) {
+            Long expected = ((i % 2) == 0) ? null : i;
+            Assert.assertEquals(expected, map.get(i % 7, i * 1024));
+        }
+        map.clear();
+        Assert.assertEquals(0, map.size());
+        Assert.assertNull(map.get(1, 1024));
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FragmentTest {
+
+    private static final int FRAGMENT_SIZE = 1024;
+
+    @Test
+    public void testAddRange() {
+        int[] coverage = Fragment.addRange(new int[0], 100, 200);
+        Assert.assertArrayEquals(new int[] { 100, 200 }, coverage);
+        Assert.assertSame("contained range", coverage, Fragment.addRange(coverage, 120, 180));
+        coverage = Fragment.addRange(coverage, 300, 400);
+        Assert.assertArrayEquals(new int[] { 100, 200, 300, 400 }, coverage);
+        coverage = Fragment.addRange(coverage, 0, 50);
+        Assert.assertArrayEquals(new int[] { 0, 50, 100, 200, 300, 400 }, coverage);
+        coverage = Fragment.addRange(coverage, 200, 250);
+        Assert.assertArrayEquals("adjacent ranges are merged", new int[] { 0, 50, 100, 250, 300, 400 }, coverage);
+        coverage = Fragment.addRange(coverage, 40, 350);
+        Assert.assertArrayEquals(new int[] { 0, 400 }, coverage);
+        coverage = Fragment.addRange(coverage, 500, 1024);
+        Assert.assertArrayEquals(new int[] { 0, 400, 500, 1024 }, coverage);
+    }
+
+    @Test
+    public void testCopyTo() {
+        Fragment fragment = new Fragment(10l, FRAGMENT_SIZE, FRAGMENT_SIZE);
+        byte[] data = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 300);
+        fragment = fragment.write(100, data, 0, 200).write(500, data, 200, 100);
+        Assert.assertEquals(300, fragment.getCachedByteCount());
+
+        byte[] dest = new byte[300];
+        Assert.assertEquals(0, fragment.copyTo(99, dest, 0, dest.length));
+        Assert.assertEquals("copy stops at the end of the cached range", 150,
+                fragment.copyTo(150, dest, 0, dest.length));
+        for (int i = 0; i < 150; ++i) {
+            Assert.assertEquals(data[50 + i], dest[i]);
+        }
+        Assert.assertEquals(10, fragment.copyTo(590, dest, 5, 20));
+        Assert.assertEquals(data[290], dest[5]);
+        Assert.assertEquals(0, fragment.copyTo(600, dest, 0, dest.length));
+    }
+
+    @Test
+    public void testCopyToByteBuffer() {
+        SlabAllocator allocator = new SlabAllocator(FRAGMENT_SIZE * 4);
+        Fragment fragment = new Fragment(10l, 0, allocator.allocate(FRAGMENT_SIZE));
+        byte[] data = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 300);
+        fragment = fragment.write(100, data, 0, 300);
+
+        ByteBuffer dest = ByteBuffer.allocateDirect(500);
+        dest.position(10);
+        Assert.assertEquals(0, fragment.copyTo(99, dest));
+        Assert.assertEquals("copy stops at the end of the cached range", 250, fragment.copyTo(150, dest));
+        Assert.assertEquals(260, dest.position());
+        for (int i = 0; i < 250; ++i) {
+            Assert.assertEquals(data[50 + i], dest.get(10 + i));
+        }
+        dest.limit(270);
+        Assert.assertEquals("copy stops when the buffer is full", 10, fragment.copyTo(100, dest));
+        Assert.assertEquals(data[0], dest.get(260));
+
+        ByteBuffer heapDest = ByteBuffer.allocate(20);
+        Fragment heapFragment = new Fragment(10l, 0, FRAGMENT_SIZE).write(100, data, 0, 300);
+        Assert.assertEquals(20, heapFragment.copyTo(120, heapDest));
+        Assert.assertEquals(data[20], heapDest.get(0));
+
+        fragment.free();
+        dest.clear();
+        Assert.assertEquals(0, fragment.copyTo(100, dest));
+        Assert.assertEquals("freed buffer leaves the destination unchanged", 0, dest.position());
+    }
+
+    @Test
+    public void testWriteCreatesSnapshot() {
+        Fragment fragment = new Fragment(10l, 0, FRAGMENT_SIZE);
+        byte[] data = BlobstoreCacheTestUtil.createData((byte) 1, 100);
+        Fragment snapshot = fragment.write(100, data, 0, data.length);
+        Assert.assertNotSame(fragment, snapshot);
+        Assert.assertArrayEquals(new int[0], fragment.getCoverage());
+        Assert.assertArrayEquals(new int[] { 100, 200 }, snapshot.getCoverage());
+        Assert.assertSame("already cached range", snapshot, snapshot.write(150, data, 0, 50));
+        Assert.assertEquals(0, fragment.copyTo(100, new byte[100], 0, 100));
+    }
+
+    @Test
+    public void testGetNextCachedPosition() {
+        Fragment fragment = new Fragment(10l, 0, FRAGMENT_SIZE);
+        Assert.assertEquals(-1, fragment.getNextCachedPosition(0));
+        byte[] data = BlobstoreCacheTestUtil.createData((byte) 1, 100);
+        fragment = fragment.write(100, data, 0, 100).write(500, data, 0, 100);
+        Assert.assertEquals(100, fragment.getNextCachedPosition(0));
+        Assert.assertEquals(150, fragment.getNextCachedPosition(150));
+        Assert.assertEquals(500, fragment.getNextCachedPosition(200));
+        Assert.assertEquals(-1, fragment.getNextCachedPosition(600));
+    }
+
+    @Test
+    public void testOffHeapFragment() {
+        SlabAllocator allocator = new SlabAllocator(FRAGMENT_SIZE * 4);
+        Fragment fragment = new Fragment(10l, 0, allocator.allocate(FRAGMENT_SIZE));
+        Assert.assertEquals(FRAGMENT_SIZE, fragment.getWeight());
+        byte[] data = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 100);
+        fragment = fragment.write(10, data, 0, data.length);
+        Assert.assertNotNull(fragment);
+        byte[] dest = new byte[100];
+        Assert.assertEquals(100, fragment.copyTo(10, dest, 0, dest.length));
+        Assert.assertArrayEquals(data, dest);
+
+        fragment.free();
+        Assert.assertEquals(0, fragment.copyTo(10, dest, 0, dest.length));
+        Assert.assertNull(fragment.write(10, data, 0, data.length));
+    }
+
+}
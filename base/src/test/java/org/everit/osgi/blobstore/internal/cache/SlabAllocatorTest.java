@@ -0,0 +1,116 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.internal.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlabAllocatorTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAllocateLargerThanSlab() {
+        new SlabAllocator(1024).allocate(1025);
+    }
+
+    @Test
+    public void testFreedBufferIsReused() {
+        SlabAllocator allocator = new SlabAllocator(1024);
+        OffHeapBuffer[] buffers = new OffHeapBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = allocator.allocate(256);
+        }
+        Assert.assertEquals(1024, allocator.getReservedBytes());
+        buffers[1].free();
+        buffers[1].free();
+        allocator.allocate(200);
+        Assert.assertEquals(1024, allocator.getReservedBytes());
+        allocator.allocate(256);
+        Assert.assertEquals(2048, allocator.getReservedBytes());
+    }
+
+    @Test
+    public void testEmptySlabsAreGivenBack() {
+        SlabAllocator allocator = new SlabAllocator(1024);
+        OffHeapBuffer[] buffers = new OffHeapBuffer[12];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = allocator.allocate(256);
+        }
+        Assert.assertEquals(3 * 1024, allocator.getReservedBytes());
+        for (int i = 4; i < buffers.length; i++) {
+            buffers[i].free();
+        }
+        Assert.assertEquals("one spare slab is kept", 2 * 1024, allocator.getReservedBytes());
+        OffHeapBuffer buffer = allocator.allocate(256);
+        Assert.assertEquals(2 * 1024, allocator.getReservedBytes());
+        buffer.free();
+        for (int i = 0; i < 4; i++) {
+            buffers[i].free();
+        }
+        Assert.assertEquals(1024, allocator.getReservedBytes());
+        allocator.allocate(64);
+        Assert.assertEquals("the size classes have their own slabs", 2 * 1024, allocator.getReservedBytes());
+    }
+
+    @Test
+    public void testOldestSlabIsFilledFirst() {
+        SlabAllocator allocator = new SlabAllocator(1024);
+        OffHeapBuffer[] buffers = new OffHeapBuffer[12];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = allocator.allocate(256);
+        }
+        for (int i = 8; i < buffers.length; i++) {
+            buffers[i].free();
+        }
+        buffers[0].free();
+        buffers[4].free();
+        allocator.allocate(256);
+        for (int i = 5; i < 8; i++) {
+            buffers[i].free();
+        }
+        Assert.assertEquals("the second slab drains, because the free slot of the first one is taken", 2 * 1024,
+                allocator.getReservedBytes());
+    }
+
+    @Test
+    public void testReadWrite() {
+        SlabAllocator allocator = new SlabAllocator(1024);
+        OffHeapBuffer buffer = allocator.allocate(100);
+        Assert.assertEquals(128, buffer.capacity());
+        byte[] data = BlobstoreCacheTestUtil.createDataRange((byte) 0, 1, 50);
+        Assert.assertTrue(buffer.write(10, data, 5, 45));
+        byte[] dest = new byte[20];
+        Assert.assertTrue(buffer.read(15, dest, 0, 20));
+        for (int i = 0; i < dest.length; i++) {
+            Assert.assertEquals(data[10 + i], dest[i]);
+        }
+
+        buffer.free();
+        Assert.assertTrue(buffer.isFreed());
+        Assert.assertFalse(buffer.read(15, dest, 0, 20));
+        Assert.assertFalse(buffer.write(10, data, 5, 45));
+    }
+
+    @Test
+    public void testSizeClasses() {
+        SlabAllocator allocator = new SlabAllocator(4096);
+        Assert.assertEquals(SlabAllocator.MIN_SLOT_SIZE, allocator.allocate(1).capacity());
+        Assert.assertEquals(1024, allocator.allocate(1024).capacity());
+        Assert.assertEquals(2048, allocator.allocate(1025).capacity());
+        Assert.assertEquals(4096, allocator.allocate(4096).capacity());
+    }
+
+}
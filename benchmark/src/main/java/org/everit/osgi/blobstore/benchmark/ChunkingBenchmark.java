@@ -0,0 +1,247 @@
+/**
+ * This file is part of Everit - Blobstore Benchmark.
+ *
+ * Everit - Blobstore Benchmark is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore Benchmark is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore Benchmark.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.blobstore.chunking.ChunkHandler;
+import org.everit.osgi.blobstore.chunking.ChunkManifest;
+import org.everit.osgi.blobstore.chunking.ChunkingOutputStream;
+import org.everit.osgi.blobstore.chunking.ContentDefinedChunker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the content-defined chunking of a corpus of document versions, where every version is the previous one
+ * with a few small insertions, and the reads of the versions through their {@link ChunkManifest}s from an in-memory
+ * chunk map. The setup prints how many bytes the distinct content-defined chunks and the distinct fixed-size chunks
+ * of the corpus take, which shows why an insertion does not defeat the deduplication of content-defined chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkingBenchmark {
+
+    /**
+     * The position of the next read of a thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private final Random random = new Random(1);
+
+        private final byte[] dest = new byte[READ_LENGTH];
+
+    }
+
+    /**
+     * Collects the chunks of a version into a shared chunk map and builds the manifest of the version.
+     */
+    private static class ManifestBuilder implements ChunkHandler {
+
+        private final Map<ByteBuffer, Long> chunkIds;
+
+        private final Map<Long, byte[]> chunks;
+
+        private final List<Long> manifestIds = new ArrayList<Long>();
+
+        private final List<Long> manifestOffsets = new ArrayList<Long>();
+
+        private long size;
+
+        ManifestBuilder(final Map<ByteBuffer, Long> chunkIds, final Map<Long, byte[]> chunks) {
+            this.chunkIds = chunkIds;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void handleChunk(final byte[] buffer, final int offset, final int length) {
+            byte[] chunk = new byte[length];
+            System.arraycopy(buffer, offset, chunk, 0, length);
+            ByteBuffer key = ByteBuffer.wrap(chunk);
+            Long chunkId = chunkIds.get(key);
+            if (chunkId == null) {
+                chunkId = (long) chunkIds.size();
+                chunkIds.put(key, chunkId);
+                chunks.put(chunkId, chunk);
+            }
+            manifestIds.add(chunkId);
+            manifestOffsets.add(size);
+            size += length;
+        }
+
+        ChunkManifest toManifest() {
+            long[] ids = new long[manifestIds.size()];
+            long[] offsets = new long[manifestOffsets.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = manifestIds.get(i);
+                offsets[i] = manifestOffsets.get(i);
+            }
+            return new ChunkManifest(ids, offsets, size);
+        }
+
+    }
+
+    private static final int READ_LENGTH = 4096;
+
+    private static final int VERSION_COUNT = 16;
+
+    private static final int EDITS_PER_VERSION = 4;
+
+    private static final int EDIT_LENGTH = 32;
+
+    private static final ChunkHandler NOOP_HANDLER = new ChunkHandler() {
+
+        @Override
+        public void handleChunk(final byte[] buffer, final int offset, final int length) {
+            // only the cut points are measured
+        }
+    };
+
+    @Param({ "4194304" })
+    public int documentSize;
+
+    @Param({ "8192", "65536" })
+    public int averageChunkSize;
+
+    private ContentDefinedChunker chunker;
+
+    private List<byte[]> versions;
+
+    private ChunkManifest[] manifests;
+
+    private Map<Long, byte[]> chunks;
+
+    private long distinctFixedSizeBytes(final int chunkSize) {
+        Set<ByteBuffer> distinctChunks = new HashSet<ByteBuffer>();
+        long distinctBytes = 0;
+        for (byte[] version : versions) {
+            for (int offset = 0; offset < version.length; offset += chunkSize) {
+                int length = Math.min(chunkSize, version.length - offset);
+                if (distinctChunks.add(ByteBuffer.wrap(version, offset, length).slice())) {
+                    distinctBytes += length;
+                }
+            }
+        }
+        return distinctBytes;
+    }
+
+    /**
+     * Splits every version of the corpus into content-defined chunks.
+     */
+    @Benchmark
+    public long chunkCorpus() throws IOException {
+        long chunkedLength = 0;
+        for (byte[] version : versions) {
+            ChunkingOutputStream out = new ChunkingOutputStream(chunker, NOOP_HANDLER);
+            out.write(version);
+            out.close();
+            chunkedLength += out.getChunkedLength();
+        }
+        return chunkedLength;
+    }
+
+    /**
+     * Reads a random range of a random version by finding its chunks in the manifest.
+     */
+    @Benchmark
+    public byte[] readThroughManifest(final Cursor cursor) {
+        ChunkManifest manifest = manifests[cursor.random.nextInt(manifests.length)];
+        long startPosition = (long) (cursor.random.nextDouble() * (manifest.getSize() - READ_LENGTH));
+        int chunkIndex = manifest.indexOf(startPosition);
+        int copied = 0;
+        while (copied < READ_LENGTH) {
+            byte[] chunk = chunks.get(manifest.getChunkId(chunkIndex));
+            int positionInChunk = (int) ((startPosition + copied) - manifest.getChunkOffset(chunkIndex));
+            int n = Math.min(chunk.length - positionInChunk, READ_LENGTH - copied);
+            System.arraycopy(chunk, positionInChunk, cursor.dest, copied, n);
+            copied += n;
+            chunkIndex++;
+        }
+        return cursor.dest;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        chunker = new ContentDefinedChunker(averageChunkSize);
+        Random random = new Random(averageChunkSize);
+        byte[] document = new byte[documentSize];
+        random.nextBytes(document);
+        versions = new ArrayList<byte[]>(VERSION_COUNT);
+        versions.add(document);
+        for (int i = 1; i < VERSION_COUNT; i++) {
+            byte[] previous = versions.get(i - 1);
+            byte[] version = previous;
+            for (int j = 0; j < EDITS_PER_VERSION; j++) {
+                int position = random.nextInt(version.length);
+                byte[] edited = new byte[version.length + EDIT_LENGTH];
+                System.arraycopy(version, 0, edited, 0, position);
+                for (int k = 0; k < EDIT_LENGTH; k++) {
+                    edited[position + k] = (byte) random.nextInt();
+                }
+                System.arraycopy(version, position, edited, position + EDIT_LENGTH, version.length - position);
+                version = edited;
+            }
+            versions.add(version);
+        }
+
+        Map<ByteBuffer, Long> chunkIds = new HashMap<ByteBuffer, Long>();
+        chunks = new HashMap<Long, byte[]>();
+        manifests = new ChunkManifest[VERSION_COUNT];
+        long totalBytes = 0;
+        for (int i = 0; i < VERSION_COUNT; i++) {
+            ManifestBuilder builder = new ManifestBuilder(chunkIds, chunks);
+            ChunkingOutputStream out = new ChunkingOutputStream(chunker, builder);
+            out.write(versions.get(i));
+            out.close();
+            manifests[i] = builder.toManifest();
+            totalBytes += versions.get(i).length;
+        }
+        long contentDefinedBytes = 0;
+        for (byte[] chunk : chunks.values()) {
+            contentDefinedBytes += chunk.length;
+        }
+        long fixedSizeBytes = distinctFixedSizeBytes(averageChunkSize);
+        System.out.println();
+        System.out.println("corpus: " + totalBytes + " bytes in " + VERSION_COUNT + " versions, distinct bytes with "
+                + "content-defined chunks: " + contentDefinedBytes + " (" + (totalBytes / contentDefinedBytes)
+                + "x), with fixed-size chunks: " + fixedSizeBytes + " (" + (totalBytes / fixedSizeBytes) + "x)");
+    }
+
+}
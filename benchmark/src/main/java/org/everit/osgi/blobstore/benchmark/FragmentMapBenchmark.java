@@ -0,0 +1,133 @@
+/**
+ * This file is part of Everit - Blobstore Benchmark.
+ *
+ * Everit - Blobstore Benchmark is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore Benchmark is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore Benchmark.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.benchmark;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.blobstore.internal.cache.BlobstoreCacheService;
+import org.everit.osgi.blobstore.internal.cache.BoundedFragmentCache;
+import org.everit.osgi.blobstore.internal.cache.CacheKey;
+import org.everit.osgi.blobstore.internal.cache.Fragment;
+import org.everit.osgi.blobstore.internal.cache.FragmentIndexMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the fragment lookups of a {@link ConcurrentHashMap} keyed by {@link CacheKey}s with the primitive keyed
+ * lookups of the {@link BoundedFragmentCache}, both directly and through {@link BlobstoreCacheService#copyTo}. Run
+ * with <code>-prof gc</code> to see the allocation rate of the key objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class FragmentMapBenchmark {
+
+    /**
+     * The position of the next lookup of a thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private long position;
+
+        long next(final long blobSize) {
+            position = (position + FRAGMENT_SIZE) % blobSize;
+            return position;
+        }
+
+    }
+
+    private static final int FRAGMENT_SIZE = (int) BlobstoreCacheService.DEFAULT_FRAGMENT_SIZE;
+
+    private static final int READ_LENGTH = 256;
+
+    private static final long BLOB_ID = 1l;
+
+    @Param({ "1024", "65536" })
+    public int fragmentCount;
+
+    private long blobSize;
+
+    private ConcurrentHashMap<CacheKey, Fragment> concurrentHashMap;
+
+    private BoundedFragmentCache boundedCache;
+
+    private BlobstoreCacheService concurrentHashMapService;
+
+    private BlobstoreCacheService boundedCacheService;
+
+    @Benchmark
+    public Fragment boundedCacheCacheKeyGet(final Cursor cursor) {
+        return boundedCache.get(new CacheKey(BLOB_ID, cursor.next(blobSize)));
+    }
+
+    @Benchmark
+    public Fragment boundedCachePrimitiveGet(final Cursor cursor) {
+        return boundedCache.getFragment(BLOB_ID, cursor.next(blobSize));
+    }
+
+    @Benchmark
+    public Fragment concurrentHashMapGet(final Cursor cursor) {
+        return concurrentHashMap.get(new CacheKey(BLOB_ID, cursor.next(blobSize)));
+    }
+
+    @Benchmark
+    public byte[] copyToBoundedCache(final Cursor cursor) {
+        byte[] dest = new byte[READ_LENGTH];
+        boundedCacheService.copyTo(BLOB_ID, cursor.next(blobSize), dest, 0, READ_LENGTH);
+        return dest;
+    }
+
+    @Benchmark
+    public byte[] copyToConcurrentHashMap(final Cursor cursor) {
+        byte[] dest = new byte[READ_LENGTH];
+        concurrentHashMapService.copyTo(BLOB_ID, cursor.next(blobSize), dest, 0, READ_LENGTH);
+        return dest;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        blobSize = (long) fragmentCount * FRAGMENT_SIZE;
+        concurrentHashMap = new ConcurrentHashMap<CacheKey, Fragment>();
+        concurrentHashMapService = new BlobstoreCacheService(concurrentHashMap,
+                new FragmentIndexMap());
+        boundedCache = new BoundedFragmentCache(2 * blobSize, 2 * fragmentCount);
+        boundedCacheService = new BlobstoreCacheService(boundedCache, new FragmentIndexMap());
+        byte[] fragmentBytes = new byte[FRAGMENT_SIZE];
+        for (long position = 0; position < blobSize; position += FRAGMENT_SIZE) {
+            concurrentHashMapService.storeBlobPart(BLOB_ID, position, fragmentBytes);
+            boundedCacheService.storeBlobPart(BLOB_ID, position, fragmentBytes);
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+/**
+ * This file is part of Everit - Blobstore JDBC.
+ *
+ * Everit - Blobstore JDBC is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore JDBC is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore JDBC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.jdbc;
+
+import java.sql.Blob;
+
+/**
+ * The ways of reading a range of a {@link Blob}, from the most to the least efficient one. The JDBC drivers do not
+ * have to support positional reads, so the reader falls back to the next mode if a driver does not support one.
+ */
+public enum BlobReadMode {
+
+    /**
+     * The range is read by {@link Blob#getBytes(long, int)}.
+     */
+    BYTES,
+
+    /**
+     * The range is read from a stream opened by {@link Blob#getBinaryStream(long, long)}.
+     */
+    RANGE_STREAM,
+
+    /**
+     * The range is read from the stream of the whole blob. The stream is skipped forward to the range and reopened if
+     * a range before the position of the stream is read, so this mode costs as much as the bytes before the range.
+     */
+    SEQUENTIAL_STREAM;
+
+    /**
+     * Returns the mode to fall back to if the driver does not support this mode.
+     *
+     * @return The next mode or <code>null</code> if this is the last one.
+     */
+    public BlobReadMode getFallback() {
+        BlobReadMode[] modes = values();
+        int next = ordinal() + 1;
+        return (next < modes.length) ? modes[next] : null;
+    }
+
+}
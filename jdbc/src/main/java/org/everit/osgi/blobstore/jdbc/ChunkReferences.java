@@ -0,0 +1,174 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.everit.osgi.blobstore.api.BlobstoreException;
+
+/**
+ * Collects the references that a transaction adds to and removes from chunks, and updates the reference counts in the
+ * ascending order of the chunk ids before the transaction is committed. The rows of the chunks are locked only by
+ * these updates, so the concurrent transactions that share chunks, for example the stores and the deletes of the
+ * versions of a document, lock them in the same order and cannot deadlock on them.
+ */
+class ChunkReferences {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static long[] append(final long[] ids, final int count, final long chunkId) {
+        long[] result = ids;
+        if (count == ids.length) {
+            result = Arrays.copyOf(ids, ids.length * 2);
+        }
+        result[count] = chunkId;
+        return result;
+    }
+
+    /**
+     * Deletes the chunks whose reference count has dropped to zero. The rows of the chunks have already been locked by
+     * the update of their reference counts.
+     */
+    private static void deleteUnreferencedChunks(final Connection connection, final long[] chunkIds, final int count)
+            throws SQLException {
+        PreparedStatement deleteStatement = connection.prepareStatement(
+                ChunkingJDBCBlobstoreStorage.SQL_DELETE_UNREFERENCED_CHUNK);
+        try {
+            for (int i = 0; i < count; i++) {
+                deleteStatement.setLong(1, chunkIds[i]);
+                deleteStatement.addBatch();
+                if ((((i + 1) % ChunkWriter.MANIFEST_BATCH_SIZE) == 0) || ((i + 1) == count)) {
+                    deleteStatement.executeBatch();
+                }
+            }
+        } finally {
+            deleteStatement.close();
+        }
+    }
+
+    /**
+     * Runs the batch of an update statement and checks that each statement has found its chunk.
+     */
+    private static void executeBatch(final PreparedStatement statement, final long[] batchIds) throws SQLException {
+        int[] updateCounts = statement.executeBatch();
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] == 0) {
+                throw new BlobstoreException("chunk [" + batchIds[i] + "] was deleted by a concurrent transaction");
+            }
+        }
+    }
+
+    /**
+     * The ids of the referenced chunks, once for every reference.
+     */
+    private long[] addedIds = new long[INITIAL_CAPACITY];
+
+    private int addedCount = 0;
+
+    /**
+     * The ids of the dereferenced chunks, once for every removed reference.
+     */
+    private long[] removedIds = new long[INITIAL_CAPACITY];
+
+    private int removedCount = 0;
+
+    /**
+     * Adds a reference to a chunk.
+     */
+    void add(final long chunkId) {
+        addedIds = append(addedIds, addedCount, chunkId);
+        addedCount++;
+    }
+
+    /**
+     * Updates the reference counts of the chunks in the ascending order of their ids and deletes the chunks that are
+     * not referenced anymore. Must be called after the rows of the manifests that referenced the removed chunks have
+     * been deleted.
+     *
+     * @throws BlobstoreException
+     *             if a referenced chunk has been deleted by a concurrent transaction since it was found.
+     */
+    void apply(final Connection connection) throws SQLException {
+        Arrays.sort(addedIds, 0, addedCount);
+        Arrays.sort(removedIds, 0, removedCount);
+        long[] unreferencedIds = new long[removedCount];
+        int unreferencedCount = 0;
+        PreparedStatement updateStatement = connection.prepareStatement(
+                ChunkingJDBCBlobstoreStorage.SQL_UPDATE_REFERENCE_COUNT);
+        try {
+            long[] batchIds = new long[ChunkWriter.MANIFEST_BATCH_SIZE];
+            int batchedRows = 0;
+            int addedIndex = 0;
+            int removedIndex = 0;
+            while ((addedIndex < addedCount) || (removedIndex < removedCount)) {
+                long chunkId;
+                if (removedIndex == removedCount) {
+                    chunkId = addedIds[addedIndex];
+                } else if (addedIndex == addedCount) {
+                    chunkId = removedIds[removedIndex];
+                } else {
+                    chunkId = Math.min(addedIds[addedIndex], removedIds[removedIndex]);
+                }
+                long delta = 0;
+                while ((addedIndex < addedCount) && (addedIds[addedIndex] == chunkId)) {
+                    delta++;
+                    addedIndex++;
+                }
+                while ((removedIndex < removedCount) && (removedIds[removedIndex] == chunkId)) {
+                    delta--;
+                    removedIndex++;
+                }
+                if (delta == 0) {
+                    continue;
+                }
+                if (delta < 0) {
+                    unreferencedIds[unreferencedCount++] = chunkId;
+                }
+                updateStatement.setLong(1, delta);
+                updateStatement.setLong(2, chunkId);
+                updateStatement.addBatch();
+                batchIds[batchedRows++] = chunkId;
+                if (batchedRows == batchIds.length) {
+                    executeBatch(updateStatement, batchIds);
+                    batchedRows = 0;
+                }
+            }
+            if (batchedRows > 0) {
+                executeBatch(updateStatement, batchIds);
+            }
+        } finally {
+            updateStatement.close();
+        }
+        addedCount = 0;
+        removedCount = 0;
+        if (unreferencedCount > 0) {
+            deleteUnreferencedChunks(connection, unreferencedIds, unreferencedCount);
+        }
+    }
+
+    /**
+     * Removes a reference from a chunk.
+     */
+    void remove(final long chunkId) {
+        removedIds = append(removedIds, removedCount, chunkId);
+        removedCount++;
+    }
+
+}
@@ -0,0 +1,235 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+
+import org.everit.osgi.blobstore.api.BlobstoreException;
+import org.everit.osgi.blobstore.chunking.ChunkHandler;
+
+/**
+ * Stores the chunks and the manifest of one blob in the transaction of a connection. The chunks are identified by
+ * their digest: only the chunks that are not stored yet are inserted. The references of the blob are collected by a
+ * {@link ChunkReferences} and the reference counts are updated before the transaction is committed, so the rows of the
+ * existing chunks are not locked in the order of the content. The rows of the manifest are inserted in batches.
+ */
+class ChunkWriter implements ChunkHandler {
+
+    /**
+     * The number of manifest rows that are inserted by one batch.
+     */
+    static final int MANIFEST_BATCH_SIZE = 100;
+
+    /**
+     * The class of the SQL states of integrity constraint violations.
+     */
+    private static final String SQLSTATE_INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Converts a digest to the hexadecimal form that is stored in the chunk table.
+     */
+    private static String toHex(final byte[] digest) {
+        char[] result = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            result[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            result[(2 * i) + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+    private final Connection connection;
+
+    private final long blobId;
+
+    private final MessageDigest digest;
+
+    private final PreparedStatement queryIdStatement;
+
+    private final PreparedStatement insertChunkStatement;
+
+    private final PreparedStatement insertBlobChunkStatement;
+
+    private final ChunkReferences references;
+
+    /**
+     * The index of the next chunk in the blob.
+     */
+    private int chunkIndex = 0;
+
+    /**
+     * The position of the next chunk in the blob.
+     */
+    private long chunkOffset = 0;
+
+    /**
+     * The number of manifest rows that have been added to the batch but not executed yet.
+     */
+    private int batchedRows = 0;
+
+    ChunkWriter(final Connection connection, final long blobId, final ChunkReferences references)
+            throws SQLException {
+        this.connection = connection;
+        this.blobId = blobId;
+        this.references = references;
+        try {
+            digest = MessageDigest.getInstance(ChunkingJDBCBlobstoreStorage.CHUNK_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new BlobstoreException(e);
+        }
+        queryIdStatement = connection.prepareStatement(ChunkingJDBCBlobstoreStorage.SQL_QUERY_CHUNK_ID);
+        insertChunkStatement = connection.prepareStatement(ChunkingJDBCBlobstoreStorage.SQL_INSERT_CHUNK,
+                Statement.RETURN_GENERATED_KEYS);
+        insertBlobChunkStatement = connection.prepareStatement(ChunkingJDBCBlobstoreStorage.SQL_INSERT_BLOB_CHUNK);
+    }
+
+    /**
+     * Closes the prepared statements.
+     */
+    void close() throws SQLException {
+        try {
+            queryIdStatement.close();
+        } finally {
+            try {
+                insertChunkStatement.close();
+            } finally {
+                insertBlobChunkStatement.close();
+            }
+        }
+    }
+
+    /**
+     * Inserts the remaining rows of the manifest and stores the size and the number of chunks of the blob. The
+     * references of the blob are added to the chunks by {@link ChunkReferences#apply(Connection)}.
+     *
+     * @return The size of the blob.
+     */
+    long finish() throws SQLException {
+        if (batchedRows > 0) {
+            insertBlobChunkStatement.executeBatch();
+            batchedRows = 0;
+        }
+        PreparedStatement updateStatement = connection.prepareStatement(ChunkingJDBCBlobstoreStorage.SQL_UPDATE_BLOB);
+        try {
+            updateStatement.setLong(1, chunkOffset);
+            updateStatement.setInt(2, chunkIndex);
+            updateStatement.setLong(3, blobId);
+            updateStatement.executeUpdate();
+        } finally {
+            updateStatement.close();
+        }
+        return chunkOffset;
+    }
+
+    @Override
+    public void handleChunk(final byte[] buffer, final int offset, final int length) throws IOException {
+        try {
+            digest.update(buffer, offset, length);
+            String chunkDigest = toHex(digest.digest());
+            long chunkId = queryChunkId(chunkDigest);
+            if (chunkId < 0) {
+                chunkId = insertChunk(chunkDigest, buffer, offset, length);
+            }
+            references.add(chunkId);
+            insertBlobChunkStatement.setLong(1, blobId);
+            insertBlobChunkStatement.setInt(2, chunkIndex);
+            insertBlobChunkStatement.setLong(3, chunkId);
+            insertBlobChunkStatement.setLong(4, chunkOffset);
+            insertBlobChunkStatement.addBatch();
+            batchedRows++;
+            if (batchedRows == MANIFEST_BATCH_SIZE) {
+                insertBlobChunkStatement.executeBatch();
+                batchedRows = 0;
+            }
+            chunkIndex++;
+            chunkOffset += length;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Inserts a new chunk without references. If a concurrent transaction has inserted the same chunk meanwhile, the
+     * insert is rolled back to a savepoint and the chunk of the other transaction is used instead. The savepoint is
+     * released in both cases, as every open savepoint is a subtransaction on some databases.
+     *
+     * @return The id of the chunk.
+     */
+    private long insertChunk(final String chunkDigest, final byte[] buffer, final int offset, final int length)
+            throws SQLException {
+        Savepoint savepoint = connection.setSavepoint();
+        long chunkId;
+        try {
+            insertChunkStatement.setString(1, chunkDigest);
+            insertChunkStatement.setBinaryStream(2, new ByteArrayInputStream(buffer, offset, length), length);
+            insertChunkStatement.executeUpdate();
+            ResultSet keyset = insertChunkStatement.getGeneratedKeys();
+            try {
+                if (!keyset.next()) {
+                    throw new BlobstoreException("Chunk id was not returned from database after running insert"
+                            + " statement.");
+                }
+                chunkId = keyset.getLong(1);
+            } finally {
+                keyset.close();
+            }
+        } catch (SQLException e) {
+            String sqlState = e.getSQLState();
+            if ((sqlState == null) || !sqlState.startsWith(SQLSTATE_INTEGRITY_CONSTRAINT_VIOLATION)) {
+                throw e;
+            }
+            connection.rollback(savepoint);
+            connection.releaseSavepoint(savepoint);
+            chunkId = queryChunkId(chunkDigest);
+            if (chunkId < 0) {
+                throw e;
+            }
+            return chunkId;
+        }
+        connection.releaseSavepoint(savepoint);
+        return chunkId;
+    }
+
+    /**
+     * Queries the id of the stored chunk of a digest without locking the chunk.
+     *
+     * @return The id of the chunk or <code>-1</code> if no chunk is stored with the digest.
+     */
+    private long queryChunkId(final String chunkDigest) throws SQLException {
+        queryIdStatement.setString(1, chunkDigest);
+        ResultSet resultSet = queryIdStatement.executeQuery();
+        try {
+            if (!resultSet.next()) {
+                return -1;
+            }
+            return resultSet.getLong(1);
+        } finally {
+            resultSet.close();
+        }
+    }
+
+}
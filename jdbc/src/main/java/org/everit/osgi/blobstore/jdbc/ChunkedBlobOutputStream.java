@@ -0,0 +1,150 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.jdbc;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.everit.osgi.blobstore.api.BlobOutputStream;
+import org.everit.osgi.blobstore.chunking.ChunkingOutputStream;
+import org.everit.osgi.blobstore.chunking.ContentDefinedChunker;
+import org.osgi.service.log.LogService;
+
+/**
+ * Writes a new blob of the {@link ChunkingJDBCBlobstoreStorage}. The written bytes are split into chunks and stored
+ * as soon as the end of a chunk is known. The transaction is committed when the stream is closed.
+ */
+class ChunkedBlobOutputStream extends BlobOutputStream {
+
+    /**
+     * The connection of the transaction, <code>null</code> if the stream is closed or aborted.
+     */
+    private Connection connection;
+
+    private final long blobId;
+
+    private final ChunkReferences references = new ChunkReferences();
+
+    private final ChunkWriter writer;
+
+    private final ChunkingOutputStream out;
+
+    private final LogService logger;
+
+    ChunkedBlobOutputStream(final Connection connection, final long blobId, final ContentDefinedChunker chunker,
+            final LogService logger) throws SQLException {
+        this.connection = connection;
+        this.blobId = blobId;
+        this.logger = logger;
+        writer = new ChunkWriter(connection, blobId, references);
+        out = new ChunkingOutputStream(chunker, writer);
+    }
+
+    @Override
+    public void abort() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        release(false);
+    }
+
+    /**
+     * Stores the last chunk and the size of the blob, adds the references of the blob to its chunks and commits the
+     * transaction.
+     */
+    @Override
+    public void close() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        boolean committed = false;
+        try {
+            out.close();
+            writer.finish();
+            references.apply(connection);
+            connection.commit();
+            committed = true;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            release(committed);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (connection == null) {
+            throw new IOException("the stream of blob [" + blobId + "] is closed");
+        }
+    }
+
+    /**
+     * Does nothing besides checking the state of the stream, as only whole chunks can be stored.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+    }
+
+    /**
+     * Returns the id of the blob. The id is known as soon as the stream is opened, but the blob is visible only after
+     * the stream is closed.
+     */
+    @Override
+    public long getBlobId() {
+        return blobId;
+    }
+
+    /**
+     * Closes the statements of the writer, rolls back the transaction if it has not been committed and closes the
+     * connection. The failures are only logged, so they do not hide the exception that made the stream fail.
+     */
+    private void release(final boolean committed) {
+        Connection lConnection = connection;
+        connection = null;
+        try {
+            writer.close();
+        } catch (SQLException e) {
+            logger.log(LogService.LOG_ERROR, e.getMessage());
+        }
+        try {
+            if (!committed) {
+                lConnection.rollback();
+            }
+        } catch (SQLException e) {
+            logger.log(LogService.LOG_ERROR, "Cannot roll back transaction: " + e.getMessage());
+        }
+        try {
+            lConnection.close();
+        } catch (SQLException e) {
+            logger.log(LogService.LOG_ERROR, e.getMessage());
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureOpen();
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureOpen();
+        out.write(b);
+    }
+
+}
@@ -0,0 +1,800 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.sql.DataSource;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.blobstore.api.BlobInput;
+import org.everit.osgi.blobstore.api.BlobOutputStream;
+import org.everit.osgi.blobstore.api.Blobstore;
+import org.everit.osgi.blobstore.api.BlobstoreException;
+import org.everit.osgi.blobstore.api.storage.BlobstoreStorage;
+import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
+import org.everit.osgi.blobstore.chunking.ChunkingOutputStream;
+import org.everit.osgi.blobstore.chunking.ContentDefinedChunker;
+import org.everit.osgi.liquibase.component.LiquibaseService;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * JDBC storage that splits the blobs into content-defined chunks, see {@link ContentDefinedChunker}, and stores each
+ * distinct chunk only once. A blob is stored as its manifest: the ordered list of the ids and the start positions of
+ * its chunks. The blobs that share content, for example the successive versions of a document, share most of their
+ * chunks. A chunk is deleted together with the last blob that references it.
+ *
+ * The parts of a multipart upload are stored as separate chunked blobs and their manifests are concatenated when the
+ * upload is completed, so the content of the parts is not copied.
+ *
+ * The reference counts of the chunks are updated at the end of each transaction in the ascending order of the chunk
+ * ids, see {@link ChunkReferences}, so the concurrent stores and deletes of blobs that share chunks do not deadlock. A
+ * store fails if a chunk that it reuses loses its last reference in a concurrent transaction that commits first.
+ */
+@Component(name = "org.everit.blobstore.ChunkingJDBCBlobstoreStorage",
+metatype = true, immediate = true,
+policy = ConfigurationPolicy.REQUIRE,
+configurationFactory = true)
+@Properties({
+    @Property(name = "dataSource.target"),
+    @Property(name = ChunkingJDBCBlobstoreStorage.PROP_CHUNK_AVERAGE_SIZE,
+            intValue = ChunkingJDBCBlobstoreStorage.DEFAULT_CHUNK_AVERAGE_SIZE)
+})
+@Service
+public class ChunkingJDBCBlobstoreStorage implements BlobstoreStorage {
+
+    /**
+     * The average size of the chunks, a power of two. The minimum size of the chunks is a quarter, the maximum size is
+     * four times the average size. Changing the size splits the new blobs differently, so their chunks are not shared
+     * with the blobs stored before.
+     */
+    public static final String PROP_CHUNK_AVERAGE_SIZE = "chunk.averageSize";
+
+    public static final int DEFAULT_CHUNK_AVERAGE_SIZE = 64 * 1024;
+
+    /**
+     * The algorithm of the digest that identifies the content of the chunks.
+     */
+    public static final String CHUNK_DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Name of the table of the distinct chunks.
+     */
+    public static final String CHUNK_TABLE_NAME = "BS_JDBC_CHUNK";
+
+    /**
+     * Name of the table of the blobs.
+     */
+    public static final String BLOB_TABLE_NAME = "BS_JDBC_CHUNKED_BLOB";
+
+    /**
+     * Name of the table of the manifests of the blobs.
+     */
+    public static final String BLOB_CHUNK_TABLE_NAME = "BS_JDBC_BLOB_CHUNK";
+
+    /**
+     * Name of the table of the multipart uploads.
+     */
+    public static final String UPLOAD_TABLE_NAME = "BS_JDBC_CHUNKED_UPLOAD";
+
+    /**
+     * Name of the table of the parts of the multipart uploads. Each part is stored as a chunked blob.
+     */
+    public static final String UPLOAD_PART_TABLE_NAME = "BS_JDBC_CHUNKED_UPLOAD_PART";
+
+    public static final String COLUMN_CHUNK_ID = "CHUNK_ID";
+
+    /**
+     * Name of the column of the hexadecimal digest of a chunk.
+     */
+    public static final String COLUMN_CHUNK_DIGEST = "CHUNK_DIGEST";
+
+    public static final String COLUMN_CHUNK_DATA = "CHUNK_DATA";
+
+    /**
+     * Name of the column of the number of manifest rows that reference a chunk.
+     */
+    public static final String COLUMN_REFERENCE_COUNT = "REFERENCE_COUNT";
+
+    public static final String COLUMN_BLOB_ID = "BLOB_ID";
+
+    public static final String COLUMN_BLOB_SIZE = "BLOB_SIZE";
+
+    public static final String COLUMN_CHUNK_COUNT = "CHUNK_COUNT";
+
+    public static final String COLUMN_DESCRIPTION = "BLOB_DESCRIPTION";
+
+    /**
+     * Name of the column of the position of a chunk in the manifest of a blob.
+     */
+    public static final String COLUMN_CHUNK_INDEX = "CHUNK_INDEX";
+
+    /**
+     * Name of the column of the position of the first byte of a chunk in a blob.
+     */
+    public static final String COLUMN_CHUNK_OFFSET = "CHUNK_OFFSET";
+
+    public static final String COLUMN_UPLOAD_ID = "UPLOAD_ID";
+
+    public static final String COLUMN_PART_NUMBER = "PART_NUMBER";
+
+    /**
+     * SQL statement to insert a new blob. The size and the number of chunks are set when all chunks are stored.
+     */
+    public static final String SQL_INSERT_BLOB = "INSERT INTO " + BLOB_TABLE_NAME + " (" + COLUMN_DESCRIPTION
+            + ") VALUES (?)";
+
+    /**
+     * SQL statement to set the size and the number of chunks of a blob.
+     */
+    public static final String SQL_UPDATE_BLOB = "UPDATE " + BLOB_TABLE_NAME + " SET " + COLUMN_BLOB_SIZE + " = ?, "
+            + COLUMN_CHUNK_COUNT + " = ? WHERE " + COLUMN_BLOB_ID + " = ?";
+
+    /**
+     * SQL query to get the size and the number of chunks of a blob.
+     */
+    public static final String SQL_QUERY_BLOB = "SELECT " + COLUMN_BLOB_SIZE + ", " + COLUMN_CHUNK_COUNT + " FROM "
+            + BLOB_TABLE_NAME + " WHERE " + COLUMN_BLOB_ID + " = ?";
+
+    /**
+     * SQL query to get the description of a blob.
+     */
+    public static final String SQL_QUERY_DESCRIPTION = "SELECT " + COLUMN_DESCRIPTION + " FROM " + BLOB_TABLE_NAME
+            + " WHERE " + COLUMN_BLOB_ID + " = ?";
+
+    /**
+     * SQL query to get the manifest of a blob.
+     */
+    public static final String SQL_QUERY_MANIFEST = "SELECT " + COLUMN_CHUNK_ID + ", " + COLUMN_CHUNK_OFFSET + " FROM "
+            + BLOB_CHUNK_TABLE_NAME + " WHERE " + COLUMN_BLOB_ID + " = ? ORDER BY " + COLUMN_CHUNK_INDEX;
+
+    /**
+     * SQL query to get the content of a chunk.
+     */
+    public static final String SQL_QUERY_CHUNK_DATA = "SELECT " + COLUMN_CHUNK_DATA + " FROM " + CHUNK_TABLE_NAME
+            + " WHERE " + COLUMN_CHUNK_ID + " = ?";
+
+    /**
+     * SQL statement to change the reference count of a chunk. The parameters are the change and the id of the chunk.
+     */
+    public static final String SQL_UPDATE_REFERENCE_COUNT = "UPDATE " + CHUNK_TABLE_NAME + " SET "
+            + COLUMN_REFERENCE_COUNT + " = " + COLUMN_REFERENCE_COUNT + " + ? WHERE " + COLUMN_CHUNK_ID + " = ?";
+
+    /**
+     * SQL query to get the id of the chunk of a digest.
+     */
+    public static final String SQL_QUERY_CHUNK_ID = "SELECT " + COLUMN_CHUNK_ID + " FROM " + CHUNK_TABLE_NAME
+            + " WHERE " + COLUMN_CHUNK_DIGEST + " = ?";
+
+    /**
+     * SQL statement to insert a new chunk. The references are added by {@link #SQL_UPDATE_REFERENCE_COUNT} before the
+     * transaction is committed.
+     */
+    public static final String SQL_INSERT_CHUNK = "INSERT INTO " + CHUNK_TABLE_NAME + " (" + COLUMN_CHUNK_DIGEST
+            + ", " + COLUMN_CHUNK_DATA + ", " + COLUMN_REFERENCE_COUNT + ") VALUES (?, ?, 0)";
+
+    /**
+     * SQL statement to insert a row of the manifest of a blob.
+     */
+    public static final String SQL_INSERT_BLOB_CHUNK = "INSERT INTO " + BLOB_CHUNK_TABLE_NAME + " (" + COLUMN_BLOB_ID
+            + ", " + COLUMN_CHUNK_INDEX + ", " + COLUMN_CHUNK_ID + ", " + COLUMN_CHUNK_OFFSET + ") VALUES (?, ?, ?, ?)";
+
+    /**
+     * SQL query to get the chunks of a blob, once for every occurrence of a chunk in the blob.
+     */
+    public static final String SQL_QUERY_BLOB_CHUNK_IDS = "SELECT " + COLUMN_CHUNK_ID + " FROM "
+            + BLOB_CHUNK_TABLE_NAME + " WHERE " + COLUMN_BLOB_ID + " = ?";
+
+    /**
+     * SQL statement to delete a chunk if it is not referenced anymore.
+     */
+    public static final String SQL_DELETE_UNREFERENCED_CHUNK = "DELETE FROM " + CHUNK_TABLE_NAME + " WHERE "
+            + COLUMN_CHUNK_ID + " = ? AND " + COLUMN_REFERENCE_COUNT + " = 0";
+
+    /**
+     * SQL statement to delete the manifest of a blob.
+     */
+    public static final String SQL_DELETE_BLOB_CHUNKS = "DELETE FROM " + BLOB_CHUNK_TABLE_NAME + " WHERE "
+            + COLUMN_BLOB_ID + " = ?";
+
+    /**
+     * SQL statement to delete a blob.
+     */
+    public static final String SQL_DELETE_BLOB = "DELETE FROM " + BLOB_TABLE_NAME + " WHERE " + COLUMN_BLOB_ID
+            + " = ?";
+
+    /**
+     * SQL statement to append the manifest of a part to the manifest of the blob of an upload. The parameters are the
+     * id of the blob, the number of chunks and the size of the preceding parts and the id of the part.
+     */
+    public static final String SQL_MOVE_BLOB_CHUNKS = "UPDATE " + BLOB_CHUNK_TABLE_NAME + " SET " + COLUMN_BLOB_ID
+            + " = ?, " + COLUMN_CHUNK_INDEX + " = " + COLUMN_CHUNK_INDEX + " + ?, " + COLUMN_CHUNK_OFFSET + " = "
+            + COLUMN_CHUNK_OFFSET + " + ? WHERE " + COLUMN_BLOB_ID + " = ?";
+
+    /**
+     * SQL statement to insert a new multipart upload.
+     */
+    public static final String SQL_INSERT_UPLOAD = "INSERT INTO " + UPLOAD_TABLE_NAME + " (" + COLUMN_DESCRIPTION
+            + ") VALUES (?)";
+
+    /**
+     * SQL query to get the description of the blob of an upload.
+     */
+    public static final String SQL_QUERY_UPLOAD = "SELECT " + COLUMN_DESCRIPTION + " FROM " + UPLOAD_TABLE_NAME
+            + " WHERE " + COLUMN_UPLOAD_ID + " = ?";
+
+    /**
+     * SQL query to lock an upload while it is completed or aborted. The parts are stored without locking the upload, so
+     * the parts of the same upload can be stored concurrently.
+     */
+    public static final String SQL_LOCK_UPLOAD = SQL_QUERY_UPLOAD + " FOR UPDATE";
+
+    /**
+     * SQL query to get the numbers of the stored parts of an upload.
+     */
+    public static final String SQL_QUERY_PART_NUMBERS = "SELECT " + COLUMN_PART_NUMBER + " FROM "
+            + UPLOAD_PART_TABLE_NAME + " WHERE " + COLUMN_UPLOAD_ID + " = ? ORDER BY " + COLUMN_PART_NUMBER;
+
+    /**
+     * SQL query to get the blobs of the stored parts of an upload in the order of the part numbers.
+     */
+    public static final String SQL_QUERY_PARTS = "SELECT p." + COLUMN_BLOB_ID + ", b." + COLUMN_BLOB_SIZE + ", b."
+            + COLUMN_CHUNK_COUNT + " FROM " + UPLOAD_PART_TABLE_NAME + " p INNER JOIN " + BLOB_TABLE_NAME + " b ON p."
+            + COLUMN_BLOB_ID + " = b." + COLUMN_BLOB_ID + " WHERE p." + COLUMN_UPLOAD_ID + " = ? ORDER BY p."
+            + COLUMN_PART_NUMBER;
+
+    /**
+     * SQL query to get the blob of a stored part.
+     */
+    public static final String SQL_QUERY_PART = "SELECT " + COLUMN_BLOB_ID + " FROM " + UPLOAD_PART_TABLE_NAME
+            + " WHERE " + COLUMN_UPLOAD_ID + " = ? AND " + COLUMN_PART_NUMBER + " = ?";
+
+    /**
+     * SQL statement to delete a stored part.
+     */
+    public static final String SQL_DELETE_PART = "DELETE FROM " + UPLOAD_PART_TABLE_NAME + " WHERE "
+            + COLUMN_UPLOAD_ID + " = ? AND " + COLUMN_PART_NUMBER + " = ?";
+
+    /**
+     * SQL statement to insert a stored part.
+     */
+    public static final String SQL_INSERT_PART = "INSERT INTO " + UPLOAD_PART_TABLE_NAME + " (" + COLUMN_UPLOAD_ID
+            + ", " + COLUMN_PART_NUMBER + ", " + COLUMN_BLOB_ID + ") VALUES (?, ?, ?)";
+
+    /**
+     * SQL statement to delete the stored parts of an upload.
+     */
+    public static final String SQL_DELETE_PARTS = "DELETE FROM " + UPLOAD_PART_TABLE_NAME + " WHERE "
+            + COLUMN_UPLOAD_ID + " = ?";
+
+    /**
+     * SQL statement to delete an upload.
+     */
+    public static final String SQL_DELETE_UPLOAD = "DELETE FROM " + UPLOAD_TABLE_NAME + " WHERE " + COLUMN_UPLOAD_ID
+            + " = ?";
+
+    private static void checkDescription(final String description) {
+        if ((description != null) && (description.length() > Blobstore.BLOB_DESCRIPTION_MAX_LENGTH)) {
+            throw new BlobstoreException("description length must be at most " +
+                    Blobstore.BLOB_DESCRIPTION_MAX_LENGTH + ", actual length: " + description.length());
+        }
+    }
+
+    /**
+     * Runs a statement whose parameters are ids.
+     *
+     * @return The number of updated rows.
+     */
+    private static int executeUpdate(final Connection connection, final String sql, final long... parameters)
+            throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                preparedStatement.setLong(i + 1, parameters[i]);
+            }
+            return preparedStatement.executeUpdate();
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    /**
+     * Inserts a row by a statement that has one string parameter and returns the generated key.
+     */
+    private static long insertWithDescription(final Connection connection, final String sql,
+            final String description) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        try {
+            preparedStatement.setString(1, description);
+            preparedStatement.executeUpdate();
+            ResultSet keyset = preparedStatement.getGeneratedKeys();
+            try {
+                if (!keyset.next()) {
+                    throw new BlobstoreException("Id was not returned from database after running insert statement.");
+                }
+                return keyset.getLong(1);
+            } finally {
+                keyset.close();
+            }
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    /**
+     * Queries the description of the blob of an upload.
+     *
+     * @param sql
+     *            {@link #SQL_QUERY_UPLOAD} or {@link #SQL_LOCK_UPLOAD}.
+     * @throws BlobstoreException
+     *             if the upload does not exist.
+     */
+    private static String queryUpload(final String sql, final long uploadId, final Connection connection)
+            throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        try {
+            preparedStatement.setLong(1, uploadId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (!resultSet.next()) {
+                throw new BlobstoreException("upload [" + uploadId + "] does not exist");
+            }
+            return resultSet.getString(1);
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    @Reference
+    private DataSource dataSource;
+
+    @Reference
+    private LiquibaseService liquibaseService;
+
+    @Reference
+    private LogService logger;
+
+    private ContentDefinedChunker chunker;
+
+    @Override
+    public void abortMultipartUpload(final long uploadId) {
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            queryUpload(SQL_LOCK_UPLOAD, uploadId, connection);
+            List<long[]> parts = queryParts(uploadId, connection);
+            executeUpdate(connection, SQL_DELETE_PARTS, uploadId);
+            ChunkReferences references = new ChunkReferences();
+            for (long[] part : parts) {
+                deleteChunkedBlob(part[0], connection, references);
+            }
+            references.apply(connection);
+            executeUpdate(connection, SQL_DELETE_UPLOAD, uploadId);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, committed);
+        }
+    }
+
+    @Activate
+    public void activate(final BundleContext ctx, final Map<String, Object> componentProperties) {
+        Object averageSizeValue = componentProperties.get(PROP_CHUNK_AVERAGE_SIZE);
+        int averageSize = DEFAULT_CHUNK_AVERAGE_SIZE;
+        try {
+            if (averageSizeValue != null) {
+                averageSize = Integer.parseInt(String.valueOf(averageSizeValue).trim());
+            }
+            chunker = new ContentDefinedChunker(averageSize);
+        } catch (IllegalArgumentException e) {
+            throw new BlobstoreException("invalid value of property " + PROP_CHUNK_AVERAGE_SIZE + ": "
+                    + averageSizeValue, e);
+        }
+        liquibaseService.process(dataSource, ctx.getBundle(),
+                "/META-INF/liquibase/blobstore-jdbc-chunking.liquibase.xml");
+    }
+
+    public void bindDataSource(final DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public void bindLiquibaseService(final LiquibaseService liquibaseService) {
+        this.liquibaseService = liquibaseService;
+    }
+
+    public void bindLogger(final LogService logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Creates the blob of an upload by appending the manifests of the parts to each other. The chunks keep their
+     * references, as they move from the blobs of the parts to the blob of the upload.
+     */
+    @Override
+    public long completeMultipartUpload(final long uploadId) {
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            String description = queryUpload(SQL_LOCK_UPLOAD, uploadId, connection);
+            List<long[]> parts = queryParts(uploadId, connection);
+            long blobId = insertWithDescription(connection, SQL_INSERT_BLOB, description);
+            long blobSize = 0;
+            long chunkCount = 0;
+            for (long[] part : parts) {
+                executeUpdate(connection, SQL_MOVE_BLOB_CHUNKS, blobId, chunkCount, blobSize, part[0]);
+                blobSize += part[1];
+                chunkCount += part[2];
+            }
+            if (chunkCount > Integer.MAX_VALUE) {
+                throw new BlobstoreException("upload [" + uploadId + "] has too many chunks: " + chunkCount);
+            }
+            executeUpdate(connection, SQL_UPDATE_BLOB, blobSize, chunkCount, blobId);
+            executeUpdate(connection, SQL_DELETE_PARTS, uploadId);
+            for (long[] part : parts) {
+                executeUpdate(connection, SQL_DELETE_BLOB, part[0]);
+            }
+            executeUpdate(connection, SQL_DELETE_UPLOAD, uploadId);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+            return blobId;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, committed);
+        }
+    }
+
+    @Override
+    public BlobstoreStorageReader createReader(final long blobId, final long startPosition) throws SQLException {
+        return new ChunkingJDBCBlobstoreStorageReader(dataSource, blobId, startPosition, null);
+    }
+
+    @Override
+    public BlobstoreStorageReader createReader(final long blobId, final long startPosition, final long length)
+            throws SQLException {
+        return new ChunkingJDBCBlobstoreStorageReader(dataSource, blobId, startPosition, length);
+    }
+
+    @Override
+    public void deleteBlob(final long blobId) {
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            ChunkReferences references = new ChunkReferences();
+            if (!deleteChunkedBlob(blobId, connection, references)) {
+                throw new BlobstoreException("blob [" + blobId + "] does not exist");
+            }
+            references.apply(connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, committed);
+        }
+    }
+
+    /**
+     * Deletes a blob and its manifest. The references of the blob are removed from the chunks, and the chunks that are
+     * not referenced by other blobs are deleted, when the references are applied.
+     *
+     * @return Whether the blob existed.
+     */
+    private boolean deleteChunkedBlob(final long blobId, final Connection connection,
+            final ChunkReferences references) throws SQLException {
+        PreparedStatement queryStatement = connection.prepareStatement(SQL_QUERY_BLOB_CHUNK_IDS);
+        try {
+            queryStatement.setLong(1, blobId);
+            ResultSet resultSet = queryStatement.executeQuery();
+            while (resultSet.next()) {
+                references.remove(resultSet.getLong(1));
+            }
+        } finally {
+            queryStatement.close();
+        }
+        executeUpdate(connection, SQL_DELETE_BLOB_CHUNKS, blobId);
+        return executeUpdate(connection, SQL_DELETE_BLOB, blobId) > 0;
+    }
+
+    @Override
+    public String getDescriptionByBlobId(final long blobId) {
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            PreparedStatement preparedStatement = connection.prepareStatement(SQL_QUERY_DESCRIPTION);
+            try {
+                preparedStatement.setLong(1, blobId);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                if (resultSet.next()) {
+                    return resultSet.getString(1);
+                } else {
+                    throw new BlobstoreException("blob [" + blobId + "] does not exist");
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, true);
+        }
+    }
+
+    @Override
+    public List<Integer> getUploadedPartNumbers(final long uploadId) {
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            queryUpload(SQL_QUERY_UPLOAD, uploadId, connection);
+            List<Integer> partNumbers = new ArrayList<Integer>();
+            PreparedStatement preparedStatement = connection.prepareStatement(SQL_QUERY_PART_NUMBERS);
+            try {
+                preparedStatement.setLong(1, uploadId);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                while (resultSet.next()) {
+                    partNumbers.add(resultSet.getInt(1));
+                }
+            } finally {
+                preparedStatement.close();
+            }
+            return partNumbers;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, true);
+        }
+    }
+
+    @Override
+    public long initiateMultipartUpload(final String description) {
+        checkDescription(description);
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            return insertWithDescription(connection, SQL_INSERT_UPLOAD, description);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, true);
+        }
+    }
+
+    @Override
+    public BlobOutputStream openBlobOutputStream(final String description) {
+        checkDescription(description);
+        Connection connection = null;
+        boolean opened = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            long blobId = insertWithDescription(connection, SQL_INSERT_BLOB, description);
+            BlobOutputStream out = new ChunkedBlobOutputStream(connection, blobId, chunker, logger);
+            opened = true;
+            return out;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            if (!opened) {
+                release(connection, false);
+            }
+        }
+    }
+
+    /**
+     * Queries the id, the size and the number of chunks of the blobs of the parts of an upload in the order of the
+     * part numbers.
+     */
+    private List<long[]> queryParts(final long uploadId, final Connection connection) throws SQLException {
+        List<long[]> parts = new ArrayList<long[]>();
+        PreparedStatement preparedStatement = connection.prepareStatement(SQL_QUERY_PARTS);
+        try {
+            preparedStatement.setLong(1, uploadId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                parts.add(new long[] { resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3) });
+            }
+        } finally {
+            preparedStatement.close();
+        }
+        return parts;
+    }
+
+    /**
+     * Rolls back the transaction of the connection unless it has been committed and closes the connection.
+     */
+    private void release(final Connection connection, final boolean committed) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            try {
+                if (!committed) {
+                    connection.rollback();
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            logger.log(LogService.LOG_ERROR, e.getMessage());
+        }
+    }
+
+    @Override
+    public long storeBlob(final InputStream blobStream, final Long length, final String description) {
+        Objects.requireNonNull(blobStream, "blobStream cannot be null");
+        checkDescription(description);
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            ChunkReferences references = new ChunkReferences();
+            long blobId = storeChunkedBlob(blobStream, length, description, connection, references);
+            references.apply(connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+            return blobId;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, committed);
+        }
+    }
+
+    @Override
+    public List<Long> storeBlobs(final List<BlobInput> blobs) {
+        Objects.requireNonNull(blobs, "blobs cannot be null");
+        for (BlobInput blob : blobs) {
+            checkDescription(blob.getDescription());
+        }
+        List<Long> blobIds = new ArrayList<Long>(blobs.size());
+        if (blobs.isEmpty()) {
+            return blobIds;
+        }
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            ChunkReferences references = new ChunkReferences();
+            for (BlobInput blob : blobs) {
+                blobIds.add(storeChunkedBlob(blob.getBlobStream(), blob.getLength(), blob.getDescription(),
+                        connection, references));
+            }
+            references.apply(connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+            return blobIds;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, committed);
+        }
+    }
+
+    /**
+     * Splits a stream into chunks and stores the new chunks and the manifest of a new blob in the transaction of the
+     * connection. The references of the blob are collected by the references, which must be applied before the
+     * transaction is committed.
+     *
+     * @return The id of the blob.
+     */
+    private long storeChunkedBlob(final InputStream blobStream, final Long length, final String description,
+            final Connection connection, final ChunkReferences references) throws SQLException, IOException {
+        long blobId = insertWithDescription(connection, SQL_INSERT_BLOB, description);
+        ChunkWriter writer = new ChunkWriter(connection, blobId, references);
+        try {
+            ChunkingOutputStream out = new ChunkingOutputStream(chunker, writer);
+            long bytesProcessed = StreamUtil.copyStream(blobStream, out, length,
+                    JDBCBlobstoreStorage.IO_BUFFER_SIZE);
+            if ((length != null) && (length.longValue() != bytesProcessed)) {
+                throw new BlobstoreException("too short stream");
+            }
+            out.close();
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return blobId;
+    }
+
+    /**
+     * Stores the part as a chunked blob in its own transaction. A part that has been stored with the same number is
+     * replaced. The upload is not locked while the part is streamed, so the parts of an upload are stored
+     * concurrently. The row of the part references the upload, so the part fails if the upload is completed or
+     * aborted before the part is committed, and the completion or the abortion waits for the parts that have already
+     * been inserted.
+     */
+    @Override
+    public void uploadPart(final long uploadId, final int partNumber, final InputStream partStream,
+            final Long length) {
+        Objects.requireNonNull(partStream, "partStream cannot be null");
+        if (partNumber <= 0) {
+            throw new IllegalArgumentException("partNumber must be positive: " + partNumber);
+        }
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            queryUpload(SQL_QUERY_UPLOAD, uploadId, connection);
+            Long replacedBlobId = null;
+            PreparedStatement queryStatement = connection.prepareStatement(SQL_QUERY_PART);
+            try {
+                queryStatement.setLong(1, uploadId);
+                queryStatement.setInt(2, partNumber);
+                ResultSet resultSet = queryStatement.executeQuery();
+                if (resultSet.next()) {
+                    replacedBlobId = resultSet.getLong(1);
+                }
+            } finally {
+                queryStatement.close();
+            }
+            ChunkReferences references = new ChunkReferences();
+            if (replacedBlobId != null) {
+                executeUpdate(connection, SQL_DELETE_PART, uploadId, partNumber);
+                deleteChunkedBlob(replacedBlobId, connection, references);
+            }
+            long partBlobId = storeChunkedBlob(partStream, length, null, connection, references);
+            references.apply(connection);
+            executeUpdate(connection, SQL_INSERT_PART, uploadId, partNumber, partBlobId);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            release(connection, committed);
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import javax.sql.DataSource;
+
+import org.everit.osgi.blobstore.api.BlobRange;
+import org.everit.osgi.blobstore.api.BlobstoreException;
+import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
+import org.everit.osgi.blobstore.chunking.ChunkManifest;
+
+/**
+ * Reads a blob of the {@link ChunkingJDBCBlobstoreStorage}. The manifest of the blob is queried once, then the chunk
+ * that holds a position is found by binary search and only the chunks of the requested ranges are read. The last read
+ * chunk is kept, so the sequential reads of a chunk query it once.
+ */
+public class ChunkingJDBCBlobstoreStorageReader implements BlobstoreStorageReader {
+
+    private final DataSource dataSource;
+
+    private final long blobId;
+
+    /**
+     * The position of the first byte that may be read.
+     */
+    private final long rangeStart;
+
+    /**
+     * The number of bytes that may be read or <code>null</code> if the blob may be read till its end.
+     */
+    private final Long rangeLength;
+
+    private Connection connection;
+
+    /**
+     * The size of the blob.
+     */
+    private Long totalSize = null;
+
+    /**
+     * The number of chunks of the blob that is stored in the row of the blob.
+     */
+    private int chunkCount;
+
+    private ChunkManifest manifest;
+
+    /**
+     * The index of the chunk whose content is kept in {@link #chunkData} or <code>-1</code>.
+     */
+    private int cachedChunkIndex = -1;
+
+    private byte[] chunkData;
+
+    /**
+     * Constructor.
+     *
+     * @param dataSource
+     *            The connection provider that allows us getting database connections.
+     * @param blobId
+     *            The id of the blob to be read.
+     * @param startPosition
+     *            The offset at which the blob reading starts.
+     * @param length
+     *            The number of bytes that may be read or <code>null</code> if the blob may be read till its end.
+     */
+    public ChunkingJDBCBlobstoreStorageReader(final DataSource dataSource, final long blobId,
+            final long startPosition, final Long length) {
+        this.dataSource = Objects.requireNonNull(dataSource, "dataSource cannot be null");
+        this.blobId = blobId;
+        rangeStart = (length == null) ? 0 : startPosition;
+        rangeLength = length;
+    }
+
+    private void checkRange(final long startPosition, final int amount) throws SQLException {
+        if ((startPosition < rangeStart)
+                || ((rangeLength != null) && ((startPosition + amount) > (rangeStart + rangeLength)))) {
+            throw new SQLException("Range [" + startPosition + ", " + (startPosition + amount)
+                    + ") is outside of the readable range of blob [" + blobId + "]");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunkData = null;
+        cachedChunkIndex = -1;
+        try {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the content of a chunk, queried from the database unless it is the last read chunk.
+     */
+    private byte[] getChunkData(final int chunkIndex) throws SQLException {
+        if (chunkIndex == cachedChunkIndex) {
+            return chunkData;
+        }
+        int chunkLength = manifest.getChunkLength(chunkIndex);
+        PreparedStatement preparedStatement = getConnection().prepareStatement(
+                ChunkingJDBCBlobstoreStorage.SQL_QUERY_CHUNK_DATA);
+        try {
+            preparedStatement.setLong(1, manifest.getChunkId(chunkIndex));
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (!resultSet.next()) {
+                throw new BlobstoreException("chunk [" + manifest.getChunkId(chunkIndex) + "] of blob [" + blobId
+                        + "] does not exist");
+            }
+            byte[] data = new byte[chunkLength];
+            InputStream is = resultSet.getBinaryStream(1);
+            try {
+                int readBytes = 0;
+                while (readBytes < chunkLength) {
+                    int r = is.read(data, readBytes, chunkLength - readBytes);
+                    if (r < 0) {
+                        throw new BlobstoreException("chunk [" + manifest.getChunkId(chunkIndex)
+                                + "] is shorter than its length in the manifest of blob [" + blobId + "]");
+                    }
+                    readBytes += r;
+                }
+            } finally {
+                is.close();
+            }
+            chunkData = data;
+            cachedChunkIndex = chunkIndex;
+            return data;
+        } catch (IOException e) {
+            throw new SQLException(e);
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    private Connection getConnection() {
+        try {
+            if (connection == null) {
+                connection = dataSource.getConnection();
+            }
+            return connection;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        }
+    }
+
+    /**
+     * Returns the manifest of the blob. It is queried lazily, as only the size is needed to read an empty blob.
+     */
+    private ChunkManifest getManifest() throws SQLException {
+        if (manifest == null) {
+            long size = getTotalSize();
+            long[] chunkIds = new long[chunkCount];
+            long[] chunkOffsets = new long[chunkCount];
+            int i = 0;
+            PreparedStatement preparedStatement = getConnection().prepareStatement(
+                    ChunkingJDBCBlobstoreStorage.SQL_QUERY_MANIFEST);
+            try {
+                preparedStatement.setLong(1, blobId);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                while (resultSet.next()) {
+                    if (i == chunkCount) {
+                        throw new BlobstoreException("blob [" + blobId + "] has more chunks than " + chunkCount);
+                    }
+                    chunkIds[i] = resultSet.getLong(1);
+                    chunkOffsets[i] = resultSet.getLong(2);
+                    i++;
+                }
+            } finally {
+                preparedStatement.close();
+            }
+            if (i != chunkCount) {
+                throw new BlobstoreException("blob [" + blobId + "] has " + i + " chunks instead of " + chunkCount);
+            }
+            manifest = new ChunkManifest(chunkIds, chunkOffsets, size);
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the size of the blob. The size is queried lazily, so a reader whose size is known by the caller does not
+     * access the database until the first read.
+     */
+    @Override
+    public long getTotalSize() throws SQLException {
+        if (totalSize == null) {
+            PreparedStatement preparedStatement = getConnection().prepareStatement(
+                    ChunkingJDBCBlobstoreStorage.SQL_QUERY_BLOB);
+            try {
+                preparedStatement.setLong(1, blobId);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                if (!resultSet.next()) {
+                    throw new BlobstoreException("blob [" + blobId + "] does not exist");
+                }
+                chunkCount = resultSet.getInt(2);
+                totalSize = resultSet.getLong(1);
+            } finally {
+                preparedStatement.close();
+            }
+        }
+        return totalSize;
+    }
+
+    /**
+     * Copies a range of the blob chunk by chunk.
+     */
+    private void read(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        checkRange(startPosition, amount);
+        if (amount == 0) {
+            return;
+        }
+        ChunkManifest lManifest = getManifest();
+        if ((startPosition + amount) > lManifest.getSize()) {
+            throw new SQLException("Range [" + startPosition + ", " + (startPosition + amount)
+                    + ") is beyond the end of blob [" + blobId + "]");
+        }
+        int chunkIndex = lManifest.indexOf(startPosition);
+        int copied = 0;
+        while (copied < amount) {
+            long position = startPosition + copied;
+            int positionInChunk = (int) (position - lManifest.getChunkOffset(chunkIndex));
+            byte[] data = getChunkData(chunkIndex);
+            int n = Math.min(data.length - positionInChunk, amount - copied);
+            System.arraycopy(data, positionInChunk, dest, offset + copied, n);
+            copied += n;
+            chunkIndex++;
+        }
+    }
+
+    @Override
+    public byte[] readDataFromStorage(final long startPosition, final int amount) throws SQLException {
+        byte[] result = new byte[amount];
+        read(startPosition, result, 0, amount);
+        return result;
+    }
+
+    /**
+     * Reads the ranges with the manifest that is queried once for all of them.
+     */
+    @Override
+    public List<byte[]> readDataFromStorage(final List<BlobRange> ranges) throws SQLException {
+        List<byte[]> result = new ArrayList<byte[]>(ranges.size());
+        for (BlobRange range : ranges) {
+            result.add(readDataFromStorage(range.getStartPosition(), range.getLength()));
+        }
+        return result;
+    }
+
+    @Override
+    public void readInto(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        Objects.requireNonNull(dest, "dest cannot be null");
+        read(startPosition, dest, offset, amount);
+    }
+
+}
@@ -0,0 +1,146 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.jdbc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.everit.osgi.blobstore.api.BlobOutputStream;
+
+/**
+ * Writes a new blob into a {@link Blob} created by {@link Connection#createBlob()}. The driver decides whether the
+ * written bytes are sent to the database or spooled locally. The row of the blob is inserted and committed when the
+ * stream is closed.
+ */
+class JDBCBlobOutputStream extends BlobOutputStream {
+
+    /**
+     * The connection of the transaction, <code>null</code> if the stream is closed or aborted.
+     */
+    private Connection connection;
+
+    private final Blob blob;
+
+    private final OutputStream out;
+
+    private final String description;
+
+    /**
+     * The id of the blob, <code>null</code> until the row of the blob is inserted.
+     */
+    private Long blobId = null;
+
+    JDBCBlobOutputStream(final Connection connection, final Blob blob, final String description)
+            throws SQLException {
+        this.connection = connection;
+        this.blob = blob;
+        this.description = description;
+        out = blob.setBinaryStream(1);
+    }
+
+    @Override
+    public void abort() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        try {
+            out.close();
+        } finally {
+            release(false);
+        }
+    }
+
+    /**
+     * Inserts the row of the blob and commits the transaction.
+     */
+    @Override
+    public void close() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        boolean committed = false;
+        try {
+            out.close();
+            blobId = JDBCBlobstoreStorage.insertBlob(connection, blob, description);
+            connection.commit();
+            committed = true;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            release(committed);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (connection == null) {
+            throw new IOException("the stream of the blob is closed");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        out.flush();
+    }
+
+    @Override
+    public long getBlobId() {
+        if (blobId == null) {
+            throw new IllegalStateException("the blob id is known after the stream is closed");
+        }
+        return blobId;
+    }
+
+    /**
+     * Frees the blob, rolls back the transaction if it has not been committed and closes the connection.
+     */
+    private void release(final boolean committed) throws IOException {
+        Connection lConnection = connection;
+        connection = null;
+        try {
+            try {
+                blob.free();
+            } finally {
+                try {
+                    if (!committed) {
+                        lConnection.rollback();
+                    }
+                } finally {
+                    lConnection.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureOpen();
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureOpen();
+        out.write(b);
+    }
+
+}
@@ -19,12 +19,21 @@ package org.everit.osgi.blobstore.jdbc;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sql.DataSource;
 
@@ -35,6 +44,8 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.blobstore.api.BlobInput;
+import org.everit.osgi.blobstore.api.BlobOutputStream;
 import org.everit.osgi.blobstore.api.Blobstore;
 import org.everit.osgi.blobstore.api.BlobstoreException;
 import org.everit.osgi.blobstore.api.storage.BlobstoreStorage;
@@ -52,11 +63,28 @@ metatype = true, immediate = true,
 policy = ConfigurationPolicy.REQUIRE,
 configurationFactory = true)
 @Properties({
-    @Property(name = "dataSource.target")
+    @Property(name = "dataSource.target"),
+    @Property(name = JDBCBlobstoreStorage.PROP_DEDUPLICATION,
+            boolValue = JDBCBlobstoreStorage.DEFAULT_DEDUPLICATION)
 })
 @Service
 public class JDBCBlobstoreStorage implements BlobstoreStorage {
 
+    /**
+     * Whether {@link #storeBlob(InputStream, Long, String)} stores the content of identical blobs only once. The
+     * content of each blob is digested while it is written and the blobs with the same digest share one row of the
+     * content table. Blobs stored in other ways keep their content in their own row, but they may be deleted in any
+     * mode.
+     */
+    public static final String PROP_DEDUPLICATION = "deduplication";
+
+    public static final boolean DEFAULT_DEDUPLICATION = false;
+
+    /**
+     * The algorithm of the digest that identifies the content of the blobs if {@link #PROP_DEDUPLICATION} is set.
+     */
+    public static final String CONTENT_DIGEST_ALGORITHM = "SHA-256";
+
     /**
      * Name of the table the blob is stored.
      */
@@ -92,6 +120,178 @@ public class JDBCBlobstoreStorage implements BlobstoreStorage {
     public static final String SQL_INSERT_BLOB = "INSERT INTO " + TABLE_NAME + " ("
             + COLUMN_BLOB_DATA + ", " + COLUMN_DESCRIPTION + ") VALUES (?, ?)";
 
+    /**
+     * Name of the table of the multipart uploads.
+     */
+    public static final String UPLOAD_TABLE_NAME = "BS_JDBC_UPLOAD";
+
+    /**
+     * Name of the table of the stored parts of the multipart uploads.
+     */
+    public static final String UPLOAD_PART_TABLE_NAME = "BS_JDBC_UPLOAD_PART";
+
+    /**
+     * Name of the column of the upload id.
+     */
+    public static final String COLUMN_UPLOAD_ID = "UPLOAD_ID";
+
+    /**
+     * Name of the column of the part number.
+     */
+    public static final String COLUMN_PART_NUMBER = "PART_NUMBER";
+
+    /**
+     * Name of the column the part is stored.
+     */
+    public static final String COLUMN_PART_DATA = "PART_DATA";
+
+    /**
+     * SQL statement to insert a new multipart upload.
+     */
+    public static final String SQL_INSERT_UPLOAD = "INSERT INTO " + UPLOAD_TABLE_NAME + " (" + COLUMN_DESCRIPTION
+            + ") VALUES (?)";
+
+    /**
+     * SQL query to get the description of the blob of an upload.
+     */
+    public static final String SQL_QUERY_UPLOAD = "SELECT " + COLUMN_DESCRIPTION + " FROM " + UPLOAD_TABLE_NAME
+            + " WHERE " + COLUMN_UPLOAD_ID + " = ?";
+
+    /**
+     * SQL query to lock an upload while it is completed or aborted. The parts are stored without locking the upload, so
+     * the parts of the same upload can be stored concurrently.
+     */
+    public static final String SQL_LOCK_UPLOAD = SQL_QUERY_UPLOAD + " FOR UPDATE";
+
+    /**
+     * SQL query to get the numbers of the stored parts of an upload.
+     */
+    public static final String SQL_QUERY_PART_NUMBERS = "SELECT " + COLUMN_PART_NUMBER + " FROM "
+            + UPLOAD_PART_TABLE_NAME + " WHERE " + COLUMN_UPLOAD_ID + " = ? ORDER BY " + COLUMN_PART_NUMBER;
+
+    /**
+     * SQL query to get the content of the stored parts of an upload in the order of the part numbers.
+     */
+    public static final String SQL_QUERY_PARTS = "SELECT " + COLUMN_PART_DATA + " FROM " + UPLOAD_PART_TABLE_NAME
+            + " WHERE " + COLUMN_UPLOAD_ID + " = ? ORDER BY " + COLUMN_PART_NUMBER;
+
+    /**
+     * SQL statement to delete a stored part.
+     */
+    public static final String SQL_DELETE_PART = "DELETE FROM " + UPLOAD_PART_TABLE_NAME + " WHERE "
+            + COLUMN_UPLOAD_ID + " = ? AND " + COLUMN_PART_NUMBER + " = ?";
+
+    /**
+     * SQL statement to insert a stored part.
+     */
+    public static final String SQL_INSERT_PART = "INSERT INTO " + UPLOAD_PART_TABLE_NAME + " (" + COLUMN_UPLOAD_ID
+            + ", " + COLUMN_PART_NUMBER + ", " + COLUMN_PART_DATA + ") VALUES (?, ?, ?)";
+
+    /**
+     * SQL statement to delete the stored parts of an upload.
+     */
+    public static final String SQL_DELETE_PARTS = "DELETE FROM " + UPLOAD_PART_TABLE_NAME + " WHERE "
+            + COLUMN_UPLOAD_ID + " = ?";
+
+    /**
+     * SQL statement to delete an upload.
+     */
+    public static final String SQL_DELETE_UPLOAD = "DELETE FROM " + UPLOAD_TABLE_NAME + " WHERE " + COLUMN_UPLOAD_ID
+            + " = ?";
+
+    /**
+     * Name of the table of the content that is shared by blobs of identical content.
+     */
+    public static final String CONTENT_TABLE_NAME = "BS_JDBC_CONTENT";
+
+    /**
+     * Name of the column of the content id. The blobs that share a content reference it by this column too.
+     */
+    public static final String COLUMN_CONTENT_ID = "CONTENT_ID";
+
+    /**
+     * Name of the column of the hexadecimal digest of the content. The digest is <code>null</code> only while the
+     * content is written, because it is known only after the driver has read the stream of the blob.
+     */
+    public static final String COLUMN_CONTENT_DIGEST = "CONTENT_DIGEST";
+
+    /**
+     * Name of the column the shared content is stored.
+     */
+    public static final String COLUMN_CONTENT_DATA = "CONTENT_DATA";
+
+    /**
+     * Name of the column of the number of blobs that share the content.
+     */
+    public static final String COLUMN_REFERENCE_COUNT = "REFERENCE_COUNT";
+
+    /**
+     * SQL statement to insert the content of a blob before its digest is known.
+     */
+    public static final String SQL_INSERT_CONTENT = "INSERT INTO " + CONTENT_TABLE_NAME + " (" + COLUMN_CONTENT_DATA
+            + ", " + COLUMN_REFERENCE_COUNT + ") VALUES (?, 1)";
+
+    /**
+     * SQL statement to set the digest of a newly inserted content.
+     */
+    public static final String SQL_UPDATE_CONTENT_DIGEST = "UPDATE " + CONTENT_TABLE_NAME + " SET "
+            + COLUMN_CONTENT_DIGEST + " = ? WHERE " + COLUMN_CONTENT_ID + " = ?";
+
+    /**
+     * SQL statement to add a reference to the content of a digest.
+     */
+    public static final String SQL_REFERENCE_CONTENT = "UPDATE " + CONTENT_TABLE_NAME + " SET "
+            + COLUMN_REFERENCE_COUNT + " = " + COLUMN_REFERENCE_COUNT + " + 1 WHERE " + COLUMN_CONTENT_DIGEST
+            + " = ?";
+
+    /**
+     * SQL query to get the id of the content of a digest.
+     */
+    public static final String SQL_QUERY_CONTENT_ID = "SELECT " + COLUMN_CONTENT_ID + " FROM " + CONTENT_TABLE_NAME
+            + " WHERE " + COLUMN_CONTENT_DIGEST + " = ?";
+
+    /**
+     * SQL statement to remove a reference from a content.
+     */
+    public static final String SQL_DEREFERENCE_CONTENT = "UPDATE " + CONTENT_TABLE_NAME + " SET "
+            + COLUMN_REFERENCE_COUNT + " = " + COLUMN_REFERENCE_COUNT + " - 1 WHERE " + COLUMN_CONTENT_ID + " = ?";
+
+    /**
+     * SQL statement to delete a content that is not referenced anymore.
+     */
+    public static final String SQL_DELETE_UNREFERENCED_CONTENT = "DELETE FROM " + CONTENT_TABLE_NAME + " WHERE "
+            + COLUMN_CONTENT_ID + " = ? AND " + COLUMN_REFERENCE_COUNT + " = 0";
+
+    /**
+     * SQL statement to delete the content that has been written for a blob whose content has already been stored.
+     */
+    public static final String SQL_DELETE_CONTENT = "DELETE FROM " + CONTENT_TABLE_NAME + " WHERE "
+            + COLUMN_CONTENT_ID + " = ?";
+
+    /**
+     * SQL statement to insert a new blob that references a shared content.
+     */
+    public static final String SQL_INSERT_DEDUPLICATED_BLOB = "INSERT INTO " + TABLE_NAME + " (" + COLUMN_CONTENT_ID
+            + ", " + COLUMN_DESCRIPTION + ") VALUES (?, ?)";
+
+    /**
+     * SQL query to get the id of the shared content of a blob.
+     */
+    public static final String SQL_QUERY_BLOB_CONTENT_ID = "SELECT " + COLUMN_CONTENT_ID + " FROM " + TABLE_NAME
+            + " WHERE " + COLUMN_BLOB_ID + " = ?";
+
+    /**
+     * SQL statement to delete a blob.
+     */
+    public static final String SQL_DELETE_BLOB = "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_BLOB_ID + " = ?";
+
+    /**
+     * The class of the SQL states of integrity constraint violations.
+     */
+    private static final String SQLSTATE_INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Connection provider for this blobstore service. By default a {@link DataSourceConnectionProvider} is instantiated
      * that may be overridden in the constructor of a subclass.
@@ -105,8 +305,251 @@ public class JDBCBlobstoreStorage implements BlobstoreStorage {
     @Reference
     private LogService logger;
 
+    /**
+     * The most efficient read mode that the JDBC driver supports as far as the readers found out.
+     */
+    private final AtomicReference<BlobReadMode> readMode = new AtomicReference<BlobReadMode>(BlobReadMode.BYTES);
+
+    /**
+     * Whether the content of identical blobs is stored only once, see {@link #PROP_DEDUPLICATION}.
+     */
+    private boolean deduplication = DEFAULT_DEDUPLICATION;
+
+    private static void checkDescription(final String description) {
+        if ((description != null) && (description.length() > Blobstore.BLOB_DESCRIPTION_MAX_LENGTH)) {
+            throw new BlobstoreException("description length must be at most " +
+                    Blobstore.BLOB_DESCRIPTION_MAX_LENGTH + ", actual length: " + description.length());
+        }
+    }
+
+    /**
+     * Creates the digest of the content of a blob.
+     */
+    private static MessageDigest createContentDigest() {
+        try {
+            return MessageDigest.getInstance(CONTENT_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new BlobstoreException(e);
+        }
+    }
+
+    /**
+     * Runs a statement that has an id as its only parameter.
+     *
+     * @return The number of the affected rows.
+     */
+    private static int executeById(final String sql, final long id, final Connection connection)
+            throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        try {
+            preparedStatement.setLong(1, id);
+            return preparedStatement.executeUpdate();
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    /**
+     * Reads the generated key of the row inserted by a statement that was prepared with
+     * {@link Statement#RETURN_GENERATED_KEYS}.
+     */
+    private static long getGeneratedKey(final PreparedStatement preparedStatement) throws SQLException {
+        ResultSet keyset = preparedStatement.getGeneratedKeys();
+        try {
+            if (!keyset.next()) {
+                throw new BlobstoreException("Id was not returned from database after running insert statement.");
+            }
+            return keyset.getLong(1);
+        } finally {
+            keyset.close();
+        }
+    }
+
+    /**
+     * Inserts a new blob whose content has been written into a {@link Blob} created by the connection.
+     *
+     * @return The id of the blob.
+     */
+    static long insertBlob(final Connection connection, final Blob blob, final String description)
+            throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(SQL_INSERT_BLOB,
+                Statement.RETURN_GENERATED_KEYS);
+        try {
+            preparedStatement.setBlob(1, blob);
+            preparedStatement.setString(2, description);
+            preparedStatement.executeUpdate();
+            return getGeneratedKey(preparedStatement);
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    /**
+     * Queries the id of the shared content of a blob.
+     *
+     * @return The id of the content or <code>null</code> if the blob does not exist or its content is not shared.
+     */
+    private static Long queryBlobContentId(final long blobId, final Connection connection) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(SQL_QUERY_BLOB_CONTENT_ID);
+        try {
+            preparedStatement.setLong(1, blobId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (!resultSet.next()) {
+                return null;
+            }
+            long contentId = resultSet.getLong(1);
+            if (resultSet.wasNull()) {
+                return null;
+            }
+            return contentId;
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    /**
+     * Queries the description of the blob of an upload.
+     *
+     * @param sql
+     *            {@link #SQL_QUERY_UPLOAD} or {@link #SQL_LOCK_UPLOAD}.
+     * @throws BlobstoreException
+     *             if the upload does not exist.
+     */
+    private static String queryUpload(final String sql, final long uploadId, final Connection connection)
+            throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        try {
+            preparedStatement.setLong(1, uploadId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (!resultSet.next()) {
+                throw new BlobstoreException("upload [" + uploadId + "] does not exist");
+            }
+            return resultSet.getString(1);
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
+    /**
+     * Adds a reference to the content of a digest.
+     *
+     * @return The id of the content or <code>-1</code> if no content is stored with the digest.
+     */
+    private static long referenceContent(final String contentDigest, final Connection connection)
+            throws SQLException {
+        PreparedStatement referenceStatement = connection.prepareStatement(SQL_REFERENCE_CONTENT);
+        try {
+            referenceStatement.setString(1, contentDigest);
+            if (referenceStatement.executeUpdate() == 0) {
+                return -1;
+            }
+        } finally {
+            referenceStatement.close();
+        }
+        PreparedStatement queryStatement = connection.prepareStatement(SQL_QUERY_CONTENT_ID);
+        try {
+            queryStatement.setString(1, contentDigest);
+            ResultSet resultSet = queryStatement.executeQuery();
+            if (!resultSet.next()) {
+                throw new BlobstoreException("content [" + contentDigest + "] has been referenced but not found");
+            }
+            return resultSet.getLong(1);
+        } finally {
+            queryStatement.close();
+        }
+    }
+
+    /**
+     * Sets the parameters of {@link #SQL_INSERT_BLOB}.
+     */
+    private static void setInsertParameters(final PreparedStatement preparedStatement, final InputStream blobStream,
+            final Long length, final String description) throws SQLException {
+        if (length == null) {
+            preparedStatement.setBinaryStream(1, blobStream);
+        } else {
+            preparedStatement.setBinaryStream(1, blobStream, length);
+        }
+        preparedStatement.setString(2, description);
+    }
+
+    /**
+     * Makes a newly inserted content the shared content of its digest, or references the content of the digest if one
+     * has already been stored. In the latter case the new content is deleted. The digest is unique, so a concurrent
+     * transaction that stores the same content waits until this one ends and then references the content of this
+     * one.
+     *
+     * @return The id of the content that the blob references.
+     */
+    private static long shareContent(final String contentDigest, final long contentId, final Connection connection)
+            throws SQLException {
+        long sharedContentId = referenceContent(contentDigest, connection);
+        if (sharedContentId < 0) {
+            Savepoint savepoint = connection.setSavepoint();
+            PreparedStatement updateStatement = connection.prepareStatement(SQL_UPDATE_CONTENT_DIGEST);
+            try {
+                updateStatement.setString(1, contentDigest);
+                updateStatement.setLong(2, contentId);
+                updateStatement.executeUpdate();
+                connection.releaseSavepoint(savepoint);
+                return contentId;
+            } catch (SQLException e) {
+                String sqlState = e.getSQLState();
+                if ((sqlState == null) || !sqlState.startsWith(SQLSTATE_INTEGRITY_CONSTRAINT_VIOLATION)) {
+                    throw e;
+                }
+                connection.rollback(savepoint);
+                connection.releaseSavepoint(savepoint);
+                sharedContentId = referenceContent(contentDigest, connection);
+                if (sharedContentId < 0) {
+                    throw e;
+                }
+            } finally {
+                updateStatement.close();
+            }
+        }
+        executeById(SQL_DELETE_CONTENT, contentId, connection);
+        return sharedContentId;
+    }
+
+    /**
+     * Converts a digest to the hexadecimal form that is stored in the content table.
+     */
+    private static String toHex(final byte[] digest) {
+        char[] result = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            result[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            result[(2 * i) + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+    @Override
+    public void abortMultipartUpload(final long uploadId) {
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            queryUpload(SQL_LOCK_UPLOAD, uploadId, connection);
+            executeById(SQL_DELETE_PARTS, uploadId, connection);
+            executeById(SQL_DELETE_UPLOAD, uploadId, connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
+        }
+    }
+
     @Activate
-    public void activate(final BundleContext ctx) {
+    public void activate(final BundleContext ctx, final Map<String, Object> componentProperties) {
+        Object deduplicationValue = componentProperties.get(PROP_DEDUPLICATION);
+        if (deduplicationValue != null) {
+            deduplication = Boolean.parseBoolean(String.valueOf(deduplicationValue).trim());
+        }
         liquibaseService.process(dataSource, ctx.getBundle(), "/META-INF/liquibase/blobstore-jdbc.liquibase.xml");
     }
 
@@ -148,27 +591,117 @@ public class JDBCBlobstoreStorage implements BlobstoreStorage {
         }
     }
 
+    /**
+     * Assembles the blob and deletes the upload in one transaction. There is no portable way to concatenate blobs on
+     * the database server, so the parts are copied through a {@link Blob} created by the connection. The upload is
+     * locked first, so no part is stored meanwhile.
+     */
+    @Override
+    public long completeMultipartUpload(final long uploadId) {
+        Connection connection = null;
+        Blob blob = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            String description = queryUpload(SQL_LOCK_UPLOAD, uploadId, connection);
+            blob = connection.createBlob();
+            OutputStream out = blob.setBinaryStream(1);
+            try {
+                copyParts(uploadId, out, connection);
+            } finally {
+                out.close();
+            }
+            long blobId = insertBlob(connection, blob, description);
+            executeById(SQL_DELETE_PARTS, uploadId, connection);
+            executeById(SQL_DELETE_UPLOAD, uploadId, connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+            return blobId;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            try {
+                if (blob != null) {
+                    blob.free();
+                }
+            } catch (SQLException e) {
+                logger.log(LogService.LOG_ERROR, e.getMessage());
+            } finally {
+                rollbackIfNotCommitted(connection, committed);
+                cleanup(connection, null);
+            }
+        }
+    }
+
+    /**
+     * Copies the stored parts of an upload into a stream in the order of their part numbers.
+     */
+    private void copyParts(final long uploadId, final OutputStream out, final Connection connection)
+            throws SQLException, IOException {
+        PreparedStatement preparedStatement = connection.prepareStatement(SQL_QUERY_PARTS);
+        try {
+            preparedStatement.setLong(1, uploadId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                InputStream partStream = resultSet.getBinaryStream(1);
+                if (partStream != null) {
+                    try {
+                        StreamUtil.copyStream(partStream, out, null, IO_BUFFER_SIZE);
+                    } finally {
+                        partStream.close();
+                    }
+                }
+            }
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
     @Override
     public BlobstoreStorageReader createReader(
             final long blobId,
             final long startPosition) throws SQLException {
-        JDBCBlobstoreStorageReader rval = new JDBCBlobstoreStorageReader(dataSource, blobId, startPosition, logger);
+        JDBCBlobstoreStorageReader rval = new JDBCBlobstoreStorageReader(dataSource, blobId, startPosition, null,
+                readMode, logger);
         return rval;
     }
 
+    @Override
+    public BlobstoreStorageReader createReader(
+            final long blobId,
+            final long startPosition,
+            final long length) throws SQLException {
+        return new JDBCBlobstoreStorageReader(dataSource, blobId, startPosition, length, readMode, logger);
+    }
+
+    /**
+     * Deletes the row of the blob and releases its shared content in one transaction. The shared content is deleted
+     * together with the last blob that references it.
+     */
     @Override
     public void deleteBlob(final long blobId) {
         Connection connection = null;
+        boolean committed = false;
         try {
             connection = dataSource.getConnection();
-            PreparedStatement preparedStatement = connection
-                    .prepareStatement("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_BLOB_ID + " = ?");
-            preparedStatement.setLong(1, blobId);
-            preparedStatement.executeUpdate();
-            preparedStatement.close();
+            connection.setAutoCommit(false);
+            Long contentId = queryBlobContentId(blobId, connection);
+            executeById(SQL_DELETE_BLOB, blobId, connection);
+            if (contentId != null) {
+                executeById(SQL_DEREFERENCE_CONTENT, contentId, connection);
+                executeById(SQL_DELETE_UNREFERENCED_CONTENT, contentId, connection);
+            }
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlobstoreException(e);
         } finally {
+            rollbackIfNotCommitted(connection, committed);
             cleanup(connection, null);
         }
     }
@@ -209,12 +742,107 @@ public class JDBCBlobstoreStorage implements BlobstoreStorage {
         }
     }
 
+    @Override
+    public List<Integer> getUploadedPartNumbers(final long uploadId) {
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            queryUpload(SQL_QUERY_UPLOAD, uploadId, connection);
+            List<Integer> partNumbers = new ArrayList<Integer>();
+            PreparedStatement preparedStatement = connection.prepareStatement(SQL_QUERY_PART_NUMBERS);
+            try {
+                preparedStatement.setLong(1, uploadId);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                while (resultSet.next()) {
+                    partNumbers.add(resultSet.getInt(1));
+                }
+            } finally {
+                preparedStatement.close();
+            }
+            return partNumbers;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            cleanup(connection, null);
+        }
+    }
+
+    @Override
+    public long initiateMultipartUpload(final String description) {
+        checkDescription(description);
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            PreparedStatement preparedStatement = connection.prepareStatement(SQL_INSERT_UPLOAD,
+                    Statement.RETURN_GENERATED_KEYS);
+            try {
+                preparedStatement.setString(1, description);
+                preparedStatement.executeUpdate();
+                return getGeneratedKey(preparedStatement);
+            } finally {
+                preparedStatement.close();
+            }
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            cleanup(connection, null);
+        }
+    }
+
+    /**
+     * Opens a stream that writes into a {@link Blob} created by the driver. The driver must support
+     * {@link Connection#createBlob()}.
+     */
+    @Override
+    public BlobOutputStream openBlobOutputStream(final String description) {
+        checkDescription(description);
+        Connection connection = null;
+        Blob blob = null;
+        boolean opened = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            blob = connection.createBlob();
+            BlobOutputStream out = new JDBCBlobOutputStream(connection, blob, description);
+            opened = true;
+            return out;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            if (!opened) {
+                try {
+                    if (blob != null) {
+                        blob.free();
+                    }
+                } catch (SQLException e) {
+                    logger.log(LogService.LOG_ERROR, e.getMessage());
+                } finally {
+                    cleanup(connection, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rolls back the transaction of the connection unless it has been committed. A failure of the rollback is only
+     * logged, so it does not hide the exception that caused the rollback.
+     */
+    private void rollbackIfNotCommitted(final Connection connection, final boolean committed) {
+        if ((connection != null) && !committed) {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                logger.log(LogService.LOG_ERROR, "Cannot roll back transaction: " + e.getMessage());
+            }
+        }
+    }
+
     @Override
     public long storeBlob(final InputStream blobStream, final Long length, final String description) {
         Objects.requireNonNull(blobStream, "blobStream cannot be null");
-        if ((description != null) && (description.length() > Blobstore.BLOB_DESCRIPTION_MAX_LENGTH)) {
-            throw new BlobstoreException("description length must be at most " +
-                    Blobstore.BLOB_DESCRIPTION_MAX_LENGTH + ", actual length: " + description.length());
+        checkDescription(description);
+        if (deduplication) {
+            return storeDeduplicatedBlob(blobStream, length, description);
         }
         Connection connection = null;
         OutputStream binaryStream = null;
@@ -223,12 +851,7 @@ public class JDBCBlobstoreStorage implements BlobstoreStorage {
         try {
             connection = dataSource.getConnection();
             preparedStatement = connection.prepareStatement(SQL_INSERT_BLOB, Statement.RETURN_GENERATED_KEYS);
-            if (length == null) {
-                preparedStatement.setBinaryStream(1, blobStream);
-            } else {
-                preparedStatement.setBinaryStream(1, blobStream, length);
-            }
-            preparedStatement.setString(2, description);
+            setInsertParameters(preparedStatement, blobStream, length, description);
             preparedStatement.executeUpdate();
             keyset = preparedStatement.getGeneratedKeys();
             int lastKey = 1;
@@ -256,4 +879,161 @@ public class JDBCBlobstoreStorage implements BlobstoreStorage {
             }
         }
     }
+
+    /**
+     * Stores a blob in one transaction and digests its content while it is written into a new row of the content
+     * table. If the content has already been stored, the blob references the existing row instead of the new one.
+     */
+    private long storeDeduplicatedBlob(final InputStream blobStream, final Long length, final String description) {
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            MessageDigest digest = createContentDigest();
+            InputStream digestStream = new DigestInputStream(blobStream, digest);
+            long contentId;
+            PreparedStatement insertContentStatement = connection.prepareStatement(SQL_INSERT_CONTENT,
+                    Statement.RETURN_GENERATED_KEYS);
+            try {
+                if (length == null) {
+                    insertContentStatement.setBinaryStream(1, digestStream);
+                } else {
+                    insertContentStatement.setBinaryStream(1, digestStream, length);
+                }
+                insertContentStatement.executeUpdate();
+                contentId = getGeneratedKey(insertContentStatement);
+            } finally {
+                insertContentStatement.close();
+            }
+            long sharedContentId = shareContent(toHex(digest.digest()), contentId, connection);
+            long blobId;
+            PreparedStatement insertBlobStatement = connection.prepareStatement(SQL_INSERT_DEDUPLICATED_BLOB,
+                    Statement.RETURN_GENERATED_KEYS);
+            try {
+                insertBlobStatement.setLong(1, sharedContentId);
+                insertBlobStatement.setString(2, description);
+                insertBlobStatement.executeUpdate();
+                blobId = getGeneratedKey(insertBlobStatement);
+            } finally {
+                insertBlobStatement.close();
+            }
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+            return blobId;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
+        }
+    }
+
+    /**
+     * Stores the blobs by one prepared statement in one transaction. The rows are inserted one by one instead of a
+     * JDBC batch, because the drivers are not required to return the generated keys of a batch in order.
+     */
+    @Override
+    public List<Long> storeBlobs(final List<BlobInput> blobs) {
+        Objects.requireNonNull(blobs, "blobs cannot be null");
+        for (BlobInput blob : blobs) {
+            checkDescription(blob.getDescription());
+        }
+        List<Long> blobIds = new ArrayList<Long>(blobs.size());
+        if (blobs.isEmpty()) {
+            return blobIds;
+        }
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            preparedStatement = connection.prepareStatement(SQL_INSERT_BLOB, Statement.RETURN_GENERATED_KEYS);
+            for (BlobInput blob : blobs) {
+                setInsertParameters(preparedStatement, blob.getBlobStream(), blob.getLength(),
+                        blob.getDescription());
+                preparedStatement.executeUpdate();
+                ResultSet keyset = preparedStatement.getGeneratedKeys();
+                try {
+                    if (!keyset.next()) {
+                        throw new BlobstoreException("Blob id was not returned from database after running insert"
+                                + " statement.");
+                    }
+                    blobIds.add(keyset.getLong(1));
+                } finally {
+                    keyset.close();
+                }
+            }
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+            return blobIds;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            try {
+                if (preparedStatement != null) {
+                    preparedStatement.close();
+                }
+            } catch (SQLException e) {
+                logger.log(LogService.LOG_ERROR, e.getMessage());
+            } finally {
+                rollbackIfNotCommitted(connection, committed);
+                cleanup(connection, null);
+            }
+        }
+    }
+
+    /**
+     * Stores the part in its own transaction. A part that has been stored with the same number is replaced. The
+     * upload is not locked while the part is streamed, so the parts of an upload are stored concurrently. The row of
+     * the part references the upload, so the part fails if the upload is completed or aborted before the part is
+     * committed, and the completion or the abortion waits for the parts that have already been inserted.
+     */
+    @Override
+    public void uploadPart(final long uploadId, final int partNumber, final InputStream partStream,
+            final Long length) {
+        Objects.requireNonNull(partStream, "partStream cannot be null");
+        if (partNumber <= 0) {
+            throw new IllegalArgumentException("partNumber must be positive: " + partNumber);
+        }
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            queryUpload(SQL_QUERY_UPLOAD, uploadId, connection);
+            PreparedStatement deleteStatement = connection.prepareStatement(SQL_DELETE_PART);
+            try {
+                deleteStatement.setLong(1, uploadId);
+                deleteStatement.setInt(2, partNumber);
+                deleteStatement.executeUpdate();
+            } finally {
+                deleteStatement.close();
+            }
+            PreparedStatement insertStatement = connection.prepareStatement(SQL_INSERT_PART);
+            try {
+                insertStatement.setLong(1, uploadId);
+                insertStatement.setInt(2, partNumber);
+                if (length == null) {
+                    insertStatement.setBinaryStream(3, partStream);
+                } else {
+                    insertStatement.setBinaryStream(3, partStream, length);
+                }
+                insertStatement.executeUpdate();
+            } finally {
+                insertStatement.close();
+            }
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
+        }
+    }
 }
@@ -16,7 +16,6 @@
  */
 package org.everit.osgi.blobstore.jdbc;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Blob;
@@ -24,14 +23,24 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sql.DataSource;
 
+import org.everit.osgi.blobstore.api.BlobRange;
 import org.everit.osgi.blobstore.api.BlobstoreException;
 import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
 import org.osgi.service.log.LogService;
 
+/**
+ * Reads a blob by positional reads, so a read costs as much as the requested bytes regardless of the previously read
+ * positions. The way of the positional read is chosen by the capabilities of the JDBC driver, see
+ * {@link BlobReadMode}.
+ */
 public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
     /**
      * Logger for this class.
@@ -39,11 +48,14 @@ public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
     protected LogService logger;
 
     /**
-     * The statement which we can query a blob out from the database.
+     * The statement which we can query a blob out from the database. The content of a blob is selected from its own
+     * row, or from the row of the shared content if the blob was stored with deduplication.
      */
-    public static final String BLOB_SELECT_STATEMENT = "SELECT " + JDBCBlobstoreStorage.COLUMN_BLOB_DATA
-            + " FROM "
-            + JDBCBlobstoreStorage.TABLE_NAME + " WHERE " + JDBCBlobstoreStorage.COLUMN_BLOB_ID + "= ?";
+    public static final String BLOB_SELECT_STATEMENT = "SELECT b." + JDBCBlobstoreStorage.COLUMN_BLOB_DATA
+            + ", c." + JDBCBlobstoreStorage.COLUMN_CONTENT_DATA + " FROM " + JDBCBlobstoreStorage.TABLE_NAME
+            + " b LEFT OUTER JOIN " + JDBCBlobstoreStorage.CONTENT_TABLE_NAME + " c ON b."
+            + JDBCBlobstoreStorage.COLUMN_CONTENT_ID + " = c." + JDBCBlobstoreStorage.COLUMN_CONTENT_ID
+            + " WHERE b." + JDBCBlobstoreStorage.COLUMN_BLOB_ID + "= ?";
 
     private final DataSource dataSource;
     /**
@@ -57,7 +69,7 @@ public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
     private Blob blob;
 
     /**
-     * The current position of the binaryStream.
+     * The current position of the binaryStream in {@link BlobReadMode#SEQUENTIAL_STREAM} mode.
      */
     private long currentDbStreamPosition = 0;
 
@@ -68,8 +80,24 @@ public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
 
     private final Long blobId;
 
+    /**
+     * The position of the first byte that may be read.
+     */
+    private final long rangeStart;
+
+    /**
+     * The number of bytes that may be read or <code>null</code> if the blob may be read till its end.
+     */
+    private final Long rangeLength;
+
     private Connection connection;
 
+    /**
+     * The read mode that is supported by the driver as far as we know. It may be shared by the readers of a storage,
+     * so the unsupported modes are not tried by every reader.
+     */
+    private final AtomicReference<BlobReadMode> readMode;
+
     /**
      * Constructor for the {@link AbstractCachedInputStream} implementation for JDBC database.
      *
@@ -86,22 +114,58 @@ public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
     public JDBCBlobstoreStorageReader(final DataSource dataSource, final Long blobId,
             final Long startPosition, final LogService logger)
                     throws SQLException {
+        this(dataSource, blobId, startPosition, null, new AtomicReference<BlobReadMode>(BlobReadMode.BYTES), logger);
+    }
+
+    /**
+     * Constructor of a reader that reads only a range of the blob.
+     *
+     * @param dataSource
+     *            The connection provider that allows us getting database connections.
+     * @param blobId
+     *            The id of the {@link Blob} to be read.
+     * @param startPosition
+     *            The offset at which the blob reading starts.
+     * @param length
+     *            The number of bytes that may be read or <code>null</code> if the blob may be read till its end.
+     * @param logger
+     * @throws SQLException
+     *             If the db cannot be accessed.
+     */
+    public JDBCBlobstoreStorageReader(final DataSource dataSource, final Long blobId,
+            final Long startPosition, final Long length, final LogService logger)
+                    throws SQLException {
+        this(dataSource, blobId, startPosition, length, new AtomicReference<BlobReadMode>(BlobReadMode.BYTES),
+                logger);
+    }
+
+    /**
+     * Constructor of a reader that shares the supported read mode with other readers.
+     *
+     * @param dataSource
+     *            The connection provider that allows us getting database connections.
+     * @param blobId
+     *            The id of the {@link Blob} to be read.
+     * @param startPosition
+     *            The offset at which the blob reading starts.
+     * @param length
+     *            The number of bytes that may be read or <code>null</code> if the blob may be read till its end.
+     * @param readMode
+     *            The read mode that is tried first. It is updated if the driver does not support it.
+     * @param logger
+     * @throws SQLException
+     *             If the db cannot be accessed.
+     */
+    public JDBCBlobstoreStorageReader(final DataSource dataSource, final Long blobId,
+            final Long startPosition, final Long length, final AtomicReference<BlobReadMode> readMode,
+            final LogService logger)
+                    throws SQLException {
+        this.readMode = Objects.requireNonNull(readMode, "readMode cannot be null");
         this.logger = Objects.requireNonNull(logger, "logger cannot be null");
         this.blobId = Objects.requireNonNull(blobId, "blobId cannot be null");
         this.dataSource = Objects.requireNonNull(dataSource, "dataSource cannot be null");
-        try {
-            Blob lBlob = getBlob();
-            if (lBlob == null) {
-                throw new BlobstoreException("blob [" + blobId + "] does not exist");
-            }
-            totalSize = lBlob.length();
-        } finally {
-            try {
-                close();
-            } catch (IOException e) {
-                throw new SQLException(e);
-            }
-        }
+        rangeStart = (length == null) ? 0 : startPosition;
+        rangeLength = length;
     }
 
     @Override
@@ -131,7 +195,23 @@ public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
     }
 
     /**
-     * Getting a binary stream lazily.
+     * Chooses the next read mode after the driver turned out not to support one.
+     */
+    private BlobReadMode fallBack(final BlobReadMode unsupportedMode, final Throwable cause) {
+        BlobReadMode fallback = unsupportedMode.getFallback();
+        if (fallback == null) {
+            throw new BlobstoreException("the driver does not support reading blobs", cause);
+        }
+        if (readMode.compareAndSet(unsupportedMode, fallback)) {
+            logger.log(LogService.LOG_INFO, "The JDBC driver does not support reading blobs in " + unsupportedMode
+                    + " mode, falling back to " + fallback + " mode");
+        }
+        return fallback;
+    }
+
+    /**
+     * Getting the binary stream of the whole blob lazily. The stream is used in
+     * {@link BlobReadMode#SEQUENTIAL_STREAM} mode only.
      *
      * @return The binary stream of the blob.
      * @throws SQLException
@@ -140,6 +220,7 @@ public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
     public InputStream getBinaryStream() throws SQLException {
         if (binaryStream == null) {
             binaryStream = getBlob().getBinaryStream();
+            currentDbStreamPosition = 0;
         }
         return binaryStream;
     }
@@ -161,7 +242,10 @@ public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
                 try {
                     rs = preparedStatement.executeQuery();
                     if (rs.next()) {
-                        blob = rs.getBlob(JDBCBlobstoreStorage.COLUMN_BLOB_DATA);
+                        blob = rs.getBlob(1);
+                        if (blob == null) {
+                            blob = rs.getBlob(2);
+                        }
                     } else {
                         throw new BlobstoreException("blob [" + blobId + "] does not exist");
                     }
@@ -190,37 +274,165 @@ public class JDBCBlobstoreStorageReader implements BlobstoreStorageReader {
         }
     }
 
+    /**
+     * Returns the size of the blob. The size is queried lazily, so a reader whose size is known by the caller does not
+     * access the database until the first read.
+     */
     @Override
     public long getTotalSize() throws SQLException {
+        if (totalSize == null) {
+            Blob lBlob = getBlob();
+            if (lBlob == null) {
+                throw new BlobstoreException("blob [" + blobId + "] does not exist");
+            }
+            totalSize = lBlob.length();
+        }
         return totalSize;
     }
 
+    private void checkRange(final long startPosition, final int amount) throws SQLException {
+        if ((startPosition < rangeStart)
+                || ((rangeLength != null) && ((startPosition + amount) > (rangeStart + rangeLength)))) {
+            throw new SQLException("Range [" + startPosition + ", " + (startPosition + amount)
+                    + ") is outside of the readable range of blob [" + blobId + "]");
+        }
+    }
+
+    /**
+     * Reads a range in the supported read mode.
+     *
+     * @param dest
+     *            The array into which the bytes are read or <code>null</code> if the array is allocated by this
+     *            method.
+     * @return The array that holds the read bytes, <code>dest</code> if it is not <code>null</code>.
+     */
+    private byte[] read(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        checkRange(startPosition, amount);
+        if (amount == 0) {
+            return (dest == null) ? new byte[0] : dest;
+        }
+        BlobReadMode mode = readMode.get();
+        while (true) {
+            try {
+                switch (mode) {
+                case BYTES:
+                    return readBytes(startPosition, dest, offset, amount);
+                case RANGE_STREAM:
+                    return readRangeStream(startPosition, dest, offset, amount);
+                default:
+                    return readSequentially(startPosition, dest, offset, amount);
+                }
+            } catch (SQLFeatureNotSupportedException e) {
+                mode = fallBack(mode, e);
+            } catch (AbstractMethodError e) {
+                // drivers written before JDBC 4 do not implement the positional stream
+                mode = fallBack(mode, e);
+            }
+        }
+    }
+
+    /**
+     * Reads a range by {@link Blob#getBytes(long, int)}. The array that is returned by the driver is copied into
+     * <code>dest</code> if it is not <code>null</code>.
+     */
+    private byte[] readBytes(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        byte[] result = getBlob().getBytes(startPosition + 1, amount);
+        if (result.length != amount) {
+            throw new BlobstoreException("failed to copy byte array");
+        }
+        if (dest == null) {
+            return result;
+        }
+        System.arraycopy(result, 0, dest, offset, amount);
+        return dest;
+    }
+
     @Override
     public byte[] readDataFromStorage(final long startPosition, final int amount) throws SQLException {
-        if (startPosition < currentDbStreamPosition) {
-            throw new SQLException("Startposition [" + startPosition
-                    + "] cannot be lower than the current position of the stream [" + currentDbStreamPosition + "]");
-        }
-        InputStream is = getBinaryStream();
-        if (startPosition > currentDbStreamPosition) {
+        return read(startPosition, null, 0, amount);
+    }
+
+    @Override
+    public void readInto(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        Objects.requireNonNull(dest, "dest cannot be null");
+        read(startPosition, dest, offset, amount);
+    }
+
+    /**
+     * Reads a range from a stream opened by {@link Blob#getBinaryStream(long, long)}.
+     */
+    private byte[] readRangeStream(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        InputStream is = getBlob().getBinaryStream(startPosition + 1, amount);
+        try {
+            return readStream(is, dest, offset, amount);
+        } finally {
             try {
+                is.close();
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads a range from the stream of the whole blob. The stream is reopened if the range starts before the current
+     * position of the stream.
+     */
+    private byte[] readSequentially(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        try {
+            if ((binaryStream != null) && (startPosition < currentDbStreamPosition)) {
+                binaryStream.close();
+                binaryStream = null;
+            }
+            InputStream is = getBinaryStream();
+            if (startPosition > currentDbStreamPosition) {
                 StreamUtil.skip(is, startPosition - currentDbStreamPosition);
                 currentDbStreamPosition = startPosition;
-            } catch (IOException e) {
-                throw new BlobstoreException(e);
             }
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
         }
-        ByteArrayOutputStream bout = new ByteArrayOutputStream(amount);
+        byte[] result = readStream(binaryStream, dest, offset, amount);
+        currentDbStreamPosition = currentDbStreamPosition + amount;
+        return result;
+    }
 
+    /**
+     * Reads bytes from a stream straight into the destination array.
+     */
+    private byte[] readStream(final InputStream is, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        byte[] result = (dest == null) ? new byte[amount] : dest;
+        int destPos = (dest == null) ? 0 : offset;
         try {
-            long copiedBytes = StreamUtil.copyStream(is, bout, (long) amount, JDBCBlobstoreStorage.IO_BUFFER_SIZE);
-            currentDbStreamPosition = currentDbStreamPosition + copiedBytes;
-            if (copiedBytes != amount) {
-                throw new BlobstoreException("failed to copy byte array");
+            int readBytes = 0;
+            while (readBytes < amount) {
+                int r = is.read(result, destPos + readBytes, amount - readBytes);
+                if (r < 0) {
+                    throw new BlobstoreException("failed to copy byte array");
+                }
+                readBytes += r;
             }
-            return bout.toByteArray();
+            return result;
         } catch (IOException e) {
             throw new SQLException(e);
         }
     }
+
+    /**
+     * Reads the ranges by positional reads on the blob that is selected once for all of them.
+     */
+    @Override
+    public List<byte[]> readDataFromStorage(final List<BlobRange> ranges) throws SQLException {
+        List<byte[]> result = new ArrayList<byte[]>(ranges.size());
+        for (BlobRange range : ranges) {
+            result.add(readDataFromStorage(range.getStartPosition(), range.getLength()));
+        }
+        return result;
+    }
 }
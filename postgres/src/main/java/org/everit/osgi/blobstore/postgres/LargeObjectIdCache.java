@@ -0,0 +1,73 @@
+/**
+ * This file is part of Everit - Blobstore Postgres.
+ *
+ * Everit - Blobstore Postgres is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore Postgres is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore Postgres.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.postgres;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the large object ids of the blobs, so a reader does not have to query the id of the large object
+ * every time a blob is opened. The least recently used entry is dropped if the cache is full.
+ */
+public class LargeObjectIdCache {
+
+    /**
+     * The cached large object ids in access order. Guarded by <code>this</code>.
+     */
+    private final LinkedHashMap<Long, Long> largeObjectIds;
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries
+     *            The maximum number of blobs whose large object id is cached.
+     * @throws IllegalArgumentException
+     *             if <code>maxEntries</code> is not positive.
+     */
+    public LargeObjectIdCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive, actual value: " + maxEntries);
+        }
+        largeObjectIds = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached large object id of a blob.
+     *
+     * @return The large object id, <code>null</code> if it is not cached.
+     */
+    public synchronized Long get(final long blobId) {
+        return largeObjectIds.get(blobId);
+    }
+
+    public synchronized void put(final long blobId, final long largeObjectId) {
+        largeObjectIds.put(blobId, largeObjectId);
+    }
+
+    public synchronized void remove(final long blobId) {
+        largeObjectIds.remove(blobId);
+    }
+
+}
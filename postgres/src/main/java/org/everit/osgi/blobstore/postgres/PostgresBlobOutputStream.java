@@ -0,0 +1,146 @@
+/**
+ * This file is part of Everit - Blobstore.
+ *
+ * Everit - Blobstore is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Everit - Blobstore is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Everit - Blobstore.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.everit.osgi.blobstore.postgres;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.everit.osgi.blobstore.api.BlobOutputStream;
+import org.osgi.service.log.LogService;
+import org.postgresql.largeobject.LargeObject;
+
+/**
+ * Writes a new blob straight into the output stream of its large object. The large object and the row of the blob
+ * are created in a transaction when the stream is opened, the transaction is committed when the stream is closed.
+ */
+class PostgresBlobOutputStream extends BlobOutputStream {
+
+    /**
+     * The connection of the transaction, <code>null</code> if the stream is closed or aborted.
+     */
+    private Connection connection;
+
+    private final LargeObject obj;
+
+    private final OutputStream out;
+
+    private final long blobId;
+
+    private final long largeObjectId;
+
+    private final LargeObjectIdCache largeObjectIds;
+
+    private final LogService logger;
+
+    PostgresBlobOutputStream(final Connection connection, final LargeObject obj, final long blobId,
+            final long largeObjectId, final LargeObjectIdCache largeObjectIds, final LogService logger)
+            throws SQLException {
+        this.connection = connection;
+        this.obj = obj;
+        out = obj.getOutputStream();
+        this.blobId = blobId;
+        this.largeObjectId = largeObjectId;
+        this.largeObjectIds = largeObjectIds;
+        this.logger = logger;
+    }
+
+    @Override
+    public void abort() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        release(false);
+    }
+
+    /**
+     * Flushes the written bytes into the large object and commits the transaction.
+     */
+    @Override
+    public void close() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        boolean committed = false;
+        try {
+            obj.close();
+            connection.commit();
+            committed = true;
+            largeObjectIds.put(blobId, largeObjectId);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            release(committed);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (connection == null) {
+            throw new IOException("the stream of blob [" + blobId + "] is closed");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        out.flush();
+    }
+
+    /**
+     * Returns the id of the blob. The id is known as soon as the stream is opened, but the blob is visible only after
+     * the stream is closed.
+     */
+    @Override
+    public long getBlobId() {
+        return blobId;
+    }
+
+    /**
+     * Rolls back the transaction if it has not been committed and closes the connection. The failures are only logged,
+     * so they do not hide the exception that made the stream fail.
+     */
+    private void release(final boolean committed) {
+        Connection lConnection = connection;
+        connection = null;
+        try {
+            if (!committed) {
+                lConnection.rollback();
+            }
+        } catch (SQLException e) {
+            logger.log(LogService.LOG_ERROR, "Cannot roll back transaction: " + e.getMessage());
+        }
+        try {
+            lConnection.close();
+        } catch (SQLException e) {
+            logger.log(LogService.LOG_ERROR, e.getMessage());
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureOpen();
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureOpen();
+        out.write(b);
+    }
+
+}
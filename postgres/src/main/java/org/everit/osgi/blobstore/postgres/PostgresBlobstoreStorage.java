@@ -18,10 +18,18 @@ package org.everit.osgi.blobstore.postgres;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import javax.sql.DataSource;
@@ -33,6 +41,8 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.blobstore.api.BlobInput;
+import org.everit.osgi.blobstore.api.BlobOutputStream;
 import org.everit.osgi.blobstore.api.Blobstore;
 import org.everit.osgi.blobstore.api.BlobstoreException;
 import org.everit.osgi.blobstore.api.storage.BlobstoreStorage;
@@ -52,11 +62,27 @@ metatype = true, immediate = true,
 policy = ConfigurationPolicy.REQUIRE,
 configurationFactory = true)
 @Properties({
-    @Property(name = "dataSource.target")
+    @Property(name = "dataSource.target"),
+    @Property(name = PostgresBlobstoreStorage.PROP_DEDUPLICATION,
+            boolValue = PostgresBlobstoreStorage.DEFAULT_DEDUPLICATION)
 })
 @Service
 public class PostgresBlobstoreStorage implements BlobstoreStorage {
 
+    /**
+     * Whether {@link #storeBlob(InputStream, Long, String)} stores the content of identical blobs only once. The
+     * content of each blob is digested while it is written and the blobs with the same digest share one large object.
+     * Blobs stored in other ways never share their large object, but they may be deleted in any mode.
+     */
+    public static final String PROP_DEDUPLICATION = "deduplication";
+
+    public static final boolean DEFAULT_DEDUPLICATION = false;
+
+    /**
+     * The algorithm of the digest that identifies the content of the blobs if {@link #PROP_DEDUPLICATION} is set.
+     */
+    public static final String CONTENT_DIGEST_ALGORITHM = "SHA-256";
+
     /**
      * Name of the table the blob is stored.
      */
@@ -81,6 +107,11 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
      */
     public static final String SEQUENCE_NAME = "bs_seq";
 
+    /**
+     * The maximum number of blobs whose large object id is cached.
+     */
+    public static final int LARGE_OBJECT_ID_CACHE_MAX_ENTRIES = 10000;
+
     /**
      * Getting the large object id based on the blob id.
      */
@@ -94,6 +125,16 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
             + COLUMN_LARGE_OBJECT_ID + ", " + COLUMN_DESCRIPTION + ") values (?, ?"
             + ") returning " + COLUMN_BLOB_ID;
 
+    /**
+     * Query that creates the given number of empty large objects in one round trip.
+     */
+    public static final String SQL_CREATE_LARGE_OBJECTS = "select lo_create(0) from generate_series(1, ?)";
+
+    /**
+     * The maximum number of rows inserted by one statement when multiple blobs are stored.
+     */
+    public static final int INSERT_MAX_ROWS = 1000;
+
     /**
      * Query to get the description of the blob.
      */
@@ -106,6 +147,192 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
     public static final String SQL_DELETE_BLOB_RECORD = "delete from " + TABLE_NAME + " where " + COLUMN_BLOB_ID
             + " = ?";
 
+    /**
+     * Name of the table of the multipart uploads.
+     */
+    public static final String UPLOAD_TABLE_NAME = "BS_POSTGRES_UPLOAD";
+
+    /**
+     * Name of the table of the stored parts of the multipart uploads. Each part is stored in its own large object.
+     */
+    public static final String UPLOAD_PART_TABLE_NAME = "BS_POSTGRES_UPLOAD_PART";
+
+    /**
+     * Name of the column of the upload id.
+     */
+    public static final String COLUMN_UPLOAD_ID = "UPLOAD_ID";
+
+    /**
+     * Name of the column of the part number.
+     */
+    public static final String COLUMN_PART_NUMBER = "PART_NUMBER";
+
+    /**
+     * Name of the column of the part size.
+     */
+    public static final String COLUMN_PART_SIZE = "PART_SIZE";
+
+    /**
+     * The number of bytes that are copied by one call of <code>lo_put</code> when the parts of an upload are
+     * assembled.
+     */
+    public static final int ASSEMBLE_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Insert statement of a new multipart upload.
+     */
+    public static final String SQL_INSERT_UPLOAD = "insert into " + UPLOAD_TABLE_NAME + " (" + COLUMN_DESCRIPTION
+            + ") values (?) returning " + COLUMN_UPLOAD_ID;
+
+    /**
+     * Query to get the description of the blob of an upload.
+     */
+    public static final String SQL_QUERY_UPLOAD = "select " + COLUMN_DESCRIPTION + " from " + UPLOAD_TABLE_NAME
+            + " where " + COLUMN_UPLOAD_ID + " = ?";
+
+    /**
+     * Locks an upload while a part is stored, so the upload cannot be completed or aborted meanwhile, but other parts
+     * can be stored at the same time.
+     */
+    public static final String SQL_LOCK_UPLOAD_SHARED = SQL_QUERY_UPLOAD + " for share";
+
+    /**
+     * Locks an upload exclusively before it is completed or aborted.
+     */
+    public static final String SQL_LOCK_UPLOAD = SQL_QUERY_UPLOAD + " for update";
+
+    /**
+     * Query to get the numbers of the stored parts of an upload.
+     */
+    public static final String SQL_QUERY_PART_NUMBERS = "select " + COLUMN_PART_NUMBER + " from "
+            + UPLOAD_PART_TABLE_NAME + " where " + COLUMN_UPLOAD_ID + " = ? order by " + COLUMN_PART_NUMBER;
+
+    /**
+     * Deletes a part of an upload and returns the id of its large object.
+     */
+    public static final String SQL_DELETE_PART = "delete from " + UPLOAD_PART_TABLE_NAME + " where "
+            + COLUMN_UPLOAD_ID + " = ? and " + COLUMN_PART_NUMBER + " = ? returning " + COLUMN_LARGE_OBJECT_ID;
+
+    /**
+     * Insert statement of a stored part.
+     */
+    public static final String SQL_INSERT_PART = "insert into " + UPLOAD_PART_TABLE_NAME + " (" + COLUMN_UPLOAD_ID
+            + ", " + COLUMN_PART_NUMBER + ", " + COLUMN_LARGE_OBJECT_ID + ", " + COLUMN_PART_SIZE
+            + ") values (?, ?, ?, ?)";
+
+    /**
+     * Copies the large objects of the parts of an upload into the large object of the blob on the server side. Each
+     * part is copied by chunks of {@link #ASSEMBLE_CHUNK_SIZE} bytes to the offset that is the sum of the sizes of the
+     * preceding parts. The parameters are the large object id of the blob, the chunk size, the upload id and the chunk
+     * size again.
+     */
+    public static final String SQL_ASSEMBLE_PARTS = "select lo_put(cast(? as oid), p.part_offset + s.pos,"
+            + " lo_get(cast(p." + COLUMN_LARGE_OBJECT_ID + " as oid), s.pos, cast(? as integer)))"
+            + " from (select " + COLUMN_LARGE_OBJECT_ID + ", " + COLUMN_PART_SIZE + ", cast(sum(" + COLUMN_PART_SIZE
+            + ") over (order by " + COLUMN_PART_NUMBER + ") - " + COLUMN_PART_SIZE + " as bigint) as part_offset"
+            + " from " + UPLOAD_PART_TABLE_NAME + " where " + COLUMN_UPLOAD_ID + " = ?) p,"
+            + " generate_series(0, p." + COLUMN_PART_SIZE + " - 1, cast(? as bigint)) s(pos)";
+
+    /**
+     * Deletes the large objects of the parts of an upload.
+     */
+    public static final String SQL_UNLINK_PARTS = "select lo_unlink(cast(" + COLUMN_LARGE_OBJECT_ID + " as oid))"
+            + " from " + UPLOAD_PART_TABLE_NAME + " where " + COLUMN_UPLOAD_ID + " = ?";
+
+    /**
+     * Deletes the rows of the parts of an upload.
+     */
+    public static final String SQL_DELETE_PARTS = "delete from " + UPLOAD_PART_TABLE_NAME + " where "
+            + COLUMN_UPLOAD_ID + " = ?";
+
+    /**
+     * Deletes the row of an upload.
+     */
+    public static final String SQL_DELETE_UPLOAD = "delete from " + UPLOAD_TABLE_NAME + " where " + COLUMN_UPLOAD_ID
+            + " = ?";
+
+    /**
+     * Name of the table of the large objects that are shared by blobs of identical content.
+     */
+    public static final String CONTENT_TABLE_NAME = "BS_POSTGRES_CONTENT";
+
+    /**
+     * Name of the column of the hexadecimal digest of the content.
+     */
+    public static final String COLUMN_CONTENT_DIGEST = "CONTENT_DIGEST";
+
+    /**
+     * Name of the column of the number of blobs that share the large object.
+     */
+    public static final String COLUMN_REFERENCE_COUNT = "REFERENCE_COUNT";
+
+    /**
+     * Serializes the transactions that store blobs with the same digest until they are committed, so a digest is
+     * never inserted twice.
+     */
+    public static final String SQL_LOCK_CONTENT_DIGEST = "select pg_advisory_xact_lock(?)";
+
+    /**
+     * Adds a reference to the large object of a digest and returns the id of the large object.
+     */
+    public static final String SQL_REFERENCE_CONTENT = "update " + CONTENT_TABLE_NAME + " set "
+            + COLUMN_REFERENCE_COUNT + " = " + COLUMN_REFERENCE_COUNT + " + 1 where " + COLUMN_CONTENT_DIGEST
+            + " = ? returning " + COLUMN_LARGE_OBJECT_ID;
+
+    /**
+     * Insert statement of the large object of a new digest.
+     */
+    public static final String SQL_INSERT_CONTENT = "insert into " + CONTENT_TABLE_NAME + " (" + COLUMN_CONTENT_DIGEST
+            + ", " + COLUMN_LARGE_OBJECT_ID + ", " + COLUMN_REFERENCE_COUNT + ") values (?, ?, 1)";
+
+    /**
+     * Removes a reference from a shared large object and returns the number of remaining references. No row is
+     * returned if the large object is not shared.
+     */
+    public static final String SQL_DEREFERENCE_CONTENT = "update " + CONTENT_TABLE_NAME + " set "
+            + COLUMN_REFERENCE_COUNT + " = " + COLUMN_REFERENCE_COUNT + " - 1 where " + COLUMN_LARGE_OBJECT_ID
+            + " = ? returning " + COLUMN_REFERENCE_COUNT;
+
+    /**
+     * Deletes the row of a shared large object that is not referenced anymore.
+     */
+    public static final String SQL_DELETE_CONTENT = "delete from " + CONTENT_TABLE_NAME + " where "
+            + COLUMN_LARGE_OBJECT_ID + " = ?";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static void checkDescription(final String description) {
+        if ((description != null) && (description.length() > Blobstore.BLOB_DESCRIPTION_MAX_LENGTH)) {
+            throw new BlobstoreException("description length must be at most " +
+                    Blobstore.BLOB_DESCRIPTION_MAX_LENGTH + ", actual length: " + description.length());
+        }
+    }
+
+    /**
+     * Creates the digest of the content of a blob.
+     */
+    private static MessageDigest createContentDigest() {
+        try {
+            return MessageDigest.getInstance(CONTENT_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new BlobstoreException(e);
+        }
+    }
+
+    /**
+     * Runs a statement that has the upload id as its only parameter.
+     */
+    private static void executeByUploadId(final String sql, final long uploadId, final Connection connection)
+            throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            statement.setLong(1, uploadId);
+            statement.execute();
+        } finally {
+            statement.close();
+        }
+    }
+
     /**
      * Getting the large object id based on the blob id.
      *
@@ -135,6 +362,41 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
         }
     }
 
+    /**
+     * Queries the description of the blob of an upload.
+     *
+     * @param sql
+     *            {@link #SQL_QUERY_UPLOAD} or one of its locking variants.
+     * @throws BlobstoreException
+     *             if the upload does not exist.
+     */
+    private static String queryUpload(final String sql, final long uploadId, final Connection connection)
+            throws SQLException {
+        PreparedStatement query = connection.prepareStatement(sql);
+        try {
+            query.setLong(1, uploadId);
+            ResultSet resultSet = query.executeQuery();
+            if (!resultSet.next()) {
+                throw new BlobstoreException("upload [" + uploadId + "] does not exist");
+            }
+            return resultSet.getString(1);
+        } finally {
+            query.close();
+        }
+    }
+
+    /**
+     * Converts a digest to the hexadecimal form that is stored in the content table.
+     */
+    private static String toHex(final byte[] digest) {
+        char[] result = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            result[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            result[(2 * i) + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+        return new String(result);
+    }
+
     /**
      * Logger of this instance.
      */
@@ -151,8 +413,42 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
     @Reference
     private LiquibaseService liquibaseService;
 
+    /**
+     * The large object ids of the recently used blobs.
+     */
+    private final LargeObjectIdCache largeObjectIds = new LargeObjectIdCache(LARGE_OBJECT_ID_CACHE_MAX_ENTRIES);
+
+    /**
+     * Whether the content of identical blobs is stored only once, see {@link #PROP_DEDUPLICATION}.
+     */
+    private boolean deduplication = DEFAULT_DEDUPLICATION;
+
+    @Override
+    public void abortMultipartUpload(final long uploadId) {
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            queryUpload(SQL_LOCK_UPLOAD, uploadId, connection);
+            deleteUpload(uploadId, connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
+        }
+    }
+
     @Activate
-    public void activate(final BundleContext ctx) {
+    public void activate(final BundleContext ctx, final Map<String, Object> componentProperties) {
+        Object deduplicationValue = componentProperties.get(PROP_DEDUPLICATION);
+        if (deduplicationValue != null) {
+            deduplication = Boolean.parseBoolean(String.valueOf(deduplicationValue).trim());
+        }
         try {
             dataSource.getConnection().setAutoCommit(false);
             liquibaseService.process(dataSource, ctx.getBundle(),
@@ -174,6 +470,24 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
         this.logger = logger;
     }
 
+    /**
+     * Copies the parts of an upload into the large object of the blob by {@link #SQL_ASSEMBLE_PARTS}, so the content
+     * of the parts does not leave the database server.
+     */
+    private void assembleParts(final long uploadId, final long oid, final Connection connection)
+            throws SQLException {
+        PreparedStatement query = connection.prepareStatement(SQL_ASSEMBLE_PARTS);
+        try {
+            query.setLong(1, oid);
+            query.setInt(2, ASSEMBLE_CHUNK_SIZE);
+            query.setLong(3, uploadId);
+            query.setLong(4, ASSEMBLE_CHUNK_SIZE);
+            query.execute();
+        } finally {
+            query.close();
+        }
+    }
+
     /**
      * Cleanup method for closing the connection and the large object handler.
      *
@@ -200,6 +514,60 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
         }
     }
 
+    /**
+     * Creates empty large objects by one query.
+     *
+     * @return The ids of the created large objects.
+     */
+    private List<Long> createLargeObjects(final int count, final Connection connection) throws SQLException {
+        List<Long> oids = new ArrayList<Long>(count);
+        PreparedStatement query = connection.prepareStatement(SQL_CREATE_LARGE_OBJECTS);
+        try {
+            query.setInt(1, count);
+            ResultSet resultSet = query.executeQuery();
+            while (resultSet.next()) {
+                oids.add(resultSet.getLong(1));
+            }
+        } finally {
+            query.close();
+        }
+        if (oids.size() != count) {
+            throw new BlobstoreException(count + " large objects were requested but " + oids.size()
+                    + " were created");
+        }
+        return oids;
+    }
+
+    /**
+     * Assembles the blob and deletes the upload in one transaction. The upload is locked exclusively, so the
+     * completion waits for the parts that are being stored.
+     */
+    @Override
+    public long completeMultipartUpload(final long uploadId) {
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            String description = queryUpload(SQL_LOCK_UPLOAD, uploadId, connection);
+            LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
+            long oid = loManager.createLO();
+            assembleParts(uploadId, oid, connection);
+            long blobId = insertBlobIntoTable(oid, description, connection);
+            deleteUpload(uploadId, connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+            largeObjectIds.put(blobId, oid);
+            return blobId;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
+        }
+    }
+
     @Override
     public BlobstoreStorageReader createReader(
             final long blobId,
@@ -208,19 +576,35 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
                 dataSource,
                 blobId,
                 startPosition,
+                null,
+                largeObjectIds,
                 logger
                 );
         return rval;
     }
 
+    @Override
+    public BlobstoreStorageReader createReader(
+            final long blobId,
+            final long startPosition,
+            final long length) throws SQLException {
+        return new PostgresBlobstoreStorageReader(dataSource, blobId, startPosition, length, largeObjectIds, logger);
+    }
+
+    /**
+     * Deletes the row of the blob and its large object in one transaction. A large object that is shared by blobs of
+     * identical content is deleted together with the last of them.
+     */
     @Override
     public void deleteBlob(final long blobId) {
         Connection connection = null;
-        LargeObject obj = null;
+        boolean committed = false;
         try {
             connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
             PreparedStatement deleteStatement = null;
             long largeObjectId = PostgresBlobstoreStorage.getLargeObjectId(blobId, connection);
+            largeObjectIds.remove(blobId);
             try {
                 deleteStatement = connection.prepareStatement(SQL_DELETE_BLOB_RECORD);
                 deleteStatement.setLong(1, blobId);
@@ -233,15 +617,30 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
                     deleteStatement.close();
                 }
             }
-            LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
-            loManager.delete(largeObjectId);
+            if (releaseContent(largeObjectId, connection)) {
+                LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
+                loManager.delete(largeObjectId);
+            }
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlobstoreException(e);
         } finally {
-            cleanup(connection, obj);
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
         }
     }
 
+    /**
+     * Deletes the large objects and the rows of the parts of an upload and the row of the upload.
+     */
+    private void deleteUpload(final long uploadId, final Connection connection) throws SQLException {
+        executeByUploadId(SQL_UNLINK_PARTS, uploadId, connection);
+        executeByUploadId(SQL_DELETE_PARTS, uploadId, connection);
+        executeByUploadId(SQL_DELETE_UPLOAD, uploadId, connection);
+    }
+
     @Override
     public String getDescriptionByBlobId(final long blobId) {
         Connection connection = null;
@@ -275,6 +674,56 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
         }
     }
 
+    @Override
+    public List<Integer> getUploadedPartNumbers(final long uploadId) {
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            queryUpload(SQL_QUERY_UPLOAD, uploadId, connection);
+            List<Integer> partNumbers = new ArrayList<Integer>();
+            PreparedStatement query = connection.prepareStatement(SQL_QUERY_PART_NUMBERS);
+            try {
+                query.setLong(1, uploadId);
+                ResultSet resultSet = query.executeQuery();
+                while (resultSet.next()) {
+                    partNumbers.add(resultSet.getInt(1));
+                }
+            } finally {
+                query.close();
+            }
+            return partNumbers;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            cleanup(connection, null);
+        }
+    }
+
+    @Override
+    public long initiateMultipartUpload(final String description) {
+        checkDescription(description);
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            PreparedStatement insertStatement = connection.prepareStatement(SQL_INSERT_UPLOAD);
+            try {
+                insertStatement.setString(1, description);
+                ResultSet resultSet = insertStatement.executeQuery();
+                if (!resultSet.next()) {
+                    throw new BlobstoreException("Upload id was not returned from database after running insert"
+                            + " statement.");
+                }
+                return resultSet.getLong(1);
+            } finally {
+                insertStatement.close();
+            }
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            cleanup(connection, null);
+        }
+    }
+
     /**
      * Inserting a newly created blob into the blob table.
      *
@@ -312,16 +761,208 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
 
     }
 
+    /**
+     * Inserting the rows of multiple blobs by multi-row insert statements of at most {@link #INSERT_MAX_ROWS} rows.
+     * The generated ids are matched to the blobs by their large object ids, so the order of the returned rows does
+     * not matter.
+     *
+     * @return The ids of the blobs in the order of <code>oids</code>.
+     */
+    private List<Long> insertBlobsIntoTable(final List<Long> oids, final List<BlobInput> blobs,
+            final Connection connection) throws SQLException {
+        Map<Long, Long> blobIdsByOid = new HashMap<Long, Long>(oids.size() * 2);
+        for (int chunkStart = 0; chunkStart < oids.size(); chunkStart += INSERT_MAX_ROWS) {
+            int chunkSize = Math.min(INSERT_MAX_ROWS, oids.size() - chunkStart);
+            StringBuilder sql = new StringBuilder("insert into " + TABLE_NAME + " (" + COLUMN_LARGE_OBJECT_ID + ", "
+                    + COLUMN_DESCRIPTION + ") values ");
+            for (int i = 0; i < chunkSize; i++) {
+                sql.append((i == 0) ? "(?, ?)" : ", (?, ?)");
+            }
+            sql.append(" returning " + COLUMN_BLOB_ID + ", " + COLUMN_LARGE_OBJECT_ID);
+            PreparedStatement insertStatement = connection.prepareStatement(sql.toString());
+            try {
+                for (int i = 0; i < chunkSize; i++) {
+                    insertStatement.setLong((2 * i) + 1, oids.get(chunkStart + i));
+                    insertStatement.setString((2 * i) + 2, blobs.get(chunkStart + i).getDescription());
+                }
+                ResultSet resultSet = insertStatement.executeQuery();
+                while (resultSet.next()) {
+                    blobIdsByOid.put(resultSet.getLong(2), resultSet.getLong(1));
+                }
+            } finally {
+                insertStatement.close();
+            }
+        }
+        List<Long> blobIds = new ArrayList<Long>(oids.size());
+        for (Long oid : oids) {
+            Long blobId = blobIdsByOid.get(oid);
+            if (blobId == null) {
+                throw new BlobstoreException("Blob id was not returned from database for large object " + oid);
+            }
+            blobIds.add(blobId);
+        }
+        return blobIds;
+    }
+
     private void logConnectionCloseFailure(final SQLException e) {
         logger.log(LogService.LOG_ERROR, e.getMessage());
     }
 
+    /**
+     * Removes the reference of a deleted blob from its large object if the large object is shared.
+     *
+     * @return Whether the large object is not referenced by any blob anymore, so it can be deleted.
+     */
+    private boolean releaseContent(final long largeObjectId, final Connection connection) throws SQLException {
+        PreparedStatement dereferenceStatement = connection.prepareStatement(SQL_DEREFERENCE_CONTENT);
+        try {
+            dereferenceStatement.setLong(1, largeObjectId);
+            ResultSet resultSet = dereferenceStatement.executeQuery();
+            if (!resultSet.next()) {
+                return true;
+            }
+            if (resultSet.getLong(1) > 0) {
+                return false;
+            }
+        } finally {
+            dereferenceStatement.close();
+        }
+        PreparedStatement deleteStatement = connection.prepareStatement(SQL_DELETE_CONTENT);
+        try {
+            deleteStatement.setLong(1, largeObjectId);
+            deleteStatement.executeUpdate();
+        } finally {
+            deleteStatement.close();
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the stored part of an upload with the given number, if there is one. The large object of the old part
+     * is deleted.
+     */
+    private void replacePart(final long uploadId, final int partNumber, final long oid, final long partSize,
+            final Connection connection) throws SQLException {
+        PreparedStatement deleteStatement = connection.prepareStatement(SQL_DELETE_PART);
+        try {
+            deleteStatement.setLong(1, uploadId);
+            deleteStatement.setInt(2, partNumber);
+            ResultSet resultSet = deleteStatement.executeQuery();
+            if (resultSet.next()) {
+                LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
+                loManager.delete(resultSet.getLong(1));
+            }
+        } finally {
+            deleteStatement.close();
+        }
+        PreparedStatement insertStatement = connection.prepareStatement(SQL_INSERT_PART);
+        try {
+            insertStatement.setLong(1, uploadId);
+            insertStatement.setInt(2, partNumber);
+            insertStatement.setLong(3, oid);
+            insertStatement.setLong(4, partSize);
+            insertStatement.executeUpdate();
+        } finally {
+            insertStatement.close();
+        }
+    }
+
+    /**
+     * Makes a newly written large object the shared content of its digest, or references the large object of the
+     * digest if one has already been stored. In the latter case the new large object is deleted. The digest is locked
+     * until the end of the transaction, so blobs of identical content that are stored at the same time share the same
+     * large object too.
+     *
+     * @return The id of the large object that the blob references.
+     */
+    private long shareContent(final byte[] digest, final long oid, final Connection connection)
+            throws SQLException {
+        PreparedStatement lockStatement = connection.prepareStatement(SQL_LOCK_CONTENT_DIGEST);
+        try {
+            lockStatement.setLong(1, ByteBuffer.wrap(digest).getLong());
+            lockStatement.execute();
+        } finally {
+            lockStatement.close();
+        }
+        String contentDigest = toHex(digest);
+        PreparedStatement referenceStatement = connection.prepareStatement(SQL_REFERENCE_CONTENT);
+        try {
+            referenceStatement.setString(1, contentDigest);
+            ResultSet resultSet = referenceStatement.executeQuery();
+            if (resultSet.next()) {
+                long sharedOid = resultSet.getLong(1);
+                LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
+                loManager.delete(oid);
+                return sharedOid;
+            }
+        } finally {
+            referenceStatement.close();
+        }
+        PreparedStatement insertStatement = connection.prepareStatement(SQL_INSERT_CONTENT);
+        try {
+            insertStatement.setString(1, contentDigest);
+            insertStatement.setLong(2, oid);
+            insertStatement.executeUpdate();
+        } finally {
+            insertStatement.close();
+        }
+        return oid;
+    }
+
+    /**
+     * Rolls back the transaction of the connection unless it has been committed.
+     */
+    private void rollbackIfNotCommitted(final Connection connection, final boolean committed) {
+        if ((connection != null) && !committed) {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                logConnectionCloseFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Opens a stream that writes into a new large object. The large object and the row of the blob are created
+     * immediately, but they are visible only after the stream is closed.
+     */
+    @Override
+    public BlobOutputStream openBlobOutputStream(final String description) {
+        checkDescription(description);
+        Connection connection = null;
+        boolean opened = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
+            long oid = loManager.createLO();
+            long blobId = insertBlobIntoTable(oid, description, connection);
+            LargeObject obj = loManager.open(oid, LargeObjectManager.WRITE);
+            BlobOutputStream out = new PostgresBlobOutputStream(connection, obj, blobId, oid, largeObjectIds,
+                    logger);
+            opened = true;
+            return out;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            if (!opened && (connection != null)) {
+                try {
+                    connection.rollback();
+                } catch (SQLException e) {
+                    logConnectionCloseFailure(e);
+                }
+                // the large object is closed by the rollback
+                cleanup(connection, null);
+            }
+        }
+    }
+
     @Override
     public long storeBlob(final InputStream blobStream, final Long length, final String description) {
         Objects.requireNonNull(blobStream, "blobStream cannot be null");
-        if ((description != null) && (description.length() > Blobstore.BLOB_DESCRIPTION_MAX_LENGTH)) {
-            throw new BlobstoreException("description length must be at most " +
-                    Blobstore.BLOB_DESCRIPTION_MAX_LENGTH + ", actual length: " + description.length());
+        checkDescription(description);
+        if (deduplication) {
+            return storeDeduplicatedBlob(blobStream, length, description);
         }
         Connection connection = null;
         LargeObject obj = null;
@@ -331,19 +972,155 @@ public class PostgresBlobstoreStorage implements BlobstoreStorage {
             LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
             Long oid = loManager.createLO();
             obj = loManager.open(oid, LargeObjectManager.WRITE);
-            long bytesProcessed = StreamUtil.copyStream(blobStream, obj.getOutputStream(), length, DEFAULT_BUFFER_SIZE);
+            writeLargeObject(obj, blobStream, length);
+            connection.setAutoCommit(true);
+            long blobId = insertBlobIntoTable(oid, description, connection);
+            largeObjectIds.put(blobId, oid);
+            return blobId;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            cleanup(connection, obj);
+        }
+    }
 
-            if ((length != null) && (length.longValue() != bytesProcessed)) {
-                throw new BlobstoreException("too short stream");
+    /**
+     * Stores a blob in one transaction and digests its content while it is written into a new large object. If the
+     * content has already been stored, the blob references the existing large object instead of the new one.
+     */
+    private long storeDeduplicatedBlob(final InputStream blobStream, final Long length, final String description) {
+        Connection connection = null;
+        LargeObject obj = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
+            long oid = loManager.createLO();
+            obj = loManager.open(oid, LargeObjectManager.WRITE);
+            MessageDigest digest = createContentDigest();
+            writeLargeObject(obj, new DigestInputStream(blobStream, digest), length);
+            obj.close();
+            obj = null;
+            long contentOid = shareContent(digest.digest(), oid, connection);
+            long blobId = insertBlobIntoTable(contentOid, description, connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+            largeObjectIds.put(blobId, contentOid);
+            return blobId;
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            cleanup(null, obj);
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
+        }
+    }
+
+    /**
+     * Stores the blobs in one transaction. The large objects are created by one query and the rows of the blobs are
+     * inserted by multi-row insert statements, so only writing the content of the blobs costs a round trip per blob.
+     */
+    @Override
+    public List<Long> storeBlobs(final List<BlobInput> blobs) {
+        Objects.requireNonNull(blobs, "blobs cannot be null");
+        for (BlobInput blob : blobs) {
+            checkDescription(blob.getDescription());
+        }
+        if (blobs.isEmpty()) {
+            return new ArrayList<Long>();
+        }
+        Connection connection = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            List<Long> oids = createLargeObjects(blobs.size(), connection);
+            LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
+            for (int i = 0; i < blobs.size(); i++) {
+                BlobInput blob = blobs.get(i);
+                LargeObject obj = loManager.open(oids.get(i), LargeObjectManager.WRITE);
+                try {
+                    writeLargeObject(obj, blob.getBlobStream(), blob.getLength());
+                } finally {
+                    obj.close();
+                }
             }
+            List<Long> blobIds = insertBlobsIntoTable(oids, blobs, connection);
+            connection.commit();
+            committed = true;
             connection.setAutoCommit(true);
-            return insertBlobIntoTable(oid, description, connection);
+            for (int i = 0; i < blobIds.size(); i++) {
+                largeObjectIds.put(blobIds.get(i), oids.get(i));
+            }
+            return blobIds;
         } catch (SQLException e) {
             throw new BlobstoreException(e);
         } catch (IOException e) {
             throw new BlobstoreException(e);
         } finally {
-            cleanup(connection, obj);
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
+        }
+    }
+
+    /**
+     * Stores the part in a new large object. The upload is locked in share mode until the part is committed, so
+     * multiple parts may be stored at the same time on separate connections.
+     */
+    @Override
+    public void uploadPart(final long uploadId, final int partNumber, final InputStream partStream,
+            final Long length) {
+        Objects.requireNonNull(partStream, "partStream cannot be null");
+        if (partNumber <= 0) {
+            throw new IllegalArgumentException("partNumber must be positive: " + partNumber);
+        }
+        Connection connection = null;
+        LargeObject obj = null;
+        boolean committed = false;
+        try {
+            connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            queryUpload(SQL_LOCK_UPLOAD_SHARED, uploadId, connection);
+            LargeObjectManager loManager = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
+            long oid = loManager.createLO();
+            obj = loManager.open(oid, LargeObjectManager.WRITE);
+            long partSize = writeLargeObject(obj, partStream, length);
+            obj.close();
+            obj = null;
+            replacePart(uploadId, partNumber, oid, partSize, connection);
+            connection.commit();
+            committed = true;
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new BlobstoreException(e);
+        } catch (IOException e) {
+            throw new BlobstoreException(e);
+        } finally {
+            cleanup(null, obj);
+            rollbackIfNotCommitted(connection, committed);
+            cleanup(connection, null);
+        }
+    }
+
+    /**
+     * Copies the content of a blob into an opened large object.
+     *
+     * @param length
+     *            The number of bytes to be copied or <code>null</code> if the stream is copied till its end.
+     * @return The number of copied bytes.
+     */
+    private long writeLargeObject(final LargeObject obj, final InputStream blobStream, final Long length)
+            throws SQLException, IOException {
+        long bytesProcessed = StreamUtil.copyStream(blobStream, obj.getOutputStream(), length, DEFAULT_BUFFER_SIZE);
+        if ((length != null) && (length.longValue() != bytesProcessed)) {
+            throw new BlobstoreException("too short stream");
         }
+        return bytesProcessed;
     }
 }
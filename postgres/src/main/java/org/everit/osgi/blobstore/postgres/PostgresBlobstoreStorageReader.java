@@ -19,10 +19,13 @@ package org.everit.osgi.blobstore.postgres;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import javax.sql.DataSource;
 
+import org.everit.osgi.blobstore.api.BlobRange;
 import org.everit.osgi.blobstore.api.BlobstoreException;
 import org.everit.osgi.blobstore.api.storage.BlobstoreStorageReader;
 import org.osgi.service.log.LogService;
@@ -30,13 +33,16 @@ import org.postgresql.largeobject.LargeObject;
 import org.postgresql.largeobject.LargeObjectManager;
 
 /**
- * The {@link AbstractCachedInputStream} implementation for PostgreSQL database.
+ * The {@link AbstractCachedInputStream} implementation for PostgreSQL database. The reader holds one connection and
+ * one transaction from its first database access till {@link #close()}, so the large object is looked up and opened
+ * only once and the size of the blob is read from the opened large object.
  */
 public class PostgresBlobstoreStorageReader implements BlobstoreStorageReader {
 
     private final LogService logger;
     /**
-     * Currently opened connection to the database.
+     * The connection of the reader, <code>null</code> if the database has not been accessed yet or the reader is
+     * closed.
      */
     private Connection connection;
 
@@ -45,15 +51,35 @@ public class PostgresBlobstoreStorageReader implements BlobstoreStorageReader {
      */
     private LargeObject obj;
 
+    /**
+     * The position of the opened large object, it is tracked locally, so no query is needed to find it out.
+     */
+    private long objPosition = 0;
+
     /**
      * The lazily initialized total size of the blob.
      */
-    private Integer totalSize = null;
+    private Long totalSize = null;
 
     private final Long blobId;
 
+    /**
+     * The position of the first byte that may be read.
+     */
+    private final long rangeStart;
+
+    /**
+     * The number of bytes that may be read or <code>null</code> if the blob may be read till its end.
+     */
+    private final Long rangeLength;
+
     private final DataSource dataSource;
 
+    /**
+     * The cache of the large object ids, <code>null</code> if the id is queried every time.
+     */
+    private final LargeObjectIdCache largeObjectIds;
+
     /**
      * Constructor for the {@link AbstractCachedInputStream} implementation for PostgreSQL database.
      *
@@ -69,62 +95,113 @@ public class PostgresBlobstoreStorageReader implements BlobstoreStorageReader {
     public PostgresBlobstoreStorageReader(final DataSource dataSource, final Long blobId,
             final Long startPosition, final LogService logger)
             throws SQLException {
-        this.logger = Objects.requireNonNull(logger, "logger cannot be null");
-        this.blobId = Objects.requireNonNull(blobId, "blobId cannot be null");
-        this.dataSource = Objects.requireNonNull(dataSource, "dataSource cannot be null");
-        try {
-            totalSize = getObj().size();
-        } finally {
-            cleanUp(true, true);
-        }
+        this(dataSource, blobId, startPosition, null, null, logger);
     }
 
     /**
-     * Cleaning up the connection and large object if created.
+     * Constructor of a reader that reads only a range of the large object. Every read is a seek and a read of the
+     * requested size, so only the bytes of the range are transferred.
      *
-     * @param cleanObj
-     *            whether to clean the obj or not.
-     * @param cleanConnection
-     *            whether to clean the connection or not.
+     * @param dataSource
+     *            The connection provider to the database.
+     * @param blobId
+     *            The id of the {@link LargeObject} to be read.
+     * @param startPosition
+     *            The offset at which the blob reading starts.
+     * @param length
+     *            The number of bytes that may be read or <code>null</code> if the blob may be read till its end.
      * @throws SQLException
-     *             if a database error occurs.
+     *             If the db cannot be accessed.
      */
-    private void cleanUp(final boolean cleanObj, final boolean cleanConnection) throws SQLException {
-        try {
-            if (cleanObj && (obj != null)) {
-                obj.close();
-                obj = null;
-            }
-        } finally {
-            if (cleanConnection && (connection != null)) {
-                connection.close();
-                connection = null;
-            }
-        }
+    public PostgresBlobstoreStorageReader(final DataSource dataSource, final Long blobId,
+            final Long startPosition, final Long length, final LogService logger)
+            throws SQLException {
+        this(dataSource, blobId, startPosition, length, null, logger);
+    }
+
+    /**
+     * Constructor of a reader that looks up the large object id in a cache before querying it. The large object is
+     * opened lazily, so a reader whose blob size is known by the caller does not access the database until the first
+     * read.
+     *
+     * @param dataSource
+     *            The connection provider to the database.
+     * @param blobId
+     *            The id of the {@link LargeObject} to be read.
+     * @param startPosition
+     *            The offset at which the blob reading starts.
+     * @param length
+     *            The number of bytes that may be read or <code>null</code> if the blob may be read till its end.
+     * @param largeObjectIds
+     *            The cache of the large object ids or <code>null</code> if the id should be queried.
+     * @throws SQLException
+     *             If the db cannot be accessed.
+     */
+    public PostgresBlobstoreStorageReader(final DataSource dataSource, final Long blobId,
+            final Long startPosition, final Long length, final LargeObjectIdCache largeObjectIds,
+            final LogService logger)
+            throws SQLException {
+        this.logger = Objects.requireNonNull(logger, "logger cannot be null");
+        this.blobId = Objects.requireNonNull(blobId, "blobId cannot be null");
+        this.dataSource = Objects.requireNonNull(dataSource, "dataSource cannot be null");
+        this.largeObjectIds = largeObjectIds;
+        rangeStart = (length == null) ? 0 : startPosition;
+        rangeLength = length;
     }
 
+    /**
+     * Closes the large object and ends the transaction of the reader. The transaction is rolled back because the
+     * reader does not modify anything.
+     */
     @Override
     public void close() throws IOException {
         try {
-            cleanUp(true, true);
+            try {
+                if (obj != null) {
+                    obj.close();
+                }
+            } finally {
+                obj = null;
+                if (connection != null) {
+                    Connection lConnection = connection;
+                    connection = null;
+                    try {
+                        lConnection.rollback();
+                    } finally {
+                        lConnection.close();
+                    }
+                }
+            }
         } catch (SQLException e) {
             logger.log(LogService.LOG_ERROR, "Error during cleaning up large object and connection from postgres", e);
             throw new IOException(e);
         }
     }
 
+    /**
+     * Lazily getting the connection of the reader. The connection is kept in a transaction till the reader is closed.
+     */
     private Connection getConnection() {
-        try {
-            Connection rval = dataSource.getConnection();
-            rval.setAutoCommit(false);
-            return rval;
-        } catch (SQLException e) {
-            throw new BlobstoreException(e);
+        if (connection == null) {
+            try {
+                Connection lConnection = dataSource.getConnection();
+                try {
+                    lConnection.setAutoCommit(false);
+                } catch (SQLException e) {
+                    lConnection.close();
+                    throw e;
+                }
+                connection = lConnection;
+            } catch (SQLException e) {
+                throw new BlobstoreException(e);
+            }
         }
+        return connection;
     }
 
     /**
-     * Lazily getting a large object based on the {@link #getLargeObjectId()}.
+     * Lazily getting a large object based on the {@link #getLargeObjectId()}. The large object is opened once and it
+     * is kept open till the reader is closed.
      *
      * @return The large object.
      * @throws SQLException
@@ -132,21 +209,36 @@ public class PostgresBlobstoreStorageReader implements BlobstoreStorageReader {
      */
     protected LargeObject getObj() throws SQLException {
         if (obj == null) {
-            Connection connection = getConnection();
-            LargeObjectManager largeObjectAPI = PostgreSQLUtil.getPGConnection(connection).getLargeObjectAPI();
-            obj = largeObjectAPI.open(PostgresBlobstoreStorage.getLargeObjectId(blobId, connection),
-                    LargeObjectManager.READ);
+            Connection lConnection = getConnection();
+            LargeObjectManager largeObjectAPI = PostgreSQLUtil.getPGConnection(lConnection).getLargeObjectAPI();
+            obj = largeObjectAPI.open(getLargeObjectId(lConnection), LargeObjectManager.READ);
+            objPosition = 0;
         }
         return obj;
     }
 
+    private long getLargeObjectId(final Connection connection) throws SQLException {
+        Long largeObjectId = null;
+        if (largeObjectIds != null) {
+            largeObjectId = largeObjectIds.get(blobId);
+        }
+        if (largeObjectId == null) {
+            largeObjectId = PostgresBlobstoreStorage.getLargeObjectId(blobId, connection);
+            if (largeObjectIds != null) {
+                largeObjectIds.put(blobId, largeObjectId);
+            }
+        }
+        return largeObjectId;
+    }
+
+    /**
+     * Returns the size of the blob. The size is read from the large object that is used by the following reads too,
+     * by the 64-bit call, so the size of large objects over 2 GB is returned correctly.
+     */
     @Override
     public long getTotalSize() throws SQLException {
-        boolean cleanObj = (obj == null);
-        boolean cleanConnection = (connection == null);
         if (totalSize == null) {
-            totalSize = getObj().size();
-            cleanUp(cleanObj, cleanConnection);
+            totalSize = Long.valueOf(getObj().size64());
         }
         return totalSize;
     }
@@ -154,12 +246,49 @@ public class PostgresBlobstoreStorageReader implements BlobstoreStorageReader {
     @Override
     public byte[] readDataFromStorage(final long startPosition, final int amount) throws SQLException {
         byte[] output = new byte[amount];
+        readInto(startPosition, output, 0, amount);
+        return output;
+    }
 
+    /**
+     * Reads the bytes by {@link LargeObject#read(byte[], int, int)} straight into the array of the caller. The large
+     * object is positioned by {@link LargeObject#seek64(long, int)}, so positions over 2 GB are not truncated.
+     */
+    @Override
+    public void readInto(final long startPosition, final byte[] dest, final int offset, final int amount)
+            throws SQLException {
+        Objects.requireNonNull(dest, "dest cannot be null");
+        if ((startPosition < rangeStart)
+                || ((rangeLength != null) && ((startPosition + amount) > (rangeStart + rangeLength)))) {
+            throw new SQLException("Range [" + startPosition + ", " + (startPosition + amount)
+                    + ") is outside of the readable range of large object [" + blobId + "]");
+        }
         LargeObject lObj = getObj();
-        if (lObj.tell() != startPosition) {
-            lObj.seek((int) startPosition);
+        if (objPosition != startPosition) {
+            lObj.seek64(startPosition, LargeObject.SEEK_SET);
+            objPosition = startPosition;
         }
-        lObj.read(output, 0, amount);
-        return output;
+        int readBytes = 0;
+        while (readBytes < amount) {
+            int r = lObj.read(dest, offset + readBytes, amount - readBytes);
+            if (r <= 0) {
+                throw new SQLException("Unexpected end of large object [" + blobId + "] at position "
+                        + (startPosition + readBytes));
+            }
+            readBytes += r;
+            objPosition += r;
+        }
+    }
+
+    /**
+     * Reads the ranges from the large object that is opened once for all of them. Each range is a seek and a read.
+     */
+    @Override
+    public List<byte[]> readDataFromStorage(final List<BlobRange> ranges) throws SQLException {
+        List<byte[]> result = new ArrayList<byte[]>(ranges.size());
+        for (BlobRange range : ranges) {
+            result.add(readDataFromStorage(range.getStartPosition(), range.getLength()));
+        }
+        return result;
     }
 }
@@ -19,6 +19,8 @@ package org.everit.blobstore.tests;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -33,6 +35,11 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.blobstore.api.BlobChannelReader;
+import org.everit.osgi.blobstore.api.BlobInput;
+import org.everit.osgi.blobstore.api.BlobOutputStream;
+import org.everit.osgi.blobstore.api.BlobRange;
+import org.everit.osgi.blobstore.api.BlobRangeReader;
 import org.everit.osgi.blobstore.api.BlobReader;
 import org.everit.osgi.blobstore.api.Blobstore;
 import org.everit.osgi.blobstore.api.BlobstoreException;
@@ -210,6 +217,71 @@ public class BlobstoreTest {
         blobstore.deleteBlob(blobId);
     }
 
+    @Test
+    @TestDuringDevelopment
+    public void testMultipartUpload() {
+        final int partLength = 3000;
+        final int partCount = 4;
+        final long uploadId = blobstore.initiateMultipartUpload("Multipart");
+        // stored with wrong content, the part uploaded by the thread replaces it
+        blobstore.uploadPart(uploadId, 1, new DummyInputStream(partLength, 1), (long) partLength);
+
+        final AtomicInteger workingThreads = new AtomicInteger(partCount);
+        for (int p = partCount; p > 0; p--) {
+            final int partNumber = p;
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        blobstore.uploadPart(uploadId, partNumber,
+                                new DummyInputStream(partLength, (partNumber - 1) * partLength),
+                                (partNumber == partCount) ? null : Long.valueOf(partLength));
+                    } finally {
+                        workingThreads.decrementAndGet();
+                        synchronized (lock) {
+                            lock.notify();
+                        }
+                    }
+                }
+            }).start();
+        }
+        waitUntilThreadsAreFinished(workingThreads);
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4), blobstore.getUploadedPartNumbers(uploadId));
+
+        long blobId = blobstore.completeMultipartUpload(uploadId);
+        Assert.assertEquals(partLength * partCount, blobstore.getBlobSizeByBlobId(blobId));
+        Assert.assertEquals("Multipart", blobstore.getDescriptionByBlobId(blobId));
+        blobstore.readBlob(blobId, 0, new BlobReader() {
+
+            @Override
+            public void readBlob(final InputStream blobStream) {
+                try {
+                    Assert.assertTrue(DummyInputStream.couldBeFromDummyStream(blobStream, 0));
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected error during reading from blobStream", e);
+                }
+            }
+        });
+        blobstore.deleteBlob(blobId);
+        try {
+            blobstore.getUploadedPartNumbers(uploadId);
+            Assert.fail("BlobstoreException should have been thrown");
+        } catch (BlobstoreException e) {
+            // expected, the upload is deleted when it is completed
+        }
+
+        long abortedUploadId = blobstore.initiateMultipartUpload("Aborted");
+        blobstore.uploadPart(abortedUploadId, 1, new DummyInputStream(partLength, 0), (long) partLength);
+        blobstore.abortMultipartUpload(abortedUploadId);
+        try {
+            blobstore.completeMultipartUpload(abortedUploadId);
+            Assert.fail("BlobstoreException should have been thrown");
+        } catch (BlobstoreException e) {
+            // expected
+        }
+    }
+
     @Test
     @TestDuringDevelopment
     public void testNullInputStream() {
@@ -251,6 +323,396 @@ public class BlobstoreTest {
         });
     }
 
+    @Test
+    @TestDuringDevelopment
+    public void testOpenBlobOutputStream() throws IOException {
+        final int dummyStreamLength = 5000;
+        byte[] content = new byte[dummyStreamLength];
+        DummyInputStream is = new DummyInputStream(dummyStreamLength, 0);
+        int read = 0;
+        while (read < dummyStreamLength) {
+            read += is.read(content, read, dummyStreamLength - read);
+        }
+
+        BlobOutputStream out = blobstore.openBlobOutputStream("Streamed");
+        out.write(content, 0, 1000);
+        out.write(content[1000]);
+        out.write(content, 1001, dummyStreamLength - 1001);
+        out.close();
+        long blobId = out.getBlobId();
+        Assert.assertEquals(dummyStreamLength, blobstore.getBlobSizeByBlobId(blobId));
+        Assert.assertEquals("Streamed", blobstore.getDescriptionByBlobId(blobId));
+        blobstore.readBlob(blobId, 0, new BlobReader() {
+
+            @Override
+            public void readBlob(final InputStream blobStream) {
+                try {
+                    Assert.assertTrue(DummyInputStream.couldBeFromDummyStream(blobStream, 0));
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected error during reading from blobStream", e);
+                }
+            }
+        });
+        blobstore.deleteBlob(blobId);
+
+        BlobOutputStream abortedOut = blobstore.openBlobOutputStream("Aborted");
+        abortedOut.write(content);
+        abortedOut.abort();
+        try {
+            abortedOut.write(content);
+            Assert.fail("IOException should have been thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    @TestDuringDevelopment
+    public void testRandomAccessRead() {
+        final int dummyStreamLength = 100000;
+        DummyInputStream is = new DummyInputStream(dummyStreamLength, 0);
+        Long blobId = blobstore.storeBlob(is, null, "Dummy");
+        final long[] positions = new long[] { 90000, 10, 50000, 49000, 99990, 0 };
+        blobstore.readBlob(blobId, new BlobChannelReader() {
+
+            @Override
+            public void readBlob(final SeekableByteChannel blobChannel) {
+                try {
+                    for (long position : positions) {
+                        ByteBuffer buffer = ByteBuffer.allocate(10);
+                        blobChannel.position(position);
+                        Assert.assertEquals(10, blobChannel.read(buffer));
+                        Assert.assertTrue("bytes at position " + position, DummyInputStream.couldBeFromDummyStream(
+                                new ByteArrayInputStream(buffer.array()), position));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected error during reading from blobChannel", e);
+                }
+            }
+        });
+        blobstore.deleteBlob(blobId);
+    }
+
+    @Test
+    @TestDuringDevelopment
+    public void testReadBlobChannel() {
+        final int dummyStreamLength = 500;
+        DummyInputStream is = new DummyInputStream(dummyStreamLength, 0);
+        Long blobId = blobstore.storeBlob(is, null, "Dummy");
+        blobstore.readBlob(blobId, new BlobChannelReader() {
+
+            @Override
+            public void readBlob(final SeekableByteChannel blobChannel) {
+                try {
+                    Assert.assertEquals(dummyStreamLength, blobChannel.size());
+                    blobChannel.position(300);
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(dummyStreamLength);
+                    int readBytes = 0;
+                    for (int read = blobChannel.read(buffer); read >= 0; read = blobChannel.read(buffer)) {
+                        readBytes += read;
+                    }
+                    Assert.assertEquals(dummyStreamLength - 300, readBytes);
+                    byte[] tail = new byte[readBytes];
+                    buffer.flip();
+                    buffer.get(tail);
+                    Assert.assertTrue(DummyInputStream.couldBeFromDummyStream(new ByteArrayInputStream(tail), 300));
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected error during reading from blobChannel", e);
+                }
+            }
+        });
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        Assert.assertEquals(100, blobstore.read(blobId, 50, buffer));
+        try {
+            Assert.assertTrue(DummyInputStream.couldBeFromDummyStream(new ByteArrayInputStream(buffer.array()), 50));
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error during checking the read bytes", e);
+        }
+        buffer.clear();
+        Assert.assertEquals(20, blobstore.read(blobId, dummyStreamLength - 20, buffer));
+        Assert.assertEquals(-1, blobstore.read(blobId, dummyStreamLength, buffer));
+        blobstore.deleteBlob(blobId);
+    }
+
+    @Test
+    @TestDuringDevelopment
+    public void testReadBlobRange() {
+        final int dummyStreamLength = 500;
+        final int rangeStart = 100;
+        final int rangeLength = 50;
+        DummyInputStream is = new DummyInputStream(dummyStreamLength, 0);
+        Long blobId = blobstore.storeBlob(is, null, "Dummy");
+        blobstore.readBlob(blobId, rangeStart, rangeLength, new BlobReader() {
+
+            @Override
+            public void readBlob(final InputStream blobStream) {
+                try {
+                    Assert.assertEquals(rangeLength, blobStream.available());
+                    byte[] range = new byte[dummyStreamLength];
+                    int readBytes = 0;
+                    for (int read = blobStream.read(range, 0, range.length); read >= 0; read = blobStream
+                            .read(range, readBytes, range.length - readBytes)) {
+                        readBytes += read;
+                    }
+                    Assert.assertEquals("the stream ends at the end of the range", rangeLength, readBytes);
+                    Assert.assertTrue(DummyInputStream.couldBeFromDummyStream(
+                            new ByteArrayInputStream(range, 0, readBytes), rangeStart));
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected error during reading from blobStream", e);
+                }
+            }
+        });
+        try {
+            blobstore.readBlob(blobId, dummyStreamLength - 10, 11, new DummyBlobReader());
+            Assert.fail("Reading a range that exceeds the blob should have died with exception");
+        } catch (BlobstoreException e) {
+            Assert.assertEquals("the range [startPosition=490, length=11] exceeds totalSize(=500) of blob #" + blobId,
+                    e.getMessage());
+        }
+        blobstore.deleteBlob(blobId);
+    }
+
+    @Test
+    @TestDuringDevelopment
+    public void testReadRanges() {
+        final int dummyStreamLength = 500;
+        DummyInputStream is = new DummyInputStream(dummyStreamLength, 0);
+        Long blobId = blobstore.storeBlob(is, null, "Dummy");
+        final List<Long> startPositions = new ArrayList<Long>();
+        blobstore.readRanges(blobId, Arrays.asList(new BlobRange(400, 50), new BlobRange(10, 20),
+                new BlobRange(25, 30)), new BlobRangeReader() {
+
+                    @Override
+                    public void readRange(final BlobRange range, final InputStream rangeStream) {
+                        startPositions.add(range.getStartPosition());
+                        try {
+                            Assert.assertEquals(range.getLength(), rangeStream.available());
+                            Assert.assertTrue(DummyInputStream.couldBeFromDummyStream(rangeStream,
+                                    range.getStartPosition()));
+                        } catch (IOException e) {
+                            throw new RuntimeException("Unexpected error during reading from rangeStream", e);
+                        }
+                    }
+                });
+        Assert.assertEquals(Arrays.asList(10l, 25l, 400l), startPositions);
+        try {
+            blobstore.readRanges(blobId, Arrays.asList(new BlobRange(490, 11)), new BlobRangeReader() {
+
+                @Override
+                public void readRange(final BlobRange range, final InputStream rangeStream) {
+                    Assert.fail("no range should be read");
+                }
+            });
+            Assert.fail("Reading a range that exceeds the blob should have died with exception");
+        } catch (BlobstoreException e) {
+            Assert.assertEquals("the range [startPosition=490, length=11] exceeds totalSize(=500) of blob #" + blobId,
+                    e.getMessage());
+        }
+        blobstore.deleteBlob(blobId);
+    }
+
+    @Test
+    @TestDuringDevelopment
+    public void testStoreBlobs() {
+        final int blobCount = 20;
+        List<BlobInput> blobs = new ArrayList<BlobInput>();
+        for (int i = 0; i < blobCount; i++) {
+            blobs.add(new BlobInput(new DummyInputStream(100 + i, i), (i % 2 == 0) ? null : Long.valueOf(100 + i),
+                    "Dummy" + i));
+        }
+        List<Long> blobIds = blobstore.storeBlobs(blobs);
+        Assert.assertEquals(blobCount, blobIds.size());
+        for (int i = 0; i < blobCount; i++) {
+            final int startingPoint = i;
+            long blobId = blobIds.get(i);
+            Assert.assertEquals(100 + i, blobstore.getBlobSizeByBlobId(blobId));
+            Assert.assertEquals("Dummy" + i, blobstore.getDescriptionByBlobId(blobId));
+            blobstore.readBlob(blobId, 0, new BlobReader() {
+
+                @Override
+                public void readBlob(final InputStream blobStream) {
+                    try {
+                        Assert.assertTrue(DummyInputStream.couldBeFromDummyStream(blobStream, startingPoint));
+                    } catch (IOException e) {
+                        throw new RuntimeException("Unexpected error during reading from blobStream", e);
+                    }
+                }
+            });
+            blobstore.deleteBlob(blobId);
+        }
+        Assert.assertTrue(blobstore.storeBlobs(new ArrayList<BlobInput>()).isEmpty());
+    }
+
+    @Test
+    @TestDuringDevelopment
+    public void testStoreIdenticalBlobs() {
+        final int dummyStreamLength = 4000;
+        long firstBlobId = blobstore.storeBlob(new DummyInputStream(dummyStreamLength, 7), null, "First");
+        long secondBlobId = blobstore.storeBlob(new DummyInputStream(dummyStreamLength, 7),
+                (long) dummyStreamLength, "Second");
+        Assert.assertTrue(firstBlobId != secondBlobId);
+        Assert.assertEquals("First", blobstore.getDescriptionByBlobId(firstBlobId));
+        Assert.assertEquals("Second", blobstore.getDescriptionByBlobId(secondBlobId));
+
+        // the content may be shared, so it must survive the deletion of the other blob
+        blobstore.deleteBlob(firstBlobId);
+        Assert.assertEquals(dummyStreamLength, blobstore.getBlobSizeByBlobId(secondBlobId));
+        blobstore.readBlob(secondBlobId, 0, new BlobReader() {
+
+            @Override
+            public void readBlob(final InputStream blobStream) {
+                try {
+                    Assert.assertTrue(DummyInputStream.couldBeFromDummyStream(blobStream, 7));
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected error during reading from blobStream", e);
+                }
+            }
+        });
+        long thirdBlobId = blobstore.storeBlob(new DummyInputStream(dummyStreamLength, 7), null, "Third");
+        blobstore.deleteBlob(secondBlobId);
+        Assert.assertEquals(dummyStreamLength, blobstore.getBlobSizeByBlobId(thirdBlobId));
+        blobstore.deleteBlob(thirdBlobId);
+    }
+
+    @Test
+    @TestDuringDevelopment
+    public void testStoreNearDuplicateBlobs() {
+        final int documentLength = 600 * 1024;
+        final int insertionPosition = 250 * 1024;
+        final int insertionLength = 100;
+        Random random = new Random(documentLength);
+        byte[] document = new byte[documentLength];
+        random.nextBytes(document);
+        byte[] insertion = new byte[insertionLength];
+        random.nextBytes(insertion);
+        final byte[] editedDocument = new byte[documentLength + insertionLength];
+        System.arraycopy(document, 0, editedDocument, 0, insertionPosition);
+        System.arraycopy(insertion, 0, editedDocument, insertionPosition, insertionLength);
+        System.arraycopy(document, insertionPosition, editedDocument, insertionPosition + insertionLength,
+                documentLength - insertionPosition);
+
+        long documentBlobId = blobstore.storeBlob(new ByteArrayInputStream(document), (long) documentLength,
+                "Document");
+        long editedBlobId = blobstore.storeBlob(new ByteArrayInputStream(editedDocument), null, "Edited");
+
+        // the content may be shared, so it must survive the deletion of the other blob
+        blobstore.deleteBlob(documentBlobId);
+        Assert.assertEquals(editedDocument.length, blobstore.getBlobSizeByBlobId(editedBlobId));
+        final int rangeStart = insertionPosition - 10;
+        final int rangeLength = insertionLength + 20;
+        blobstore.readBlob(editedBlobId, rangeStart, rangeLength, new BlobReader() {
+
+            @Override
+            public void readBlob(final InputStream blobStream) {
+                try {
+                    byte[] range = new byte[rangeLength];
+                    int readBytes = 0;
+                    for (int read = blobStream.read(range, 0, range.length); read > 0; read = blobStream
+                            .read(range, readBytes, range.length - readBytes)) {
+                        readBytes += read;
+                    }
+                    Assert.assertEquals(rangeLength, readBytes);
+                    Assert.assertArrayEquals(Arrays.copyOfRange(editedDocument, rangeStart, rangeStart + rangeLength),
+                            range);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected error during reading from blobStream", e);
+                }
+            }
+        });
+        blobstore.readBlob(editedBlobId, 0, new BlobReader() {
+
+            @Override
+            public void readBlob(final InputStream blobStream) {
+                try {
+                    byte[] content = new byte[editedDocument.length];
+                    int readBytes = 0;
+                    for (int read = blobStream.read(content, 0, content.length); read > 0; read = blobStream
+                            .read(content, readBytes, content.length - readBytes)) {
+                        readBytes += read;
+                    }
+                    Assert.assertEquals(editedDocument.length, readBytes);
+                    Assert.assertArrayEquals(editedDocument, content);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unexpected error during reading from blobStream", e);
+                }
+            }
+        });
+        blobstore.deleteBlob(editedBlobId);
+    }
+
+    @Test
+    @TestDuringDevelopment
+    public void testStoreNearDuplicateBlobsConcurrently() {
+        final int blockNum = 8;
+        final int blockLength = 32 * 1024;
+        final int workerThreads = 4;
+        final int versionsPerThread = 5;
+        Random random = new Random(blockLength);
+        final List<byte[]> blocks = new ArrayList<byte[]>();
+        for (int i = 0; i < blockNum; i++) {
+            byte[] block = new byte[blockLength];
+            random.nextBytes(block);
+            blocks.add(block);
+        }
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final AtomicInteger workingThreads = new AtomicInteger(workerThreads);
+        for (int t = 0; t < workerThreads; t++) {
+            final long seed = t;
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        // the versions share the blocks in different orders, so the shared content is stored and
+                        // deleted by the threads in different orders
+                        Random versionRandom = new Random(seed);
+                        List<byte[]> versionBlocks = new ArrayList<byte[]>(blocks);
+                        for (int i = 0; i < versionsPerThread; i++) {
+                            Collections.shuffle(versionBlocks, versionRandom);
+                            final byte[] version = new byte[blockNum * blockLength];
+                            for (int j = 0; j < blockNum; j++) {
+                                System.arraycopy(versionBlocks.get(j), 0, version, j * blockLength, blockLength);
+                            }
+                            long blobId = blobstore.storeBlob(new ByteArrayInputStream(version), null, "Version");
+                            blobstore.readBlob(blobId, 0, new BlobReader() {
+
+                                @Override
+                                public void readBlob(final InputStream blobStream) {
+                                    try {
+                                        byte[] content = new byte[version.length];
+                                        int readBytes = 0;
+                                        for (int read = blobStream.read(content, 0, content.length); read > 0;
+                                                read = blobStream.read(content, readBytes,
+                                                        content.length - readBytes)) {
+                                            readBytes += read;
+                                        }
+                                        Assert.assertEquals(version.length, readBytes);
+                                        Assert.assertArrayEquals(version, content);
+                                    } catch (IOException e) {
+                                        throw new RuntimeException("Unexpected error during reading from blobStream",
+                                                e);
+                                    }
+                                }
+                            });
+                            blobstore.deleteBlob(blobId);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        workingThreads.decrementAndGet();
+                        synchronized (lock) {
+                            lock.notify();
+                        }
+                    }
+                }
+            }).start();
+        }
+        waitUntilThreadsAreFinished(workingThreads);
+        if (!failures.isEmpty()) {
+            throw new AssertionError("concurrent store failed: " + failures.get(0), failures.get(0));
+        }
+    }
+
     @Test
     @TestDuringDevelopment
     public void testTooLongDescription() {